@@ -0,0 +1,207 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.AudioFormat;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.os.Looper;
+import android.util.Log;
+
+import com.android.grafika.encoder.AudioCapture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Captures audio from the microphone and encodes it as AAC, for storage in a
+ * {@link CircularEncoderBuffer} alongside the video.
+ * <p>
+ * PCM is read and fed to the encoder by an {@link AudioCapture}, which stamps it with the
+ * same time base the camera uses for SurfaceTexture timestamps.  The encoded output is not
+ * handled on its threads, because the circular buffer only allows one writer: a
+ * {@link CodecDriver} on the writer thread's Looper adds each packet to the buffer as the
+ * encoder produces it.  On devices without asynchronous codec callbacks the driver has to be
+ * polled, so after each input buffer is queued we poke the owner through {@link Listener},
+ * and the owner calls {@link #poll} on the writer thread.
+ */
+public class AudioEncoderCore {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final String MIME_TYPE = "audio/mp4a-latm";
+    private static final int SAMPLE_RATE = AudioCapture.SAMPLE_RATE;
+    private static final int CHANNEL_COUNT = 1;
+    public static final int BIT_RATE = 64000;
+    private static final int SAMPLES_PER_FRAME = 1024;  // one AAC frame
+    private static final int BYTES_PER_FRAME = SAMPLES_PER_FRAME * 2 * CHANNEL_COUNT;
+
+    /** Approximate number of encoded packets per second. */
+    public static final int PACKETS_PER_SEC = (SAMPLE_RATE + SAMPLES_PER_FRAME - 1) /
+            SAMPLES_PER_FRAME;
+
+    /**
+     * Receives notifications about encoder output.
+     */
+    public interface Listener {
+        /**
+         * Called on a capture thread when the encoder may have output available.  Only
+         * called if the encoder needs polling; see {@link CodecDriver#poll}.
+         */
+        void audioAvailable();
+
+        /**
+         * Called on the writer thread after encoded audio has been added to the buffer.
+         */
+        void audioAdded();
+    }
+
+    private MediaCodec mEncoder;
+    private CodecDriver mDriver;
+    private final CircularEncoderBuffer mEncBuffer;
+    private final Listener mListener;
+    private volatile MediaFormat mEncodedFormat;
+
+    private AudioCapture mCapture;
+    private Thread mCaptureThread;
+
+    /**
+     * Configures and starts the AAC encoder.  Capture doesn't begin until start().
+     *
+     * @param writerLooper Looper of the thread that writes to the buffer.
+     * @param encBuffer Where the encoded audio goes.
+     */
+    public AudioEncoderCore(Looper writerLooper, CircularEncoderBuffer encBuffer,
+            Listener listener) throws IOException {
+        mEncBuffer = encBuffer;
+        mListener = listener;
+
+        MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, SAMPLE_RATE,
+                CHANNEL_COUNT);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_CHANNEL_MASK, AudioFormat.CHANNEL_IN_MONO);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, BYTES_PER_FRAME);
+        if (VERBOSE) Log.d(TAG, "audio format: " + format);
+
+        mEncoder = CodecRegistry.getInstance().createCodec(MIME_TYPE, true);
+        mDriver = new CodecDriver(mEncoder, "AudioEncoderCore", writerLooper, false,
+                mDriverCallback);
+        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mDriver.start();
+    }
+
+    /**
+     * Starts capturing audio.
+     */
+    public void start() {
+        final boolean needsPoll = !CodecDriver.isAsyncSupported();
+        final AudioCapture capture = new AudioCapture(mDriver,
+                new int[] { MediaRecorder.AudioSource.CAMCORDER }, BYTES_PER_FRAME,
+                new AudioCapture.Listener() {
+                    @Override
+                    public void onInputQueued() {
+                        if (needsPoll) {
+                            mListener.audioAvailable();
+                        }
+                    }
+                });
+        mCaptureThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                android.os.Process.setThreadPriority(
+                        android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+                capture.run();
+                if (VERBOSE) Log.d(TAG, "audio capture finished");
+            }
+        }, "AudioEncoderCore-capture");
+        mCapture = capture;
+        mCaptureThread.start();
+    }
+
+    /**
+     * Stops capturing audio.  Does not return until the capture thread has finished, and
+     * what it read has gone to the encoder.
+     */
+    public void stop() {
+        if (mCaptureThread == null) {
+            return;
+        }
+        mCapture.stop();
+        try {
+            mCaptureThread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "Audio capture thread join() was interrupted", ie);
+        }
+        mCaptureThread = null;
+        mCapture = null;
+    }
+
+    /**
+     * Releases encoder resources.  Call after stop(), once the writer thread has finished.
+     */
+    public void release() {
+        if (mDriver != null) {
+            mDriver.release();
+            mDriver = null;
+            mEncoder = null;
+        }
+    }
+
+    /**
+     * Returns the encoder's output format (with the AAC codec-specific data), or null if
+     * the encoder hasn't produced one yet.
+     */
+    public MediaFormat getOutputFormat() {
+        return mEncodedFormat;
+    }
+
+    /**
+     * Delivers any pending encoder output to the buffer, if the encoder needs polling.  Must
+     * be called on the buffer's writer thread.
+     */
+    public void poll() {
+        mDriver.poll();
+    }
+
+    /**
+     * Adds the encoder output to the circular buffer, as audio.  Runs on the writer thread.
+     */
+    private final CodecDriver.Callback mDriverCallback = new CodecDriver.Callback() {
+        @Override
+        public void onOutputFormatChanged(CodecDriver driver, MediaFormat format) {
+            mEncodedFormat = format;
+            Log.d(TAG, "audio encoder output format changed: " + mEncodedFormat);
+        }
+
+        @Override
+        public boolean onOutputBuffer(CodecDriver driver, ByteBuffer encodedData,
+                MediaCodec.BufferInfo info) {
+            // The codec config data (csd-0) is in the output format.
+            mEncBuffer.add(CircularEncoderBuffer.TRACK_AUDIO, encodedData, info.flags,
+                    info.presentationTimeUs);
+            if (VERBOSE) {
+                Log.d(TAG, "audio " + info.size + " bytes, ts=" + info.presentationTimeUs);
+            }
+            mListener.audioAdded();
+            return false;
+        }
+    };
+}
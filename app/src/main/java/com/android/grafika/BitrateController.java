@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+/**
+ * Picks the encoder bit rate from what's actually happening downstream.
+ * <p>
+ * The owner feeds in a sample every half second or so: the encoded bytes produced since the
+ * last sample, the bytes waiting to be written (muxer queue, or however much the sink is
+ * behind), and the slowest storage write.  If the sink is falling behind we cut the rate
+ * by a quarter, starting from whichever is lower, the rate we asked for or the rate the
+ * encoder actually delivered.  Once things have been calm for a while we step back up
+ * a little at a time.  We don't step up while the encoder is well under its current rate
+ * (a static scene), since asking for more wouldn't change anything.
+ * <p>
+ * This is plain Java with no framework dependencies, and time is passed in, so a recorded
+ * trace of samples can be replayed through it off-device.
+ * <p>
+ * Not thread-safe; use from one thread.
+ */
+public class BitrateController {
+    /** Suggested time between samples. */
+    public static final long SAMPLE_INTERVAL_USEC = 500000;
+
+    // Backlog, in seconds of data at the current rate, beyond which we back off.
+    private static final float BACKLOG_LIMIT_SEC = 1.0f;
+    // Backlog below which the sink counts as keeping up.
+    private static final float BACKLOG_CALM_SEC = 0.125f;
+    // A single write slower than this means storage can't keep up.
+    private static final long WRITE_LATENCY_LIMIT_USEC = 500000;
+    // After any change, wait this long before stepping up.
+    private static final long HOLD_USEC = 2000000;
+    // Multiplicative decrease and additive increase, in percent.
+    private static final int DECREASE_PERCENT = 75;
+    private static final int INCREASE_PERCENT_OF_MAX = 5;
+    // If the encoder delivers less than this fraction of the current rate, don't step up.
+    private static final int UNDERSHOOT_PERCENT = 70;
+    // Weight of the newest sample in the smoothed encoded rate, in percent.
+    private static final int SMOOTHING_PERCENT = 30;
+
+    private final int mMinBitRate;
+    private final int mMaxBitRate;
+    private int mBitRate;
+    private long mEncodedBitRate = -1;      // smoothed; -1 until we have a sample
+    private long mLastSampleUsec = -1;
+    private long mLastChangeUsec;
+    private int mDecreaseCount;
+    private int mIncreaseCount;
+
+    /**
+     * @param minBitRate Lowest rate we'll ask for, in bits per second.
+     * @param maxBitRate Highest rate we'll ask for.
+     * @param initialBitRate The rate the encoder was configured with.  Clamped to the bounds.
+     */
+    public BitrateController(int minBitRate, int maxBitRate, int initialBitRate) {
+        if (minBitRate <= 0 || maxBitRate < minBitRate) {
+            throw new IllegalArgumentException("bad bounds: " + minBitRate + "," + maxBitRate);
+        }
+        mMinBitRate = minBitRate;
+        mMaxBitRate = maxBitRate;
+        mBitRate = clamp(initialBitRate);
+    }
+
+    /**
+     * Takes a sample and decides on the rate.
+     *
+     * @param nowUsec Current time, in any monotonic time base.
+     * @param encodedBytes Bytes of encoded output since the previous sample.
+     * @param backlogBytes Bytes produced but not yet written by the sink.
+     * @param maxWriteUsec Slowest storage write since the previous sample, or 0 if unknown.
+     * @return The new bit rate.  Apply it if it differs from the previous value.
+     */
+    public int update(long nowUsec, long encodedBytes, long backlogBytes, long maxWriteUsec) {
+        if (mLastSampleUsec < 0) {
+            mLastSampleUsec = nowUsec;
+            mLastChangeUsec = nowUsec;
+            return mBitRate;
+        }
+        long elapsedUsec = nowUsec - mLastSampleUsec;
+        if (elapsedUsec <= 0) {
+            return mBitRate;
+        }
+        mLastSampleUsec = nowUsec;
+
+        long sampleBitRate = encodedBytes * 8 * 1000000 / elapsedUsec;
+        if (mEncodedBitRate < 0) {
+            mEncodedBitRate = sampleBitRate;
+        } else {
+            mEncodedBitRate = (sampleBitRate * SMOOTHING_PERCENT +
+                    mEncodedBitRate * (100 - SMOOTHING_PERCENT)) / 100;
+        }
+
+        long bytesPerSec = mBitRate / 8;
+        boolean congested = backlogBytes > bytesPerSec * BACKLOG_LIMIT_SEC ||
+                maxWriteUsec > WRITE_LATENCY_LIMIT_USEC;
+        if (congested) {
+            int from = (mEncodedBitRate > 0) ?
+                    (int) Math.min(mBitRate, mEncodedBitRate) : mBitRate;
+            int newRate = clamp((int) ((long) from * DECREASE_PERCENT / 100));
+            if (newRate < mBitRate) {
+                mBitRate = newRate;
+                mDecreaseCount++;
+            }
+            // Stay down for a while even if we're already at the minimum.
+            mLastChangeUsec = nowUsec;
+        } else if (nowUsec - mLastChangeUsec >= HOLD_USEC &&
+                backlogBytes <= bytesPerSec * BACKLOG_CALM_SEC &&
+                mEncodedBitRate * 100 >= (long) mBitRate * UNDERSHOOT_PERCENT &&
+                mBitRate < mMaxBitRate) {
+            int step = (int) ((long) mMaxBitRate * INCREASE_PERCENT_OF_MAX / 100);
+            mBitRate = clamp(mBitRate + step);
+            mIncreaseCount++;
+            mLastChangeUsec = nowUsec;
+        }
+        return mBitRate;
+    }
+
+    /**
+     * Returns the current bit rate.
+     */
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * Returns the smoothed rate the encoder has been delivering, in bits per second, or -1
+     * before the first full sample.
+     */
+    public long getEncodedBitRate() {
+        return mEncodedBitRate;
+    }
+
+    /**
+     * Returns the number of times the rate was cut.
+     */
+    public int getDecreaseCount() {
+        return mDecreaseCount;
+    }
+
+    /**
+     * Returns the number of times the rate was raised.
+     */
+    public int getIncreaseCount() {
+        return mIncreaseCount;
+    }
+
+    @Override
+    public String toString() {
+        return "bitRate=" + mBitRate + " encoded=" + mEncodedBitRate + " [" + mMinBitRate +
+                "," + mMaxBitRate + "] down=" + mDecreaseCount + " up=" + mIncreaseCount;
+    }
+
+    private int clamp(int bitRate) {
+        return Math.max(mMinBitRate, Math.min(mMaxBitRate, bitRate));
+    }
+}
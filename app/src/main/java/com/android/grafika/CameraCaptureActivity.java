@@ -35,6 +35,7 @@ import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemSelectedListener;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.app.Activity;
@@ -47,6 +48,7 @@ import com.android.grafika.encoder.MediaEncoder;
 import com.android.grafika.encoder.MediaMuxerWrapper;
 import com.android.grafika.gles.FullFrameRect;
 import com.android.grafika.gles.Texture2dProgram;
+import com.android.grafika.muxer.Muxer;
 
 import java.io.File;
 import java.io.IOException;
@@ -207,15 +209,20 @@ return sdcardDir.toString();
             if (mCamera == null) {
                 openCamera(1280, 720);      // updates mCameraPreviewWidth/Height
             }
+            // Have an encoder ready for when recording starts (see CameraSurfaceRenderer).
+            VideoEncoderCore.prewarm(CameraSurfaceRenderer.RECORDING_CONFIG, 640, 480);
 
         } else {
             PermissionHelper.requestCameraPermission(this, false);
         }
 
         mGLView.onResume();
+        final boolean lowLatency =
+                ((CheckBox) findViewById(R.id.cameraLowLatency_checkbox)).isChecked();
         mGLView.queueEvent(new Runnable() {
             @Override public void run() {
                 mRenderer.setCameraPreviewSize(mCameraPreviewWidth, mCameraPreviewHeight);
+                mRenderer.setLowLatency(lowLatency);
             }
         });
         Log.d(TAG, "onResume complete: " + this);
@@ -372,6 +379,19 @@ return sdcardDir.toString();
         updateControls();
     }
 
+    /**
+     * onClick handler for "low latency" checkbox.  Takes effect when recording next starts.
+     */
+    public void clickLowLatency(@SuppressWarnings("unused") View unused) {
+        final boolean lowLatency =
+                ((CheckBox) findViewById(R.id.cameraLowLatency_checkbox)).isChecked();
+        mGLView.queueEvent(new Runnable() {
+            @Override public void run() {
+                mRenderer.setLowLatency(lowLatency);
+            }
+        });
+    }
+
 //    /**
 //     * onClick handler for "rebind" checkbox.
 //     */
@@ -388,6 +408,8 @@ return sdcardDir.toString();
         int id = mRecordingEnabled ?
                 R.string.toggleRecordingOff : R.string.toggleRecordingOn;
         toggleRelease.setText(id);
+        CheckBox lowLatency = (CheckBox) findViewById(R.id.cameraLowLatency_checkbox);
+        lowLatency.setEnabled(!mRecordingEnabled);
 
         //CheckBox cb = (CheckBox) findViewById(R.id.rebindHack_checkbox);
         //cb.setChecked(TextureRender.sWorkAroundContextProblem);
@@ -485,9 +507,29 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     private static final int RECORDING_ON = 1;
     private static final int RECORDING_RESUMED = 2;
 
+    // For continuous dashcam-style capture, use e.g.
+    // Muxer.segmented(Muxer.MEDIA_MUXER, 60 * 1000000L, 0, 2L * 1024 * 1024 * 1024)
+    // to write one-minute files and keep the most recent 2GB.  Recordings are rewritten
+    // with the index in front afterward, so they can be streamed or uploaded right away.
+    private static final Muxer.Factory MUXER_FACTORY = Muxer.faststart(Muxer.MEDIA_MUXER);
+
+    // Use RecordingConfig.COMPACT to get HEVC (where there's an encoder for it) and a High
+    // profile VBR stream.  The "low latency" checkbox switches to RecordingConfig.LIVE.  The
+    // encoder logs the KB per minute and the frame-to-output latency, along with the
+    // settings it used, when recording stops, so the two can be compared.
+    static final RecordingConfig RECORDING_CONFIG = RecordingConfig.DEFAULT;
+
+    // A small copy of each recording, encoded alongside the full-size one and written next
+    // to it with a "-proxy" suffix by the same kind of muxer.  Video only.
+    private static final boolean RECORD_PROXY = true;
+    private static final int PROXY_WIDTH = 480;
+    private static final int PROXY_HEIGHT = 360;
+    private static final int PROXY_BIT_RATE = 300000;
+
     private CameraCaptureActivity.CameraHandler mCameraHandler;
     private TextureMovieEncoder mVideoEncoder;
     private File mOutputFile;
+    private MediaMuxerWrapper mMuxer;   // session for the current recording
 
     private FullFrameRect mFullScreen;
 
@@ -507,6 +549,33 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     private int mCurrentFilter;
     private int mNewFilter;
 
+    private RecordingConfig mRecordingConfig = RECORDING_CONFIG;
+
+
+    /**
+     * Returns true unless the codec we'd use for the proxy says it can't run twice at once.
+     */
+    private static boolean canRunTwoEncoders(RecordingConfig recordingConfig) {
+        String mime = recordingConfig.select(PROXY_WIDTH, PROXY_HEIGHT,
+                MUXER_FACTORY).getMimeType();
+        CodecRegistry.Entry entry = CodecRegistry.getInstance().find(mime, true);
+        if (entry != null && entry.getMaxInstances() == 1) {
+            Log.w(TAG, entry.getName() + " supports one instance; not recording a proxy");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns "dir/name-proxy.ext" for "dir/name.ext".
+     */
+    private static File getProxyFile(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String proxyName = (dot < 0) ? name + "-proxy" :
+                name.substring(0, dot) + "-proxy" + name.substring(dot);
+        return new File(file.getParentFile(), proxyName);
+    }
 
     /**
      * Constructs CameraSurfaceRenderer.
@@ -561,6 +630,13 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
         mRecordingEnabled = isRecording;
     }
 
+    /**
+     * Chooses RecordingConfig.LIVE over the default for recordings started from now on.
+     */
+    public void setLowLatency(boolean lowLatency) {
+        mRecordingConfig = lowLatency ? RecordingConfig.LIVE : RECORDING_CONFIG;
+    }
+
     /**
      * Changes the filter that we're applying to the camera preview.
      */
@@ -705,12 +781,25 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
                     Log.d(TAG, "START recording");
 
 
-                    // start recording
-                    mVideoEncoder.prepareRecording(new TextureMovieEncoder.EncoderConfig(
-                            mOutputFile, 640, 480, 1000000, EGL14.eglGetCurrentContext()));
+                    // start recording, with a new session for the video and audio to share
+                    try {
+                        mMuxer = new MediaMuxerWrapper(mOutputFile.getAbsolutePath(),
+                                MUXER_FACTORY);
+                    } catch (IOException ioe) {
+                        throw new RuntimeException(ioe);
+                    }
+                    TextureMovieEncoder.EncoderConfig config =
+                            new TextureMovieEncoder.EncoderConfig(mOutputFile, 640, 480,
+                                    1000000, mRecordingConfig, EGL14.eglGetCurrentContext(),
+                                    mMuxer);
+                    if (RECORD_PROXY && canRunTwoEncoders(mRecordingConfig)) {
+                        config = config.withOutput(new TextureMovieEncoder.Output(
+                                getProxyFile(mOutputFile), PROXY_WIDTH, PROXY_HEIGHT,
+                                PROXY_BIT_RATE, mRecordingConfig));
+                    }
+                    mVideoEncoder.prepareRecording(config);
                     mRecordingStatus = RECORDING_ON;
 
-                    MediaMuxerWrapper mMuxer = MediaMuxerWrapper.getInstance(mOutputFile.getAbsolutePath());
                     if (true) {
                         // for audio capturing
                         new MediaAudioEncoder(mMuxer, new MediaEncoder.MediaEncoderListener() {
@@ -725,14 +814,12 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
                             }
                         });
                     }
-                    if(null != mMuxer){
-                        try {
-                            mMuxer.prepare();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                        mMuxer.startRecording();
+                    try {
+                        mMuxer.prepare();
+                    } catch (IOException e) {
+                        e.printStackTrace();
                     }
+                    mMuxer.startRecording();
                     break;
                 case RECORDING_RESUMED:
                     Log.d(TAG, "RESUME recording");
@@ -751,9 +838,10 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
                 case RECORDING_RESUMED:
                     // stop recording
                     Log.d(TAG, "STOP recording");
-                    MediaMuxerWrapper mMuxer = MediaMuxerWrapper.getInstance(mOutputFile.getAbsolutePath());
-                    if(null != mMuxer){
+                    // The encoders stop and release the session once they've drained.
+                    if (mMuxer != null) {
                         mMuxer.stopRecording();
+                        mMuxer = null;
                     }
                     mVideoEncoder.stopRecording();
                     mRecordingStatus = RECORDING_OFF;
@@ -766,9 +854,8 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
             }
         }
 
-        // Set the video encoder's texture name.  We only need to do this once, but in the
-        // current implementation it has to happen after the video encoder is started, so
-        // we just do it here.
+        // Set the video encoder's texture name.  We only need to do this once, but it's just
+        // a field store (the name travels with each frame), so we do it here.
         //
         // TODO: be less lame.
         mVideoEncoder.setTextureId(mTextureId);
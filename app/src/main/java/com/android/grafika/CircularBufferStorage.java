@@ -0,0 +1,221 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Backing store for the raw data half of a {@link CircularEncoderBuffer}.
+ * <p>
+ * The ring itself only needs a fixed-size region it can copy packets into and hand back
+ * to MediaMuxer, so every implementation is a thin wrapper around a ByteBuffer.  What
+ * differs is where the bytes live:
+ * <ul>
+ * <li>{@link #HEAP} -- a plain byte[], which is what we've always used.  Simple, but a long
+ *     span at a high bit rate turns into a very large Java array.
+ * <li>{@link #DIRECT} -- a direct ByteBuffer.  Keeps the data off the managed heap, and
+ *     MediaMuxer can read it without going through JNI array access.
+ * <li>{@link #mappedFile(File)} -- a memory-mapped temporary file.  For long spans the
+ *     kernel can page the data out to storage instead of pinning it all in RAM.
+ * </ul>
+ * Not thread-safe.
+ */
+public abstract class CircularBufferStorage {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    /**
+     * Creates storage of a given size.  Used by the buffer when it's constructed.
+     */
+    public interface Factory {
+        /**
+         * Allocates a new storage region.
+         *
+         * @param capacity Size of the region, in bytes.
+         */
+        CircularBufferStorage create(int capacity) throws IOException;
+    }
+
+    /** Storage backed by a byte[] on the managed heap. */
+    public static final Factory HEAP = new Factory() {
+        @Override
+        public CircularBufferStorage create(int capacity) {
+            return new Heap(capacity);
+        }
+    };
+
+    /** Storage backed by a direct ByteBuffer. */
+    public static final Factory DIRECT = new Factory() {
+        @Override
+        public CircularBufferStorage create(int capacity) {
+            return new Direct(capacity);
+        }
+    };
+
+    /**
+     * Returns a factory that creates storage backed by a memory-mapped file in the
+     * specified directory.  The file is unlinked as soon as it has been mapped, so nothing
+     * is left behind if the process dies.
+     */
+    public static Factory mappedFile(final File dir) {
+        return new Factory() {
+            @Override
+            public CircularBufferStorage create(int capacity) throws IOException {
+                return MappedFile.create(dir, capacity);
+            }
+        };
+    }
+
+    // The full region.  Never handed out directly; we use duplicates so that the
+    // position/limit changes made by readers and writers don't interfere with each other.
+    private final ByteBuffer mBuffer;
+    private final ByteBuffer mWriteView;
+    private final ByteBuffer mReadView;
+
+    protected CircularBufferStorage(ByteBuffer buffer) {
+        mBuffer = buffer;
+        mWriteView = buffer.duplicate();
+        mReadView = buffer.duplicate();
+    }
+
+    /**
+     * Returns the size of the region, in bytes.
+     */
+    public int capacity() {
+        return mBuffer.capacity();
+    }
+
+    /**
+     * Copies "length" bytes from the current position of "src" into the region at "offset".
+     * The position of "src" is advanced by "length"; its limit is unchanged.
+     */
+    public void put(int offset, ByteBuffer src, int length) {
+        int oldLimit = src.limit();
+        src.limit(src.position() + length);
+        mWriteView.limit(offset + length);
+        mWriteView.position(offset);
+        mWriteView.put(src);
+        src.limit(oldLimit);
+    }
+
+    /**
+     * Copies "length" bytes from the region at "offset" to the current position of "dst".
+     */
+    public void get(int offset, ByteBuffer dst, int length) {
+        mReadView.limit(offset + length);
+        mReadView.position(offset);
+        dst.put(mReadView);
+    }
+
+    /**
+     * Returns a ByteBuffer that covers the entire region.  The caller may alter the
+     * position and limit, but must not modify the contents.  The same object is returned
+     * on every call.
+     */
+    public ByteBuffer asByteBuffer() {
+        mReadView.clear();
+        return mReadView;
+    }
+
+    /**
+     * Returns a new ByteBuffer that covers the entire region, with its own position and
+     * limit.  Used by readers on other threads, which can't share asByteBuffer()'s view.
+     * The caller must not modify the contents.
+     */
+    public ByteBuffer newView() {
+        return mBuffer.duplicate();
+    }
+
+    /**
+     * Releases any resources held outside the managed heap.  The storage must not be used
+     * after this is called.
+     */
+    public void release() {}
+
+    /**
+     * Storage backed by an ordinary byte array.
+     */
+    static class Heap extends CircularBufferStorage {
+        Heap(int capacity) {
+            super(ByteBuffer.wrap(new byte[capacity]));
+        }
+    }
+
+    /**
+     * Storage backed by a direct ByteBuffer.
+     */
+    private static class Direct extends CircularBufferStorage {
+        Direct(int capacity) {
+            super(ByteBuffer.allocateDirect(capacity));
+        }
+    }
+
+    /**
+     * Storage backed by a memory-mapped file.
+     */
+    private static class MappedFile extends CircularBufferStorage {
+        private RandomAccessFile mFile;
+
+        private MappedFile(ByteBuffer mapped, RandomAccessFile raf) {
+            super(mapped);
+            mFile = raf;
+        }
+
+        static MappedFile create(File dir, int capacity) throws IOException {
+            File file = File.createTempFile("ring", ".bin", dir);
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                raf.setLength(capacity);
+                ByteBuffer mapped =
+                        raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                if (VERBOSE) Log.d(TAG, "mapped " + capacity + " bytes from " + file);
+                MappedFile storage = new MappedFile(mapped, raf);
+                raf = null;
+                return storage;
+            } finally {
+                if (raf != null) {
+                    raf.close();
+                }
+                // The mapping holds a reference to the pages, so we can drop the name now.
+                if (!file.delete()) {
+                    Log.w(TAG, "Unable to delete ring buffer file " + file);
+                }
+            }
+        }
+
+        @Override
+        public void release() {
+            // There's no portable way to unmap; the pages go away when the buffer is
+            // collected.  Closing the channel releases the file descriptor.
+            if (mFile != null) {
+                try {
+                    mFile.close();
+                } catch (IOException ioe) {
+                    Log.w(TAG, "failed closing ring buffer file", ioe);
+                }
+                mFile = null;
+            }
+        }
+    }
+}
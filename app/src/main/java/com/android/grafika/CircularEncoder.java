@@ -17,19 +17,23 @@
 package com.android.grafika;
 
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 import android.view.Surface;
 
+import com.android.grafika.muxer.Muxer;
+
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Encodes video in a fixed-size circular buffer.
@@ -45,19 +49,46 @@ import java.nio.ByteBuffer;
  * the head of the list and the next sync frame, or have the file save function know that
  * it needs to scan forward for a sync frame before it can start saving data.
  * <p>
- * When we're told to save a snapshot, we create a MediaMuxer, write all the frames out,
- * and then go back to what we were doing.
+ * When we're told to save a snapshot, the encoder thread pins the buffered range (starting
+ * at the oldest sync frame) and hands it to a separate file-save thread, which creates a
+ * MediaMuxer and writes the frames out.  The encoder thread goes right back to moving the
+ * encoder output into the live buffer, so saving doesn't cause the codec output to back up.
+ * The encoders are driven by {@link CodecDriver}s on the encoder thread's Looper, so packets
+ * are added to the buffer as they're produced, on the buffer's single writer thread.
+ * <p>
+ * Optionally, AAC audio from the microphone is kept in the same buffer, and saved clips get
+ * an audio track that starts at the video's first sync frame.
+ * <p>
+ * The encoder runs with long GOPs, which compress much better than a sync frame every
+ * second, and we ask it for sync frames when we need them instead: when a save or a live
+ * reader starts, and whenever the newest sync frame is getting so old that the buffer might
+ * not hold one.  Clips that start "now" begin on the requested sync frame, so they don't
+ * carry a long pre-roll.  Forcing a sync frame needs API 19; older devices fall back to a
+ * GOP short enough for the buffered span.
  */
 public class CircularEncoder {
     private static final String TAG = MainActivity.TAG;
     private static final boolean VERBOSE = false;
 
-    private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
-    private static final int IFRAME_INTERVAL = 1;           // sync frame every second
+    /**
+     * AVC with a ten-second GOP.  More sync frames are requested as needed (see above).
+     */
+    public static final RecordingConfig DEFAULT_CONFIG =
+            new RecordingConfig.Builder().setIFrameInterval(10).build();
+
+    // Shortest span we'll buffer.  We need room for at least one sync frame plus something.
+    private static final int MIN_SPAN_SEC = 2;
+    // A clip starting this close to the newest packet counts as starting "now"; if the
+    // sync frame before it is older than this, start on a fresh one instead.
+    private static final long MAX_PREROLL_USEC = 500000;
 
     private EncoderThread mEncoderThread;
+    private Handler mFrameHandler;      // mEncoderThread's, kept so frames skip getHandler()
     private Surface mInputSurface;
-    private MediaCodec mEncoder;
+    private CodecDriver mDriver;
+    private AudioEncoderCore mAudioEncoder;
+    private int mBitRate;
+    private RecordingConfig.Selection mSelection;
 
     /**
      * Callback function definitions.  CircularEncoder caller must provide one.
@@ -65,18 +96,49 @@ public class CircularEncoder {
     public interface Callback {
         /**
          * Called some time after saveVideo(), when all data has been written to the
-         * output file.
+         * output file and the muxer is done with it (see {@link Muxer#whenFinished}).
+         * Called on the file save thread, or on the muxer's own thread if it finishes
+         * the file in the background.
          *
          * @param status Zero means success, nonzero indicates failure.
          */
         void fileSaveComplete(int status);
 
+        /**
+         * Called periodically while a file save is in progress.
+         *
+         * @param packetsWritten Number of packets written to the output file so far.
+         * @param packetsTotal Total number of packets that will be written, or -1 if not
+         *     known yet (an event clip that is still recording).
+         */
+        void fileSaveProgress(int packetsWritten, int packetsTotal);
+
+        /**
+         * Called just before fileSaveComplete() when a save finishes successfully.
+         *
+         * @param snapshotUsec Time, in microseconds, the encoder thread spent pinning the
+         *     buffered range.  This is the only part of the save that holds up encoding.
+         * @param totalMsec Time, in milliseconds, from the saveVideo() request until the
+         *     file was complete.
+         */
+        void fileSaveLatency(long snapshotUsec, long totalMsec);
+
         /**
          * Called occasionally.
          *
          * @param totalTimeMsec Total length, in milliseconds, of buffered video.
          */
         void bufferStatus(long totalTimeMsec);
+
+        /**
+         * Called along with bufferStatus(), with details of how the buffer is sized.
+         *
+         * @param capacityBytes Current size of the encoded data storage.
+         * @param observedBitRate Data rate measured over the last few seconds, in bits per
+         *     second, or -1 if not known yet.
+         * @param evictionsPerSec Packets evicted per second to make room for new ones.
+         */
+        void bufferSizing(int capacityBytes, long observedBitRate, float evictionsPerSec);
     }
 
     /**
@@ -90,45 +152,164 @@ public class CircularEncoder {
      */
     public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
             Callback cb) throws IOException {
+        this(width, height, bitRate, frameRate, desiredSpanSec, CircularBufferStorage.HEAP, cb);
+    }
+
+    /**
+     * Configures encoder, and prepares the input Surface.
+     *
+     * @param width Width of encoded video, in pixels.  Should be a multiple of 16.
+     * @param height Height of encoded video, in pixels.  Usually a multiple of 16 (1080 is ok).
+     * @param bitRate Target bit rate, in bits.
+     * @param frameRate Expected frame rate.
+     * @param desiredSpanSec How many seconds of video we want to have in our buffer at any time.
+     * @param storageFactory Creates the storage that holds the encoded data.  Use
+     *     {@link CircularBufferStorage#DIRECT} or {@link CircularBufferStorage#mappedFile}
+     *     to keep long spans off the managed heap.
+     */
+    public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
+            CircularBufferStorage.Factory storageFactory, Callback cb) throws IOException {
+        this(width, height, bitRate, frameRate, desiredSpanSec, storageFactory, false, cb);
+    }
+
+    /**
+     * Configures encoder, and prepares the input Surface.
+     *
+     * @param width Width of encoded video, in pixels.  Should be a multiple of 16.
+     * @param height Height of encoded video, in pixels.  Usually a multiple of 16 (1080 is ok).
+     * @param bitRate Target bit rate, in bits.
+     * @param frameRate Expected frame rate.
+     * @param desiredSpanSec How many seconds of video we want to have in our buffer at any time.
+     * @param storageFactory Creates the storage that holds the encoded data.
+     * @param recordAudio If set, also capture AAC audio from the microphone into the buffer.
+     *     Requires the RECORD_AUDIO permission.
+     */
+    public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
+            CircularBufferStorage.Factory storageFactory, boolean recordAudio, Callback cb)
+            throws IOException {
+        this(width, height, bitRate, frameRate, desiredSpanSec, DEFAULT_CONFIG, storageFactory,
+                recordAudio, cb);
+    }
+
+    /**
+     * Configures encoder, and prepares the input Surface.
+     *
+     * @param width Width of encoded video, in pixels.  Should be a multiple of 16.
+     * @param height Height of encoded video, in pixels.  Usually a multiple of 16 (1080 is ok).
+     * @param bitRate Target bit rate, in bits.
+     * @param frameRate Expected frame rate.
+     * @param desiredSpanSec How many seconds of video we want to have in our buffer at any time.
+     * @param config Codec, profile, rate control, and sync frame interval.  In constant
+     *     quality mode the buffer is still sized from bitRate, so pick a realistic value.
+     * @param storageFactory Creates the storage that holds the encoded data.
+     * @param recordAudio If set, also capture AAC audio from the microphone into the buffer.
+     *     Requires the RECORD_AUDIO permission.
+     */
+    public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
+            RecordingConfig config, CircularBufferStorage.Factory storageFactory,
+            boolean recordAudio, Callback cb) throws IOException {
         // The goal is to size the buffer so that we can accumulate N seconds worth of video,
         // where N is passed in as "desiredSpanSec".  If the codec generates data at roughly
         // the requested bit rate, we can compute it as time * bitRate / bitsPerByte.
         //
-        // Sync frames will appear every (frameRate * IFRAME_INTERVAL) frames.  If the frame
+        // Sync frames will appear every (frameRate * iFrameInterval) frames.  If the frame
         // rate is higher or lower than expected, various calculations may not work out right.
         //
         // Since we have to start muxing from a sync frame, we want to ensure that there's
-        // room for at least one full GOP in the buffer, preferrably two.
-        if (desiredSpanSec < IFRAME_INTERVAL * 2) {
+        // one within the newest half of the buffer.  Where we can ask for sync frames, we
+        // do that whenever the newest one gets that old; elsewhere the GOP has to be short
+        // enough to guarantee it.
+        if (desiredSpanSec < MIN_SPAN_SEC) {
             throw new RuntimeException("Requested time span is too short: " + desiredSpanSec +
-                    " vs. " + (IFRAME_INTERVAL * 2));
+                    " vs. " + MIN_SPAN_SEC);
         }
-        CircularEncoderBuffer encBuffer = new CircularEncoderBuffer(bitRate, frameRate,
-                desiredSpanSec);
-
-        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+        long maxSyncGapUsec = desiredSpanSec * 1000000L / 2;
+        if (!canRequestSyncFrame() && config.getIFrameInterval() * 1000000L > maxSyncGapUsec) {
+            config = new RecordingConfig.Builder(config)
+                    .setIFrameInterval(Math.max(1, desiredSpanSec / 2)).build();
+        }
+        // Audio shares the buffer, so budget for its bytes and packets as well.
+        int bufferBitRate = bitRate;
+        int bufferPacketRate = frameRate;
+        if (recordAudio) {
+            bufferBitRate += AudioEncoderCore.BIT_RATE;
+            bufferPacketRate += AudioEncoderCore.PACKETS_PER_SEC;
+        }
+        CircularEncoderBuffer encBuffer = new CircularEncoderBuffer(bufferBitRate,
+                bufferPacketRate, desiredSpanSec, storageFactory);
 
-        // Set some properties.  Failing to specify some of these can cause the MediaCodec
-        // configure() call to throw an unhelpful exception.
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+        // Saves go to MediaMuxer unless setMuxerFactory() says otherwise.
+        mSelection = config.select(width, height, Muxer.MEDIA_MUXER);
+        MediaFormat format = mSelection.createVideoFormat(width, height, bitRate, frameRate);
         if (VERBOSE) Log.d(TAG, "format: " + format);
+        mBitRate = bitRate;
 
-        // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
-        // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
-        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mInputSurface = mEncoder.createInputSurface();
-        mEncoder.start();
-
-        // Start the encoder thread last.  That way we're sure it can see all of the state
-        // we've initialized.
-        mEncoderThread = new EncoderThread(mEncoder, encBuffer, cb);
+        // Start the encoder thread first.  The codec output is delivered on its Looper,
+        // so the buffer only ever has the one writer.
+        mEncoderThread = new EncoderThread(encBuffer, maxSyncGapUsec, cb);
         mEncoderThread.start();
         mEncoderThread.waitUntilReady();
+        mFrameHandler = mEncoderThread.getHandler();
+        Looper encoderLooper = mFrameHandler.getLooper();
+
+        // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
+        // we can use for input and wrap it with a class that handles the EGL work.
+        MediaCodec encoder = CodecPool.getInstance().acquire(
+                new CodecPool.Key(mSelection.getMimeType(), true, width, height, true));
+        mDriver = new CodecDriver(encoder, "CircularEncoder", encoderLooper, false,
+                mEncoderThread.mVideoCallback);
+        encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mInputSurface = encoder.createInputSurface();
+
+        if (recordAudio) {
+            // The capture thread can't add to the buffer itself.  The audio output is
+            // delivered on the encoder thread too; if it has to be polled, the capture
+            // thread asks the encoder thread to do it.
+            mAudioEncoder = new AudioEncoderCore(encoderLooper, encBuffer,
+                    new AudioEncoderCore.Listener() {
+                @Override
+                public void audioAvailable() {
+                    Handler handler = mEncoderThread.getHandler();
+                    handler.sendMessage(handler.obtainMessage(
+                            EncoderThread.EncoderHandler.MSG_AUDIO_AVAILABLE));
+                }
+
+                @Override
+                public void audioAdded() {
+                    mEncoderThread.notifyLiveSave();
+                }
+            });
+        }
+
+        mEncoderThread.setEncoders(mDriver, mAudioEncoder);
+        mDriver.start();
+        if (mAudioEncoder != null) {
+            mAudioEncoder.start();
+        }
+    }
+
+    /**
+     * Returns true if sync frames can be requested on this device.
+     */
+    private static boolean canRequestSyncFrame() {
+        // PARAMETER_KEY_REQUEST_SYNC_FRAME is API 19.
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * Has the codec pool create an encoder for this size in the background.
+     */
+    public static void prewarm(int width, int height) {
+        prewarm(DEFAULT_CONFIG, width, height);
+    }
+
+    /**
+     * Has the codec pool create the encoder the config would pick for this size.
+     */
+    public static void prewarm(RecordingConfig config, int width, int height) {
+        String mimeType = config.select(width, height).getMimeType();
+        CodecPool.getInstance().prewarm(
+                new CodecPool.Key(mimeType, true, width, height, true), 1);
     }
 
     /**
@@ -146,6 +327,11 @@ public class CircularEncoder {
     public void shutdown() {
         if (VERBOSE) Log.d(TAG, "releasing encoder objects");
 
+        // Stop audio capture first, so it doesn't post to a dead encoder thread.
+        if (mAudioEncoder != null) {
+            mAudioEncoder.stop();
+        }
+
         Handler handler = mEncoderThread.getHandler();
         handler.sendMessage(handler.obtainMessage(EncoderThread.EncoderHandler.MSG_SHUTDOWN));
         try {
@@ -153,11 +339,20 @@ public class CircularEncoder {
         } catch (InterruptedException ie) {
             Log.w(TAG, "Encoder thread join() was interrupted", ie);
         }
+        mEncoderThread.finishSaving();
+        mEncoderThread.releaseBuffer();
+        Log.d(TAG, mEncoderThread.getGopReport());
+        if (mEncoderThread.mLatencyMeter.getHistogram().getCount() > 0) {
+            Log.d(TAG, mEncoderThread.mLatencyMeter.toString());
+        }
 
-        if (mEncoder != null) {
-            mEncoder.stop();
-            mEncoder.release();
-            mEncoder = null;
+        if (mDriver != null) {
+            mDriver.release();
+            mDriver = null;
+        }
+        if (mAudioEncoder != null) {
+            mAudioEncoder.release();
+            mAudioEncoder = null;
         }
     }
 
@@ -174,11 +369,32 @@ public class CircularEncoder {
      * notifies us first and then sends the frame, we guarantee that the output buffers
      * were emptied, and it will be impossible for a single additional frame to block
      * indefinitely.
+     * <p>
+     * Takes no locks.  If the encoder thread hasn't got to the last notification yet, we
+     * don't send another; it picks up all the frames offered since in one go.  Call from
+     * one thread only.
      */
     public void frameAvailableSoon() {
-        Handler handler = mEncoderThread.getHandler();
-        handler.sendMessage(handler.obtainMessage(
-                EncoderThread.EncoderHandler.MSG_FRAME_AVAILABLE_SOON));
+        mEncoderThread.mFramesOffered++;
+        if (mEncoderThread.mFramePending.compareAndSet(false, true)) {
+            mFrameHandler.sendMessage(mFrameHandler.obtainMessage(
+                    EncoderThread.EncoderHandler.MSG_FRAME_AVAILABLE_SOON));
+        }
+    }
+
+    /**
+     * Tells the latency meter a frame was just submitted to the input surface.  Call right
+     * after swapBuffers(), with the time stamp given to setPresentationTime().
+     */
+    public void frameSubmitted(long timestampNanos) {
+        mEncoderThread.mLatencyMeter.frameSubmitted(timestampNanos);
+    }
+
+    /**
+     * Returns the submit-to-output latency meter.
+     */
+    public EncoderLatencyMeter getLatencyMeter() {
+        return mEncoderThread.mLatencyMeter;
     }
 
     /**
@@ -186,14 +402,152 @@ public class CircularEncoder {
      * data will be written as a .mp4 file.  The call returns immediately.  When the file
      * save completes, the callback will be notified.
      * <p>
-     * The file generation is performed on the encoder thread, which means we won't be
-     * draining the output buffers while this runs.  It would be wise to stop submitting
-     * frames during this time.
+     * The file generation is performed on a separate thread, so frames may continue to be
+     * submitted while this runs.  Saves requested while another is in progress are queued;
+     * each one pins its own range, so they don't interfere with each other.
      */
     public void saveVideo(File outputFile) {
+        saveVideo(outputFile, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Initiates saving a range of the buffered frames to the specified output file.  Works
+     * like {@link #saveVideo(File)}, but only the packets with presentation times between
+     * startUsec and endUsec are written.  The clip is extended backward to the nearest
+     * preceding sync frame, since it has to start with one.
+     *
+     * @param startUsec Start of the range, in the same time base as the frame timestamps.
+     * @param endUsec End of the range, inclusive.
+     */
+    public void saveVideo(File outputFile, long startUsec, long endUsec) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(EncoderThread.EncoderHandler.MSG_SAVE_VIDEO,
+                new SaveRequest(outputFile, startUsec, endUsec, -1, -1)));
+    }
+
+    /**
+     * Initiates saving the most recent durationUsec worth of buffered frames to the specified
+     * output file.  The range is measured back from the newest packet in the buffer at the
+     * time the request is handled.
+     */
+    public void saveRecentVideo(File outputFile, long durationUsec) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(EncoderThread.EncoderHandler.MSG_SAVE_VIDEO,
+                new SaveRequest(outputFile, 0, 0, durationUsec, -1)));
+    }
+
+    /**
+     * Initiates saving an event clip: the last beforeUsec of buffered frames, followed by
+     * whatever is encoded over the next afterUsec.  The file is written incrementally as
+     * frames arrive, so the post-trigger part isn't held in memory.
+     * <p>
+     * If this is called again while an event clip is still being captured, the current
+     * clip is extended to cover afterUsec past the new request instead of starting a
+     * second file; outputFile is ignored, and only one fileSaveComplete() is delivered.
+     */
+    public void saveEventVideo(File outputFile, long beforeUsec, long afterUsec) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(EncoderThread.EncoderHandler.MSG_SAVE_VIDEO,
+                new SaveRequest(outputFile, 0, 0, beforeUsec, afterUsec)));
+    }
+
+    /**
+     * Selects the muxer used for saves requested from now on.  The default is
+     * {@link Muxer#MEDIA_MUXER}.  The codec was picked when the encoder was created, so the
+     * muxer has to be able to hold it; the fragmented MP4 and HLS muxers need a config that
+     * settles on AVC.
+     *
+     * @throws IllegalArgumentException if the muxer can't hold the video being encoded.
+     */
+    public void setMuxerFactory(Muxer.Factory factory) {
+        if (!Muxer.canCarryVideo(factory, mSelection.getMimeType())) {
+            throw new IllegalArgumentException("muxer can't carry " +
+                    mSelection.getMimeType());
+        }
+        mEncoderThread.mMuxerFactory = factory;
+    }
+
+    /**
+     * Lets the circular buffer resize itself to hold the requested span at the bit rate
+     * the encoder actually produces, rather than the nominal one, within the given memory
+     * bounds.  See {@link CircularEncoderBuffer#setCapacityBounds}.
+     */
+    public void setCapacityBounds(int minBytes, int maxBytes) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_SET_CAPACITY_BOUNDS, minBytes, maxBytes));
+    }
+
+    /**
+     * Lets the video bit rate float between the given bounds.  If the buffer can't hold the
+     * requested span at the rate the encoder is producing (because it has reached its
+     * capacity bounds, or they aren't set), the rate is lowered until it can; when there's
+     * room again it creeps back up.  The buffer is told about each change.  See
+     * {@link BitrateController}.  Needs API 19; ignored on older devices.
+     */
+    public void setBitRateBounds(int minBitRate, int maxBitRate) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            Log.w(TAG, "can't change the bit rate on this device");
+            return;
+        }
+        if (mSelection.isConstantQuality()) {
+            Log.d(TAG, "constant quality; not steering the bit rate");
+            return;
+        }
+        mEncoderThread.mRateController =
+                new BitrateController(minBitRate, maxBitRate, mBitRate);
+    }
+
+    /**
+     * Opens a live reader on the encoded stream, for consumers like a network sender that
+     * want to follow along as packets arrive.  We ask the encoder for a sync frame and the
+     * reader starts there, so it doesn't have to wade through most of a GOP of old data
+     * first.  (Where sync frames can't be requested, it starts at the newest one instead.)
+     * It must be closed before shutdown().
+     * <p>
+     * Readers are polled; call {@link CircularEncoderBuffer.Reader#next} whenever
+     * convenient.  A non-pinning reader that falls behind is marked as overrun and should
+     * resync(); a pinning reader never loses data, but will cause new frames to be dropped
+     * if it falls a full buffer behind.
+     */
+    public CircularEncoderBuffer.Reader openReader(boolean pinning) {
+        if (!canRequestSyncFrame()) {
+            return mEncoderThread.mEncBuffer.openReader(pinning);
+        }
+        CircularEncoderBuffer.Reader reader =
+                mEncoderThread.mEncBuffer.openReaderAtNextSync(pinning);
         Handler handler = mEncoderThread.getHandler();
         handler.sendMessage(handler.obtainMessage(
-                EncoderThread.EncoderHandler.MSG_SAVE_VIDEO, outputFile));
+                EncoderThread.EncoderHandler.MSG_REQUEST_SYNC_FRAME));
+        return reader;
+    }
+
+    /**
+     * Returns the encoder's output format (with codec-specific data), or null if the
+     * encoder hasn't produced one yet.  Needed by readers that feed a muxer.
+     */
+    public MediaFormat getOutputFormat() {
+        return mEncoderThread.mEncodedFormat;
+    }
+
+    /**
+     * Parameters for a file save, passed from the caller's thread to the encoder thread.
+     */
+    private static class SaveRequest {
+        final File mOutputFile;
+        final long mStartUsec;
+        final long mEndUsec;
+        final long mRecentUsec;     // if >= 0, ignore start/end and save this much
+        final long mPostUsec;       // if >= 0, keep recording this long after the request
+
+        SaveRequest(File outputFile, long startUsec, long endUsec, long recentUsec,
+                long postUsec) {
+            mOutputFile = outputFile;
+            mStartUsec = startUsec;
+            mEndUsec = endUsec;
+            mRecentUsec = recentUsec;
+            mPostUsec = postUsec;
+        }
     }
 
     /**
@@ -204,33 +558,79 @@ public class CircularEncoder {
      * input surface.  We will see data appear at the decoder output, so we can either use
      * an infinite timeout on dequeueOutputBuffer() or wait() on an object and require the
      * calling app wake us.  It's very useful to have all of the buffer management local to
-     * this thread -- avoids synchronization -- so we want to do the file muxing in here.
-     * So, it's best to sleep on an object and do something appropriate when awakened.
+     * this thread -- avoids synchronization -- so the decision about what to save is made
+     * in here.  So, it's best to sleep on an object and do something appropriate when
+     * awakened.
+     * <p>
+     * The muxing itself can take a while for a long buffer, so it's handed off to a second
+     * thread and we keep draining while it runs.  The packets being saved are pinned in the
+     * circular buffer until they've been written.
      * <p>
      * This class does not manage the MediaCodec encoder startup/shutdown.  The encoder
      * should be fully started before the thread is created, and not shut down until this
      * thread has been joined.
      */
     private static class EncoderThread extends Thread {
-        private MediaCodec mEncoder;
-        private MediaFormat mEncodedFormat;
-        private MediaCodec.BufferInfo mBufferInfo;
+        // Report save progress every this many packets.
+        private static final int PROGRESS_INTERVAL = 30;
+
+        // Set once the encoders exist, before they're started.
+        private volatile CodecDriver mDriver;
+        private volatile AudioEncoderCore mAudioEncoder;    // null if not recording audio
+        private volatile MediaFormat mEncodedFormat;
+
+        // Closed-loop rate control, if enabled.  The rest is encoder thread only.
+        private volatile BitrateController mRateController;
+        private long mRateSampleStartUsec = -1;
+        private long mRateSampleBytes;
+
+        // Submit-to-output time, if the producer reports its frames.
+        final EncoderLatencyMeter mLatencyMeter = new EncoderLatencyMeter();
+
+        // Sync frame requests.  Encoder thread only.
+        private final long mMaxSyncGapUsec;
+        private long mLastSyncPtsUsec = -1;
+        private boolean mSyncRequested;
+        private int mSyncRequestCount;
+
+        // Sync and delta frame sizes, for estimating what the long GOP saves.  Encoder
+        // thread only.
+        private int mSyncFrameCount;
+        private long mSyncFrameBytes;
+        private int mDeltaFrameCount;
+        private long mDeltaFrameBytes;
+        private long mFirstPtsUsec = -1;
+        private long mLastPtsUsec;
 
         private EncoderHandler mHandler;
-        private CircularEncoderBuffer mEncBuffer;
+        private final CircularEncoderBuffer mEncBuffer;
         private CircularEncoder.Callback mCallback;
         private int mFrameNum;
 
+        // Frame notifications.  mFramesOffered is only written by the producer; the flag is
+        // set while a MSG_FRAME_AVAILABLE_SOON is queued.
+        volatile int mFramesOffered;
+        final AtomicBoolean mFramePending = new AtomicBoolean();
+        private int mFramesSeen;        // encoder thread only
+
+        // Muxes pinned snapshots to disk.
+        private HandlerThread mSaveThread;
+        private Handler mSaveHandler;
+        private SaveSession mLiveSave;      // event clip still being captured, if any
+        private volatile Muxer.Factory mMuxerFactory = Muxer.MEDIA_MUXER;
+
         private final Object mLock = new Object();
         private volatile boolean mReady = false;
 
-        public EncoderThread(MediaCodec mediaCodec, CircularEncoderBuffer encBuffer,
+        public EncoderThread(CircularEncoderBuffer encBuffer, long maxSyncGapUsec,
                 CircularEncoder.Callback callback) {
-            mEncoder = mediaCodec;
             mEncBuffer = encBuffer;
+            mMaxSyncGapUsec = maxSyncGapUsec;
             mCallback = callback;
 
-            mBufferInfo = new MediaCodec.BufferInfo();
+            mSaveThread = new HandlerThread("CircularEncoder-save");
+            mSaveThread.start();
+            mSaveHandler = new Handler(mSaveThread.getLooper());
         }
 
         /**
@@ -286,140 +686,442 @@ public class CircularEncoder {
         }
 
         /**
-         * Drains all pending output from the decoder, and adds it to the circular buffer.
+         * Supplies the encoders.  Call before starting them.
          */
-        public void drainEncoder() {
-            final int TIMEOUT_USEC = 0;     // no timeout -- check for buffers, bail if none
-
-            ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
-            while (true) {
-                int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-                if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    // no output available yet
-                    break;
-                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    // not expected for an encoder
-                    encoderOutputBuffers = mEncoder.getOutputBuffers();
-                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    // Should happen before receiving buffers, and should only happen once.
-                    // The MediaFormat contains the csd-0 and csd-1 keys, which we'll need
-                    // for MediaMuxer.  It's unclear what else MediaMuxer might want, so
-                    // rather than extract the codec-specific data and reconstruct a new
-                    // MediaFormat later, we just grab it here and keep it around.
-                    mEncodedFormat = mEncoder.getOutputFormat();
-                    Log.d(TAG, "encoder output format changed: " + mEncodedFormat);
-                } else if (encoderStatus < 0) {
-                    Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
-                            encoderStatus);
-                    // let's ignore it
-                } else {
-                    ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                    if (encodedData == null) {
-                        throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
-                                " was null");
-                    }
-
-                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                        // The codec config data was pulled out when we got the
-                        // INFO_OUTPUT_FORMAT_CHANGED status.  The MediaMuxer won't accept
-                        // a single big blob -- it wants separate csd-0/csd-1 chunks --
-                        // so simply saving this off won't work.
-                        if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                        mBufferInfo.size = 0;
-                    }
+        void setEncoders(CodecDriver driver, AudioEncoderCore audioEncoder) {
+            mDriver = driver;
+            mAudioEncoder = audioEncoder;
+        }
 
-                    if (mBufferInfo.size != 0) {
-                        // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                        encodedData.position(mBufferInfo.offset);
-                        encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
+        /**
+         * Adds the video encoder output to the circular buffer.  Runs on the encoder thread.
+         */
+        final CodecDriver.Callback mVideoCallback = new CodecDriver.Callback() {
+            @Override
+            public void onOutputFormatChanged(CodecDriver driver, MediaFormat format) {
+                // Should happen before receiving buffers, and should only happen once.
+                // The MediaFormat contains the csd-0 and csd-1 keys, which we'll need
+                // for MediaMuxer.  It's unclear what else MediaMuxer might want, so
+                // rather than extract the codec-specific data and reconstruct a new
+                // MediaFormat later, we just grab it here and keep it around.
+                mEncodedFormat = format;
+                Log.d(TAG, "encoder output format changed: " + mEncodedFormat);
+            }
 
-                        mEncBuffer.add(encodedData, mBufferInfo.flags,
-                                mBufferInfo.presentationTimeUs);
+            @Override
+            public boolean onOutputBuffer(CodecDriver driver, ByteBuffer encodedData,
+                    MediaCodec.BufferInfo info) {
+                // The codec config data was pulled out when we got the format.  The
+                // MediaMuxer won't accept a single big blob -- it wants separate
+                // csd-0/csd-1 chunks -- so the driver's codec config buffers are ignored.
+                mLatencyMeter.frameEncoded(info.presentationTimeUs);
+                checkLiveSave(info.presentationTimeUs);
+                mEncBuffer.add(encodedData, info.flags, info.presentationTimeUs);
+                notifyLiveSave();
+                updateBitRate(info.size, info.presentationTimeUs);
+                updateSyncFrames(info.size, info.flags, info.presentationTimeUs);
 
-                        if (VERBOSE) {
-                            Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
-                                    mBufferInfo.presentationTimeUs);
-                        }
-                    }
+                if (VERBOSE) {
+                    Log.d(TAG, "added " + info.size + " bytes to buffer, ts=" +
+                            info.presentationTimeUs);
+                }
+                return false;
+            }
 
-                    mEncoder.releaseOutputBuffer(encoderStatus, false);
+            @Override
+            public void onEndOfStream(CodecDriver driver) {
+                Log.w(TAG, "reached end of stream unexpectedly");
+            }
+        };
 
-                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        Log.w(TAG, "reached end of stream unexpectedly");
-                        break;      // out of while
-                    }
+        /**
+         * Notes sync frames as they come out, and asks for one if the newest is getting
+         * too old for the buffer to be sure of holding it.  Also keeps the frame size
+         * statistics.
+         */
+        private void updateSyncFrames(int size, int flags, long ptsUsec) {
+            if (mFirstPtsUsec < 0) {
+                mFirstPtsUsec = ptsUsec;
+            }
+            mLastPtsUsec = ptsUsec;
+            if ((flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                mLastSyncPtsUsec = ptsUsec;
+                mSyncRequested = false;
+                mSyncFrameCount++;
+                mSyncFrameBytes += size;
+            } else {
+                mDeltaFrameCount++;
+                mDeltaFrameBytes += size;
+                if (mLastSyncPtsUsec >= 0 && ptsUsec - mLastSyncPtsUsec >= mMaxSyncGapUsec) {
+                    requestSyncFrame("gap");
                 }
             }
         }
 
         /**
-         * Drains the encoder output.
+         * Asks the encoder to make the next frame a sync frame, unless we've already asked
+         * and it hasn't arrived yet.
+         */
+        void requestSyncFrame(String reason) {
+            if (mSyncRequested || !canRequestSyncFrame() || mDriver == null) {
+                return;
+            }
+            if (VERBOSE) Log.d(TAG, "requesting sync frame (" + reason + ")");
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            try {
+                mDriver.getCodec().setParameters(params);
+            } catch (IllegalStateException ise) {
+                // released, or in an error state; onError() will deal with it
+                Log.w(TAG, "unable to request sync frame", ise);
+                return;
+            }
+            mSyncRequested = true;
+            mSyncRequestCount++;
+        }
+
+        /**
+         * Summarizes the GOP structure we actually got, with an estimate of the bit rate
+         * that a sync frame every second would have cost on top of it: each extra sync
+         * frame replaces a delta frame, and costs the difference in their average sizes.
+         */
+        String getGopReport() {
+            long durationUsec = mLastPtsUsec - mFirstPtsUsec;
+            if (mSyncFrameCount == 0 || mDeltaFrameCount == 0 || durationUsec <= 0) {
+                return "GOP report: not enough data";
+            }
+            long avgSync = mSyncFrameBytes / mSyncFrameCount;
+            long avgDelta = mDeltaFrameBytes / mDeltaFrameCount;
+            long totalBits = (mSyncFrameBytes + mDeltaFrameBytes) * 8;
+            long actualBitRate = totalBits * 1000000 / durationUsec;
+            long extraSyncFrames = Math.max(0, durationUsec / 1000000 + 1 - mSyncFrameCount);
+            long savedBitRate = extraSyncFrames * Math.max(0, avgSync - avgDelta) * 8 *
+                    1000000 / durationUsec;
+            return "GOP report: " + mSyncFrameCount + " sync frames (" + mSyncRequestCount +
+                    " requested) in " + durationUsec / 1000 + "ms, avg sync=" + avgSync +
+                    " delta=" + avgDelta + " bytes; " + actualBitRate / 1000 +
+                    "kbps, est. 1s GOP would add " + savedBitRate / 1000 + "kbps (" +
+                    savedBitRate * 100 / (actualBitRate + savedBitRate) + "% saved)";
+        }
+
+        /**
+         * Counts an encoded video packet, and once per sample interval gives the rate
+         * controller the buffer's shortfall and applies its decision.  There's no storage
+         * to wait for here, so the shortfall stands in for the sink backlog.
+         */
+        private void updateBitRate(int size, long ptsUsec) {
+            BitrateController controller = mRateController;
+            if (controller == null) {
+                return;
+            }
+            mRateSampleBytes += size;
+            if (mRateSampleStartUsec >= 0 &&
+                    ptsUsec - mRateSampleStartUsec < BitrateController.SAMPLE_INTERVAL_USEC) {
+                return;
+            }
+            int oldRate = controller.getBitRate();
+            int newRate = controller.update(ptsUsec, mRateSampleBytes,
+                    mEncBuffer.getShortfallBytes(), 0);
+            mRateSampleStartUsec = ptsUsec;
+            mRateSampleBytes = 0;
+            if (newRate != oldRate) {
+                Log.d(TAG, "bit rate " + oldRate + " -> " + newRate + ": " + controller);
+                mDriver.setVideoBitRate(newRate);
+                int audioBitRate = (mAudioEncoder != null) ? AudioEncoderCore.BIT_RATE : 0;
+                mEncBuffer.setBitRate(newRate + audioBitRate);
+            }
+        }
+
+        /**
+         * Delivers any pending encoder output to the buffer, on devices where the codecs
+         * have to be polled.  Elsewhere the output has already arrived.
+         */
+        void pollEncoders() {
+            mDriver.poll();
+            if (mAudioEncoder != null) {
+                mAudioEncoder.poll();
+            }
+        }
+
+        /**
+         * Polls the encoders if necessary, and reports buffer status.
          * <p>
          * See notes for {@link CircularEncoder#frameAvailableSoon()}.
          */
         void frameAvailableSoon() {
             if (VERBOSE) Log.d(TAG, "frameAvailableSoon");
-            drainEncoder();
+            mFramePending.set(false);
+            pollEncoders();
 
-            mFrameNum++;
-            if ((mFrameNum % 10) == 0) {        // TODO: should base off frame rate or clock?
+            // Notifications are coalesced, so this may cover several frames.
+            int offered = mFramesOffered;
+            int prevFrameNum = mFrameNum;
+            mFrameNum += offered - mFramesSeen;
+            mFramesSeen = offered;
+            if (mFrameNum / 10 != prevFrameNum / 10) {  // TODO: should base off frame rate or clock?
                 mCallback.bufferStatus(mEncBuffer.computeTimeSpanUsec());
+                mCallback.bufferSizing(mEncBuffer.getCapacity(), mEncBuffer.getObservedBitRate(),
+                        mEncBuffer.getEvictionRate());
             }
         }
 
         /**
-         * Saves the encoder output to a .mp4 file.
+         * Starts saving the encoder output to a .mp4 file.
          * <p>
-         * We'll drain the encoder to get any lingering data, but we're not going to shut
+         * We'll take any lingering data from the encoder, but we're not going to shut
          * the encoder down or use other tricks to try to "flush" the encoder.  This may
          * mean we miss the last couple of submitted frames if they're still working their
          * way through.
          * <p>
-         * We may want to reset the buffer after this -- if they hit "capture" again right
-         * away they'll end up saving video with a gap where we paused to write the file.
+         * All we do here is pin the range to save; the muxing happens on the save thread.
+         * For event clips the save stays open, and we keep feeding it new packets until the
+         * post-trigger window has passed.
          */
-        void saveVideo(File outputFile) {
+        void saveVideo(SaveRequest request) {
+            final File outputFile = request.mOutputFile;
             if (VERBOSE) Log.d(TAG, "saveVideo " + outputFile);
+            final long requestNanos = System.nanoTime();
 
-            int index = mEncBuffer.getFirstIndex();
-            if (index < 0) {
-                Log.w(TAG, "Unable to get first index");
+            pollEncoders();
+            // A fresh sync frame gives this clip (if it starts now) and the next save a
+            // starting point close to where they want one.
+            requestSyncFrame("save");
+
+            long startUsec = request.mStartUsec;
+            long endUsec = request.mEndUsec;
+            long nowUsec = 0;
+            if (request.mRecentUsec >= 0) {
+                int last = mEncBuffer.getLastIndex();
+                nowUsec = (last < 0) ? 0 : mEncBuffer.getPtsUsec(last);
+                endUsec = nowUsec;
+                startUsec = endUsec - request.mRecentUsec;
+            }
+
+            CircularEncoderBuffer.Reader reader;
+            if (request.mPostUsec >= 0) {
+                if (mLiveSave != null) {
+                    // Already capturing an event; just keep it open longer.
+                    mLiveSave.mEndPtsUsec = Math.max(mLiveSave.mEndPtsUsec,
+                            nowUsec + request.mPostUsec);
+                    Log.d(TAG, "Extending event clip to pts=" + mLiveSave.mEndPtsUsec);
+                    return;
+                }
+                reader = null;
+                if (startUsec >= nowUsec - MAX_PREROLL_USEC && mSyncRequested) {
+                    // The clip starts now.  Unless there's a sync frame right here, start on
+                    // the one we just asked for rather than going back a whole GOP.
+                    int sync = mEncBuffer.findSyncIndex(startUsec);
+                    if (sync < 0 ||
+                            mEncBuffer.getPtsUsec(sync) < startUsec - MAX_PREROLL_USEC) {
+                        reader = mEncBuffer.openReaderAtNextSync(true);
+                    }
+                }
+                if (reader == null) {
+                    reader = mEncBuffer.pinFrom(startUsec);
+                }
+            } else {
+                reader = mEncBuffer.pinSnapshot(startUsec, endUsec);
+            }
+            if (reader == null) {
+                Log.w(TAG, "No sync frame in requested range");
                 mCallback.fileSaveComplete(1);
                 return;
             }
 
-            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-            MediaMuxer muxer = null;
-            int result = -1;
-            try {
-                muxer = new MediaMuxer(outputFile.getPath(),
-                        MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-                int videoTrack = muxer.addTrack(mEncodedFormat);
-                muxer.start();
+            MediaFormat audioFormat =
+                    (mAudioEncoder == null) ? null : mAudioEncoder.getOutputFormat();
+            long snapshotUsec = (System.nanoTime() - requestNanos) / 1000;
+            SaveSession session = new SaveSession(outputFile, mEncodedFormat, audioFormat,
+                    reader, requestNanos, snapshotUsec);
+            mSaveHandler.post(session.mStartRunnable);
+            if (request.mPostUsec >= 0) {
+                session.mEndPtsUsec = nowUsec + request.mPostUsec;
+                mLiveSave = session;
+            } else {
+                mSaveHandler.post(session.mFinishRunnable);
+            }
+        }
+
+        /**
+         * Checks a newly-encoded video packet against the event clip being captured, if any.
+         * If it's past the post-trigger window, the clip is ended before it.
+         */
+        private void checkLiveSave(long ptsUsec) {
+            if (mLiveSave != null && ptsUsec > mLiveSave.mEndPtsUsec) {
+                endLiveSave();
+            }
+        }
+
+        /**
+         * Lets the event clip being captured know that more packets are available.  Call
+         * on the encoder thread.
+         */
+        void notifyLiveSave() {
+            if (mLiveSave != null) {
+                mSaveHandler.post(mLiveSave.mWriteRunnable);
+            }
+        }
+
+        /**
+         * Ends the event clip being captured after the most recently added packet.
+         */
+        private void endLiveSave() {
+            if (VERBOSE) Log.d(TAG, "ending event clip");
+            mEncBuffer.endReader(mLiveSave.mReader);
+            mSaveHandler.post(mLiveSave.mFinishRunnable);
+            mLiveSave = null;
+        }
+
+        /**
+         * One file being written.  Created on the encoder thread; everything else happens on
+         * the save thread, except that the encoder thread owns mEndPtsUsec.
+         * <p>
+         * Packets are unpinned as they're written, so the encoder thread can start reusing
+         * that space right away.  The reader is closed when we're done.
+         */
+        private class SaveSession {
+            final File mOutputFile;
+            final MediaFormat mFormat;
+            final MediaFormat mAudioFormat;     // null to write video only
+            final CircularEncoderBuffer.Reader mReader;
+            final long mRequestNanos;
+            final long mSnapshotUsec;
+
+            // End of the post-trigger window, for event clips.  Encoder thread only.
+            long mEndPtsUsec;
+
+            private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+            private final Muxer.Factory mMuxerFactory;
+            private Muxer mMuxer;
+            private final int[] mMuxerTracks = new int[2];
+            private int mWritten;
+            private int mResult = -1;
+
+            final Runnable mStartRunnable = new Runnable() {
+                @Override public void run() { start(); }
+            };
+            final Runnable mWriteRunnable = new Runnable() {
+                @Override public void run() { writeAvailable(); }
+            };
+            final Runnable mFinishRunnable = new Runnable() {
+                @Override public void run() { finish(); }
+            };
+
+            SaveSession(File outputFile, MediaFormat format, MediaFormat audioFormat,
+                    CircularEncoderBuffer.Reader reader, long requestNanos, long snapshotUsec) {
+                mOutputFile = outputFile;
+                mFormat = format;
+                mAudioFormat = audioFormat;
+                mReader = reader;
+                mRequestNanos = requestNanos;
+                mSnapshotUsec = snapshotUsec;
+                mMuxerFactory = EncoderThread.this.mMuxerFactory;
+            }
+
+            /**
+             * Creates the muxer and writes whatever is already available.
+             */
+            void start() {
+                try {
+                    mMuxer = mMuxerFactory.create(mOutputFile);
+                } catch (IOException ioe) {
+                    Log.w(TAG, "muxer failed", ioe);
+                    mResult = 2;
+                    return;
+                }
+                mMuxerTracks[CircularEncoderBuffer.TRACK_VIDEO] = mMuxer.addTrack(mFormat);
+                mMuxerTracks[CircularEncoderBuffer.TRACK_AUDIO] =
+                        (mAudioFormat == null) ? -1 : mMuxer.addTrack(mAudioFormat);
+                mMuxer.start();
+                writeAvailable();
+            }
 
-                do {
-                    ByteBuffer buf = mEncBuffer.getChunk(index, info);
+            /**
+             * Writes everything the reader has for us right now.
+             */
+            void writeAvailable() {
+                if (mMuxer == null) {
+                    return;
+                }
+                final int total = mReader.getPacketCount();
+                ByteBuffer buf;
+                while ((buf = mReader.next(mInfo)) != null) {
+                    int muxerTrack = mMuxerTracks[mReader.getTrack()];
                     if (VERBOSE) {
-                        Log.d(TAG, "SAVE " + index + " flags=0x" + Integer.toHexString(info.flags));
+                        Log.d(TAG, "SAVE " + mWritten + " track=" + mReader.getTrack() +
+                                " flags=0x" + Integer.toHexString(mInfo.flags));
+                    }
+                    if (muxerTrack < 0) {
+                        continue;
+                    }
+                    mMuxer.writeSampleData(muxerTrack, buf, mInfo);
+
+                    mWritten++;
+                    if ((mWritten % PROGRESS_INTERVAL) == 0) {
+                        mCallback.fileSaveProgress(mWritten, total);
+                    }
+                }
+            }
+
+            /**
+             * Writes the rest of the range and closes the file.  The reader must have been
+             * given an end by now.
+             */
+            void finish() {
+                writeAvailable();
+                mReader.close();
+                if (mMuxer != null) {
+                    // The total is an upper bound, since packets from before the start
+                    // point are skipped, so finish the progress reports off explicitly.
+                    int total = mReader.getPacketCount();
+                    mCallback.fileSaveProgress(total, total);
+                    mMuxer.stop();
+                    mMuxer.release();
+                    mResult = 0;
+                }
+
+                if (VERBOSE) {
+                    Log.d(TAG, "muxer stopped, result=" + mResult);
+                }
+                final int result = mResult;
+                Runnable report = new Runnable() {
+                    @Override
+                    public void run() {
+                        if (result == 0) {
+                            mCallback.fileSaveLatency(mSnapshotUsec,
+                                    (System.nanoTime() - mRequestNanos) / 1000000);
+                        }
+                        mCallback.fileSaveComplete(result);
                     }
-                    muxer.writeSampleData(videoTrack, buf, info);
-                    index = mEncBuffer.getNextIndex(index);
-                } while (index >= 0);
-                result = 0;
-            } catch (IOException ioe) {
-                Log.w(TAG, "muxer failed", ioe);
-                result = 2;
-            } finally {
-                if (muxer != null) {
-                    muxer.stop();
-                    muxer.release();
+                };
+                if (mMuxer != null) {
+                    // Don't report the file as saved while it's still being rewritten.
+                    mMuxer.whenFinished(report);
+                    mMuxer = null;
+                } else {
+                    report.run();
                 }
             }
+        }
 
-            if (VERBOSE) {
-                Log.d(TAG, "muxer stopped, result=" + result);
+        /**
+         * Waits for any in-progress file save to finish, and stops the save thread.  Call
+         * after the encoder thread has been joined.
+         */
+        void finishSaving() {
+            mSaveThread.quitSafely();
+            try {
+                mSaveThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "Save thread join() was interrupted", ie);
             }
-            mCallback.fileSaveComplete(result);
+        }
+
+        /**
+         * Releases the circular buffer.  Call after the thread has been joined.
+         */
+        void releaseBuffer() {
+            mEncBuffer.release();
         }
 
         /**
@@ -427,6 +1129,10 @@ public class CircularEncoder {
          */
         void shutdown() {
             if (VERBOSE) Log.d(TAG, "shutdown");
+            if (mLiveSave != null) {
+                // Cut the event clip short, so the file is still usable.
+                endLiveSave();
+            }
             Looper.myLooper().quit();
         }
 
@@ -440,6 +1146,9 @@ public class CircularEncoder {
             public static final int MSG_FRAME_AVAILABLE_SOON = 1;
             public static final int MSG_SAVE_VIDEO = 2;
             public static final int MSG_SHUTDOWN = 3;
+            public static final int MSG_SET_CAPACITY_BOUNDS = 4;
+            public static final int MSG_AUDIO_AVAILABLE = 5;
+            public static final int MSG_REQUEST_SYNC_FRAME = 6;
 
             // This shouldn't need to be a weak ref, since we'll go away when the Looper quits,
             // but no real harm in it.
@@ -470,11 +1179,20 @@ public class CircularEncoder {
                         encoderThread.frameAvailableSoon();
                         break;
                     case MSG_SAVE_VIDEO:
-                        encoderThread.saveVideo((File) msg.obj);
+                        encoderThread.saveVideo((SaveRequest) msg.obj);
                         break;
                     case MSG_SHUTDOWN:
                         encoderThread.shutdown();
                         break;
+                    case MSG_AUDIO_AVAILABLE:
+                        encoderThread.pollEncoders();
+                        break;
+                    case MSG_SET_CAPACITY_BOUNDS:
+                        encoderThread.mEncBuffer.setCapacityBounds(msg.arg1, msg.arg2);
+                        break;
+                    case MSG_REQUEST_SYNC_FRAME:
+                        encoderThread.requestSyncFrame("reader");
+                        break;
                     default:
                         throw new RuntimeException("unknown message " + what);
                 }
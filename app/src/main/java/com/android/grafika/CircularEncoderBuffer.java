@@ -19,17 +19,40 @@ package com.android.grafika;
 import android.media.MediaCodec;
 import android.util.Log;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
 /**
- * Holds encoded video data in a circular buffer.
+ * Holds encoded video data, and optionally the matching audio, in a circular buffer.
  * <p>
  * This is actually a pair of circular buffers, one for the raw data and one for the meta-data
- * (flags and PTS).
+ * (track, flags and PTS).  Packets from both tracks share the same storage in the order they
+ * were added, so a single byte budget covers both, and evicting from the tail drops the
+ * oldest audio and video together.  Only video sync frames count as starting points.
  * <p>
- * Not thread-safe.
+ * Not thread-safe, with one exception: any number of {@link Reader}s may walk the buffer
+ * from other threads while add() continues on the writer's thread.  The writer never takes
+ * a lock.  Each reader has its own cursor, and is either:
+ * <ul>
+ * <li>pinning -- the packets it hasn't consumed yet are never evicted.  If the buffer fills
+ *     up, add() drops new packets instead.  Use this for file saves.
+ * <li>non-pinning -- the writer evicts packets as usual.  If the reader falls far enough
+ *     behind that its next packet is evicted, it is marked as overrun and must resync().
+ *     Use this for live consumers that would rather skip ahead than hold up capture.
+ * </ul>
+ * All other methods must be called on the writer's thread.
  */
 public class CircularEncoderBuffer {
+    /** Track number for encoded video packets. */
+    public static final int TRACK_VIDEO = 0;
+    /** Track number for encoded audio packets. */
+    public static final int TRACK_AUDIO = 1;
+
+    // When saving from a video sync frame, how far back before it we look for audio
+    // packets with a later PTS.  Audio and video output doesn't arrive in perfect PTS
+    // order, so some of the audio that goes with the sync frame was added before it.
+    private static final long AV_SKEW_USEC = 500000;
+
     private static final String TAG = MainActivity.TAG;
     private static final boolean EXTRA_DEBUG = true;
     private static final boolean VERBOSE = false;
@@ -41,15 +64,19 @@ public class CircularEncoderBuffer {
     // JNI functions to access the backing byte[] (which, in the current VM, is done without
     // copying the data).
     //
-    // It's much more convenient to work with a byte[], so we just wrap it with a ByteBuffer
-    // as needed.  This is a bit awkward when we hit the edge of the buffer, but for that
-    // we can just do an allocation and data copy (we know it happens at most once per file
-    // save operation).
-    private ByteBuffer mDataBufferWrapper;
-    private byte[] mDataBuffer;
+    // Where the bytes actually live is up to the storage object (heap array, direct buffer,
+    // or mapped file).  Packets that don't wrap are handed out as a view of the whole
+    // region, so no copy is needed.  When we hit the edge of the buffer we copy the two
+    // halves into a scratch buffer.  The scratch buffer is kept around and only grows, so
+    // once it has seen the largest packet (usually a sync frame) no further allocations
+    // are needed.
+    private CircularBufferStorage mStorage;
+    private final CircularBufferStorage.Factory mStorageFactory;
+    private ByteBuffer mScratch;
 
     // Meta-data held here.  We're using a collection of arrays, rather than an array of
     // objects with multiple fields, to minimize allocations and heap footprint.
+    private int[] mPacketTrack;
     private int[] mPacketFlags;
     private long[] mPacketPtsUsec;
     private int[] mPacketStart;
@@ -60,32 +87,564 @@ public class CircularEncoderBuffer {
     private int mMetaHead;
     private int mMetaTail;
 
+    // Index of sync frames, kept in step with the meta-data.  Each entry is the meta-data
+    // index of a sync frame, oldest at the tail.  Lets us find the oldest and newest sync
+    // frames without scanning, and binary-search for the sync frame at or before a given
+    // time.  Sized to match the meta-data, so it can't overflow even if every packet is a
+    // sync frame.
+    private int[] mSyncIndex;
+    private int mSyncHead;
+    private int mSyncTail;
+
+    // Sequence numbers, for the benefit of readers on other threads.  Every packet gets the
+    // next number as it's added, and since the meta-data head advances in step, a packet's
+    // meta-data index is its sequence number modulo the meta-data length.  mHeadSeq is
+    // published after the packet has been completely written, and mTailSeq is advanced
+    // once a packet has been evicted, before its space can be reused.  mClaimSeq runs
+    // ahead of mTailSeq while the writer checks the pins, and is only of interest to
+    // pinning readers being opened; see evictTail().
+    private volatile long mHeadSeq;
+    private volatile long mTailSeq;
+    private volatile long mClaimSeq;
+    private volatile long mNewestSyncSeq = -1;
+
+    // Readers currently open.  Replaced wholesale when a reader is opened or closed, so the
+    // writer can walk it without locking or allocating.
+    private volatile Reader[] mReaders = new Reader[0];
+    private final Object mReaderLock = new Object();
+
+    // Set after we've had to drop a packet because pinned packets filled the buffer.
+    // Everything up to the next sync frame gets dropped as well, since those packets
+    // can't be decoded without the one we lost.
+    private boolean mDropUntilSync;
+    private int mDroppedCount;
+
+    // Adaptive sizing.  The nominal bit rate is only a hint -- encoders overshoot on busy
+    // scenes and undershoot on static ones -- so we measure the actual data rate over a
+    // sliding window of roughly one-second buckets, and resize the data storage to hold
+    // the desired span at that rate.  Disabled (mMaxCapacity == 0) until bounds are set.
+    private static final int RATE_WINDOW_BUCKETS = 4;
+    private static final long RATE_BUCKET_USEC = 1000000;
+    private static final int HEADROOM_PERCENT = 25;
+    private final int mDesiredSpanSec;
+    private int mMinCapacity;
+    private int mMaxCapacity;
+    private final long[] mBucketBytes = new long[RATE_WINDOW_BUCKETS];
+    private final long[] mBucketUsec = new long[RATE_WINDOW_BUCKETS];
+    private final int[] mBucketEvictions = new int[RATE_WINDOW_BUCKETS];
+    private int mBucketNext;
+    private int mBucketCount;
+    private long mBucketStartUsec = -1;
+    private long mCurBucketBytes;
+    private int mCurBucketEvictions;
+    private long mObservedBytesPerSec = -1;
+    private int mBitRate;
+    private float mEvictionsPerSec;
+    private long mEvictedCount;
+    private int mResizeCount;
+
     /**
-     * Allocates the circular buffers we use for encoded data and meta-data.
+     * A cursor over the packets in the buffer, for use on a thread other than the writer's.
+     * A given Reader should only be used by one thread.
+     */
+    public class Reader {
+        private final boolean mPinning;
+        private final long mFirstSeq;
+        // One past the last packet; MAX_VALUE if live.  A live pinning reader can be given
+        // an end later on, by the writer; see endReader().
+        private volatile long mEndSeq;
+
+        // Our own view of the storage and our own scratch buffer, so readers don't
+        // interfere with each other.
+        private ByteBuffer mView;           // set by registerReader()
+        private ByteBuffer mReaderScratch;
+
+        // Sequence number of the next packet to return.
+        private long mNextSeq;
+        // For pinning readers, the oldest packet we might still be using.  The writer
+        // won't evict this or anything newer.
+        private volatile long mPinSeq;
+        private boolean mNeedSync;
+        private boolean mOverrun;
+
+        // Where playback starts: video before the sync frame at mVideoStartSeq, and audio
+        // earlier than its PTS, are skipped.
+        private long mVideoStartSeq;
+        private long mStartPtsUsec;
+        // Packets later than this are skipped.  Audio that belongs before the end may be
+        // added after video that doesn't, so the range can't just be cut at a packet.
+        private final long mEndPtsUsec;
+        private int mTrack;
+
+        Reader(boolean pinning, long firstSeq, long endSeq, boolean needSync,
+                long videoStartSeq, long startPtsUsec, long endPtsUsec) {
+            mPinning = pinning;
+            mFirstSeq = firstSeq;
+            mEndSeq = endSeq;
+            mNextSeq = firstSeq;
+            mPinSeq = firstSeq;
+            mNeedSync = needSync;
+            mVideoStartSeq = videoStartSeq;
+            mStartPtsUsec = startPtsUsec;
+            mEndPtsUsec = endPtsUsec;
+        }
+
+        /**
+         * Returns the next packet and fills in the BufferInfo, or returns null if there's
+         * nothing new yet, the end of the range has been reached, or the reader has been
+         * overrun.
+         * <p>
+         * The caller must not modify the contents of the returned ByteBuffer.  For a pinning
+         * reader the data remains valid until the next call; for a non-pinning reader it's
+         * always a private copy.
+         */
+        public ByteBuffer next(MediaCodec.BufferInfo info) {
+            while (true) {
+                long seq = mNextSeq;
+                if (mOverrun || seq >= mEndSeq || seq >= mHeadSeq) {
+                    return null;
+                }
+                if (mPinning) {
+                    // Anything before this packet can go now.
+                    mPinSeq = seq;
+                } else if (seq < mTailSeq) {
+                    markOverrun(seq);
+                    return null;
+                }
+
+                final int metaLen = mPacketStart.length;
+                int index = (int) (seq % metaLen);
+                int track = mPacketTrack[index];
+                int flags = mPacketFlags[index];
+                long ptsUsec = mPacketPtsUsec[index];
+                int packetStart = mPacketStart[index];
+                int length = mPacketLength[index];
+                mNextSeq = seq + 1;
+
+                if (mNeedSync && track == TRACK_VIDEO &&
+                        (flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                    mNeedSync = false;
+                    mVideoStartSeq = seq;
+                    mStartPtsUsec = ptsUsec;
+                }
+                boolean skip;
+                if (mNeedSync || ptsUsec > mEndPtsUsec) {
+                    skip = true;
+                } else if (track == TRACK_VIDEO) {
+                    skip = seq < mVideoStartSeq;
+                } else {
+                    skip = ptsUsec < mStartPtsUsec;
+                }
+                if (skip) {
+                    if (!mPinning && seq < mTailSeq) {
+                        markOverrun(seq);
+                        return null;
+                    }
+                    continue;
+                }
+
+                ByteBuffer result;
+                if (mPinning && packetStart + length <= mView.capacity()) {
+                    // Pinned, so it can't change under us; no need to copy.
+                    mView.clear();
+                    result = mView;
+                    info.offset = packetStart;
+                } else {
+                    result = copyPacket(packetStart, length);
+                    info.offset = 0;
+                }
+
+                // If the writer reclaimed this packet while we were copying it, the copy
+                // may be torn.  The volatile read of the tail orders this check after the
+                // copy.
+                if (!mPinning && seq < mTailSeq) {
+                    markOverrun(seq);
+                    return null;
+                }
+
+                mTrack = track;
+                info.flags = flags;
+                info.presentationTimeUs = ptsUsec;
+                info.size = length;
+                return result;
+            }
+        }
+
+        /**
+         * Copies a packet into the scratch buffer, which grows as needed.
+         */
+        private ByteBuffer copyPacket(int packetStart, int length) {
+            if (mReaderScratch == null || mReaderScratch.capacity() < length) {
+                int cap = (mReaderScratch == null) ? 0 : mReaderScratch.capacity();
+                mReaderScratch = ByteBuffer.allocateDirect(Math.max(length, cap * 2));
+            }
+            ByteBuffer scratch = mReaderScratch;
+            scratch.clear();
+            final int dataLen = mView.capacity();
+            int firstSize = Math.min(length, dataLen - packetStart);
+            mView.limit(packetStart + firstSize);
+            mView.position(packetStart);
+            scratch.put(mView);
+            if (firstSize < length) {
+                mView.limit(length - firstSize);
+                mView.position(0);
+                scratch.put(mView);
+            }
+            scratch.flip();
+            return scratch;
+        }
+
+        /**
+         * Returns the track of the packet most recently returned by next().
+         */
+        public int getTrack() {
+            return mTrack;
+        }
+
+        private void markOverrun(long seq) {
+            if (VERBOSE) Log.v(TAG, "reader overrun at seq=" + seq + " tail=" + mTailSeq);
+            mOverrun = true;
+        }
+
+        /**
+         * Returns true if the reader fell behind and packets were evicted before it could
+         * read them.  Only non-pinning readers can be overrun.
+         */
+        public boolean isOverrun() {
+            return mOverrun;
+        }
+
+        /**
+         * Skips ahead to the newest sync frame, and clears the overrun state.
+         */
+        public void resync() {
+            long sync = mNewestSyncSeq;
+            if (sync >= 0 && sync >= mTailSeq) {
+                // Let next() pick up the sync frame's PTS as the new start time.
+                mNextSeq = sync;
+                mNeedSync = true;
+            } else {
+                mNextSeq = mHeadSeq;
+                mNeedSync = true;
+            }
+            mOverrun = false;
+        }
+
+        /**
+         * Returns true if this reader covers a fixed range and has returned all of it.
+         */
+        public boolean isFinished() {
+            return mNextSeq >= mEndSeq;
+        }
+
+        /**
+         * Returns the number of packets in the range, or -1 for a live reader.  This is an
+         * upper bound; a few packets from before the start point or after the end may be
+         * skipped.
+         */
+        public int getPacketCount() {
+            long endSeq = mEndSeq;
+            return (endSeq == Long.MAX_VALUE) ? -1 : (int) (endSeq - mFirstSeq);
+        }
+
+        /**
+         * Closes the reader.  A pinning reader's remaining packets become eligible for
+         * eviction.
+         */
+        public void close() {
+            unregisterReader(this);
+        }
+    }
+
+    /**
+     * Allocates the circular buffers we use for encoded data and meta-data.  The encoded
+     * data is held in a byte[] on the managed heap.
      */
     public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec) {
-        // For the encoded data, we assume the encoded bit rate is close to what we request.
-        //
-        // There would be a minor performance advantage to using a power of two here, because
-        // not all ARM CPUs support integer modulus.
-        int dataBufferSize = bitRate * desiredSpanSec / 8;
-        mDataBuffer = new byte[dataBufferSize];
-        mDataBufferWrapper = ByteBuffer.wrap(mDataBuffer);
+        this(new CircularBufferStorage.Heap(dataBufferSize(bitRate, desiredSpanSec)),
+                CircularBufferStorage.HEAP, bitRate, frameRate, desiredSpanSec);
+    }
+
+    /**
+     * Allocates the circular buffers we use for encoded data and meta-data, using the
+     * specified factory to create the storage for the encoded data.
+     */
+    public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec,
+            CircularBufferStorage.Factory storageFactory) throws IOException {
+        this(storageFactory.create(dataBufferSize(bitRate, desiredSpanSec)),
+                storageFactory, bitRate, frameRate, desiredSpanSec);
+    }
+
+    private CircularEncoderBuffer(CircularBufferStorage storage,
+            CircularBufferStorage.Factory storageFactory, int bitRate, int frameRate,
+            int desiredSpanSec) {
+        mStorage = storage;
+        mStorageFactory = storageFactory;
+        mBitRate = bitRate;
+        mDesiredSpanSec = desiredSpanSec;
 
         // Meta-data is smaller than encoded data for non-trivial frames, so we over-allocate
         // a bit.  This should ensure that we drop packets because we ran out of (expensive)
         // data storage rather than (inexpensive) metadata storage.
         int metaBufferCount = frameRate * desiredSpanSec * 2;
+        mPacketTrack = new int[metaBufferCount];
         mPacketFlags = new int[metaBufferCount];
         mPacketPtsUsec = new long[metaBufferCount];
         mPacketStart = new int[metaBufferCount];
         mPacketLength = new int[metaBufferCount];
+        mSyncIndex = new int[metaBufferCount];
 
         if (VERBOSE) {
-            Log.d(TAG, "CBE: bitRate=" + bitRate + " frameRate=" + frameRate +
-                    " desiredSpan=" + desiredSpanSec + ": dataBufferSize=" + dataBufferSize +
-                " metaBufferCount=" + metaBufferCount);
+            Log.d(TAG, "CBE: frameRate=" + frameRate + " desiredSpan=" + desiredSpanSec +
+                    ": dataBufferSize=" + storage.capacity() +
+                    " metaBufferCount=" + metaBufferCount);
+        }
+    }
+
+    /**
+     * Computes the size of the encoded data buffer.
+     * <p>
+     * We assume the encoded bit rate is close to what we request.
+     * <p>
+     * There would be a minor performance advantage to using a power of two here, because
+     * not all ARM CPUs support integer modulus.
+     */
+    private static int dataBufferSize(int bitRate, int desiredSpanSec) {
+        return bitRate * desiredSpanSec / 8;
+    }
+
+    /**
+     * Enables adaptive sizing.  Once a few seconds of data have been seen, the data storage
+     * is grown or shrunk to hold the desired span at the observed data rate, plus some
+     * headroom, but never outside [minBytes, maxBytes].
+     * <p>
+     * Storage is only reallocated while no readers are open, since they hold views of it.
+     * The meta-data arrays are sized from the frame rate and aren't affected.
+     */
+    public void setCapacityBounds(int minBytes, int maxBytes) {
+        if (minBytes <= 0 || maxBytes < minBytes) {
+            throw new IllegalArgumentException("bad bounds: " + minBytes + "," + maxBytes);
+        }
+        mMinCapacity = minBytes;
+        mMaxCapacity = maxBytes;
+    }
+
+    /**
+     * Tells the buffer that the encoder has been asked for a different bit rate (video and
+     * audio together).  The rate measurement starts over, since it measured the old rate,
+     * but until there's a new one the old estimate is scaled to match, so
+     * {@link #getShortfallBytes()} keeps reporting a shortfall while the encoder settles.
+     * If adaptive sizing is enabled and the storage can't hold the desired span at the new
+     * rate, it's grown right away rather than after the next few seconds of measurement.
+     */
+    public void setBitRate(int bitRate) {
+        if (mMaxCapacity != 0) {
+            long target = (long) bitRate / 8 * mDesiredSpanSec * (100 + HEADROOM_PERCENT) / 100;
+            target = Math.max(mMinCapacity, Math.min(mMaxCapacity, target));
+            if (mStorage.capacity() < target) {
+                resize((int) target);
+            }
+        }
+
+        mBucketCount = 0;
+        mBucketNext = 0;
+        mBucketStartUsec = -1;
+        mCurBucketBytes = 0;
+        mCurBucketEvictions = 0;
+        if (mObservedBytesPerSec >= 0 && mBitRate > 0) {
+            mObservedBytesPerSec = mObservedBytesPerSec * bitRate / mBitRate;
+        }
+        mBitRate = bitRate;
+    }
+
+    /**
+     * Returns how many more bytes of storage it would take to hold the desired span at the
+     * observed data rate, or 0 if it fits or the rate isn't known yet.  With adaptive sizing
+     * this only goes above zero once the upper bound is reached.
+     */
+    public long getShortfallBytes() {
+        if (mObservedBytesPerSec < 0) {
+            return 0;
+        }
+        long needed = mObservedBytesPerSec * mDesiredSpanSec;
+        return Math.max(0, needed - mStorage.capacity());
+    }
+
+    /**
+     * Returns the current size of the data storage, in bytes.
+     */
+    public int getCapacity() {
+        return mStorage.capacity();
+    }
+
+    /**
+     * Returns the encoded data rate observed over the last few seconds, in bits per second,
+     * or -1 if we haven't seen enough data yet.  Measured whether or not adaptive sizing is
+     * enabled.
+     */
+    public long getObservedBitRate() {
+        return (mObservedBytesPerSec < 0) ? -1 : mObservedBytesPerSec * 8;
+    }
+
+    /**
+     * Returns the total number of packets evicted to make room for new ones.
+     */
+    public long getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    /**
+     * Returns the number of packets evicted per second over the last few seconds.  Once the
+     * buffer has filled this tracks the incoming packet rate; what matters is whether
+     * computeTimeSpanUsec() is close to the desired span when it does.
+     */
+    public float getEvictionRate() {
+        return mEvictionsPerSec;
+    }
+
+    /**
+     * Returns the number of times the data storage has been reallocated.
+     */
+    public int getResizeCount() {
+        return mResizeCount;
+    }
+
+    /**
+     * Updates the data rate measurement with a new packet, and resizes the storage if the
+     * rate has moved far enough from what we're sized for.
+     */
+    private void updateRate(int size, long ptsUsec) {
+        if (mBucketStartUsec < 0) {
+            mBucketStartUsec = ptsUsec;
+        }
+        long elapsedUsec = ptsUsec - mBucketStartUsec;
+        if (elapsedUsec >= RATE_BUCKET_USEC) {
+            mBucketBytes[mBucketNext] = mCurBucketBytes;
+            mBucketUsec[mBucketNext] = elapsedUsec;
+            mBucketEvictions[mBucketNext] = mCurBucketEvictions;
+            mBucketNext = (mBucketNext + 1) % RATE_WINDOW_BUCKETS;
+            if (mBucketCount < RATE_WINDOW_BUCKETS) {
+                mBucketCount++;
+            }
+            mBucketStartUsec = ptsUsec;
+            mCurBucketBytes = 0;
+            mCurBucketEvictions = 0;
+
+            long totalBytes = 0;
+            long totalUsec = 0;
+            int totalEvictions = 0;
+            for (int i = 0; i < mBucketCount; i++) {
+                totalBytes += mBucketBytes[i];
+                totalUsec += mBucketUsec[i];
+                totalEvictions += mBucketEvictions[i];
+            }
+            mObservedBytesPerSec = totalBytes * 1000000 / totalUsec;
+            mEvictionsPerSec = totalEvictions * 1000000.0f / totalUsec;
+            if (VERBOSE) {
+                Log.v(TAG, "observed " + (mObservedBytesPerSec * 8) + " bps, " +
+                        mEvictionsPerSec + " evictions/sec, span=" + computeTimeSpanUsec());
+            }
+
+            if (mMaxCapacity != 0 && mBucketCount == RATE_WINDOW_BUCKETS) {
+                maybeResize();
+            }
+        }
+        mCurBucketBytes += size;
+    }
+
+    /**
+     * Resizes the data storage if it's too small to hold the desired span at the observed
+     * rate, or much larger than it needs to be.
+     */
+    private void maybeResize() {
+        long needed = mObservedBytesPerSec * mDesiredSpanSec;
+        long target = needed * (100 + HEADROOM_PERCENT) / 100;
+        target = Math.max(mMinCapacity, Math.min(mMaxCapacity, target));
+        int capacity = mStorage.capacity();
+        if ((capacity < needed && capacity < target) || capacity > target * 3 / 2) {
+            resize((int) target);
+        }
+    }
+
+    /**
+     * Moves the buffered packets into new storage of the given size, evicting the oldest
+     * ones if they don't all fit.  Does nothing if any readers are open.
+     */
+    private void resize(int newCapacity) {
+        synchronized (mReaderLock) {
+            // Holding the lock keeps new readers from grabbing a view of the old storage.
+            if (mReaders.length != 0) {
+                if (VERBOSE) Log.v(TAG, "not resizing, readers open");
+                return;
+            }
+
+            final int metaLen = mPacketStart.length;
+            int largest = 0;
+            long used = 0;
+            for (int i = mMetaTail; i != mMetaHead; i = (i + 1) % metaLen) {
+                largest = Math.max(largest, mPacketLength[i]);
+                used += mPacketLength[i] + 1;
+            }
+            if (largest * 2 > newCapacity) {
+                // Leave room for at least a couple of packets like the biggest we've seen.
+                Log.w(TAG, "not resizing to " + newCapacity + ", largest packet is " + largest);
+                return;
+            }
+
+            CircularBufferStorage storage;
+            try {
+                storage = mStorageFactory.create(newCapacity);
+            } catch (IOException ioe) {
+                Log.w(TAG, "Unable to resize buffer to " + newCapacity, ioe);
+                return;
+            }
+            Log.d(TAG, "resizing buffer " + mStorage.capacity() + " -> " + newCapacity +
+                    " (observed " + (mObservedBytesPerSec * 8) + " bps)");
+
+            while (used >= newCapacity) {
+                used -= mPacketLength[mMetaTail] + 1;
+                evictTail();
+            }
+
+            // Copy what's left to the start of the new storage, oldest first.  Nothing wraps.
+            final int dataLen = mStorage.capacity();
+            ByteBuffer src = mStorage.newView();
+            int offset = 0;
+            for (int i = mMetaTail; i != mMetaHead; i = (i + 1) % metaLen) {
+                int packetStart = mPacketStart[i];
+                int length = mPacketLength[i];
+                int firstSize = Math.min(length, dataLen - packetStart);
+                src.limit(packetStart + firstSize);
+                src.position(packetStart);
+                storage.put(offset, src, firstSize);
+                if (firstSize < length) {
+                    src.limit(length - firstSize);
+                    src.position(0);
+                    storage.put(offset + firstSize, src, length - firstSize);
+                }
+                mPacketStart[i] = offset;
+                offset += length + 1;
+            }
+
+            mStorage.release();
+            mStorage = storage;
+            mResizeCount++;
+            // Start a fresh window, so we don't resize again on the same measurements.
+            mBucketCount = 0;
+            mBucketNext = 0;
+        }
+    }
+
+    /**
+     * Releases the storage.  The buffer must not be used afterward.
+     */
+    public void release() {
+        if (mStorage != null) {
+            mStorage.release();
+            mStorage = null;
         }
+        mScratch = null;
+        mReaders = new Reader[0];
     }
 
     /**
@@ -105,28 +664,57 @@ public class CircularEncoderBuffer {
         return mPacketPtsUsec[beforeHead] - mPacketPtsUsec[mMetaTail];
     }
 
+    /**
+     * Adds a new encoded video packet to the buffer.
+     *
+     * @see #add(int, ByteBuffer, int, long)
+     */
+    public boolean add(ByteBuffer buf, int flags, long ptsUsec) {
+        return add(TRACK_VIDEO, buf, flags, ptsUsec);
+    }
+
     /**
      * Adds a new encoded data packet to the buffer.
      *
+     * @param track TRACK_VIDEO or TRACK_AUDIO.
      * @param buf The data.  Set position() to the start offset and limit() to position+size.
      *     The position and limit may be altered by this method.
-     * @param size Number of bytes in the packet.
      * @param flags MediaCodec.BufferInfo flags.
      * @param ptsUsec Presentation time stamp, in microseconds.
+     * @return False if the packet was dropped because the buffer is full of pinned data.
      */
-    public void add(ByteBuffer buf, int flags, long ptsUsec) {
+    public boolean add(int track, ByteBuffer buf, int flags, long ptsUsec) {
         int size = buf.limit() - buf.position();
         if (VERBOSE) {
-            Log.d(TAG, "add size=" + size + " flags=0x" + Integer.toHexString(flags) +
-                    " pts=" + ptsUsec);
+            Log.d(TAG, "add track=" + track + " size=" + size + " flags=0x" +
+                    Integer.toHexString(flags) + " pts=" + ptsUsec);
+        }
+        final boolean isSync = track == TRACK_VIDEO &&
+                (flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        updateRate(size, ptsUsec);
+        if (mDropUntilSync && track == TRACK_VIDEO) {
+            // Audio packets stand alone, so only video has to wait for a sync frame.
+            if (!isSync) {
+                mDroppedCount++;
+                return false;
+            }
+            mDropUntilSync = false;
         }
         while (!canAdd(size)) {
-            removeTail();
+            if (!evictTail()) {
+                // The oldest packet is still being read.  We can't wait for it, so drop
+                // the new one.
+                if (VERBOSE) Log.v(TAG, "buffer full of pinned data, dropping pts=" + ptsUsec);
+                mDropUntilSync |= (track == TRACK_VIDEO);
+                mDroppedCount++;
+                return false;
+            }
         }
 
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mStorage.capacity();
         final int metaLen = mPacketStart.length;
         int packetStart = getHeadStart();
+        mPacketTrack[mMetaHead] = track;
         mPacketFlags[mMetaHead] = flags;
         mPacketPtsUsec[mMetaHead] = ptsUsec;
         mPacketStart[mMetaHead] = packetStart;
@@ -135,16 +723,23 @@ public class CircularEncoderBuffer {
         // Copy the data in.  Take care if it gets split in half.
         if (packetStart + size < dataLen) {
             // one chunk
-            buf.get(mDataBuffer, packetStart, size);
+            mStorage.put(packetStart, buf, size);
         } else {
             // two chunks
             int firstSize = dataLen - packetStart;
             if (VERBOSE) { Log.v(TAG, "split, firstsize=" + firstSize + " size=" + size); }
-            buf.get(mDataBuffer, packetStart, firstSize);
-            buf.get(mDataBuffer, 0, size - firstSize);
+            mStorage.put(packetStart, buf, firstSize);
+            mStorage.put(0, buf, size - firstSize);
         }
 
+        long seq = mHeadSeq;
+        if (isSync) {
+            mSyncIndex[mSyncHead] = mMetaHead;
+            mSyncHead = (mSyncHead + 1) % metaLen;
+            mNewestSyncSeq = seq;
+        }
         mMetaHead = (mMetaHead + 1) % metaLen;
+        mHeadSeq = seq + 1;     // publish to readers
 
         if (EXTRA_DEBUG) {
             // The head packet is the next-available spot.
@@ -153,6 +748,199 @@ public class CircularEncoderBuffer {
             mPacketStart[mMetaHead] = -100000;
             mPacketLength[mMetaHead] = Integer.MAX_VALUE;
         }
+        return true;
+    }
+
+    /**
+     * Returns the number of packets add() has dropped because pinned packets filled the
+     * buffer.
+     */
+    public int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Opens a pinning reader covering everything from the oldest sync frame to the most
+     * recently added packet.
+     *
+     * @return The reader, or null if there's no sync frame in the buffer.
+     */
+    public Reader pinSnapshot() {
+        return pinSnapshot(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Opens a pinning reader covering a range of presentation times.  The range is widened
+     * at the start to the nearest preceding sync frame, and includes every packet whose PTS
+     * is no later than endUsec.  Audio starts at the sync frame's PTS, including any audio
+     * packets that were added shortly before it, and likewise ends at endUsec, including
+     * audio added shortly after the last video packet and excluding audio added before it
+     * with a later PTS.
+     * <p>
+     * Because this runs on the writer's thread, the range can't be evicted between finding
+     * it and pinning it.
+     *
+     * @return The reader, or null if the range doesn't include any packets.
+     */
+    public Reader pinSnapshot(long startUsec, long endUsec) {
+        int first = findSyncIndex(startUsec);
+        int last = findIndex(endUsec);
+        if (first < 0 || last < 0) {
+            return null;
+        }
+        final int metaLen = mPacketStart.length;
+        int firstPosn = (first + metaLen - mMetaTail) % metaLen;
+        int lastPosn = (last + metaLen - mMetaTail) % metaLen;
+        if (lastPosn < firstPosn) {
+            // endUsec falls before the sync frame
+            return null;
+        }
+
+        // Audio with a PTS up to endUsec may still be coming in for a while after the last
+        // video packet.  Video is in PTS order, so take everything up to the first video
+        // packet that's too late for that; the reader skips whatever's past endUsec.
+        int count = (mMetaHead + metaLen - mMetaTail) % metaLen;
+        long limitUsec = (endUsec > Long.MAX_VALUE - AV_SKEW_USEC) ?
+                Long.MAX_VALUE : endUsec + AV_SKEW_USEC;
+        int endPosn = lastPosn + 1;
+        while (endPosn < count) {
+            int index = (mMetaTail + endPosn) % metaLen;
+            if (mPacketTrack[index] == TRACK_VIDEO && mPacketPtsUsec[index] > limitUsec) {
+                break;
+            }
+            endPosn++;
+        }
+        return pinFromSync(first, mTailSeq + endPosn, endUsec);
+    }
+
+    /**
+     * Opens an open-ended pinning reader that starts at the nearest sync frame at or before
+     * startUsec and follows new packets as they're added, until endReader() is called.
+     *
+     * @return The reader, or null if there's no sync frame in the buffer.
+     */
+    public Reader pinFrom(long startUsec) {
+        int first = findSyncIndex(startUsec);
+        if (first < 0) {
+            return null;
+        }
+        return pinFromSync(first, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Ends an open-ended reader after the most recently added packet.  Once it has returned
+     * everything up to there, the reader reports that it's finished.
+     */
+    public void endReader(Reader reader) {
+        reader.mEndSeq = mHeadSeq;
+    }
+
+    /**
+     * Pins everything from the sync frame at meta-data index "first" up to endSeq, along
+     * with the audio that goes with it.  Packets later than endPtsUsec are skipped.
+     */
+    private Reader pinFromSync(int first, long endSeq, long endPtsUsec) {
+        final int metaLen = mPacketStart.length;
+        int firstPosn = (first + metaLen - mMetaTail) % metaLen;
+        long tailSeq = mTailSeq;
+        long syncSeq = tailSeq + firstPosn;
+        long syncPtsUsec = mPacketPtsUsec[first];
+
+        // Back up over any audio that belongs after the sync frame.  The reader skips the
+        // video (and any older audio) we pass on the way.  Only video is in PTS order, so
+        // an old audio packet doesn't mean there isn't newer audio before it.
+        int scanPosn = firstPosn;
+        while (scanPosn > 0) {
+            int index = (mMetaTail + scanPosn - 1) % metaLen;
+            if (mPacketTrack[index] == TRACK_VIDEO &&
+                    mPacketPtsUsec[index] < syncPtsUsec - AV_SKEW_USEC) {
+                break;
+            }
+            scanPosn--;
+        }
+        int startPosn = firstPosn;
+        for (int posn = scanPosn; posn < firstPosn; posn++) {
+            int index = (mMetaTail + posn) % metaLen;
+            if (mPacketTrack[index] != TRACK_VIDEO && mPacketPtsUsec[index] >= syncPtsUsec) {
+                startPosn = posn;
+                break;
+            }
+        }
+
+        Reader reader = new Reader(true, tailSeq + startPosn, endSeq, false, syncSeq,
+                syncPtsUsec, endPtsUsec);
+        registerReader(reader);
+        return reader;
+    }
+
+    /**
+     * Opens a live reader, starting at the newest sync frame (or, if there isn't one yet, at
+     * the next sync frame to arrive).  May be called from any thread.
+     *
+     * @param pinning If set, the writer won't evict packets this reader hasn't consumed.
+     */
+    public Reader openReader(boolean pinning) {
+        while (true) {
+            // Start from the sync frame, and let next() take its PTS as the audio start.
+            long start = mNewestSyncSeq;
+            if (start < 0) {
+                start = mHeadSeq;
+            }
+            Reader reader = new Reader(pinning, start, Long.MAX_VALUE, true, start,
+                    Long.MIN_VALUE, Long.MAX_VALUE);
+            registerReader(reader);
+
+            // The writer claims a packet (advancing mClaimSeq) before it checks the pins,
+            // and we publish our pin before checking mClaimSeq, so at least one of us will
+            // see the other.  If the writer got there first, try again with newer data.
+            if (!pinning || start >= mClaimSeq) {
+                return reader;
+            }
+            unregisterReader(reader);
+        }
+    }
+
+    /**
+     * Opens a live reader that starts at the next sync frame to be added, skipping
+     * everything before it.  Use after asking the encoder for a sync frame, so the reader
+     * gets going right away instead of starting up to a whole GOP in the past.  May be
+     * called from any thread.
+     *
+     * @param pinning If set, the writer won't evict packets this reader hasn't consumed.
+     */
+    public Reader openReaderAtNextSync(boolean pinning) {
+        // Nothing at or after the head can have been evicted, so there's no race to lose.
+        long start = mHeadSeq;
+        Reader reader = new Reader(pinning, start, Long.MAX_VALUE, true, start,
+                Long.MIN_VALUE, Long.MAX_VALUE);
+        registerReader(reader);
+        return reader;
+    }
+
+    private void registerReader(Reader reader) {
+        synchronized (mReaderLock) {
+            reader.mView = mStorage.newView();
+            Reader[] old = mReaders;
+            Reader[] readers = new Reader[old.length + 1];
+            System.arraycopy(old, 0, readers, 0, old.length);
+            readers[old.length] = reader;
+            mReaders = readers;
+        }
+    }
+
+    private void unregisterReader(Reader reader) {
+        synchronized (mReaderLock) {
+            Reader[] old = mReaders;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i] == reader) {
+                    Reader[] readers = new Reader[old.length - 1];
+                    System.arraycopy(old, 0, readers, 0, i);
+                    System.arraycopy(old, i + 1, readers, i, old.length - i - 1);
+                    mReaders = readers;
+                    return;
+                }
+            }
+        }
     }
 
     /**
@@ -161,21 +949,119 @@ public class CircularEncoderBuffer {
      * When sending output to a MediaMuxer, start here.
      */
     public int getFirstIndex() {
+        if (mSyncHead == mSyncTail) {
+            Log.w(TAG, "HEY: could not find sync frame in buffer");
+            return -1;
+        }
+        return mSyncIndex[mSyncTail];
+    }
+
+    /**
+     * Returns the index of the newest sync frame, or -1 if there isn't one.  Valid until the
+     * next add().
+     */
+    public int getNewestSyncIndex() {
+        if (mSyncHead == mSyncTail) {
+            return -1;
+        }
+        final int metaLen = mPacketStart.length;
+        return mSyncIndex[(mSyncHead + metaLen - 1) % metaLen];
+    }
+
+    /**
+     * Returns the presentation time of the packet at "index".
+     */
+    public long getPtsUsec(int index) {
+        return mPacketPtsUsec[index];
+    }
+
+    /**
+     * Returns the index of the most recently added packet, or -1 if the buffer is empty.
+     */
+    public int getLastIndex() {
+        if (mMetaHead == mMetaTail) {
+            return -1;
+        }
+        final int metaLen = mPacketStart.length;
+        return (mMetaHead + metaLen - 1) % metaLen;
+    }
+
+    /**
+     * Returns the index of the last video packet with a PTS at or before ptsUsec, or -1 if
+     * every video packet is later than that.  O(log n) to find the sync frame, then a walk
+     * through at most one GOP.
+     * <p>
+     * Only video is searched.  Its PTS increases in the order packets are added, since
+     * B-frames are disabled (see {@link RecordingConfig}), but audio is interleaved with up
+     * to AV_SKEW_USEC of skew, so the buffer as a whole isn't in PTS order.
+     */
+    public int findIndex(long ptsUsec) {
         final int metaLen = mPacketStart.length;
 
-        int index = mMetaTail;
+        // Binary search the sync frames for the last one at or before ptsUsec.
+        int syncCount = (mSyncHead + metaLen - mSyncTail) % metaLen;
+        int lo = 0;
+        int hi = syncCount - 1;
+        int foundSync = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mPacketPtsUsec[mSyncIndex[(mSyncTail + mid) % metaLen]] <= ptsUsec) {
+                foundSync = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        // Walk forward from there (or from the tail, if the packets before the oldest sync
+        // frame might qualify) to the last video packet that does.
+        int index = (foundSync < 0) ?
+                mMetaTail : mSyncIndex[(mSyncTail + foundSync) % metaLen];
+        int found = -1;
         while (index != mMetaHead) {
-            if ((mPacketFlags[index] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
-                break;
+            if (mPacketTrack[index] == TRACK_VIDEO) {
+                if (mPacketPtsUsec[index] > ptsUsec) {
+                    break;
+                }
+                found = index;
             }
             index = (index + 1) % metaLen;
         }
+        return found;
+    }
 
-        if (index == mMetaHead) {
-            Log.w(TAG, "HEY: could not find sync frame in buffer");
-            index = -1;
+    /**
+     * Returns the index of the last sync frame with a PTS at or before ptsUsec.  If ptsUsec
+     * is earlier than every sync frame, the oldest sync frame is returned.  Returns -1 if
+     * there are no sync frames in the buffer.  O(log n).
+     */
+    public int findSyncIndex(long ptsUsec) {
+        final int metaLen = mPacketStart.length;
+        int count = (mSyncHead + metaLen - mSyncTail) % metaLen;
+        if (count == 0) {
+            return -1;
+        }
+
+        int lo = 0;
+        int hi = count - 1;
+        int found = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mPacketPtsUsec[mSyncIndex[(mSyncTail + mid) % metaLen]] <= ptsUsec) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
         }
-        return index;
+        return mSyncIndex[(mSyncTail + found) % metaLen];
+    }
+
+    /**
+     * Returns the track (TRACK_VIDEO or TRACK_AUDIO) of the specified packet.
+     */
+    public int getTrack(int index) {
+        return mPacketTrack[index];
     }
 
     /**
@@ -195,10 +1081,11 @@ public class CircularEncoderBuffer {
      * BufferInfo.
      * <p>
      * The caller must not modify the contents of the returned ByteBuffer.  Altering
-     * the position and limit is allowed.
+     * the position and limit is allowed.  The returned buffer may be reused by the next
+     * call, so don't hang on to it.
      */
     public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mStorage.capacity();
         int packetStart = mPacketStart[index];
         int length = mPacketLength[index];
 
@@ -209,16 +1096,33 @@ public class CircularEncoderBuffer {
 
         if (packetStart + length <= dataLen) {
             // one chunk; return full buffer to avoid copying data
-            return mDataBufferWrapper;
+            return mStorage.asByteBuffer();
         } else {
-            // two chunks
-            ByteBuffer tempBuf = ByteBuffer.allocateDirect(length);
+            // two chunks; copy into the scratch buffer
+            ByteBuffer scratch = getScratch(length);
             int firstSize = dataLen - packetStart;
-            tempBuf.put(mDataBuffer, mPacketStart[index], firstSize);
-            tempBuf.put(mDataBuffer, 0, length - firstSize);
+            mStorage.get(packetStart, scratch, firstSize);
+            mStorage.get(0, scratch, length - firstSize);
+            scratch.flip();
             info.offset = 0;
-            return tempBuf;
+            return scratch;
+        }
+    }
+
+    /**
+     * Returns the scratch buffer, cleared, with room for at least "length" bytes.
+     * <p>
+     * We grow by doubling so a run of slightly-larger sync frames doesn't cause an
+     * allocation each time.
+     */
+    private ByteBuffer getScratch(int length) {
+        if (mScratch == null || mScratch.capacity() < length) {
+            int newSize = (mScratch == null) ? length : Math.max(length, mScratch.capacity() * 2);
+            if (VERBOSE) Log.v(TAG, "growing scratch buffer to " + newSize);
+            mScratch = ByteBuffer.allocateDirect(newSize);
         }
+        mScratch.clear();
+        return mScratch;
     }
 
     /**
@@ -232,7 +1136,7 @@ public class CircularEncoderBuffer {
             return 0;
         }
 
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mStorage.capacity();
         final int metaLen = mPacketStart.length;
 
         int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
@@ -246,7 +1150,7 @@ public class CircularEncoderBuffer {
      * @return True if there is enough space to add without removing anything.
      */
     private boolean canAdd(int size) {
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mStorage.capacity();
         final int metaLen = mPacketStart.length;
 
         if (size > dataLen) {
@@ -288,6 +1192,33 @@ public class CircularEncoderBuffer {
         return true;
     }
 
+    /**
+     * Removes the tail packet, unless a pinning reader still needs it.
+     *
+     * @return False if the tail packet is pinned.
+     */
+    private boolean evictTail() {
+        long tailSeq = mTailSeq;
+        // Claim the packet before checking the pins, so a pinning reader that's being
+        // opened either sees the claim or has its pin seen; see openReader().  Readers only
+        // go by mTailSeq, which doesn't move until the eviction is certain, so backing out
+        // of a claim can't make them think they've been overrun.
+        mClaimSeq = tailSeq + 1;
+        Reader[] readers = mReaders;
+        for (int i = 0; i < readers.length; i++) {
+            Reader reader = readers[i];
+            if (reader.mPinning && reader.mPinSeq <= tailSeq) {
+                mClaimSeq = tailSeq;
+                return false;
+            }
+        }
+        removeTail();
+        mTailSeq = tailSeq + 1;         // publish before the space is reused
+        mEvictedCount++;
+        mCurBucketEvictions++;
+        return true;
+    }
+
     /**
      * Removes the tail packet.
      */
@@ -296,6 +1227,9 @@ public class CircularEncoderBuffer {
             throw new RuntimeException("Can't removeTail() in empty buffer");
         }
         final int metaLen = mPacketStart.length;
+        if (mSyncHead != mSyncTail && mSyncIndex[mSyncTail] == mMetaTail) {
+            mSyncTail = (mSyncTail + 1) % metaLen;
+        }
         mMetaTail = (mMetaTail + 1) % metaLen;
     }
 }
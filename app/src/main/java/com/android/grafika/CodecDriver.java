@@ -0,0 +1,591 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Drives a MediaCodec from events instead of polling loops.
+ * <p>
+ * Output is delivered to a {@link Callback} on the driver's thread as soon as the codec
+ * produces it: the output format, codec config buffers, data buffers, and end of stream,
+ * all through one dispatch path.  Nobody has to call dequeueOutputBuffer() with a timeout
+ * and hope the data has arrived, and nobody wakes up to find nothing there.
+ * <p>
+ * On API 23+ this uses MediaCodec's asynchronous mode, with the callbacks on our Handler.
+ * On older devices the driver's thread blocks in dequeueOutputBuffer() instead, which
+ * still returns the moment output is available.  If the driver shares a Looper with other
+ * work it can't block there, so in that case the owner calls {@link #poll()} when it expects
+ * output (only needed on older devices).
+ * <p>
+ * Input can be pushed from another thread with {@link #dequeueInputBuffer} and
+ * {@link #queueInputBuffer}, or pulled on the driver's thread through
+ * {@link Callback#onInputBufferAvailable}.  Surface-input encoders need neither.
+ * <p>
+ * Usage: create the codec, create the driver, configure the codec (the asynchronous
+ * callback must be set before configure()), create any input surface, then start() the
+ * driver rather than the codec.  release() stops the codec and recycles or releases it.
+ */
+public class CodecDriver {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    // Longest the driver thread blocks in dequeueOutputBuffer() in synchronous mode.  Output
+    // ends the wait immediately; this just bounds how long release() may take.
+    private static final long SYNC_TIMEOUT_USEC = 20000;
+
+    // With pulled input we also have to check for input buffers, so don't block as long.
+    private static final long SYNC_INPUT_TIMEOUT_USEC = 5000;
+
+    /**
+     * Receives codec events.  All methods are called on the driver's thread.
+     */
+    public static abstract class Callback {
+        /**
+         * An input buffer is available.  Fill it from {@link #getInputBuffer} and queue it
+         * with {@link #queueInputBuffer}, then return true.  Return false to leave it for
+         * {@link #dequeueInputBuffer}.  Only called if the driver was created with
+         * pulled input.
+         */
+        public boolean onInputBufferAvailable(CodecDriver driver, int index) {
+            return false;
+        }
+
+        /**
+         * The output format has changed.  For encoders this happens once, before any data,
+         * and the format has the codec-specific data.
+         */
+        public void onOutputFormatChanged(CodecDriver driver, MediaFormat format) {}
+
+        /**
+         * A codec config buffer has arrived.  The same data is normally in the output
+         * format, so the default ignores it.
+         */
+        public void onCodecConfig(CodecDriver driver, ByteBuffer buf,
+                MediaCodec.BufferInfo info) {}
+
+        /**
+         * A data buffer has arrived.  The buffer (null for Surface output) has its position
+         * and limit set from the info.  It is released when this returns.
+         *
+         * @return True to render the buffer to the output Surface, if there is one.
+         */
+        public abstract boolean onOutputBuffer(CodecDriver driver, ByteBuffer buf,
+                MediaCodec.BufferInfo info);
+
+        /**
+         * The buffer last passed to onOutputBuffer() has been released (and, if requested,
+         * sent to the Surface).
+         */
+        public void onOutputReleased(CodecDriver driver, boolean rendered) {}
+
+        /**
+         * The end-of-stream buffer has arrived.  Called after any data it carried was passed
+         * to onOutputBuffer().
+         */
+        public void onEndOfStream(CodecDriver driver) {}
+
+        /**
+         * The codec, or one of the callbacks, failed.  No further events are delivered.
+         */
+        public void onError(CodecDriver driver, Exception ex) {
+            Log.e(TAG, driver.getName() + " failed", ex);
+        }
+    }
+
+    private final MediaCodec mCodec;
+    private final String mName;
+    private final Callback mCallback;
+    private final boolean mPullInput;
+    private final boolean mAsync;
+    private final HandlerThread mThread;     // null if we're on someone else's Looper
+    private final Handler mHandler;
+
+    // Synchronous mode only.  Driver thread only.
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private ByteBuffer[] mOutputBuffers;
+    private ByteBuffer[] mInputBuffers;
+
+    private volatile boolean mRunning;
+
+    // Guarded by mLock.
+    private final Object mLock = new Object();
+    private final ArrayDeque<Integer> mFreeInputs = new ArrayDeque<Integer>();
+    private boolean mEndOfStream;
+    private Exception mError;
+
+    /**
+     * Creates a driver with a thread of its own, for a codec whose input is a Surface or is
+     * pushed with {@link #queueInputBuffer}.
+     */
+    public CodecDriver(MediaCodec codec, String name, Callback callback) {
+        this(codec, name, null, false, callback);
+    }
+
+    /**
+     * Creates a driver.  Call before configuring the codec.
+     *
+     * @param codec The codec, created but not yet configured.
+     * @param name Names the driver thread, and appears in logs.
+     * @param looper Looper to deliver events on, or null for a new thread.
+     * @param pullInput If set, input buffers are offered to
+     *     {@link Callback#onInputBufferAvailable}.
+     * @param callback Receives the events.
+     */
+    public CodecDriver(MediaCodec codec, String name, Looper looper, boolean pullInput,
+            Callback callback) {
+        mCodec = codec;
+        mName = name;
+        mCallback = callback;
+        mPullInput = pullInput;
+        if (looper == null) {
+            mThread = new HandlerThread(name);
+            mThread.start();
+            looper = mThread.getLooper();
+        } else {
+            mThread = null;
+        }
+        mHandler = new Handler(looper);
+
+        mAsync = isAsyncSupported();
+        if (mAsync) {
+            setAsyncCallback();
+        }
+    }
+
+    /**
+     * Returns true if codecs are driven by MediaCodec's asynchronous callbacks on this
+     * device, false if the driver falls back to blocking dequeues.
+     */
+    public static boolean isAsyncSupported() {
+        // setCallback(Callback, Handler) is API 23.
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /**
+     * Returns the codec.
+     */
+    public MediaCodec getCodec() {
+        return mCodec;
+    }
+
+    /**
+     * Returns the driver's name.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Starts the codec and begins delivering events.
+     */
+    public void start() {
+        mRunning = true;
+        startCodec();
+        if (!mAsync && mThread != null) {
+            mHandler.post(mSyncLoop);
+        }
+    }
+
+    /**
+     * Delivers whatever output is ready right now.  Only does anything in synchronous mode
+     * on a shared Looper; call it on that Looper's thread.
+     */
+    public void poll() {
+        if (!mAsync && mThread == null && mRunning) {
+            drainSync(0);
+        }
+    }
+
+    /**
+     * Returns the buffer for an input index.
+     */
+    public ByteBuffer getInputBuffer(int index) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return getInputBufferApi21(index);
+        }
+        if (mInputBuffers == null) {
+            mInputBuffers = mCodec.getInputBuffers();
+        }
+        return mInputBuffers[index];
+    }
+
+    /**
+     * Returns the index of a free input buffer, waiting up to the timeout for one, or -1.
+     * For pushing input from a thread other than the driver's.  Buffers the callback
+     * turned down are handed out first.
+     */
+    public int dequeueInputBuffer(long timeoutUsec) {
+        if (!mAsync) {
+            // The codec has already given us these, and won't again until they're queued.
+            Integer free = pollFreeInput();
+            return (free != null) ? free : dequeueCodecInput(timeoutUsec);
+        }
+        synchronized (mLock) {
+            long deadline = System.nanoTime() + timeoutUsec * 1000;
+            while (mFreeInputs.isEmpty() && mRunning && mError == null) {
+                long waitNanos = deadline - System.nanoTime();
+                if (timeoutUsec >= 0 && waitNanos <= 0) {
+                    break;
+                }
+                try {
+                    if (timeoutUsec < 0) {
+                        mLock.wait();
+                    } else {
+                        mLock.wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                    }
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+            Integer index = mFreeInputs.poll();
+            return (index == null) ? -1 : index;
+        }
+    }
+
+    /**
+     * Submits a filled input buffer.
+     */
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+            int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    /**
+     * Changes the bit rate of a running video encoder.  Needs API 19; returns false on
+     * older devices, where the rate is fixed at configure time.
+     */
+    public boolean setVideoBitRate(int bitRate) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return false;
+        }
+        if (VERBOSE) Log.d(TAG, mName + ": bit rate " + bitRate);
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        mCodec.setParameters(params);
+        return true;
+    }
+
+    /**
+     * Signals end of stream on a Surface-input encoder.
+     */
+    public void signalEndOfInputStream() {
+        if (VERBOSE) Log.d(TAG, mName + ": sending EOS");
+        mCodec.signalEndOfInputStream();
+    }
+
+    /**
+     * Waits for the end-of-stream buffer to be delivered.
+     *
+     * @return True if it was, false if the timeout expired first.
+     * @throws RuntimeException if the codec failed.
+     */
+    public boolean awaitEndOfStream(long timeoutMsec) {
+        synchronized (mLock) {
+            long deadline = System.currentTimeMillis() + timeoutMsec;
+            while (!mEndOfStream && mError == null) {
+                long waitMsec = deadline - System.currentTimeMillis();
+                if (waitMsec <= 0) {
+                    break;
+                }
+                try {
+                    mLock.wait(waitMsec);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+            if (mError != null) {
+                throw new RuntimeException(mName + " failed", mError);
+            }
+            return mEndOfStream;
+        }
+    }
+
+    /**
+     * Discards everything in the codec and starts over, e.g. after a seek.  Any free input
+     * buffers are forgotten, and end of stream is cleared.
+     */
+    public void flush() {
+        synchronized (mLock) {
+            mFreeInputs.clear();
+            mEndOfStream = false;
+        }
+        mCodec.flush();
+        if (mAsync) {
+            // In asynchronous mode the codec waits for start() after a flush.
+            mCodec.start();
+        }
+    }
+
+    /**
+     * Stops the codec and hands it back to the {@link CodecPool} (which releases it if it
+     * isn't one of the pool's), and shuts down the driver's thread if it has one.  Events
+     * already in flight are delivered first.
+     */
+    public void release() {
+        if (mThread != null) {
+            mThread.quitSafely();
+            try {
+                mThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, mName + ": join interrupted", ie);
+            }
+        }
+        mRunning = false;
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+        CodecPool.getInstance().recycle(mCodec);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void setAsyncCallback() {
+        mCodec.setCallback(new AsyncCallback(), mHandler);
+    }
+
+    /**
+     * Receives MediaCodec's asynchronous callbacks.  MediaCodec.Callback is API 21, and
+     * setCallback() with a Handler is API 23, so this is only created on API 23+ (see
+     * {@link #isAsyncSupported}).
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private class AsyncCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            if (!mRunning) {
+                return;
+            }
+            try {
+                if (!mPullInput || !mCallback.onInputBufferAvailable(CodecDriver.this,
+                        index)) {
+                    synchronized (mLock) {
+                        mFreeInputs.add(index);
+                        mLock.notifyAll();
+                    }
+                }
+            } catch (RuntimeException re) {
+                fail(re);
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                MediaCodec.BufferInfo info) {
+            if (!mRunning) {
+                return;
+            }
+            try {
+                dispatchOutput(index, info);
+            } catch (RuntimeException re) {
+                fail(re);
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            if (!mRunning) {
+                return;
+            }
+            try {
+                if (VERBOSE) Log.d(TAG, mName + ": output format " + format);
+                mCallback.onOutputFormatChanged(CodecDriver.this, format);
+            } catch (RuntimeException re) {
+                fail(re);
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException ce) {
+            fail(ce);
+        }
+    }
+
+    /**
+     * Synchronous-mode loop on the driver's own thread.  Reposts itself so quitSafely()
+     * can get a word in.
+     */
+    private final Runnable mSyncLoop = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRunning) {
+                return;
+            }
+            drainSync(mPullInput ? SYNC_INPUT_TIMEOUT_USEC : SYNC_TIMEOUT_USEC);
+            if (mRunning) {
+                mHandler.post(this);
+            }
+        }
+    };
+
+    /**
+     * Delivers available output in synchronous mode, waiting up to the timeout for the
+     * first buffer.
+     */
+    void drainSync(long timeoutUsec) {
+        try {
+            if (mPullInput) {
+                while (true) {
+                    // Offer anything turned down last time before asking for more.
+                    Integer free = pollFreeInput();
+                    int index = (free != null) ? free : dequeueCodecInput(0);
+                    if (index < 0) {
+                        break;
+                    }
+                    if (!mCallback.onInputBufferAvailable(this, index)) {
+                        synchronized (mLock) {
+                            mFreeInputs.add(index);
+                        }
+                        break;
+                    }
+                }
+            }
+            while (mRunning) {
+                int status = dequeueOutputBuffer(mInfo, timeoutUsec);
+                if (status == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    break;
+                } else if (status == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    mOutputBuffers = mCodec.getOutputBuffers();
+                } else if (status == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat format = getOutputFormat();
+                    if (VERBOSE) Log.d(TAG, mName + ": output format " + format);
+                    mCallback.onOutputFormatChanged(this, format);
+                } else if (status < 0) {
+                    Log.w(TAG, mName + ": unexpected result from dequeueOutputBuffer: " +
+                            status);
+                } else {
+                    dispatchOutput(status, mInfo);
+                    // Take whatever else is ready, but don't wait for more.
+                    timeoutUsec = 0;
+                }
+            }
+        } catch (RuntimeException re) {
+            fail(re);
+        }
+    }
+
+    // The rest of the driver reaches the codec through these, so tests can stand in for it.
+
+    void startCodec() {
+        mCodec.start();
+    }
+
+    int dequeueCodecInput(long timeoutUsec) {
+        return mCodec.dequeueInputBuffer(timeoutUsec);
+    }
+
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUsec) {
+        return mCodec.dequeueOutputBuffer(info, timeoutUsec);
+    }
+
+    MediaFormat getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+
+    ByteBuffer getOutputBuffer(int index) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return getOutputBufferApi21(index);
+        }
+        if (mOutputBuffers == null) {
+            mOutputBuffers = mCodec.getOutputBuffers();
+        }
+        return mOutputBuffers[index];
+    }
+
+    void releaseOutputBuffer(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private ByteBuffer getInputBufferApi21(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private ByteBuffer getOutputBufferApi21(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    /**
+     * Takes an input buffer index that was turned down by the callback, or returns null if
+     * there isn't one.
+     */
+    private Integer pollFreeInput() {
+        synchronized (mLock) {
+            return mFreeInputs.poll();
+        }
+    }
+
+    /**
+     * Hands an output buffer to the callback, releases it, and notes end of stream.
+     */
+    private void dispatchOutput(int index, MediaCodec.BufferInfo info) {
+        ByteBuffer buf = getOutputBuffer(index);
+        if (buf != null) {
+            buf.position(info.offset);
+            buf.limit(info.offset + info.size);
+        }
+
+        boolean render = false;
+        boolean data = false;
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            if (VERBOSE) Log.d(TAG, mName + ": codec config, " + info.size + " bytes");
+            mCallback.onCodecConfig(this, buf, info);
+        } else if (info.size != 0) {
+            render = mCallback.onOutputBuffer(this, buf, info);
+            data = true;
+        }
+        releaseOutputBuffer(index, render);
+        if (data) {
+            mCallback.onOutputReleased(this, render);
+        }
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            if (VERBOSE) Log.d(TAG, mName + ": end of stream");
+            synchronized (mLock) {
+                mEndOfStream = true;
+                mLock.notifyAll();
+            }
+            mCallback.onEndOfStream(this);
+        }
+    }
+
+    /**
+     * Stops event delivery and wakes anybody waiting.
+     */
+    private void fail(Exception ex) {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        synchronized (mLock) {
+            mError = ex;
+            mLock.notifyAll();
+        }
+        mCallback.onError(this, ex);
+    }
+}
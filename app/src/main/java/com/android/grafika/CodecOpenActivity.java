@@ -68,6 +68,12 @@ public class CodecOpenActivity extends Activity {
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
         Log.d(TAG, "format: " + format);
 
+        // Anything the pool has open counts against the device's limit too.  Let go of the
+        // idle ones, and add in the rest.
+        CodecPool pool = CodecPool.getInstance();
+        pool.trim();
+        int poolCount = pool.getOpenCount();
+
         MediaCodec[] codecs = new MediaCodec[MAX_OPEN];
         int i;
         for (i = 0; i < MAX_OPEN; i++) {
@@ -84,6 +90,13 @@ public class CodecOpenActivity extends Activity {
             }
         }
 
+        if (i > 0) {
+            // That's as many as this device will give us.  Keep the number, so later runs
+            // (until the next system update) don't need to measure again.
+            int limit = i + poolCount;
+            CodecRegistry.getInstance().setMeasuredInstanceLimit(limit);
+            pool.setInstanceLimit(limit);
+        }
         showCountDialog(i);
     }
 
@@ -0,0 +1,475 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Keeps MediaCodec instances around so recording and playback don't pay for creating them.
+ * <p>
+ * Creating a codec instantiates the component in mediaserver, which takes 100-300ms on many
+ * devices.  The pool creates instances ahead of time on a background thread
+ * ({@link #prewarm}), hands them out with {@link #acquire}, and on {@link #recycle} returns
+ * them to the uninitialized state and keeps them for the next user.  Idle instances are
+ * released after a while, so we don't sit on hardware other apps might want.
+ * <p>
+ * Instances come out created but not configured.  Configuring is cheap by comparison, it
+ * depends on the exact format and output Surface, and in asynchronous mode the callback
+ * has to be set first (see {@link CodecDriver}).  Entries are keyed by MIME type,
+ * direction, size and buffer mode; acquire() prefers an instance last used with the same
+ * key, and falls back to any idle one of the same type that can handle the size.
+ * <p>
+ * Codec instances are a scarce, per-device resource (see {@link CodecOpenActivity}).  The
+ * pool never has more than the instance limit, counting the ones handed out: when it's
+ * reached, idle instances are released to make room, and prewarming stops.  If every
+ * instance is in use, acquire() fails rather than go over; the limit is a hard cap.  It's
+ * the number measured on this device, if {@link CodecOpenActivity} has been run since the
+ * last system update (see {@link CodecRegistry#getMeasuredInstanceLimit}), else a guess.
+ * <p>
+ * Thread-safe.
+ */
+public class CodecPool {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    // Used when nobody has measured it.  The platform's per-codec figure can lower it.
+    private static final int DEFAULT_INSTANCE_LIMIT = 4;
+
+    // Idle instances are released after this long.
+    private static final long IDLE_TIMEOUT_MSEC = 30000;
+
+    /**
+     * Identifies the kind of codec wanted.
+     */
+    public static final class Key {
+        final String mMime;
+        final boolean mEncoder;
+        final int mWidth;
+        final int mHeight;
+        final boolean mSurface;
+
+        /**
+         * @param mime MIME type, e.g. "video/avc".
+         * @param encoder True for an encoder, false for a decoder.
+         * @param width Width of the video, or 0 for audio.
+         * @param height Height of the video, or 0 for audio.
+         * @param surface True if the codec's input (encoder) or output (decoder) is a Surface.
+         */
+        public Key(String mime, boolean encoder, int width, int height, boolean surface) {
+            mMime = mime;
+            mEncoder = encoder;
+            mWidth = width;
+            mHeight = height;
+            mSurface = surface;
+        }
+
+        boolean isSameType(Key other) {
+            return mMime.equals(other.mMime) && mEncoder == other.mEncoder;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return isSameType(other) && mWidth == other.mWidth && mHeight == other.mHeight &&
+                    mSurface == other.mSurface;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = mMime.hashCode();
+            hash = hash * 31 + (mEncoder ? 1 : 0);
+            hash = hash * 31 + mWidth;
+            hash = hash * 31 + mHeight;
+            return hash * 31 + (mSurface ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return (mEncoder ? "enc " : "dec ") + mMime + " " + mWidth + "x" + mHeight +
+                    (mSurface ? " surface" : " buffers");
+        }
+    }
+
+    private static class Idle {
+        Key mKey;
+        MediaCodec mCodec;
+        CodecRegistry.Entry mEntry;     // null if the registry doesn't know the codec
+        long mSinceMsec;
+    }
+
+    private static CodecPool sInstance;
+
+    private final Object mLock = new Object();
+    private final ArrayList<Idle> mIdle = new ArrayList<Idle>();
+    private final IdentityHashMap<MediaCodec, Key> mInUse = new IdentityHashMap<MediaCodec, Key>();
+    private int mCreating;                  // prewarm creations in progress
+    private int mAcquiring;                 // acquire() creations in progress
+    private int mInstanceLimit;             // 0 until setInstanceLimit()
+    private int mHits;
+    private int mMisses;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    /**
+     * Returns the process-wide pool.
+     */
+    public static synchronized CodecPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new CodecPool();
+        }
+        return sInstance;
+    }
+
+    private CodecPool() {}
+
+    /**
+     * Sets the maximum number of instances, e.g. from a measurement like the one
+     * {@link CodecOpenActivity} makes.  Idle instances over the limit are released.
+     */
+    public void setInstanceLimit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+        ArrayList<MediaCodec> excess = new ArrayList<MediaCodec>();
+        synchronized (mLock) {
+            mInstanceLimit = limit;
+            while (!mIdle.isEmpty() && countLocked() > limit) {
+                excess.add(mIdle.remove(0).mCodec);
+            }
+        }
+        releaseAll(excess);
+    }
+
+    /**
+     * Returns the current instance limit.
+     */
+    public int getInstanceLimit() {
+        synchronized (mLock) {
+            return getInstanceLimitLocked();
+        }
+    }
+
+    /**
+     * Returns the number of instances the pool has open: idle, handed out, and being
+     * created.
+     */
+    public int getOpenCount() {
+        synchronized (mLock) {
+            return countLocked() + mCreating + mAcquiring;
+        }
+    }
+
+    /**
+     * Creates up to count instances for the key on a background thread, so a later
+     * acquire() doesn't have to wait.  Instances already idle for the key count toward
+     * the total.  Stops at the instance limit.
+     */
+    public void prewarm(final Key key, final int count) {
+        getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    synchronized (mLock) {
+                        if (countIdleLocked(key) + mCreating >= count) {
+                            return;
+                        }
+                        if (countLocked() + mCreating + mAcquiring >= getLimitLocked(key)) {
+                            if (VERBOSE) Log.d(TAG, "CodecPool: at limit, not prewarming");
+                            return;
+                        }
+                        mCreating++;
+                    }
+                    MediaCodec codec = null;
+                    long startNanos = System.nanoTime();
+                    try {
+                        codec = create(key);
+                    } catch (IOException ioe) {
+                        Log.w(TAG, "CodecPool: unable to prewarm " + key, ioe);
+                    } catch (RuntimeException re) {
+                        Log.w(TAG, "CodecPool: unable to prewarm " + key, re);
+                    }
+                    synchronized (mLock) {
+                        mCreating--;
+                        mLock.notifyAll();      // acquire() may be waiting for this
+                        if (codec == null) {
+                            return;
+                        }
+                        addIdleLocked(key, codec);
+                    }
+                    Log.d(TAG, "CodecPool: prewarmed " + key + " in " +
+                            (System.nanoTime() - startNanos) / 1000000 + "ms");
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a codec for the key, created but not configured.  Uses an idle instance if
+     * there is one, otherwise creates a new one on the calling thread, first releasing
+     * idle instances of other kinds if we're at the limit.  Give it back with
+     * {@link #recycle}.
+     *
+     * @throws IOException if the codec can't be created, or if every instance the limit
+     *     allows is in use.
+     */
+    public MediaCodec acquire(Key key) throws IOException {
+        ArrayList<MediaCodec> evicted = new ArrayList<MediaCodec>();
+        MediaCodec reused = null;
+        int fullAt = 0;
+        synchronized (mLock) {
+            while (true) {
+                Idle found = findIdleLocked(key);
+                if (found != null) {
+                    mIdle.remove(found);
+                    mInUse.put(found.mCodec, key);
+                    mHits++;
+                    if (VERBOSE) {
+                        Log.d(TAG, "CodecPool: reusing " + found.mKey + " for " + key);
+                    }
+                    reused = found.mCodec;
+                    break;
+                }
+                int limit = getLimitLocked(key);
+                while (!mIdle.isEmpty() && countLocked() + mCreating + mAcquiring >= limit) {
+                    evicted.add(mIdle.remove(0).mCodec);
+                }
+                if (countLocked() + mCreating + mAcquiring < limit) {
+                    mMisses++;
+                    mAcquiring++;       // hold our place while we create it
+                    break;
+                }
+                if (mCreating == 0) {
+                    fullAt = limit;
+                    break;
+                }
+                // A prewarm is about to finish, with an instance we can use or evict.
+                try {
+                    mLock.wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    fullAt = limit;
+                    break;
+                }
+            }
+        }
+        releaseAll(evicted);
+        if (reused != null) {
+            return reused;
+        }
+        if (fullAt != 0) {
+            throw new IOException("CodecPool: all " + fullAt + " instances in use, can't " +
+                    "create " + key);
+        }
+
+        MediaCodec codec = null;
+        try {
+            codec = create(key);
+        } finally {
+            synchronized (mLock) {
+                mAcquiring--;
+                if (codec != null) {
+                    mInUse.put(codec, key);
+                }
+            }
+        }
+        return codec;
+    }
+
+    /**
+     * Takes back a codec in any state, stops it, and keeps it for reuse.  It's released
+     * instead if it didn't come from acquire(), can't be returned to the uninitialized
+     * state, or the pool is over its limit.
+     */
+    public void recycle(MediaCodec codec) {
+        Key key;
+        synchronized (mLock) {
+            key = mInUse.remove(codec);
+        }
+        boolean reusable = (key != null);
+        try {
+            if (reusable && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                // Also clears the callback and any error state.
+                codec.reset();
+            } else {
+                codec.stop();
+            }
+        } catch (RuntimeException re) {
+            Log.w(TAG, "CodecPool: unable to reset codec, releasing", re);
+            reusable = false;
+        }
+        if (reusable) {
+            synchronized (mLock) {
+                if (countLocked() < getInstanceLimitLocked()) {
+                    addIdleLocked(key, codec);
+                    return;
+                }
+            }
+        }
+        codec.release();
+    }
+
+    /**
+     * Releases all idle instances.
+     */
+    public void trim() {
+        ArrayList<MediaCodec> idle = new ArrayList<MediaCodec>();
+        synchronized (mLock) {
+            for (Idle entry : mIdle) {
+                idle.add(entry.mCodec);
+            }
+            mIdle.clear();
+        }
+        releaseAll(idle);
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "CodecPool: idle=" + mIdle.size() + " inUse=" + mInUse.size() +
+                    " limit=" + getInstanceLimitLocked() + " hits=" + mHits + " misses=" +
+                    mMisses;
+        }
+    }
+
+    private static MediaCodec create(Key key) throws IOException {
+        return CodecRegistry.getInstance().createCodec(key.mMime, key.mEncoder, key.mWidth,
+                key.mHeight);
+    }
+
+    /**
+     * Returns the overall limit: the one we were given, else the one measured on this
+     * device, else the default.
+     */
+    private int getInstanceLimitLocked() {
+        if (mInstanceLimit > 0) {
+            return mInstanceLimit;
+        }
+        int measured = CodecRegistry.getInstance().getMeasuredInstanceLimit();
+        return (measured > 0) ? measured : DEFAULT_INSTANCE_LIMIT;
+    }
+
+    /**
+     * Returns the limit to apply for a key: ours, or what the codec itself reports if that's
+     * lower.
+     */
+    private int getLimitLocked(Key key) {
+        int limit = getInstanceLimitLocked();
+        CodecRegistry.Entry entry = CodecRegistry.getInstance().find(key.mMime, key.mEncoder);
+        if (entry != null && entry.getMaxInstances() > 0) {
+            limit = Math.min(limit, entry.getMaxInstances());
+        }
+        return limit;
+    }
+
+    private int countLocked() {
+        return mIdle.size() + mInUse.size();
+    }
+
+    /**
+     * Returns an idle instance for the key: one last used with the same key if there is
+     * one, else one of the same type that can handle the size, else null.
+     */
+    private Idle findIdleLocked(Key key) {
+        Idle found = null;
+        for (Idle idle : mIdle) {
+            if (idle.mKey.equals(key)) {
+                return idle;
+            }
+            if (found == null && idle.mKey.isSameType(key) &&
+                    (idle.mEntry == null || idle.mEntry.isSizeSupported(key.mWidth,
+                            key.mHeight))) {
+                found = idle;
+            }
+        }
+        return found;
+    }
+
+    private int countIdleLocked(Key key) {
+        int count = 0;
+        for (Idle idle : mIdle) {
+            if (idle.mKey.equals(key)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void addIdleLocked(Key key, MediaCodec codec) {
+        Idle idle = new Idle();
+        idle.mKey = key;
+        idle.mCodec = codec;
+        idle.mEntry = CodecRegistry.getInstance().findByName(codec.getName(), key.mMime);
+        idle.mSinceMsec = System.currentTimeMillis();
+        mIdle.add(idle);
+        getHandler().postDelayed(mExpireIdle, IDLE_TIMEOUT_MSEC);
+    }
+
+    /**
+     * Releases instances that have been idle too long.
+     */
+    private final Runnable mExpireIdle = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<MediaCodec> expired = new ArrayList<MediaCodec>();
+            long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT_MSEC;
+            synchronized (mLock) {
+                for (int i = mIdle.size() - 1; i >= 0; i--) {
+                    if (mIdle.get(i).mSinceMsec <= cutoff) {
+                        expired.add(mIdle.remove(i).mCodec);
+                    }
+                }
+            }
+            if (!expired.isEmpty()) {
+                if (VERBOSE) Log.d(TAG, "CodecPool: releasing " + expired.size() + " idle");
+                releaseAll(expired);
+            }
+        }
+    };
+
+    private static void releaseAll(ArrayList<MediaCodec> codecs) {
+        for (MediaCodec codec : codecs) {
+            try {
+                codec.release();
+            } catch (RuntimeException re) {
+                Log.w(TAG, "CodecPool: release failed", re);
+            }
+        }
+    }
+
+    private Handler getHandler() {
+        synchronized (mLock) {
+            if (mHandler == null) {
+                mThread = new HandlerThread("CodecPool");
+                mThread.start();
+                mHandler = new Handler(mThread.getLooper());
+            }
+            return mHandler;
+        }
+    }
+}
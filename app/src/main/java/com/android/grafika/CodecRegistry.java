@@ -0,0 +1,587 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the device's codecs can do, gathered once and kept on disk.
+ * <p>
+ * Walking MediaCodecList and asking every codec for its capabilities takes a noticeable
+ * amount of time (each query may go to mediaserver), and the answers don't change until
+ * the system is updated.  We scan once, save the results in the app's files directory
+ * tagged with the build fingerprint, and load them on later runs.  An OTA changes the
+ * fingerprint, which triggers a rescan.
+ * <p>
+ * Codecs are picked from here by name, in MediaCodecList order, so the same request always
+ * gets the same codec.
+ * <p>
+ * The number of codec instances the device allows at once isn't reported reliably, so
+ * {@link CodecOpenActivity} measures it.  The result is kept in a second file, also tagged
+ * with the fingerprint, and loaded along with the cache.
+ * <p>
+ * Call {@link #initialize(Context)} early to enable the disk cache and load it in the
+ * background.  Without it, the first {@link #getInstance()} scans (and doesn't save).
+ */
+public class CodecRegistry {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final String CACHE_FILE = "codec-registry.dat";
+    private static final int CACHE_VERSION = 3;
+    private static final String LIMIT_FILE = "codec-instance-limit.dat";
+
+    /**
+     * Capabilities of one codec for one MIME type.  Limits that the platform didn't report
+     * (older releases) are zero.
+     */
+    public static class Entry {
+        String mName;
+        String mMime;
+        boolean mEncoder;
+        int[] mColorFormats;
+        int[] mProfiles;            // parallel to mLevels
+        int[] mLevels;
+        int mMaxInstances;
+        int mMaxWidth;
+        int mMaxHeight;
+        int mWidthAlignment;
+        int mHeightAlignment;
+        int mMaxFrameRate;
+        int mMaxBitRate;
+        int mBitrateModes;          // bit per BITRATE_MODE_* value; 0 if unknown
+        boolean mIntraRefresh;
+
+        /** Returns the codec's name, for MediaCodec.createByCodecName(). */
+        public String getName() {
+            return mName;
+        }
+
+        /** Returns the MIME type. */
+        public String getMime() {
+            return mMime;
+        }
+
+        /** Returns true for an encoder. */
+        public boolean isEncoder() {
+            return mEncoder;
+        }
+
+        /** Returns the number of concurrent instances supported, or 0 if unknown. */
+        public int getMaxInstances() {
+            return mMaxInstances;
+        }
+
+        /** Returns the highest frame rate supported, or 0 if unknown. */
+        public int getMaxFrameRate() {
+            return mMaxFrameRate;
+        }
+
+        /** Returns the highest bit rate supported, or 0 if unknown. */
+        public int getMaxBitRate() {
+            return mMaxBitRate;
+        }
+
+        /**
+         * Returns true if the encoder supports the bit rate mode (one of the
+         * EncoderCapabilities BITRATE_MODE_* values).  Always false for decoders, and on
+         * devices older than API 21, which can't select a mode.
+         */
+        public boolean isBitrateModeSupported(int mode) {
+            return (mBitrateModes & (1 << mode)) != 0;
+        }
+
+        /**
+         * Returns true if the encoder can refresh the picture gradually instead of with
+         * sync frames.  Needs API 24.
+         */
+        public boolean isIntraRefreshSupported() {
+            return mIntraRefresh;
+        }
+
+        /** Returns true if the codec accepts the color format. */
+        public boolean hasColorFormat(int colorFormat) {
+            for (int format : mColorFormats) {
+                if (format == colorFormat) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the highest level supported for the profile, or -1 if the profile isn't
+         * supported.
+         */
+        public int getMaxLevel(int profile) {
+            int maxLevel = -1;
+            for (int i = 0; i < mProfiles.length; i++) {
+                if (mProfiles[i] == profile) {
+                    maxLevel = Math.max(maxLevel, mLevels[i]);
+                }
+            }
+            return maxLevel;
+        }
+
+        /**
+         * Returns true if the codec can handle video of this size.  Sizes within the
+         * limits but not on the alignment are rejected.  Answers true if the limits aren't
+         * known.
+         */
+        public boolean isSizeSupported(int width, int height) {
+            if (mMaxWidth != 0 && (width > mMaxWidth || height > mMaxHeight)) {
+                return false;
+            }
+            if (mWidthAlignment > 1 && width % mWidthAlignment != 0) {
+                return false;
+            }
+            if (mHeightAlignment > 1 && height % mHeightAlignment != 0) {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return (mEncoder ? "enc " : "dec ") + mName + " " + mMime + " max=" + mMaxWidth +
+                    "x" + mMaxHeight + "@" + mMaxFrameRate + " instances=" + mMaxInstances;
+        }
+    }
+
+    private static final Object sLock = new Object();
+    private static CodecRegistry sInstance;
+    private static File sCacheFile;
+
+    private final List<Entry> mEntries;
+    private volatile int mMeasuredInstanceLimit;
+
+    /**
+     * Enables the disk cache, and loads (or builds) the registry on a background thread so
+     * it's ready by the time anybody needs a codec.
+     */
+    public static void initialize(Context context) {
+        synchronized (sLock) {
+            if (sCacheFile != null) {
+                return;
+            }
+            sCacheFile = new File(context.getFilesDir(), CACHE_FILE);
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                getInstance();
+            }
+        }, "CodecRegistry").start();
+    }
+
+    /**
+     * Returns the registry, loading or building it if necessary.  May take a while the
+     * first time; see {@link #initialize}.
+     */
+    public static CodecRegistry getInstance() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                long startNanos = System.nanoTime();
+                List<Entry> entries = null;
+                if (sCacheFile != null) {
+                    entries = load(sCacheFile);
+                }
+                boolean loaded = (entries != null);
+                if (!loaded) {
+                    entries = scan();
+                    if (sCacheFile != null) {
+                        save(sCacheFile, entries);
+                    }
+                }
+                sInstance = new CodecRegistry(entries);
+                if (sCacheFile != null) {
+                    sInstance.mMeasuredInstanceLimit = loadInstanceLimit(getLimitFile());
+                }
+                Log.d(TAG, "CodecRegistry: " + entries.size() + " entries " +
+                        (loaded ? "loaded" : "scanned") + " in " +
+                        (System.nanoTime() - startNanos) / 1000000 + "ms");
+            }
+            return sInstance;
+        }
+    }
+
+    private CodecRegistry(List<Entry> entries) {
+        mEntries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Returns the number of codec instances the device was measured to allow at once, or 0
+     * if it hasn't been measured since the last system update.
+     */
+    public int getMeasuredInstanceLimit() {
+        return mMeasuredInstanceLimit;
+    }
+
+    /**
+     * Records a measured instance limit, and saves it for later runs if the disk cache is
+     * enabled.
+     */
+    public void setMeasuredInstanceLimit(int limit) {
+        mMeasuredInstanceLimit = limit;
+        File file;
+        synchronized (sLock) {
+            file = (sCacheFile != null) ? getLimitFile() : null;
+        }
+        if (file != null) {
+            saveInstanceLimit(file, limit);
+        }
+    }
+
+    /**
+     * Returns all entries, in MediaCodecList order.
+     */
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Returns the first codec for the MIME type, or null if there isn't one.
+     */
+    public Entry find(String mime, boolean encoder) {
+        for (Entry entry : mEntries) {
+            if (entry.mEncoder == encoder && entry.mMime.equalsIgnoreCase(mime)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first codec for the MIME type that handles video of the given size, or
+     * null if there isn't one.
+     */
+    public Entry find(String mime, boolean encoder, int width, int height) {
+        for (Entry entry : mEntries) {
+            if (entry.mEncoder == encoder && entry.mMime.equalsIgnoreCase(mime) &&
+                    entry.isSizeSupported(width, height)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the entry for a codec by component name (e.g. from MediaCodec.getName()), or
+     * null if it's unknown.
+     */
+    public Entry findByName(String name, String mime) {
+        for (Entry entry : mEntries) {
+            if (entry.mName.equals(name) && entry.mMime.equalsIgnoreCase(mime)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates the codec {@link #find} picks, falling back on MediaCodec's own choice if the
+     * registry doesn't know the type.
+     */
+    public MediaCodec createCodec(String mime, boolean encoder) throws IOException {
+        return createCodec(mime, encoder, 0, 0);
+    }
+
+    /**
+     * Creates the first codec that handles video of the given size, or the first codec for
+     * the type if none claims to.  Pass 0 for the size if it doesn't matter.
+     */
+    public MediaCodec createCodec(String mime, boolean encoder, int width, int height)
+            throws IOException {
+        Entry entry = find(mime, encoder, width, height);
+        if (entry == null) {
+            entry = find(mime, encoder);
+        }
+        if (entry != null) {
+            if (VERBOSE) Log.d(TAG, "CodecRegistry: creating " + entry.mName);
+            return MediaCodec.createByCodecName(entry.mName);
+        }
+        Log.w(TAG, "CodecRegistry: no " + (encoder ? "encoder" : "decoder") + " for " + mime);
+        return encoder ? MediaCodec.createEncoderByType(mime) :
+                MediaCodec.createDecoderByType(mime);
+    }
+
+    /**
+     * Queries every codec on the device.
+     */
+    private static List<Entry> scan() {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        int numCodecs = MediaCodecList.getCodecCount();
+        for (int i = 0; i < numCodecs; i++) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            for (String mime : info.getSupportedTypes()) {
+                try {
+                    entries.add(describe(info, mime));
+                } catch (RuntimeException re) {
+                    // Some codecs throw for types they claim to support.
+                    Log.w(TAG, "CodecRegistry: skipping " + info.getName() + " " + mime, re);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static Entry describe(MediaCodecInfo info, String mime) {
+        MediaCodecInfo.CodecCapabilities caps = info.getCapabilitiesForType(mime);
+        Entry entry = new Entry();
+        entry.mName = info.getName();
+        entry.mMime = mime;
+        entry.mEncoder = info.isEncoder();
+        entry.mColorFormats = (caps.colorFormats != null) ? caps.colorFormats : new int[0];
+        MediaCodecInfo.CodecProfileLevel[] profileLevels =
+                (caps.profileLevels != null) ? caps.profileLevels :
+                new MediaCodecInfo.CodecProfileLevel[0];
+        entry.mProfiles = new int[profileLevels.length];
+        entry.mLevels = new int[profileLevels.length];
+        for (int i = 0; i < profileLevels.length; i++) {
+            entry.mProfiles[i] = profileLevels[i].profile;
+            entry.mLevels[i] = profileLevels[i].level;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            describeCapabilities(caps, entry);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            entry.mMaxInstances = caps.getMaxSupportedInstances();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && entry.mEncoder) {
+            entry.mIntraRefresh = caps.isFeatureSupported(
+                    MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh);
+        }
+        return entry;
+    }
+
+    /**
+     * Fills in the size, rate, and rate control limits, which MediaCodecInfo only reports
+     * from API 21.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void describeCapabilities(MediaCodecInfo.CodecCapabilities caps,
+            Entry entry) {
+        MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+        if (video != null) {
+            entry.mMaxWidth = upper(video.getSupportedWidths());
+            entry.mMaxHeight = upper(video.getSupportedHeights());
+            entry.mWidthAlignment = video.getWidthAlignment();
+            entry.mHeightAlignment = video.getHeightAlignment();
+            entry.mMaxFrameRate = upper(video.getSupportedFrameRates());
+            entry.mMaxBitRate = upper(video.getBitrateRange());
+        }
+        MediaCodecInfo.EncoderCapabilities encoder = caps.getEncoderCapabilities();
+        if (encoder != null) {
+            int[] modes = {
+                    MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ,
+                    MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR,
+                    MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR
+            };
+            for (int mode : modes) {
+                if (encoder.isBitrateModeSupported(mode)) {
+                    entry.mBitrateModes |= 1 << mode;
+                }
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static int upper(Range<Integer> range) {
+        return (range == null) ? 0 : range.getUpper();
+    }
+
+    /**
+     * Reads the cache file.  Returns null if it's missing, unreadable, or from a different
+     * build.
+     */
+    private static List<Entry> load(File file) {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException fnfe) {
+            return null;
+        }
+        try {
+            if (in.readInt() != CACHE_VERSION || !Build.FINGERPRINT.equals(in.readUTF())) {
+                Log.d(TAG, "CodecRegistry: cache is stale");
+                return null;
+            }
+            int count = in.readInt();
+            ArrayList<Entry> entries = new ArrayList<Entry>(count);
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry();
+                entry.mName = in.readUTF();
+                entry.mMime = in.readUTF();
+                entry.mEncoder = in.readBoolean();
+                entry.mColorFormats = readInts(in);
+                entry.mProfiles = readInts(in);
+                entry.mLevels = readInts(in);
+                entry.mMaxInstances = in.readInt();
+                entry.mMaxWidth = in.readInt();
+                entry.mMaxHeight = in.readInt();
+                entry.mWidthAlignment = in.readInt();
+                entry.mHeightAlignment = in.readInt();
+                entry.mMaxFrameRate = in.readInt();
+                entry.mMaxBitRate = in.readInt();
+                entry.mBitrateModes = in.readInt();
+                entry.mIntraRefresh = in.readBoolean();
+                entries.add(entry);
+            }
+            return entries;
+        } catch (IOException ioe) {
+            Log.w(TAG, "CodecRegistry: unable to read " + file, ioe);
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ioe) {
+                Log.w(TAG, "failed closing " + file, ioe);
+            }
+        }
+    }
+
+    /**
+     * Writes the cache file.  Failure just means we scan again next time.
+     */
+    private static void save(File file, List<Entry> entries) {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(CACHE_VERSION);
+                out.writeUTF(Build.FINGERPRINT);
+                out.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    out.writeUTF(entry.mName);
+                    out.writeUTF(entry.mMime);
+                    out.writeBoolean(entry.mEncoder);
+                    writeInts(out, entry.mColorFormats);
+                    writeInts(out, entry.mProfiles);
+                    writeInts(out, entry.mLevels);
+                    out.writeInt(entry.mMaxInstances);
+                    out.writeInt(entry.mMaxWidth);
+                    out.writeInt(entry.mMaxHeight);
+                    out.writeInt(entry.mWidthAlignment);
+                    out.writeInt(entry.mHeightAlignment);
+                    out.writeInt(entry.mMaxFrameRate);
+                    out.writeInt(entry.mMaxBitRate);
+                    out.writeInt(entry.mBitrateModes);
+                    out.writeBoolean(entry.mIntraRefresh);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("unable to rename " + tmpFile);
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, "CodecRegistry: unable to write " + file, ioe);
+            tmpFile.delete();
+        }
+    }
+
+    private static File getLimitFile() {
+        return new File(sCacheFile.getParentFile(), LIMIT_FILE);
+    }
+
+    /**
+     * Reads the measured instance limit.  Returns 0 if there isn't one for this build.
+     */
+    private static int loadInstanceLimit(File file) {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException fnfe) {
+            return 0;
+        }
+        try {
+            if (!Build.FINGERPRINT.equals(in.readUTF())) {
+                Log.d(TAG, "CodecRegistry: instance limit is stale");
+                return 0;
+            }
+            return in.readInt();
+        } catch (IOException ioe) {
+            Log.w(TAG, "CodecRegistry: unable to read " + file, ioe);
+            return 0;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ioe) {
+                Log.w(TAG, "failed closing " + file, ioe);
+            }
+        }
+    }
+
+    /**
+     * Writes the measured instance limit.
+     */
+    private static void saveInstanceLimit(File file, int limit) {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeUTF(Build.FINGERPRINT);
+                out.writeInt(limit);
+            } finally {
+                out.close();
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("unable to rename " + tmpFile);
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, "CodecRegistry: unable to write " + file, ioe);
+            tmpFile.delete();
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+}
@@ -39,6 +39,7 @@ import com.android.grafika.gles.EglCore;
 import com.android.grafika.gles.FullFrameRect;
 import com.android.grafika.gles.Texture2dProgram;
 import com.android.grafika.gles.WindowSurface;
+import com.android.grafika.muxer.Muxer;
 
 import java.io.File;
 import java.io.IOException;
@@ -59,10 +60,13 @@ import java.lang.ref.WeakReference;
 public class ContinuousCaptureActivity extends Activity implements SurfaceHolder.Callback,
         SurfaceTexture.OnFrameAvailableListener {
     private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
 
     private static final int VIDEO_WIDTH = 1280;  // dimensions for 720p video
     private static final int VIDEO_HEIGHT = 720;
     private static final int DESIRED_PREVIEW_FPS = 15;
+    // Long GOP; the encoder asks for a sync frame whenever a clip or the buffer needs one.
+    private static final RecordingConfig RECORDING_CONFIG = CircularEncoder.DEFAULT_CONFIG;
 
     private EglCore mEglCore;
     private WindowSurface mDisplaySurface;
@@ -79,6 +83,7 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
     private CircularEncoder mCircEncoder;
     private WindowSurface mEncoderSurface;
     private boolean mFileSaveInProgress;
+    private boolean mAudioPermissionRequested;
 
     private MainHandler mHandler;
     private float mSecondsOfVideo;
@@ -94,6 +99,7 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         public static final int MSG_FRAME_AVAILABLE = 1;
         public static final int MSG_FILE_SAVE_COMPLETE = 2;
         public static final int MSG_BUFFER_STATUS = 3;
+        public static final int MSG_FILE_SAVE_PROGRESS = 4;
 
         private WeakReference<ContinuousCaptureActivity> mWeakActivity;
 
@@ -101,7 +107,7 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
             mWeakActivity = new WeakReference<ContinuousCaptureActivity>(activity);
         }
 
-        // CircularEncoder.Callback, called on encoder thread
+        // CircularEncoder.Callback, called on file save thread or muxer thread
         @Override
         public void fileSaveComplete(int status) {
             sendMessage(obtainMessage(MSG_FILE_SAVE_COMPLETE, status, 0, null));
@@ -114,6 +120,29 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
                     (int) (totalTimeMsec >> 32), (int) totalTimeMsec));
         }
 
+        // CircularEncoder.Callback, called on file save thread
+        @Override
+        public void fileSaveProgress(int packetsWritten, int packetsTotal) {
+            sendMessage(obtainMessage(MSG_FILE_SAVE_PROGRESS, packetsWritten, packetsTotal));
+        }
+
+        // CircularEncoder.Callback, called on file save thread or muxer thread
+        @Override
+        public void fileSaveLatency(long snapshotUsec, long totalMsec) {
+            Log.d(TAG, "file save: snapshot took " + snapshotUsec + "us, total " +
+                    totalMsec + "ms");
+        }
+
+        // CircularEncoder.Callback, called on encoder thread
+        @Override
+        public void bufferSizing(int capacityBytes, long observedBitRate,
+                float evictionsPerSec) {
+            if (VERBOSE) {
+                Log.d(TAG, "buffer: capacity=" + capacityBytes + " observed=" +
+                        observedBitRate + "bps evictions=" + evictionsPerSec + "/s");
+            }
+        }
+
 
         @Override
         public void handleMessage(Message msg) {
@@ -149,6 +178,10 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
                     activity.fileSaveComplete(msg.arg1);
                     break;
                 }
+                case MSG_FILE_SAVE_PROGRESS: {
+                    activity.updateSaveProgress(msg.arg1, msg.arg2);
+                    break;
+                }
                 case MSG_BUFFER_STATUS: {
                     long duration = (((long) msg.arg1) << 32) |
                                     (((long) msg.arg2) & 0xffffffffL);
@@ -184,7 +217,14 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
 
         if (!PermissionHelper.hasCameraPermission(this)) {
             PermissionHelper.requestCameraPermission(this, false);
+        } else if (!PermissionHelper.hasRecordAudioPermission(this) &&
+                !mAudioPermissionRequested) {
+            // Clips can be saved without audio, so only ask once.
+            mAudioPermissionRequested = true;
+            PermissionHelper.requestRecordAudioPermission(this);
         } else  {
+            // Get the encoder created while the camera opens.
+            CircularEncoder.prewarm(RECORDING_CONFIG, VIDEO_WIDTH, VIDEO_HEIGHT);
             if (mCamera == null) {
                 // Ideally, the frames from the camera are at the same resolution as the input to
                 // the video encoder so we don't have to scale.
@@ -362,6 +402,25 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         toast.show();
     }
 
+    /**
+     * Updates the "saving" indicator with the fraction of the file written so far.
+     */
+    private void updateSaveProgress(int packetsWritten, int packetsTotal) {
+        if (!mFileSaveInProgress) {
+            return;
+        }
+        TextView tv = (TextView) findViewById(R.id.recording_text);
+        String str;
+        if (packetsTotal < 0) {
+            // still recording the post-trigger part of an event clip
+            str = getString(R.string.nowSaving);
+        } else {
+            str = getString(R.string.nowSavingProgress,
+                    packetsWritten * 100 / Math.max(packetsTotal, 1));
+        }
+        tv.setText(str);
+    }
+
     /**
      * Updates the buffer status UI.
      */
@@ -410,8 +469,20 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         // TODO: adjust video width/height based on what we're getting from the camera preview?
         //       (can we guarantee that camera preview size is compatible with AVC video encoder?)
         try {
+            // Keep the microphone audio in the buffer too.  If we aren't allowed to record
+            // audio the clips are simply saved without it.
+            boolean recordAudio = PermissionHelper.hasRecordAudioPermission(this);
             mCircEncoder = new CircularEncoder(VIDEO_WIDTH, VIDEO_HEIGHT, 6000000,
-                    mCameraPreviewThousandFps / 1000, 7, mHandler);
+                    mCameraPreviewThousandFps / 1000, 7, RECORDING_CONFIG,
+                    CircularBufferStorage.HEAP, recordAudio, mHandler);
+            // Let the buffer track the rate the encoder actually delivers, between a
+            // quarter and four times the nominal 7 seconds at 6Mbps.
+            mCircEncoder.setCapacityBounds(6000000 / 8 * 7 / 4, 6000000 / 8 * 7 * 4);
+            // If the encoder runs so hot that even the upper bound won't hold 7 seconds,
+            // turn the bit rate down rather than lose span.
+            mCircEncoder.setBitRateBounds(6000000 / 4, 6000000);
+            // Saved clips get the index moved to the front, for sharing.
+            mCircEncoder.setMuxerFactory(Muxer.faststart(Muxer.MEDIA_MUXER));
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
@@ -445,7 +516,7 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
                     "Camera permission is needed to run this application", Toast.LENGTH_LONG).show();
             PermissionHelper.launchPermissionSettings(this);
             finish();
-        } else {
+        } else if (mCamera == null) {
             openCamera(VIDEO_WIDTH, VIDEO_HEIGHT, DESIRED_PREVIEW_FPS);
         }
     }
@@ -482,16 +553,17 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         drawExtra(mFrameNum, viewWidth, viewHeight);
         mDisplaySurface.swapBuffers();
 
-        // Send it to the video encoder.
-        if (!mFileSaveInProgress) {
-            mEncoderSurface.makeCurrent();
-            GLES20.glViewport(0, 0, VIDEO_WIDTH, VIDEO_HEIGHT);
-            mFullFrameBlit.drawFrame(mTextureId, mTmpMatrix);
-            drawExtra(mFrameNum, VIDEO_WIDTH, VIDEO_HEIGHT);
-            mCircEncoder.frameAvailableSoon();
-            mEncoderSurface.setPresentationTime(mCameraTexture.getTimestamp());
-            mEncoderSurface.swapBuffers();
-        }
+        // Send it to the video encoder.  File saves happen on their own thread, so we keep
+        // feeding the encoder while one is in progress.
+        mEncoderSurface.makeCurrent();
+        GLES20.glViewport(0, 0, VIDEO_WIDTH, VIDEO_HEIGHT);
+        mFullFrameBlit.drawFrame(mTextureId, mTmpMatrix);
+        drawExtra(mFrameNum, VIDEO_WIDTH, VIDEO_HEIGHT);
+        mCircEncoder.frameAvailableSoon();
+        long timestampNanos = mCameraTexture.getTimestamp();
+        mEncoderSurface.setPresentationTime(timestampNanos);
+        mEncoderSurface.swapBuffers();
+        mCircEncoder.frameSubmitted(timestampNanos);
 
         mFrameNum++;
     }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+/**
+ * Measures how long a surface-input encoder takes, from the moment a frame is submitted
+ * (eglSwapBuffers() on the encoder's input surface) to the moment its encoded output comes
+ * back.
+ * <p>
+ * Frames are matched by presentation time: the time stamp set with
+ * eglPresentationTimeANDROID() comes out of the encoder as the output's presentationTimeUs.
+ * Frames the encoder drops are forgotten once newer ones have taken their slot.
+ * <p>
+ * Thread-safe; frames are normally submitted on the render thread and come out on the
+ * codec's driver thread.
+ */
+public class EncoderLatencyMeter {
+    // Frames in flight we can keep track of.  Encoders don't hold more than a few.
+    private static final int MAX_PENDING = 32;
+
+    private final long[] mPtsUsec = new long[MAX_PENDING];
+    private final long[] mSubmitNanos = new long[MAX_PENDING];     // 0 if the slot is free
+    private int mNext;
+    private int mUnmatched;
+    private final LatencyHistogram mHistogram = new LatencyHistogram();
+
+    /**
+     * Notes that a frame was just handed to the encoder.  Call right after swapBuffers().
+     *
+     * @param ptsNsec The presentation time given to the surface, in nanoseconds.
+     */
+    public synchronized void frameSubmitted(long ptsNsec) {
+        int slot = mNext;
+        mNext = (mNext + 1) % MAX_PENDING;
+        mPtsUsec[slot] = ptsNsec / 1000;
+        mSubmitNanos[slot] = System.nanoTime();
+    }
+
+    /**
+     * Notes that the encoded frame with this time stamp has come out.  Call before anything
+     * rewrites the time stamp.
+     */
+    public void frameEncoded(long ptsUsec) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            for (int i = 0; i < MAX_PENDING; i++) {
+                if (mSubmitNanos[i] != 0 && mPtsUsec[i] == ptsUsec) {
+                    mHistogram.record(now - mSubmitNanos[i]);
+                    mSubmitNanos[i] = 0;
+                    return;
+                }
+            }
+            mUnmatched++;
+        }
+    }
+
+    /**
+     * Returns the submit-to-output times.
+     */
+    public LatencyHistogram getHistogram() {
+        return mHistogram;
+    }
+
+    /**
+     * Returns the number of output frames we had no submit time for.  Either the producer
+     * isn't calling frameSubmitted(), or the time stamps are being changed on the way.
+     */
+    public synchronized int getUnmatchedCount() {
+        return mUnmatched;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "encode latency " + mHistogram + " unmatched=" + mUnmatched;
+    }
+}
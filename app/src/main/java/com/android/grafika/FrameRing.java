@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fixed-size ring of frame descriptors, for handing frames from a render thread to an
+ * encoder thread without allocating or locking.
+ * <p>
+ * There must be exactly one producer thread and one consumer thread.  The producer fills in
+ * a slot between {@link #beginWrite()} and {@link #endWrite()}; the consumer reads it
+ * between {@link #peek()} and {@link #release()}.  Everything is allocated up front.
+ * <p>
+ * If the consumer falls behind and the ring is full, new frames are dropped (and counted)
+ * rather than overwriting ones the consumer may be reading.
+ * <p>
+ * The consumer still needs waking up.  endWrite() says when to do that: only the first
+ * frame after the consumer last called {@link #wakeReceived()}, so a Looper thread gets one
+ * Message per batch of frames rather than one per frame.
+ */
+public class FrameRing {
+    /**
+     * One frame.  Slots are reused; copy out anything you need to keep.
+     */
+    public static class Frame {
+        /** Texture transform, from SurfaceTexture. */
+        public final float[] transform = new float[16];
+        /** Presentation time, in nanoseconds. */
+        public long timestampNanos;
+        /** Texture holding the image. */
+        public int textureId;
+        /** Frames offered so far, including dropped ones.  Gaps mean drops. */
+        public long sequence;
+    }
+
+    private final Frame[] mSlots;
+    private final int mMask;
+
+    // Next slot to write and read.  Each is only advanced by one side; the volatile writes
+    // publish the slot contents to the other.
+    private volatile long mWriteIndex;
+    private volatile long mReadIndex;
+
+    // Producer only.
+    private long mSequence;
+    private volatile int mDropped;
+
+    private final AtomicBoolean mWakePending = new AtomicBoolean();
+
+    /**
+     * @param capacity Number of slots; must be a power of 2.
+     */
+    public FrameRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of 2: " + capacity);
+        }
+        mSlots = new Frame[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = new Frame();
+        }
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Returns the next free slot to fill in, or null if the ring is full, in which case the
+     * frame is counted as dropped.  (Producer thread.)
+     */
+    public Frame beginWrite() {
+        long seq = mSequence++;
+        long write = mWriteIndex;
+        if (write - mReadIndex >= mSlots.length) {
+            mDropped++;
+            return null;
+        }
+        Frame frame = mSlots[(int) (write & mMask)];
+        frame.sequence = seq;
+        return frame;
+    }
+
+    /**
+     * Hands the slot from beginWrite() to the consumer.  (Producer thread.)
+     *
+     * @return true if the consumer should be woken up.
+     */
+    public boolean endWrite() {
+        mWriteIndex = mWriteIndex + 1;
+        return mWakePending.compareAndSet(false, true);
+    }
+
+    /**
+     * Clears the wake-up flag.  Call when the wake-up arrives, before draining the ring
+     * with peek(); frames written after this will ask for another wake-up.  (Consumer
+     * thread.)
+     */
+    public void wakeReceived() {
+        mWakePending.set(false);
+    }
+
+    /**
+     * Returns the oldest unread frame, or null if there isn't one.  (Consumer thread.)
+     */
+    public Frame peek() {
+        long read = mReadIndex;
+        if (read == mWriteIndex) {
+            return null;
+        }
+        return mSlots[(int) (read & mMask)];
+    }
+
+    /**
+     * Gives the frame from peek() back to the producer.  (Consumer thread.)
+     */
+    public void release() {
+        mReadIndex = mReadIndex + 1;
+    }
+
+    /**
+     * Returns the number of frames dropped because the ring was full.
+     */
+    public int getDroppedCount() {
+        return mDropped;
+    }
+}
@@ -17,14 +17,13 @@
 package com.android.grafika;
 
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.util.Log;
 import android.view.Surface;
 
 import com.android.grafika.gles.EglCore;
 import com.android.grafika.gles.WindowSurface;
+import com.android.grafika.muxer.Muxer;
 
 import java.io.File;
 import java.io.IOException;
@@ -37,16 +36,22 @@ public abstract class GeneratedMovie implements Content {
     private static final String TAG = MainActivity.TAG;
     private static final boolean VERBOSE = false;
 
-    private static final int IFRAME_INTERVAL = 5;
+    private static final long EOS_TIMEOUT_MSEC = 2000;
 
     // set by sub-class to indicate that the movie has been generated
     // TODO: remove this now?
     protected boolean mMovieReady = false;
 
+    // container writer; sub-classes may change this before calling prepareEncoder()
+    protected Muxer.Factory mMuxerFactory = Muxer.MEDIA_MUXER;
+
+    // codec preferences; sub-classes may change this before calling prepareEncoder()
+    protected RecordingConfig mRecordingConfig = RecordingConfig.DEFAULT;
+
     // "live" state during recording
-    private MediaCodec.BufferInfo mBufferInfo;
     private MediaCodec mEncoder;
-    private MediaMuxer mMuxer;
+    private CodecDriver mDriver;
+    private Muxer mMuxer;
     private EglCore mEglCore;
     private WindowSurface mInputSurface;
     private int mTrackIndex;
@@ -69,24 +74,19 @@ public abstract class GeneratedMovie implements Content {
     /**
      * Prepares the video encoder, muxer, and an EGL input surface.
      */
-    protected void prepareEncoder(String mimeType, int width, int height, int bitRate,
-            int framesPerSecond, File outputFile) throws IOException {
-        mBufferInfo = new MediaCodec.BufferInfo();
-
-        MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
-
-        // Set some properties.  Failing to specify some of these can cause the MediaCodec
-        // configure() call to throw an unhelpful exception.
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, framesPerSecond);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+    protected void prepareEncoder(int width, int height, int bitRate, int framesPerSecond,
+            File outputFile) throws IOException {
+        RecordingConfig.Selection selection = mRecordingConfig.select(width, height,
+                mMuxerFactory);
+        MediaFormat format = selection.createVideoFormat(width, height, bitRate,
+                framesPerSecond);
         if (VERBOSE) Log.d(TAG, "format: " + format);
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(mimeType);
+        mEncoder = CodecPool.getInstance().acquire(
+                new CodecPool.Key(selection.getMimeType(), true, width, height, true));
+        mDriver = new CodecDriver(mEncoder, "GeneratedMovie", mDriverCallback);
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         Log.v(TAG, "encoder is " + mEncoder.getCodecInfo().getName());
         Surface surface;
@@ -107,7 +107,6 @@ public abstract class GeneratedMovie implements Content {
         mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE);
         mInputSurface = new WindowSurface(mEglCore, surface, true);
         mInputSurface.makeCurrent();
-        mEncoder.start();
 
         // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
         // because our MediaFormat doesn't have the Magic Goodies.  These can only be
@@ -116,11 +115,11 @@ public abstract class GeneratedMovie implements Content {
         // We're not actually interested in multiplexing audio.  We just want to convert
         // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
         if (VERBOSE) Log.d(TAG, "output will go to " + outputFile);
-        mMuxer = new MediaMuxer(outputFile.toString(),
-                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mMuxer = mMuxerFactory.create(outputFile);
 
         mTrackIndex = -1;
         mMuxerStarted = false;
+        mDriver.start();
     }
 
     /**
@@ -128,9 +127,12 @@ public abstract class GeneratedMovie implements Content {
      */
     protected void releaseEncoder() {
         if (VERBOSE) Log.d(TAG, "releasing encoder objects");
-        if (mEncoder != null) {
-            mEncoder.stop();
-            mEncoder.release();
+        if (mDriver != null) {
+            mDriver.release();
+            mDriver = null;
+            mEncoder = null;
+        } else if (mEncoder != null) {
+            CodecPool.getInstance().recycle(mEncoder);
             mEncoder = null;
         }
         if (mInputSurface != null) {
@@ -154,98 +156,58 @@ public abstract class GeneratedMovie implements Content {
      * @param presentationTimeNsec The presentation time stamp, in nanoseconds.
      */
     protected void submitFrame(long presentationTimeNsec) {
-        // The eglSwapBuffers call will block if the input is full, which would be bad if
-        // it stayed full until we dequeued an output buffer (which we can't do, since we're
-        // stuck here).  So long as the caller fully drains the encoder before supplying
-        // additional input, the system guarantees that we can supply another frame
-        // without blocking.
+        // The eglSwapBuffers call will block if the input is full.  The driver thread
+        // empties the output as it's produced, so that can't last long.
         mInputSurface.setPresentationTime(presentationTimeNsec);
         mInputSurface.swapBuffers();
     }
 
     /**
-     * Extracts all pending data from the encoder.
+     * Finishes the stream if endOfStream is set: sends EOS to the encoder, and waits until
+     * the driver has seen it on the output.  Calling this with endOfStream set should be done
+     * once, right before stopping the muxer.
      * <p>
-     * If endOfStream is not set, this returns when there is no more data to drain.  If it
-     * is set, we send EOS to the encoder, and then iterate until we see EOS on the output.
-     * Calling this with endOfStream set should be done once, right before stopping the muxer.
+     * Otherwise does nothing; the output goes to the muxer from the driver thread as it's
+     * produced.
      */
     protected void drainEncoder(boolean endOfStream) {
-        final int TIMEOUT_USEC = 10000;
         if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
 
         if (endOfStream) {
-            if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
-            mEncoder.signalEndOfInputStream();
+            mDriver.signalEndOfInputStream();
+            if (!mDriver.awaitEndOfStream(EOS_TIMEOUT_MSEC)) {
+                Log.w(TAG, "timed out waiting for end of stream");
+            }
         }
+    }
 
-        ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
-        while (true) {
-            int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                // no output available yet
-                if (!endOfStream) {
-                    break;      // out of while
-                } else {
-                    if (VERBOSE) Log.d(TAG, "no output available, spinning to await EOS");
-                }
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                // not expected for an encoder
-                encoderOutputBuffers = mEncoder.getOutputBuffers();
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // should happen before receiving buffers, and should only happen once
-                if (mMuxerStarted) {
-                    throw new RuntimeException("format changed twice");
-                }
-                MediaFormat newFormat = mEncoder.getOutputFormat();
-                Log.d(TAG, "encoder output format changed: " + newFormat);
-
-                // now that we have the Magic Goodies, start the muxer
-                mTrackIndex = mMuxer.addTrack(newFormat);
-                mMuxer.start();
-                mMuxerStarted = true;
-            } else if (encoderStatus < 0) {
-                Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
-                        encoderStatus);
-                // let's ignore it
-            } else {
-                ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                if (encodedData == null) {
-                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
-                            " was null");
-                }
-
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // The codec config data was pulled out and fed to the muxer when we got
-                    // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
-                    if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
-                }
-
-                if (mBufferInfo.size != 0) {
-                    if (!mMuxerStarted) {
-                        throw new RuntimeException("muxer hasn't started");
-                    }
-
-                    // adjust the ByteBuffer values to match BufferInfo
-                    encodedData.position(mBufferInfo.offset);
-                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
-
-                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    if (VERBOSE) Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer");
-                }
-
-                mEncoder.releaseOutputBuffer(encoderStatus, false);
-
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    if (!endOfStream) {
-                        Log.w(TAG, "reached end of stream unexpectedly");
-                    } else {
-                        if (VERBOSE) Log.d(TAG, "end of stream reached");
-                    }
-                    break;      // out of while
-                }
+    /**
+     * Receives the encoder output on the driver thread.
+     */
+    private final CodecDriver.Callback mDriverCallback = new CodecDriver.Callback() {
+        @Override
+        public void onOutputFormatChanged(CodecDriver driver, MediaFormat newFormat) {
+            // should happen before receiving buffers, and should only happen once
+            if (mMuxerStarted) {
+                throw new RuntimeException("format changed twice");
             }
+            Log.d(TAG, "encoder output format changed: " + newFormat);
+
+            // now that we have the Magic Goodies, start the muxer
+            mTrackIndex = mMuxer.addTrack(newFormat);
+            mMuxer.start();
+            mMuxerStarted = true;
         }
-    }
+
+        @Override
+        public boolean onOutputBuffer(CodecDriver driver, ByteBuffer encodedData,
+                MediaCodec.BufferInfo info) {
+            if (!mMuxerStarted) {
+                throw new RuntimeException("muxer hasn't started");
+            }
+            mMuxer.writeSampleData(mTrackIndex, encodedData, info);
+            if (VERBOSE) Log.d(TAG, "sent " + info.size + " bytes to muxer");
+            return false;
+        }
+    };
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+/**
+ * Histogram of durations, in power-of-two millisecond buckets: under 1ms, 1-2ms, 2-4ms,
+ * and so on up to 1s and over.  Cheap enough to update on every call.
+ * <p>
+ * Thread-safe.
+ */
+public class LatencyHistogram {
+    /** Number of buckets.  The last one holds everything from 1024ms up. */
+    public static final int BUCKET_COUNT = 12;
+
+    private final int[] mCounts = new int[BUCKET_COUNT];
+    private long mTotalNanos;
+    private long mMaxNanos;
+    private int mCount;
+
+    /**
+     * Records one duration.
+     */
+    public synchronized void record(long nanos) {
+        long msec = nanos / 1000000;
+        int bucket = 0;
+        while (msec > 0 && bucket < BUCKET_COUNT - 1) {
+            msec >>= 1;
+            bucket++;
+        }
+        mCounts[bucket]++;
+        mCount++;
+        mTotalNanos += nanos;
+        if (nanos > mMaxNanos) {
+            mMaxNanos = nanos;
+        }
+    }
+
+    /**
+     * Returns a copy of the bucket counts.  Bucket 0 is under 1ms; bucket N (N &gt; 0)
+     * covers [2^(N-1), 2^N) ms.
+     */
+    public synchronized int[] getCounts() {
+        return mCounts.clone();
+    }
+
+    /**
+     * Returns the number of durations recorded.
+     */
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the number of durations at or above the given threshold, rounded down to a
+     * bucket boundary.
+     */
+    public synchronized int getCountAtLeast(long msec) {
+        int first = 0;
+        while (msec > 0 && first < BUCKET_COUNT - 1) {
+            msec >>= 1;
+            first++;
+        }
+        int count = 0;
+        for (int i = first; i < BUCKET_COUNT; i++) {
+            count += mCounts[i];
+        }
+        return count;
+    }
+
+    /**
+     * Returns the longest duration recorded, in microseconds.
+     */
+    public synchronized long getMaxUsec() {
+        return mMaxNanos / 1000;
+    }
+
+    /**
+     * Returns the mean duration, in microseconds.
+     */
+    public synchronized long getAverageUsec() {
+        return (mCount == 0) ? 0 : mTotalNanos / mCount / 1000;
+    }
+
+    /**
+     * Returns a compact summary, e.g. "n=120 avg=850us max=212ms [<1:100 1:12 2:5 128:3]".
+     * Empty buckets are left out; each is labeled with its lower bound in ms.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("n=").append(mCount)
+                .append(" avg=").append(getAverageUsec()).append("us")
+                .append(" max=").append(mMaxNanos / 1000000).append("ms [");
+        boolean first = true;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (mCounts[i] == 0) {
+                continue;
+            }
+            if (!first) {
+                sb.append(' ');
+            }
+            first = false;
+            sb.append(i == 0 ? "<1" : String.valueOf(1 << (i - 1)))
+                    .append(':').append(mCounts[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -135,6 +135,7 @@ public class MainActivity extends ListActivity {
 
         // One-time singleton initialization; requires activity context to get file location.
         ContentManager.initialize(this);
+        CodecRegistry.initialize(this);
 
         setListAdapter(new SimpleAdapter(this, createActivityList(),
                 android.R.layout.two_line_list_item, new String[] { TITLE, DESCRIPTION },
@@ -31,7 +31,6 @@ import java.io.IOException;
 public class MovieEightRects extends GeneratedMovie {
     private static final String TAG = MainActivity.TAG;
 
-    private static final String MIME_TYPE = "video/avc";
     private static final int WIDTH = 320;
     private static final int HEIGHT = 240;
     private static final int BIT_RATE = 2000000;
@@ -53,20 +52,18 @@ public class MovieEightRects extends GeneratedMovie {
         }
 
         try {
-            prepareEncoder(MIME_TYPE, WIDTH, HEIGHT, BIT_RATE, FRAMES_PER_SECOND, outputFile);
+            prepareEncoder(WIDTH, HEIGHT, BIT_RATE, FRAMES_PER_SECOND, outputFile);
 
             for (int i = 0; i < NUM_FRAMES; i++) {
-                // Drain any data from the encoder into the muxer.
-                drainEncoder(false);
-
-                // Generate a frame and submit it.
+                // Generate a frame and submit it.  The encoder output goes to the muxer
+                // on its own.
                 generateFrame(i);
                 submitFrame(computePresentationTimeNsec(i));
 
                 prog.updateProgress(i * 100 / NUM_FRAMES);
             }
 
-            // Send end-of-stream and drain remaining output.
+            // Send end-of-stream and wait for the remaining output.
             drainEncoder(true);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
@@ -39,12 +39,12 @@ public class MoviePlayer {
     private static final String TAG = MainActivity.TAG;
     private static final boolean VERBOSE = false;
 
-    // Declare this here to reduce allocations.
-    private MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
-
     // May be set/read by different threads.
     private volatile boolean mIsStopRequested;
 
+    // Wakes play() when decoding finishes, fails, or is asked to stop.
+    private final Object mDoneLock = new Object();
+
     private File mSourceFile;
     private Surface mOutputSurface;
     FrameCallback mFrameCallback;
@@ -158,6 +158,9 @@ public class MoviePlayer {
      */
     public void requestStop() {
         mIsStopRequested = true;
+        synchronized (mDoneLock) {
+            mDoneLock.notifyAll();
+        }
     }
 
     /**
@@ -169,6 +172,7 @@ public class MoviePlayer {
     public void play() throws IOException {
         MediaExtractor extractor = null;
         MediaCodec decoder = null;
+        CodecDriver driver = null;
 
         // The MediaExtractor error messages aren't very useful.  Check to see if the input
         // file exists so we can throw a better one if it's not there.
@@ -191,18 +195,24 @@ public class MoviePlayer {
             // extractor.  It's very important to use the format from the extractor because
             // it contains a copy of the CSD-0/CSD-1 codec-specific data chunks.
             String mime = format.getString(MediaFormat.KEY_MIME);
-            decoder = MediaCodec.createDecoderByType(mime);
+            decoder = CodecPool.getInstance().acquire(
+                    new CodecPool.Key(mime, false, mVideoWidth, mVideoHeight, true));
+            DecodeCallback decodeCallback =
+                    new DecodeCallback(extractor, trackIndex, mFrameCallback);
+            driver = new CodecDriver(decoder, "MoviePlayer", null, true, decodeCallback);
             decoder.configure(format, mOutputSurface, null, 0);
-            decoder.start();
+            driver.start();
 
-            doExtract(extractor, trackIndex, decoder, mFrameCallback);
+            decodeCallback.waitUntilDone();
         } finally {
             // release everything we grabbed
-            if (decoder != null) {
-                decoder.stop();
-                decoder.release();
-                decoder = null;
+            if (driver != null) {
+                driver.release();
+                driver = null;
+            } else if (decoder != null) {
+                CodecPool.getInstance().recycle(decoder);
             }
+            decoder = null;
             if (extractor != null) {
                 extractor.release();
                 extractor = null;
@@ -233,178 +243,165 @@ public class MoviePlayer {
     }
 
     /**
-     * Work loop.  We execute here until we run out of video or are told to stop.
+     * Feeds the decoder from the extractor and paces the output, on the decoder's
+     * {@link CodecDriver} thread.  We run until we run out of video or are told to stop.
+     * <p>
+     * The codec tells us when it can take input and when it has output, so we never sleep
+     * on one side while the other needs attention.  Many video decoders want several frames
+     * of video before they start producing output -- one implementation wanted four before
+     * it appeared to configure itself -- and each input buffer is filled as soon as the codec
+     * offers it, which keeps the queue full without spinning.  (Note it's possible for the
+     * encoded data to be written to the stream out of order, so we can't generally submit
+     * a single frame and wait for it to appear.)
+     * <p>
+     * If you have tight startup latency requirements, it would probably be best to "prime
+     * the pump" with a sequence of frames that aren't actually shown (e.g. grab the first
+     * 10 NAL units and shove them through, then rewind to the start of the first key frame).
+     * The actual latency seems to depend strongly on the nature of the video (e.g.
+     * resolution).
+     * <p>
+     * If you want to experiment, set the VERBOSE flag to true and watch the behavior
+     * in logcat.  Use "logcat -v threadtime" to see sub-second timing.
      */
-    private void doExtract(MediaExtractor extractor, int trackIndex, MediaCodec decoder,
-            FrameCallback frameCallback) {
-        // We need to strike a balance between providing input and reading output that
-        // operates efficiently without delays on the output side.
-        //
-        // To avoid delays on the output side, we need to keep the codec's input buffers
-        // fed.  There can be significant latency between submitting frame N to the decoder
-        // and receiving frame N on the output, so we need to stay ahead of the game.
-        //
-        // Many video decoders seem to want several frames of video before they start
-        // producing output -- one implementation wanted four before it appeared to
-        // configure itself.  We need to provide a bunch of input frames up front, and try
-        // to keep the queue full as we go.
-        //
-        // (Note it's possible for the encoded data to be written to the stream out of order,
-        // so we can't generally submit a single frame and wait for it to appear.)
-        //
-        // We can't just fixate on the input side though.  If we spend too much time trying
-        // to stuff the input, we might miss a presentation deadline.  At 60Hz we have 16.7ms
-        // between frames, so sleeping for 10ms would eat up a significant fraction of the
-        // time allowed.  (Most video is at 30Hz or less, so for most content we'll have
-        // significantly longer.)  Waiting for output is okay, but sleeping on availability
-        // of input buffers is unwise if we need to be providing output on a regular schedule.
-        //
-        //
-        // In some situations, startup latency may be a concern.  To minimize startup time,
-        // we'd want to stuff the input full as quickly as possible.  This turns out to be
-        // somewhat complicated, as the codec may still be starting up and will refuse to
-        // accept input.  Removing the timeout from dequeueInputBuffer() results in spinning
-        // on the CPU.
-        //
-        // If you have tight startup latency requirements, it would probably be best to
-        // "prime the pump" with a sequence of frames that aren't actually shown (e.g.
-        // grab the first 10 NAL units and shove them through, then rewind to the start of
-        // the first key frame).
-        //
-        // The actual latency seems to depend on strongly on the nature of the video (e.g.
-        // resolution).
-        //
-        //
-        // One conceptually nice approach is to loop on the input side to ensure that the codec
-        // always has all the input it can handle.  After submitting a buffer, we immediately
-        // check to see if it will accept another.  We can use a short timeout so we don't
-        // miss a presentation deadline.  On the output side we only check once, with a longer
-        // timeout, then return to the outer loop to see if the codec is hungry for more input.
-        //
-        // In practice, every call to check for available buffers involves a lot of message-
-        // passing between threads and processes.  Setting a very brief timeout doesn't
-        // exactly work because the overhead required to determine that no buffer is available
-        // is substantial.  On one device, the "clever" approach caused significantly greater
-        // and more highly variable startup latency.
-        //
-        // The code below takes a very simple-minded approach that works, but carries a risk
-        // of occasionally running out of output.  A more sophisticated approach might
-        // detect an output timeout and use that as a signal to try to enqueue several input
-        // buffers on the next iteration.
-        //
-        // If you want to experiment, set the VERBOSE flag to true and watch the behavior
-        // in logcat.  Use "logcat -v threadtime" to see sub-second timing.
-
-        final int TIMEOUT_USEC = 10000;
-        ByteBuffer[] decoderInputBuffers = decoder.getInputBuffers();
-        int inputChunk = 0;
-        long firstInputTimeNsec = -1;
-
-        boolean outputDone = false;
-        boolean inputDone = false;
-        while (!outputDone) {
-            if (VERBOSE) Log.d(TAG, "loop");
+    private class DecodeCallback extends CodecDriver.Callback {
+        private final MediaExtractor mExtractor;
+        private final int mTrackIndex;
+        private final FrameCallback mFrameCallback;
+
+        private int mInputChunk;
+        private long mFirstInputTimeNsec = -1;
+        private boolean mInputDone;
+
+        // Guarded by mDoneLock.
+        private boolean mDone;
+        private Exception mError;
+
+        DecodeCallback(MediaExtractor extractor, int trackIndex, FrameCallback frameCallback) {
+            mExtractor = extractor;
+            mTrackIndex = trackIndex;
+            mFrameCallback = frameCallback;
+        }
+
+        /**
+         * Blocks until the video ends, a stop is requested, or the decoder fails.
+         */
+        void waitUntilDone() {
+            synchronized (mDoneLock) {
+                while (!mDone && !mIsStopRequested && mError == null) {
+                    try {
+                        mDoneLock.wait();
+                    } catch (InterruptedException ie) {
+                        // not expected
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                if (mError != null) {
+                    throw new RuntimeException("decoder failed", mError);
+                }
+            }
             if (mIsStopRequested) {
                 Log.d(TAG, "Stop requested");
-                return;
             }
+        }
 
-            // Feed more data to the decoder.
-            if (!inputDone) {
-                int inputBufIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
-                if (inputBufIndex >= 0) {
-                    if (firstInputTimeNsec == -1) {
-                        firstInputTimeNsec = System.nanoTime();
-                    }
-                    ByteBuffer inputBuf = decoderInputBuffers[inputBufIndex];
-                    // Read the sample data into the ByteBuffer.  This neither respects nor
-                    // updates inputBuf's position, limit, etc.
-                    int chunkSize = extractor.readSampleData(inputBuf, 0);
-                    if (chunkSize < 0) {
-                        // End of stream -- send empty frame with EOS flag set.
-                        decoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
-                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                        inputDone = true;
-                        if (VERBOSE) Log.d(TAG, "sent input EOS");
-                    } else {
-                        if (extractor.getSampleTrackIndex() != trackIndex) {
-                            Log.w(TAG, "WEIRD: got sample from track " +
-                                    extractor.getSampleTrackIndex() + ", expected " + trackIndex);
-                        }
-                        long presentationTimeUs = extractor.getSampleTime();
-                        decoder.queueInputBuffer(inputBufIndex, 0, chunkSize,
-                                presentationTimeUs, 0 /*flags*/);
-                        if (VERBOSE) {
-                            Log.d(TAG, "submitted frame " + inputChunk + " to dec, size=" +
-                                    chunkSize);
-                        }
-                        inputChunk++;
-                        extractor.advance();
-                    }
-                } else {
-                    if (VERBOSE) Log.d(TAG, "input buffer not available");
+        @Override
+        public boolean onInputBufferAvailable(CodecDriver driver, int index) {
+            if (mInputDone || mIsStopRequested) {
+                return false;
+            }
+            if (mFirstInputTimeNsec == -1) {
+                mFirstInputTimeNsec = System.nanoTime();
+            }
+            ByteBuffer inputBuf = driver.getInputBuffer(index);
+            // Read the sample data into the ByteBuffer.  This neither respects nor
+            // updates inputBuf's position, limit, etc.
+            int chunkSize = mExtractor.readSampleData(inputBuf, 0);
+            if (chunkSize < 0) {
+                // End of stream -- send empty frame with EOS flag set.
+                driver.queueInputBuffer(index, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                mInputDone = true;
+                if (VERBOSE) Log.d(TAG, "sent input EOS");
+            } else {
+                if (mExtractor.getSampleTrackIndex() != mTrackIndex) {
+                    Log.w(TAG, "WEIRD: got sample from track " +
+                            mExtractor.getSampleTrackIndex() + ", expected " + mTrackIndex);
+                }
+                long presentationTimeUs = mExtractor.getSampleTime();
+                driver.queueInputBuffer(index, 0, chunkSize, presentationTimeUs, 0 /*flags*/);
+                if (VERBOSE) {
+                    Log.d(TAG, "submitted frame " + mInputChunk + " to dec, size=" +
+                            chunkSize);
                 }
+                mInputChunk++;
+                mExtractor.advance();
             }
+            return true;
+        }
 
-            if (!outputDone) {
-                int decoderStatus = decoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-                if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    // no output available yet
-                    if (VERBOSE) Log.d(TAG, "no output from decoder available");
-                } else if (decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    // not important for us, since we're using Surface
-                    if (VERBOSE) Log.d(TAG, "decoder output buffers changed");
-                } else if (decoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    MediaFormat newFormat = decoder.getOutputFormat();
-                    if (VERBOSE) Log.d(TAG, "decoder output format changed: " + newFormat);
-                } else if (decoderStatus < 0) {
-                    throw new RuntimeException(
-                            "unexpected result from decoder.dequeueOutputBuffer: " +
-                                    decoderStatus);
-                } else { // decoderStatus >= 0
-                    if (firstInputTimeNsec != 0) {
-                        // Log the delay from the first buffer of input to the first buffer
-                        // of output.
-                        long nowNsec = System.nanoTime();
-                        Log.d(TAG, "startup lag " + ((nowNsec-firstInputTimeNsec) / 1000000.0) + " ms");
-                        firstInputTimeNsec = 0;
-                    }
-                    boolean doLoop = false;
-                    if (VERBOSE) Log.d(TAG, "surface decoder given buffer " + decoderStatus +
-                            " (size=" + mBufferInfo.size + ")");
-                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        if (VERBOSE) Log.d(TAG, "output EOS");
-                        if (mLoop) {
-                            doLoop = true;
-                        } else {
-                            outputDone = true;
-                        }
-                    }
+        @Override
+        public void onOutputFormatChanged(CodecDriver driver, MediaFormat format) {
+            if (VERBOSE) Log.d(TAG, "decoder output format changed: " + format);
+        }
 
-                    boolean doRender = (mBufferInfo.size != 0);
+        @Override
+        public boolean onOutputBuffer(CodecDriver driver, ByteBuffer buf,
+                MediaCodec.BufferInfo info) {
+            if (mFirstInputTimeNsec != 0) {
+                // Log the delay from the first buffer of input to the first buffer
+                // of output.
+                long nowNsec = System.nanoTime();
+                Log.d(TAG, "startup lag " + ((nowNsec-mFirstInputTimeNsec) / 1000000.0) + " ms");
+                mFirstInputTimeNsec = 0;
+            }
+            if (VERBOSE) Log.d(TAG, "surface decoder given buffer (size=" + info.size + ")");
+            if (mIsStopRequested) {
+                return false;
+            }
 
-                    // As soon as we call releaseOutputBuffer, the buffer will be forwarded
-                    // to SurfaceTexture to convert to a texture.  We can't control when it
-                    // appears on-screen, but we can manage the pace at which we release
-                    // the buffers.
-                    if (doRender && frameCallback != null) {
-                        frameCallback.preRender(mBufferInfo.presentationTimeUs);
-                    }
-                    decoder.releaseOutputBuffer(decoderStatus, doRender);
-                    if (doRender && frameCallback != null) {
-                        frameCallback.postRender();
-                    }
+            // As soon as the driver releases the buffer, it will be forwarded to
+            // SurfaceTexture to convert to a texture.  We can't control when it appears
+            // on-screen, but we can manage the pace at which we release the buffers.
+            if (mFrameCallback != null) {
+                mFrameCallback.preRender(info.presentationTimeUs);
+            }
+            return true;
+        }
 
-                    if (doLoop) {
-                        Log.d(TAG, "Reached EOS, looping");
-                        extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-                        inputDone = false;
-                        decoder.flush();    // reset decoder state
-                        frameCallback.loopReset();
-                    }
+        @Override
+        public void onOutputReleased(CodecDriver driver, boolean rendered) {
+            if (rendered && mFrameCallback != null) {
+                mFrameCallback.postRender();
+            }
+        }
+
+        @Override
+        public void onEndOfStream(CodecDriver driver) {
+            if (VERBOSE) Log.d(TAG, "output EOS");
+            if (mLoop && !mIsStopRequested) {
+                Log.d(TAG, "Reached EOS, looping");
+                mExtractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                mInputDone = false;
+                driver.flush();    // reset decoder state
+                if (mFrameCallback != null) {
+                    mFrameCallback.loopReset();
+                }
+            } else {
+                synchronized (mDoneLock) {
+                    mDone = true;
+                    mDoneLock.notifyAll();
                 }
             }
         }
+
+        @Override
+        public void onError(CodecDriver driver, Exception ex) {
+            super.onError(driver, ex);
+            synchronized (mDoneLock) {
+                mError = ex;
+                mDoneLock.notifyAll();
+            }
+        }
     }
 
     /**
@@ -28,7 +28,6 @@ import java.io.IOException;
 public class MovieSliders extends GeneratedMovie {
     private static final String TAG = MainActivity.TAG;
 
-    private static final String MIME_TYPE = "video/avc";
     private static final int WIDTH = 480;       // note 480x640, not 640x480
     private static final int HEIGHT = 640;
     private static final int BIT_RATE = 5000000;
@@ -43,20 +42,18 @@ public class MovieSliders extends GeneratedMovie {
         final int NUM_FRAMES = 240;
 
         try {
-            prepareEncoder(MIME_TYPE, WIDTH, HEIGHT, BIT_RATE, FRAMES_PER_SECOND, outputFile);
+            prepareEncoder(WIDTH, HEIGHT, BIT_RATE, FRAMES_PER_SECOND, outputFile);
 
             for (int i = 0; i < NUM_FRAMES; i++) {
-                // Drain any data from the encoder into the muxer.
-                drainEncoder(false);
-
-                // Generate a frame and submit it.
+                // Generate a frame and submit it.  The encoder output goes to the muxer
+                // on its own.
                 generateFrame(i);
                 submitFrame(computePresentationTimeNsec(i));
 
                 prog.updateProgress(i * 100 / NUM_FRAMES);
             }
 
-            // Send end-of-stream and drain remaining output.
+            // Send end-of-stream and wait for the remaining output.
             drainEncoder(true);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
@@ -37,6 +37,10 @@ class PermissionHelper {
     return ContextCompat.checkSelfPermission(activity,
             Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED;
   }
+  public static boolean hasRecordAudioPermission(Activity activity) {
+    return ContextCompat.checkSelfPermission(activity,
+            Manifest.permission.RECORD_AUDIO) == PackageManager.PERMISSION_GRANTED;
+  }
   public static boolean hasWriteStoragePermission(Activity activity) {
     return ContextCompat.checkSelfPermission(activity,
             Manifest.permission.WRITE_EXTERNAL_STORAGE) == PackageManager.PERMISSION_GRANTED;
@@ -77,6 +81,21 @@ class PermissionHelper {
     }
   }
 
+  /**
+   * Asks for the microphone.  Callers that can carry on without audio should only ask
+   * once, since a denial brings them straight back here.
+   */
+  public static void requestRecordAudioPermission(Activity activity) {
+    boolean showRationale = ActivityCompat.shouldShowRequestPermissionRationale(activity,
+            Manifest.permission.RECORD_AUDIO);
+    if (showRationale) {
+      Toast.makeText(activity,
+              "Microphone permission is needed to record audio", Toast.LENGTH_LONG).show();
+    }
+    String permissions[] = new String[]{ Manifest.permission.RECORD_AUDIO };
+    ActivityCompat.requestPermissions(activity, permissions, RC_PERMISSION_REQUEST);
+  }
+
   /** Launch Application Setting to grant permission. */
   public static void launchPermissionSettings(Activity activity) {
     Intent intent = new Intent();
@@ -912,6 +912,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
                     GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
                     mInputWindowSurface.setPresentationTime(timeStampNanos);
                     mInputWindowSurface.swapBuffers();
+                    mVideoEncoder.frameSubmitted(timeStampNanos);
 
                     // Restore.
                     GLES20.glViewport(0, 0, mWindowSurface.getWidth(), mWindowSurface.getHeight());
@@ -945,6 +946,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
                     }
                     mInputWindowSurface.setPresentationTime(timeStampNanos);
                     mInputWindowSurface.swapBuffers();
+                    mVideoEncoder.frameSubmitted(timeStampNanos);
 
                     // Now swap the display buffer.
                     mWindowSurface.makeCurrent();
@@ -973,6 +975,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
                     mFullScreen.drawFrame(mOffscreenTexture, mIdentityMatrix);
                     mInputWindowSurface.setPresentationTime(timeStampNanos);
                     mInputWindowSurface.swapBuffers();
+                    mVideoEncoder.frameSubmitted(timeStampNanos);
 
                     // Restore previous values.
                     GLES20.glViewport(0, 0, mWindowSurface.getWidth(), mWindowSurface.getHeight());
@@ -0,0 +1,451 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import com.android.grafika.muxer.Muxer;
+
+import java.util.Arrays;
+
+/**
+ * How video should be encoded: which codec, profile, and rate control mode we'd like, and
+ * how often to emit sync frames.
+ * <p>
+ * These are preferences.  {@link #select} checks them against what the device's encoders
+ * actually support (see {@link CodecRegistry}) and what the muxer can hold, and steps down
+ * where it has to: the next codec in the list, then a simpler profile, then the codec's
+ * default rate control.  AVC with the codec's defaults is always the last resort, since
+ * every device that can record has it, and every muxer takes it.
+ * <p>
+ * A profile is only passed to the encoder on API 23 and later, along with a level.  Video
+ * encoders need both or neither, and KEY_LEVEL didn't exist before then.
+ * <p>
+ * A config can also ask for low latency, for live preview and streaming.  The encoder is
+ * told to run at real-time priority and hand back each frame as soon as it's encoded
+ * (rather than holding a few to batch), and where the encoder supports it the picture is
+ * refreshed a slice at a time instead of with periodic sync frames, which evens out the
+ * frame sizes.  Each of these needs a newer API level than the last; older devices get as
+ * much as they support.
+ * <p>
+ * B-frames are always disabled where the API lets us say so (API 29), since the buffering
+ * and muxing code assumes the encoder emits frames in presentation order.
+ * <p>
+ * Object is immutable, so it can be passed between threads freely.  Create one with
+ * {@link Builder}, or use one of the presets.
+ */
+public class RecordingConfig {
+    private static final String TAG = MainActivity.TAG;
+
+    public static final String MIME_AVC = "video/avc";      // H.264 Advanced Video Coding
+    public static final String MIME_HEVC = "video/hevc";    // H.265 High Efficiency Video Coding
+
+    /** Let the codec pick the profile. */
+    public static final int PROFILE_DEFAULT = 0;
+    /** Constrained feature set; cheapest to decode. */
+    public static final int PROFILE_BASELINE = 1;
+    /** AVC Main, HEVC Main. */
+    public static final int PROFILE_MAIN = 2;
+    /** AVC High (CABAC, 8x8 transform).  HEVC has no High for 8-bit video, so uses Main. */
+    public static final int PROFILE_HIGH = 3;
+
+    /** Let the codec pick the rate control mode. */
+    public static final int BITRATE_MODE_DEFAULT = -1;
+
+    /** AVC, codec defaults, sync frame every 5 seconds.  What the app has always used. */
+    public static final RecordingConfig DEFAULT = new Builder().build();
+
+    /**
+     * Smallest files for a given quality: HEVC if there's an encoder for it, High profile,
+     * variable bit rate, and infrequent sync frames.
+     */
+    public static final RecordingConfig COMPACT = new Builder()
+            .setMimeTypes(MIME_HEVC, MIME_AVC)
+            .setProfile(PROFILE_HIGH)
+            .setBitrateMode(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR)
+            .setIFrameInterval(10)
+            .build();
+
+    /**
+     * For live preview and streaming: AVC Baseline (which has no B-frames even on devices
+     * too old to turn them off), constant bit rate, and low latency.
+     */
+    public static final RecordingConfig LIVE = new Builder()
+            .setProfile(PROFILE_BASELINE)
+            .setBitrateMode(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR)
+            .setIFrameInterval(2)
+            .setLowLatency(true)
+            .build();
+
+    // With intra refresh, ask for no sync frames after the first (API 25), or for one so
+    // rarely it makes no difference.
+    private static final int NO_IFRAME_INTERVAL = -1;
+    private static final int RARE_IFRAME_INTERVAL = 3600;
+
+    // Keys newer than the SDK we compile against.  Spelled out, along with the
+    // API levels that honor them.
+    private static final String KEY_MAX_B_FRAMES = "max-bframes";   // MediaFormat, API 29
+    private static final String KEY_LATENCY = "latency";            // MediaFormat, API 30
+    private static final int API_Q = 29;
+    private static final int API_R = 30;
+
+    private final String[] mMimeTypes;
+    private final int mProfile;
+    private final int mBitrateMode;
+    private final int mQuality;
+    private final int mIFrameInterval;
+    private final boolean mLowLatency;
+
+    /**
+     * Builds a RecordingConfig.  Anything not set keeps the default.
+     */
+    public static class Builder {
+        private String[] mMimeTypes = { MIME_AVC };
+        private int mProfile = PROFILE_DEFAULT;
+        private int mBitrateMode = BITRATE_MODE_DEFAULT;
+        private int mQuality = -1;
+        private int mIFrameInterval = 5;
+        private boolean mLowLatency;
+
+        public Builder() {}
+
+        /** Starts from an existing config. */
+        public Builder(RecordingConfig config) {
+            mMimeTypes = config.mMimeTypes;
+            mProfile = config.mProfile;
+            mBitrateMode = config.mBitrateMode;
+            mQuality = config.mQuality;
+            mIFrameInterval = config.mIFrameInterval;
+            mLowLatency = config.mLowLatency;
+        }
+
+        /**
+         * Sets the codecs to try, most preferred first.  AVC is tried after these if it
+         * isn't in the list.
+         */
+        public Builder setMimeTypes(String... mimeTypes) {
+            if (mimeTypes.length == 0) {
+                throw new IllegalArgumentException("no MIME types");
+            }
+            mMimeTypes = mimeTypes.clone();
+            return this;
+        }
+
+        /** Sets the preferred profile, one of the PROFILE_* values.  Needs API 23. */
+        public Builder setProfile(int profile) {
+            if (profile < PROFILE_DEFAULT || profile > PROFILE_HIGH) {
+                throw new IllegalArgumentException("bad profile: " + profile);
+            }
+            mProfile = profile;
+            return this;
+        }
+
+        /**
+         * Sets the rate control mode, one of the EncoderCapabilities BITRATE_MODE_* values,
+         * or BITRATE_MODE_DEFAULT.  Needs API 21.
+         */
+        public Builder setBitrateMode(int bitrateMode) {
+            mBitrateMode = bitrateMode;
+            return this;
+        }
+
+        /**
+         * Sets the quality for constant-quality mode, in the codec's own units (higher is
+         * better), or -1 for the codec's default.  Needs API 28.
+         */
+        public Builder setQuality(int quality) {
+            mQuality = quality;
+            return this;
+        }
+
+        /** Sets the time between sync frames, in seconds. */
+        public Builder setIFrameInterval(int seconds) {
+            if (seconds <= 0) {
+                throw new IllegalArgumentException("bad I-frame interval: " + seconds);
+            }
+            mIFrameInterval = seconds;
+            return this;
+        }
+
+        /**
+         * Asks for output with as little delay as the encoder can manage, at some cost in
+         * compression.  The sync frame interval is only used if the encoder can't do intra
+         * refresh.
+         */
+        public Builder setLowLatency(boolean lowLatency) {
+            mLowLatency = lowLatency;
+            return this;
+        }
+
+        public RecordingConfig build() {
+            return new RecordingConfig(this);
+        }
+    }
+
+    /**
+     * What {@link #select} settled on for one recording.  Immutable.
+     */
+    public static class Selection {
+        final String mMimeType;
+        final String mCodecName;        // null if the registry didn't know
+        final int mProfile;             // codec's profile value, or -1 for default
+        final int mLevel;               // codec's level value, or -1 with no profile
+        final int mBitrateMode;
+        final int mQuality;
+        final int mIFrameInterval;
+        final boolean mLowLatency;
+        final boolean mIntraRefresh;
+
+        Selection(String mimeType, String codecName, int profile, int level, int bitrateMode,
+                int quality, int iFrameInterval, boolean lowLatency, boolean intraRefresh) {
+            mMimeType = mimeType;
+            mCodecName = codecName;
+            mProfile = profile;
+            mLevel = level;
+            mBitrateMode = bitrateMode;
+            mQuality = quality;
+            mIFrameInterval = iFrameInterval;
+            mLowLatency = lowLatency;
+            mIntraRefresh = intraRefresh;
+        }
+
+        /** Returns the MIME type to encode. */
+        public String getMimeType() {
+            return mMimeType;
+        }
+
+        /** Returns the rate control mode, or BITRATE_MODE_DEFAULT. */
+        public int getBitrateMode() {
+            return mBitrateMode;
+        }
+
+        /** Returns true if the bit rate can't be steered (constant quality). */
+        public boolean isConstantQuality() {
+            return mBitrateMode == MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ;
+        }
+
+        /**
+         * Returns the time between sync frames, in seconds, or a value &lt;= 0 if the
+         * encoder only emits them on request (intra refresh).
+         */
+        public int getIFrameInterval() {
+            return mIntraRefresh ? NO_IFRAME_INTERVAL : mIFrameInterval;
+        }
+
+        /** Returns true if the encoder was set up for low latency. */
+        public boolean isLowLatency() {
+            return mLowLatency;
+        }
+
+        /**
+         * Creates the format for a surface-input encoder.  The bit rate is ignored by the
+         * codec in constant-quality mode, but some codecs insist on having one.
+         */
+        public MediaFormat createVideoFormat(int width, int height, int bitRate,
+                int frameRate) {
+            MediaFormat format = MediaFormat.createVideoFormat(mMimeType, width, height);
+
+            // Set some properties.  Failing to specify some of these can cause the MediaCodec
+            // configure() call to throw an unhelpful exception.
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+            if (mIntraRefresh) {
+                // Refresh the whole picture once a second, a slice per frame.
+                format.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, frameRate);
+                format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL,
+                        Build.VERSION.SDK_INT >= Build.VERSION_CODES.N_MR1 ?
+                        NO_IFRAME_INTERVAL : RARE_IFRAME_INTERVAL);
+            } else {
+                format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mIFrameInterval);
+            }
+            if (mProfile >= 0) {
+                // Video encoders ignore or reject a profile that comes without a level.
+                // select() only picks one where KEY_LEVEL exists (API 23).
+                format.setInteger(MediaFormat.KEY_PROFILE, mProfile);
+                format.setInteger(MediaFormat.KEY_LEVEL, mLevel);
+            }
+            if (mBitrateMode != BITRATE_MODE_DEFAULT) {
+                format.setInteger(MediaFormat.KEY_BITRATE_MODE, mBitrateMode);
+            }
+            if (isConstantQuality() && mQuality >= 0 &&
+                    Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                format.setInteger(MediaFormat.KEY_QUALITY, mQuality);
+            }
+            if (Build.VERSION.SDK_INT >= API_Q) {
+                // High profile and HEVC allow B-frames, and from API 29 encoders may use
+                // them.  Everything downstream -- the circular buffer's searches, the
+                // fragmented MP4 and TS writers -- assumes output order is presentation
+                // order, so keep them off.  Older encoders don't reorder.
+                format.setInteger(KEY_MAX_B_FRAMES, 0);
+            }
+            if (mLowLatency) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                    format.setInteger(MediaFormat.KEY_PRIORITY, 0);     // real time
+                }
+                if (Build.VERSION.SDK_INT >= API_R) {
+                    format.setInteger(KEY_LATENCY, 1);      // one frame in, one out
+                }
+            }
+            return format;
+        }
+
+        @Override
+        public String toString() {
+            return mMimeType + " (" + mCodecName + ") profile=" + mProfile + "/" + mLevel +
+                    " mode=" +
+                    mBitrateMode + (mIntraRefresh ? " intra-refresh" :
+                    " iframe=" + mIFrameInterval + "s") + (mLowLatency ? " low-latency" : "");
+        }
+    }
+
+    private RecordingConfig(Builder builder) {
+        mMimeTypes = builder.mMimeTypes;
+        mProfile = builder.mProfile;
+        mBitrateMode = builder.mBitrateMode;
+        mQuality = builder.mQuality;
+        mIFrameInterval = builder.mIFrameInterval;
+        mLowLatency = builder.mLowLatency;
+    }
+
+    /**
+     * Returns the time between sync frames, in seconds.  Doesn't depend on the device.
+     */
+    public int getIFrameInterval() {
+        return mIFrameInterval;
+    }
+
+    /**
+     * Returns true if low latency was requested.
+     */
+    public boolean isLowLatency() {
+        return mLowLatency;
+    }
+
+    /**
+     * Picks the codec, profile, and rate control mode to use for video of the given size.
+     * May take a while if the codec registry hasn't been loaded yet.
+     */
+    public Selection select(int width, int height) {
+        return select(width, height, null);
+    }
+
+    /**
+     * Picks the codec, profile, and rate control mode to use for video of the given size,
+     * skipping codecs whose output the muxer can't hold (e.g. HEVC with the fragmented MP4
+     * and HLS muxers).  May take a while if the codec registry hasn't been loaded yet.
+     *
+     * @param muxerFactory Creates the muxer the video will go to, or null if it isn't known.
+     */
+    public Selection select(int width, int height, Muxer.Factory muxerFactory) {
+        CodecRegistry registry = CodecRegistry.getInstance();
+        CodecRegistry.Entry entry = null;
+        String mimeType = null;
+        for (String mime : mMimeTypes) {
+            if (!Muxer.canCarryVideo(muxerFactory, mime)) {
+                Log.d(TAG, "muxer can't carry " + mime);
+                continue;
+            }
+            entry = registry.find(mime, true, width, height);
+            if (entry != null) {
+                mimeType = mime;
+                break;
+            }
+            Log.d(TAG, "no " + mime + " encoder for " + width + "x" + height);
+        }
+        if (entry == null) {
+            // Try AVC as-is; configure() will tell us if it really can't be done.
+            mimeType = MIME_AVC;
+            entry = registry.find(MIME_AVC, true);
+        }
+
+        int profile = -1;
+        int level = -1;
+        int bitrateMode = BITRATE_MODE_DEFAULT;
+        if (entry != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // The profile has to go with a level, and KEY_LEVEL is API 23.  The codec's
+            // highest level for the profile covers any size and rate it accepts.
+            for (int want = mProfile; want > PROFILE_DEFAULT; want--) {
+                int value = getProfileValue(mimeType, want);
+                int maxLevel = (value >= 0) ? entry.getMaxLevel(value) : -1;
+                if (maxLevel >= 0) {
+                    profile = value;
+                    level = maxLevel;
+                    break;
+                }
+            }
+        }
+        if (entry != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // KEY_BITRATE_MODE is only honored from API 21.
+            bitrateMode = selectBitrateMode(entry, mBitrateMode);
+        }
+        boolean intraRefresh = mLowLatency && entry != null && entry.isIntraRefreshSupported();
+
+        Selection selection = new Selection(mimeType,
+                (entry != null) ? entry.getName() : null, profile, level, bitrateMode, mQuality,
+                mIFrameInterval, mLowLatency, intraRefresh);
+        Log.d(TAG, "recording config " + this + " -> " + selection);
+        return selection;
+    }
+
+    /**
+     * Returns the mode to use: the one requested if supported, else VBR (which anything
+     * that lets us pick a mode has), else the codec's default.
+     */
+    private static int selectBitrateMode(CodecRegistry.Entry entry, int want) {
+        if (want == BITRATE_MODE_DEFAULT || entry.isBitrateModeSupported(want)) {
+            return want;
+        }
+        int vbr = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+        return entry.isBitrateModeSupported(vbr) ? vbr : BITRATE_MODE_DEFAULT;
+    }
+
+    /**
+     * Maps one of our PROFILE_* values to the codec's, or returns -1 if the codec doesn't
+     * have it.
+     */
+    private static int getProfileValue(String mimeType, int profile) {
+        if (MIME_AVC.equals(mimeType)) {
+            switch (profile) {
+                case PROFILE_BASELINE:
+                    return MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline;
+                case PROFILE_MAIN:
+                    return MediaCodecInfo.CodecProfileLevel.AVCProfileMain;
+                case PROFILE_HIGH:
+                    return MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+            }
+        } else if (MIME_HEVC.equals(mimeType)) {
+            switch (profile) {
+                case PROFILE_MAIN:
+                case PROFILE_HIGH:
+                    return MediaCodecInfo.CodecProfileLevel.HEVCProfileMain;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordingConfig: " + Arrays.toString(mMimeTypes) + " profile=" + mProfile +
+                " mode=" + mBitrateMode + " iframe=" + mIFrameInterval + "s" +
+                (mLowLatency ? " low-latency" : "");
+    }
+}
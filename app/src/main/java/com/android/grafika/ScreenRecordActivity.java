@@ -22,9 +22,7 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.hardware.display.DisplayManager;
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.os.Build;
@@ -40,6 +38,8 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.Toast;
 
+import com.android.grafika.muxer.Muxer;
+
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -60,14 +60,18 @@ public class ScreenRecordActivity extends PlayMovieSurfaceActivity {
   private static final String TAG = "ScreenRecordActivity";
   private MediaProjectionManager mediaProjectionManager;
   private MediaProjection mediaProjection;
-  private MediaMuxer muxer;
+  private Muxer muxer;
   private Surface inputSurface;
   private MediaCodec videoEncoder;
   private boolean muxerStarted;
   private int trackIndex = -1;
 
   private static final int REQUEST_CODE_CAPTURE_PERM = 1234;
-  private static final String VIDEO_MIME_TYPE = "video/avc";
+  // codec, profile and rate control, with a sync frame every second
+  private static final RecordingConfig RECORDING_CONFIG =
+          new RecordingConfig.Builder().setIFrameInterval(1).build();
+  // Muxer.FRAGMENTED_MP4 keeps what was recorded if the app is killed mid-recording
+  private static final Muxer.Factory MUXER_FACTORY = Muxer.MEDIA_MUXER;
 
   private android.media.MediaCodec.Callback encoderCallback;
 
@@ -215,9 +219,9 @@ public class ScreenRecordActivity extends PlayMovieSurfaceActivity {
       if (!outputFile.getParentFile().exists()) {
         outputFile.getParentFile().mkdirs();
       }
-      muxer = new MediaMuxer(outputFile.getCanonicalPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+      muxer = MUXER_FACTORY.create(outputFile.getCanonicalFile());
     } catch (IOException ioe) {
-      throw new RuntimeException("MediaMuxer creation failed", ioe);
+      throw new RuntimeException("Muxer creation failed", ioe);
     }
 
 
@@ -229,22 +233,20 @@ public class ScreenRecordActivity extends PlayMovieSurfaceActivity {
 
   @RequiresApi(api = Build.VERSION_CODES.M)
   private void prepareVideoEncoder(int width, int height) {
-    MediaFormat format = MediaFormat.createVideoFormat(VIDEO_MIME_TYPE, width, height);
     int frameRate = 30; // 30 fps
 
-    // Set some required properties. The media codec may fail if these aren't defined.
-    format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-            MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-    format.setInteger(MediaFormat.KEY_BIT_RATE, 6000000); // 6Mbps
-    format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+    // Color format, bit rate (6Mbps), frame rate and I-frame interval (1 second) are set
+    // by the config.  The media codec may fail if these aren't defined.
+    RecordingConfig.Selection selection = RECORDING_CONFIG.select(width, height, MUXER_FACTORY);
+    MediaFormat format = selection.createVideoFormat(width, height, 6000000, frameRate);
     format.setInteger(MediaFormat.KEY_CAPTURE_RATE, frameRate);
     format.setInteger(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, 1000000 / frameRate);
     format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
-    format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1); // 1 seconds between I-frames
 
     // Create a MediaCodec encoder and configure it. Get a Surface we can use for recording into.
     try {
-      videoEncoder = MediaCodec.createEncoderByType(VIDEO_MIME_TYPE);
+      videoEncoder = CodecRegistry.getInstance().createCodec(selection.getMimeType(), true,
+              width, height);
       videoEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
       inputSurface = videoEncoder.createInputSurface();
       videoEncoder.setCallback(encoderCallback);
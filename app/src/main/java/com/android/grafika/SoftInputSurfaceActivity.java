@@ -19,15 +19,15 @@ package com.android.grafika;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Surface;
 import android.widget.TextView;
 import android.app.Activity;
 
+import com.android.grafika.muxer.Muxer;
+
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -43,19 +43,25 @@ public class SoftInputSurfaceActivity extends Activity {
     private static final String TAG = MainActivity.TAG;
     private static final boolean VERBOSE = true;
 
-    private static final String MIME_TYPE = "video/avc";
     private static final int WIDTH = 640;
     private static final int HEIGHT = 480;
     private static final int BIT_RATE = 4000000;
     private static final int FRAMES_PER_SECOND = 4;
-    private static final int IFRAME_INTERVAL = 5;
+
+    // codec, profile, rate control and I-frame interval
+    private static final RecordingConfig RECORDING_CONFIG = RecordingConfig.DEFAULT;
 
     private static final int NUM_FRAMES = 8;
 
+    // Muxer.FRAGMENTED_MP4 writes a file that survives being cut short
+    private static final Muxer.Factory MUXER_FACTORY = Muxer.MEDIA_MUXER;
+
+    private static final long EOS_TIMEOUT_MSEC = 2000;
+
     // "live" state during recording
-    private MediaCodec.BufferInfo mBufferInfo;
     private MediaCodec mEncoder;
-    private MediaMuxer mMuxer;
+    private CodecDriver mDriver;
+    private Muxer mMuxer;
     private Surface mInputSurface;
     private int mTrackIndex;
     private boolean mMuxerStarted;
@@ -86,16 +92,14 @@ public class SoftInputSurfaceActivity extends Activity {
             prepareEncoder(outputFile);
 
             for (int i = 0; i < NUM_FRAMES; i++) {
-                // Drain any data from the encoder into the muxer.
-                drainEncoder(false);
-
-                // Generate a frame and submit it.
+                // Generate a frame and submit it.  The encoder output goes to the muxer
+                // on its own.
                 generateFrame(i);
 //                submitFrame(computePresentationTimeNsec(i));
             }
 
-            // Send end-of-stream and drain remaining output.
-            drainEncoder(true);
+            // Send end-of-stream and wait for the remaining output.
+            finishEncoding();
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         } finally {
@@ -107,25 +111,19 @@ public class SoftInputSurfaceActivity extends Activity {
      * Prepares the video encoder, muxer, and an input surface.
      */
     private void prepareEncoder(File outputFile) throws IOException {
-        mBufferInfo = new MediaCodec.BufferInfo();
-
-        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, WIDTH, HEIGHT);
-
-        // Set some properties.  Failing to specify some of these can cause the MediaCodec
-        // configure() call to throw an unhelpful exception.
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAMES_PER_SECOND);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+        RecordingConfig.Selection selection = RECORDING_CONFIG.select(WIDTH, HEIGHT,
+                MUXER_FACTORY);
+        MediaFormat format = selection.createVideoFormat(WIDTH, HEIGHT, BIT_RATE,
+                FRAMES_PER_SECOND);
         if (VERBOSE) Log.d(TAG, "format: " + format);
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        mEncoder = CodecRegistry.getInstance().createCodec(selection.getMimeType(), true,
+                WIDTH, HEIGHT);
+        mDriver = new CodecDriver(mEncoder, "SoftInputSurface", mDriverCallback);
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mInputSurface = mEncoder.createInputSurface();
-        mEncoder.start();
 
         // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
         // because our MediaFormat doesn't have the Magic Goodies.  These can only be
@@ -134,11 +132,11 @@ public class SoftInputSurfaceActivity extends Activity {
         // We're not actually interested in multiplexing audio.  We just want to convert
         // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
         if (VERBOSE) Log.d(TAG, "output will go to " + outputFile);
-        mMuxer = new MediaMuxer(outputFile.toString(),
-                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mMuxer = MUXER_FACTORY.create(outputFile);
 
         mTrackIndex = -1;
         mMuxerStarted = false;
+        mDriver.start();
     }
 
     /**
@@ -146,8 +144,11 @@ public class SoftInputSurfaceActivity extends Activity {
      */
     private void releaseEncoder() {
         if (VERBOSE) Log.d(TAG, "releasing encoder objects");
-        if (mEncoder != null) {
-            mEncoder.stop();
+        if (mDriver != null) {
+            mDriver.release();
+            mDriver = null;
+            mEncoder = null;
+        } else if (mEncoder != null) {
             mEncoder.release();
             mEncoder = null;
         }
@@ -163,92 +164,50 @@ public class SoftInputSurfaceActivity extends Activity {
     }
 
     /**
-     * Extracts all pending data from the encoder.
-     * <p>
-     * If endOfStream is not set, this returns when there is no more data to drain.  If it
-     * is set, we send EOS to the encoder, and then iterate until we see EOS on the output.
-     * Calling this with endOfStream set should be done once, right before stopping the muxer.
+     * Sends EOS to the encoder, and waits until the driver has seen it on the output.
+     * Should be done once, right before stopping the muxer.
      */
-    private void drainEncoder(boolean endOfStream) {
-        final int TIMEOUT_USEC = 10000;
-        if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
-
-        if (endOfStream) {
-            if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
-            mEncoder.signalEndOfInputStream();
+    private void finishEncoding() {
+        if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
+        mDriver.signalEndOfInputStream();
+        if (!mDriver.awaitEndOfStream(EOS_TIMEOUT_MSEC)) {
+            Log.w(TAG, "timed out waiting for end of stream");
         }
+    }
 
-        ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
-        while (true) {
-            int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                // no output available yet
-                if (!endOfStream) {
-                    break;      // out of while
-                } else {
-                    if (VERBOSE) Log.d(TAG, "no output available, spinning to await EOS");
-                }
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                // not expected for an encoder
-                encoderOutputBuffers = mEncoder.getOutputBuffers();
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // should happen before receiving buffers, and should only happen once
-                if (mMuxerStarted) {
-                    throw new RuntimeException("format changed twice");
-                }
-                MediaFormat newFormat = mEncoder.getOutputFormat();
-                Log.d(TAG, "encoder output format changed: " + newFormat);
-
-                // now that we have the Magic Goodies, start the muxer
-                mTrackIndex = mMuxer.addTrack(newFormat);
-                mMuxer.start();
-                mMuxerStarted = true;
-            } else if (encoderStatus < 0) {
-                Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
-                        encoderStatus);
-                // let's ignore it
-            } else {
-                ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                if (encodedData == null) {
-                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
-                            " was null");
-                }
-
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // The codec config data was pulled out and fed to the muxer when we got
-                    // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
-                    if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
-                }
-
-                if (mBufferInfo.size != 0) {
-                    if (!mMuxerStarted) {
-                        throw new RuntimeException("muxer hasn't started");
-                    }
-
-                    // adjust the ByteBuffer values to match BufferInfo
-                    encodedData.position(mBufferInfo.offset);
-                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
-                    mBufferInfo.presentationTimeUs = mFakePts;
-                    mFakePts += 1000000L / FRAMES_PER_SECOND;
-
-                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    if (VERBOSE) Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer");
-                }
+    /**
+     * Receives the encoder output on the driver thread.
+     */
+    private final CodecDriver.Callback mDriverCallback = new CodecDriver.Callback() {
+        @Override
+        public void onOutputFormatChanged(CodecDriver driver, MediaFormat newFormat) {
+            // should happen before receiving buffers, and should only happen once
+            if (mMuxerStarted) {
+                throw new RuntimeException("format changed twice");
+            }
+            Log.d(TAG, "encoder output format changed: " + newFormat);
 
-                mEncoder.releaseOutputBuffer(encoderStatus, false);
+            // now that we have the Magic Goodies, start the muxer
+            mTrackIndex = mMuxer.addTrack(newFormat);
+            mMuxer.start();
+            mMuxerStarted = true;
+        }
 
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    if (!endOfStream) {
-                        Log.w(TAG, "reached end of stream unexpectedly");
-                    } else {
-                        if (VERBOSE) Log.d(TAG, "end of stream reached");
-                    }
-                    break;      // out of while
-                }
+        @Override
+        public boolean onOutputBuffer(CodecDriver driver, ByteBuffer encodedData,
+                MediaCodec.BufferInfo info) {
+            if (!mMuxerStarted) {
+                throw new RuntimeException("muxer hasn't started");
             }
+            // There's no way to set the time stamp on a Canvas frame, so make one up.
+            info.presentationTimeUs = mFakePts;
+            mFakePts += 1000000L / FRAMES_PER_SECOND;
+
+            mMuxer.writeSampleData(mTrackIndex, encodedData, info);
+            if (VERBOSE) Log.d(TAG, "sent " + info.size + " bytes to muxer");
+            return false;
         }
-    }
+    };
 
     /**
      * Generates a frame, writing to the Surface via the "software" API (lock/unlock).
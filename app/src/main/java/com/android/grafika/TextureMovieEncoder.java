@@ -22,7 +22,6 @@ import android.opengl.GLES20;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
-import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.grafika.encoder.MediaMuxerWrapper;
@@ -30,10 +29,12 @@ import com.android.grafika.gles.EglCore;
 import com.android.grafika.gles.FullFrameRect;
 import com.android.grafika.gles.Texture2dProgram;
 import com.android.grafika.gles.WindowSurface;
+import com.android.grafika.muxer.Muxer;
 
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 
 /**
  * Encode a movie from frames rendered from an external texture image.
@@ -57,6 +58,11 @@ import java.lang.ref.WeakReference;
  * <li>for each frame, after latching it with SurfaceTexture#updateTexImage(),
  *     call TextureMovieEncoder#frameAvailable().
  * </ul>
+ * <p>
+ * The same frames can be encoded at more than one size (say, a full-size archive plus a
+ * small proxy) by adding {@link Output}s to the config.  Each output gets its own encoder,
+ * input surface and file; the surfaces all share our one EGL context, and each frame is
+ * drawn once per output straight from the external texture, scaled by the viewport.
  *
  * TODO: tweak the API (esp. textureId) so it's less awkward for simple use cases.
  */
@@ -67,28 +73,71 @@ public class TextureMovieEncoder implements Runnable {
 //    private static final int MSG_START_RECORDING = 0;
     private static final int MSG_STOP_RECORDING = 1;
     private static final int MSG_FRAME_AVAILABLE = 2;
-    private static final int MSG_SET_TEXTURE_ID = 3;
     private static final int MSG_UPDATE_SHARED_CONTEXT = 4;
     private static final int MSG_QUIT = 5;
 
     private static final int MSG_PREPARE_RECORDING = 0;
 
+    // Frames we can queue up before we start dropping them.  The encoder thread normally
+    // keeps up, so this only has to ride out the odd stall.
+    private static final int FRAME_RING_SIZE = 8;
+
     // ----- accessed exclusively by encoder thread -----
-    private WindowSurface mInputWindowSurface;
+    // One encoder and input surface per output; [0] is the main one.
+    private WindowSurface[] mInputWindowSurfaces;
     private EglCore mEglCore;
     private FullFrameRect mFullScreen;
-    private int mTextureId;
     private int mFrameNum;
-    private VideoEncoderCore mVideoEncoder;
+    private VideoEncoderCore[] mVideoEncoders;
+
+    // ----- accessed exclusively by the producer (render) thread -----
+    private int mTextureId;
 
     // ----- accessed by multiple threads -----
     private volatile EncoderHandler mHandler;
+    private volatile FrameRing mFrameRing;      // producer -> encoder thread, one per recording
 
     private Object mReadyFence = new Object();      // guards ready/running
     private boolean mReady;
     private boolean mRunning;
 
 
+    /**
+     * An extra encoding of the same frames, written to its own file.  Immutable.
+     */
+    public static class Output {
+        final File mOutputFile;
+        final int mWidth;
+        final int mHeight;
+        final int mBitRate;
+        final RecordingConfig mRecordingConfig;
+        final Muxer.Factory mMuxerFactory;      // null to use the EncoderConfig's
+
+        public Output(File outputFile, int width, int height, int bitRate,
+                RecordingConfig recordingConfig) {
+            this(outputFile, width, height, bitRate, recordingConfig, null);
+        }
+
+        /**
+         * @param muxerFactory Writes the file, or null to use the same kind of muxer as the
+         *     main recording (see {@link EncoderConfig#withMuxerFactory}).
+         */
+        public Output(File outputFile, int width, int height, int bitRate,
+                RecordingConfig recordingConfig, Muxer.Factory muxerFactory) {
+            mOutputFile = outputFile;
+            mWidth = width;
+            mHeight = height;
+            mBitRate = bitRate;
+            mRecordingConfig = recordingConfig;
+            mMuxerFactory = muxerFactory;
+        }
+
+        @Override
+        public String toString() {
+            return mWidth + "x" + mHeight + " @" + mBitRate + " to '" + mOutputFile + "'";
+        }
+    }
+
     /**
      * Encoder configuration.
      * <p>
@@ -96,8 +145,9 @@ public class TextureMovieEncoder implements Runnable {
      * explicit synchronization (and don't need to worry about it getting tweaked out from
      * under us).
      * <p>
-     * TODO: make frame rate and iframe interval configurable?  Maybe use builder pattern
-     *       with reasonable defaults for those and bit rate.
+     * Codec, profile, rate control and I-frame interval come from a {@link RecordingConfig}.
+     * <p>
+     * TODO: make frame rate configurable?
      */
     public static class EncoderConfig {
         final File mOutputFile;
@@ -105,20 +155,84 @@ public class TextureMovieEncoder implements Runnable {
         final int mHeight;
         final int mBitRate;
         final EGLContext mEglContext;
+        final MediaMuxerWrapper mMuxer;     // null to record video alone
+        final Muxer.Factory mMuxerFactory;
+        final RecordingConfig mRecordingConfig;
+        final Output[] mExtraOutputs;
 
         public EncoderConfig(File outputFile, int width, int height, int bitRate,
                 EGLContext sharedEglContext) {
+            this(outputFile, width, height, bitRate, sharedEglContext, null);
+        }
+
+        /**
+         * Configures a recording that joins an existing session, so other encoders (e.g.
+         * audio) can write to the same file.
+         */
+        public EncoderConfig(File outputFile, int width, int height, int bitRate,
+                EGLContext sharedEglContext, MediaMuxerWrapper muxer) {
+            this(outputFile, width, height, bitRate, RecordingConfig.DEFAULT, sharedEglContext,
+                    muxer);
+        }
+
+        /**
+         * Configures a recording with the given codec preferences.  Files are written with
+         * the session's muxer factory, or with MediaMuxer when recording video alone.
+         *
+         * @param muxer Session to join, or null to record video alone.
+         */
+        public EncoderConfig(File outputFile, int width, int height, int bitRate,
+                RecordingConfig recordingConfig, EGLContext sharedEglContext,
+                MediaMuxerWrapper muxer) {
             mOutputFile = outputFile;
             mWidth = width;
             mHeight = height;
             mBitRate = bitRate;
             mEglContext = sharedEglContext;
+            mMuxer = muxer;
+            mMuxerFactory = (muxer != null) ? muxer.getMuxerFactory() : Muxer.MEDIA_MUXER;
+            mRecordingConfig = recordingConfig;
+            mExtraOutputs = new Output[0];
+        }
+
+        private EncoderConfig(EncoderConfig base, Muxer.Factory muxerFactory,
+                Output[] extraOutputs) {
+            mOutputFile = base.mOutputFile;
+            mWidth = base.mWidth;
+            mHeight = base.mHeight;
+            mBitRate = base.mBitRate;
+            mEglContext = base.mEglContext;
+            mMuxer = base.mMuxer;
+            mMuxerFactory = muxerFactory;
+            mRecordingConfig = base.mRecordingConfig;
+            mExtraOutputs = extraOutputs;
+        }
+
+        /**
+         * Returns a copy of this config that writes files with the given factory: the main
+         * file when recording video alone (a session brings its own muxer), and the extra
+         * outputs that don't name one.
+         */
+        public EncoderConfig withMuxerFactory(Muxer.Factory muxerFactory) {
+            return new EncoderConfig(this, muxerFactory, mExtraOutputs);
+        }
+
+        /**
+         * Returns a copy of this config that also encodes to the given output.  The
+         * output always records video alone, in a session of its own.
+         */
+        public EncoderConfig withOutput(Output output) {
+            Output[] outputs = new Output[mExtraOutputs.length + 1];
+            System.arraycopy(mExtraOutputs, 0, outputs, 0, mExtraOutputs.length);
+            outputs[mExtraOutputs.length] = output;
+            return new EncoderConfig(this, mMuxerFactory, outputs);
         }
 
         @Override
         public String toString() {
             return "EncoderConfig: " + mWidth + "x" + mHeight + " @" + mBitRate +
-                    " to '" + mOutputFile.toString() + "' ctxt=" + mEglContext;
+                    " to '" + mOutputFile.toString() + "' ctxt=" + mEglContext + " " +
+                    mRecordingConfig + " extra=" + Arrays.toString(mExtraOutputs);
         }
     }
 
@@ -160,12 +274,10 @@ public class TextureMovieEncoder implements Runnable {
                 return;
             }
             mRunning = true;
+            mFrameRing = new FrameRing(FRAME_RING_SIZE);
 
-            if(null != config.mOutputFile && !TextUtils.isEmpty(config.mOutputFile.getAbsolutePath())){
-                MediaMuxerWrapper mMuxer = MediaMuxerWrapper.getInstance(config.mOutputFile.getAbsolutePath());
-                if(null !=mMuxer){
-                    mMuxer.addVideoEncoder(this);
-                }
+            if (config.mMuxer != null) {
+                config.mMuxer.addVideoEncoder(this);
             }
 
             new Thread(this, "TextureMovieEncoder").start();
@@ -214,9 +326,14 @@ public class TextureMovieEncoder implements Runnable {
     }
 
     /**
-     * Tells the video recorder that a new frame is available.  (Call from non-encoder thread.)
+     * Tells the video recorder that a new frame is available.  (Call from non-encoder thread,
+     * always the same one.)
      * <p>
-     * This function sends a message and returns immediately.  This isn't sufficient -- we
+     * The frame's details go into a preallocated ring, and the encoder thread is woken up
+     * if it isn't already on its way; nothing is allocated and no locks are taken.  If the
+     * encoder thread has fallen a whole ring behind, the frame is dropped.
+     * <p>
+     * This function returns immediately.  This isn't sufficient -- we
      * don't want the caller to latch a new frame until we're done with this one -- but we
      * can get away with it so long as the input frame rate is reasonable and the encoder
      * thread doesn't stall.
@@ -227,14 +344,11 @@ public class TextureMovieEncoder implements Runnable {
      * stall the caller while this thread does work.
      */
     public void frameAvailable(SurfaceTexture st) {
-        synchronized (mReadyFence) {
-            if (!mReady || !mIsStarted) {
-                return;
-            }
+        EncoderHandler handler = mHandler;
+        if (handler == null || !mIsStarted) {
+            return;
         }
 
-        float[] transform = new float[16];      // TODO - avoid alloc every frame
-        st.getTransformMatrix(transform);
         long timestamp = st.getTimestamp();
         if (timestamp == 0) {
             // Seeing this after device is toggled off/on with power button.  The
@@ -246,23 +360,30 @@ public class TextureMovieEncoder implements Runnable {
             return;
         }
 
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE,
-                (int) (timestamp >> 32), (int) timestamp, transform));
+        FrameRing ring = mFrameRing;
+        FrameRing.Frame frame = ring.beginWrite();
+        if (frame == null) {
+            if (VERBOSE) Log.d(TAG, "encoder thread is behind, dropping frame");
+            return;
+        }
+        st.getTransformMatrix(frame.transform);
+        frame.timestampNanos = timestamp;
+        frame.textureId = mTextureId;
+        if (ring.endWrite()) {
+            handler.sendMessage(handler.obtainMessage(MSG_FRAME_AVAILABLE));
+        }
     }
 
     /**
      * Tells the video recorder what texture name to use.  This is the external texture that
-     * we're receiving camera previews in.  (Call from non-encoder thread.)
+     * we're receiving camera previews in.  (Call from the thread that calls frameAvailable().)
+     * <p>
+     * The name travels with each frame, so this is cheap to call every time.
      * <p>
      * TODO: do something less clumsy
      */
     public void setTextureId(int id) {
-        synchronized (mReadyFence) {
-            if (!mReady) {
-                return;
-            }
-        }
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_SET_TEXTURE_ID, id, 0, null));
+        mTextureId = id;
     }
 
     /**
@@ -322,12 +443,7 @@ public class TextureMovieEncoder implements Runnable {
                     encoder.handleStopRecording();
                     break;
                 case MSG_FRAME_AVAILABLE:
-                    long timestamp = (((long) inputMessage.arg1) << 32) |
-                            (((long) inputMessage.arg2) & 0xffffffffL);
-                    encoder.handleFrameAvailable((float[]) obj, timestamp);
-                    break;
-                case MSG_SET_TEXTURE_ID:
-                    encoder.handleSetTexture(inputMessage.arg1);
+                    encoder.handleFramesAvailable();
                     break;
                 case MSG_UPDATE_SHARED_CONTEXT:
                     encoder.handleUpdateSharedContext((EGLContext) inputMessage.obj);
@@ -355,27 +471,59 @@ public class TextureMovieEncoder implements Runnable {
         Log.d(TAG, "handleStartRecording " + config);
         mFrameNum = 0;
         prepareEncoder(config.mEglContext, config.mWidth, config.mHeight, config.mBitRate,
-                config.mOutputFile);
+                config.mRecordingConfig, config.mOutputFile, config.mMuxer,
+                config.mMuxerFactory, config.mExtraOutputs);
+        if (config.mMuxer == null) {
+            // Nobody else will start us.
+            startVideoRecording();
+        }
+    }
+
+    /**
+     * Renders whatever frames are waiting in the ring.  Frames that turn up after recording
+     * has stopped are thrown away.
+     */
+    private void handleFramesAvailable() {
+        FrameRing ring = mFrameRing;
+        ring.wakeReceived();
+        FrameRing.Frame frame;
+        while ((frame = ring.peek()) != null) {
+            if (mIsStarted) {
+                handleFrameAvailable(frame.transform, frame.timestampNanos, frame.textureId);
+            }
+            ring.release();
+        }
     }
 
     /**
      * Handles notification of an available frame.
      * <p>
-     * The texture is rendered onto the encoder's input surface, along with a moving
-     * box (just because we can).
+     * The texture is rendered onto each encoder's input surface, along with a moving
+     * box (just because we can).  Every output gets the same time stamp.
      * <p>
      * @param transform The texture transform, from SurfaceTexture.
      * @param timestampNanos The frame's timestamp, from SurfaceTexture.
+     * @param textureId The external texture holding the frame.
      */
-    private void handleFrameAvailable(float[] transform, long timestampNanos) {
+    private void handleFrameAvailable(float[] transform, long timestampNanos, int textureId) {
         if (VERBOSE) Log.d(TAG, "handleFrameAvailable tr=" + transform);
-        mVideoEncoder.drainEncoder(false);
-        mFullScreen.drawFrame(mTextureId, transform);
+        for (int i = 0; i < mVideoEncoders.length; i++) {
+            WindowSurface surface = mInputWindowSurfaces[i];
+            mVideoEncoders[i].drainEncoder(false);
+            if (mInputWindowSurfaces.length > 1) {
+                // Viewport is context state, not surface state, so set it every time.
+                surface.makeCurrent();
+                GLES20.glViewport(0, 0, surface.getWidth(), surface.getHeight());
+            }
+            mFullScreen.drawFrame(textureId, transform);
 
-        drawBox(mFrameNum++);
+            drawBox(surface, mFrameNum);
 
-        mInputWindowSurface.setPresentationTime(timestampNanos);
-        mInputWindowSurface.swapBuffers();
+            surface.setPresentationTime(timestampNanos);
+            surface.swapBuffers();
+            mVideoEncoders[i].frameSubmitted(timestampNanos);
+        }
+        mFrameNum++;
     }
 
     /**
@@ -383,18 +531,16 @@ public class TextureMovieEncoder implements Runnable {
      */
     public void handleStopRecording() {
         Log.d(TAG, "handleStopRecording");
-        mVideoEncoder.drainEncoder(true);
+        int dropped = mFrameRing.getDroppedCount();
+        if (dropped > 0) {
+            Log.w(TAG, "dropped " + dropped + " frames while the encoder thread was behind");
+        }
+        for (VideoEncoderCore encoder : mVideoEncoders) {
+            encoder.drainEncoder(true);
+        }
         releaseEncoder();
     }
 
-    /**
-     * Sets the texture name that SurfaceTexture will use when frames are received.
-     */
-    private void handleSetTexture(int id) {
-        //Log.d(TAG, "handleSetTexture " + id);
-        mTextureId = id;
-    }
-
     /**
      * Tears down the EGL surface and context we've been using to feed the MediaCodec input
      * surface, and replaces it with a new one that shares with the new context.
@@ -405,15 +551,19 @@ public class TextureMovieEncoder implements Runnable {
     private void handleUpdateSharedContext(EGLContext newSharedContext) {
         Log.d(TAG, "handleUpdatedSharedContext " + newSharedContext);
 
-        // Release the EGLSurface and EGLContext.
-        mInputWindowSurface.releaseEglSurface();
+        // Release the EGLSurfaces and EGLContext.
+        for (WindowSurface surface : mInputWindowSurfaces) {
+            surface.releaseEglSurface();
+        }
         mFullScreen.release(false);
         mEglCore.release();
 
-        // Create a new EGLContext and recreate the window surface.
+        // Create a new EGLContext and recreate the window surfaces.
         mEglCore = new EglCore(newSharedContext, EglCore.FLAG_RECORDABLE);
-        mInputWindowSurface.recreate(mEglCore);
-        mInputWindowSurface.makeCurrent();
+        for (WindowSurface surface : mInputWindowSurfaces) {
+            surface.recreate(mEglCore);
+        }
+        mInputWindowSurfaces[0].makeCurrent();
 
         // Create new programs and such for the new context.
         mFullScreen = new FullFrameRect(
@@ -421,25 +571,61 @@ public class TextureMovieEncoder implements Runnable {
     }
 
     private void prepareEncoder(EGLContext sharedContext, int width, int height, int bitRate,
-            File outputFile) {
+            RecordingConfig recordingConfig, File outputFile, MediaMuxerWrapper muxer,
+            Muxer.Factory muxerFactory, Output[] extraOutputs) {
+        mVideoEncoders = new VideoEncoderCore[1 + extraOutputs.length];
         try {
-            mVideoEncoder = new VideoEncoderCore(width, height, bitRate, outputFile);
+            if (muxer != null) {
+                mVideoEncoders[0] = new VideoEncoderCore(width, height, bitRate,
+                        recordingConfig, muxer);
+            } else {
+                mVideoEncoders[0] = new VideoEncoderCore(width, height, bitRate,
+                        recordingConfig, outputFile, muxerFactory);
+            }
+            // Treat the requested rate as a ceiling, and back off if storage can't keep up.
+            mVideoEncoders[0].setBitRateBounds(bitRate / 4, bitRate);
+            for (int i = 0; i < extraOutputs.length; i++) {
+                Output output = extraOutputs[i];
+                Muxer.Factory outputFactory = (output.mMuxerFactory != null) ?
+                        output.mMuxerFactory : muxerFactory;
+                VideoEncoderCore encoder = new VideoEncoderCore(output.mWidth,
+                        output.mHeight, output.mBitRate, output.mRecordingConfig,
+                        output.mOutputFile, outputFactory);
+                encoder.setBitRateBounds(output.mBitRate / 4, output.mBitRate);
+                mVideoEncoders[1 + i] = encoder;
+            }
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
+        if (extraOutputs.length > 0) {
+            // Each encoder takes its own time, so stamping frames as they come out would
+            // leave the files out of step.  Keep the camera's time stamps instead.
+            for (VideoEncoderCore encoder : mVideoEncoders) {
+                encoder.setKeepInputTimestamps(true);
+            }
+        }
+
         mEglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE);
-        mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface(), true);
-        mInputWindowSurface.makeCurrent();
+        mInputWindowSurfaces = new WindowSurface[mVideoEncoders.length];
+        for (int i = 0; i < mVideoEncoders.length; i++) {
+            mInputWindowSurfaces[i] = new WindowSurface(mEglCore,
+                    mVideoEncoders[i].getInputSurface(), true);
+        }
+        mInputWindowSurfaces[0].makeCurrent();
 
         mFullScreen = new FullFrameRect(
                 new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
     }
 
     private void releaseEncoder() {
-        mVideoEncoder.release();
-        if (mInputWindowSurface != null) {
-            mInputWindowSurface.release();
-            mInputWindowSurface = null;
+        for (VideoEncoderCore encoder : mVideoEncoders) {
+            encoder.release();
+        }
+        if (mInputWindowSurfaces != null) {
+            for (WindowSurface surface : mInputWindowSurfaces) {
+                surface.release();
+            }
+            mInputWindowSurfaces = null;
         }
         if (mFullScreen != null) {
             mFullScreen.release(false);
@@ -453,24 +639,29 @@ public class TextureMovieEncoder implements Runnable {
     }
 
     /**
-     * Draws a box, with position offset.
+     * Draws a box, with position offset.  Sizes are scaled from the main output, so the box
+     * lands in the same place on every output.
      */
-    private void drawBox(int posn) {
-        final int width = mInputWindowSurface.getWidth();
-        int xpos = (posn * 4) % (width - 50);
+    private void drawBox(WindowSurface surface, int posn) {
+        final int mainWidth = mInputWindowSurfaces[0].getWidth();
+        final int width = surface.getWidth();
+        int xpos = (posn * 4) % (mainWidth - 50) * width / mainWidth;
+        int size = 100 * width / mainWidth;
         GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
-        GLES20.glScissor(xpos, 0, 100, 100);
+        GLES20.glScissor(xpos, 0, size, size);
         GLES20.glClearColor(1.0f, 0.0f, 1.0f, 1.0f);
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
         GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
     }
     // TODO: 2020/5/7  cmc add
-    private boolean mIsStarted;
+    private volatile boolean mIsStarted;
     public void startVideoRecording(){
 
         mIsStarted= true;//专门控制开始的变量
-        if(null != mVideoEncoder){
-            mVideoEncoder.setIsCapturing(true);
+        if(null != mVideoEncoders){
+            for (VideoEncoderCore encoder : mVideoEncoders) {
+                encoder.setIsCapturing(true);
+            }
         }
     }
 
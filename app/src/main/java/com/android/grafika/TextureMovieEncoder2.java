@@ -22,6 +22,7 @@ import android.os.Message;
 import android.util.Log;
 
 import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Encode a movie from frames rendered from an external texture image.
@@ -54,6 +55,7 @@ public class TextureMovieEncoder2 implements Runnable {
 
     // ----- accessed by multiple threads -----
     private volatile EncoderHandler mHandler;
+    private final AtomicBoolean mFramePending = new AtomicBoolean();   // MSG_FRAME_AVAILABLE queued
 
     private Object mReadyFence = new Object();      // guards ready/running
     private boolean mReady;
@@ -118,16 +120,26 @@ public class TextureMovieEncoder2 implements Runnable {
      * Tells the video recorder that a new frame is arriving soon.  (Call from non-encoder thread.)
      * <p>
      * This function sends a message and returns immediately.  This is fine -- the purpose is
-     * to wake the encoder thread up to do work so the producer side doesn't block.
+     * to wake the encoder thread up to do work so the producer side doesn't block.  If an
+     * earlier wake-up is still queued we don't send another; one pass covers them all.
      */
     public void frameAvailableSoon() {
-        synchronized (mReadyFence) {
-            if (!mReady) {
-                return;
-            }
+        EncoderHandler handler = mHandler;
+        if (handler == null) {
+            return;     // not ready
+        }
+
+        if (mFramePending.compareAndSet(false, true)) {
+            handler.sendMessage(handler.obtainMessage(MSG_FRAME_AVAILABLE));
         }
+    }
 
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE));
+    /**
+     * Tells the encoder's latency meter that a frame was just submitted.  Call right after
+     * swapBuffers() on the input surface.  (Call from non-encoder thread.)
+     */
+    public void frameSubmitted(long timestampNanos) {
+        mVideoEncoder.frameSubmitted(timestampNanos);
     }
 
     /**
@@ -194,6 +206,7 @@ public class TextureMovieEncoder2 implements Runnable {
      */
     private void handleFrameAvailable() {
         if (VERBOSE) Log.d(TAG, "handleFrameAvailable");
+        mFramePending.set(false);
         mVideoEncoder.drainEncoder(false);
     }
 
@@ -17,13 +17,15 @@
 package com.android.grafika;
 
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
 import android.util.Log;
 import android.view.Surface;
 
 import com.android.grafika.encoder.MediaMuxerWrapper;
+import com.android.grafika.muxer.Muxer;
 
 import java.io.File;
 import java.io.IOException;
@@ -33,27 +35,45 @@ import java.nio.ByteBuffer;
  * This class wraps up the core components used for surface-input video encoding.
  * <p>
  * Once created, frames are fed to the input surface.  Remember to provide the presentation
- * time stamp, and always call drainEncoder() before swapBuffers() to ensure that the
- * producer side doesn't get backed up.
+ * time stamp.  Encoded output is written to the muxer by a {@link CodecDriver} as soon as it
+ * appears; drainEncoder() just handles end of stream and sync frame requests.
  * <p>
  * This class is not thread-safe, with one exception: it is valid to use the input surface
- * on one thread, and drain the output on a different thread.
+ * on one thread, and call drainEncoder() on a different thread.
  */
 public class VideoEncoderCore {
     private static final String TAG = MainActivity.TAG;
     private static final boolean VERBOSE = false;
 
-    // TODO: these ought to be configurable as well
-    private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
+    // TODO: this ought to be configurable as well; codec and I-frame interval come from
+    //       the RecordingConfig
     private static final int FRAME_RATE = 30;               // 30fps
-    private static final int IFRAME_INTERVAL = 5;           // 5 seconds between I-frames
+    private static final long EOS_TIMEOUT_MSEC = 2000;      // give up on a stuck encoder
     private MediaMuxerWrapper mMuxer;
     private Surface mInputSurface;
 //    private MediaMuxer mMuxer;
     private MediaCodec mEncoder;
-    private MediaCodec.BufferInfo mBufferInfo;
+    private CodecDriver mDriver;
     private int mTrackIndex;
     private boolean mMuxerStarted;
+    private final int mConfiguredBitRate;
+    private final RecordingConfig.Selection mSelection;
+
+    // Totals for the bytes-per-minute figure logged at the end.  Driver thread.
+    private long mTotalBytes;
+    private long mFirstPtsUsec = -1;
+    private long mLastPtsUsec;
+
+    // If set, the muxer gets the input surface's time stamps unchanged.
+    private volatile boolean mKeepInputTimestamps;
+
+    // Submit-to-output time, if the producer reports its frames.
+    private final EncoderLatencyMeter mLatencyMeter = new EncoderLatencyMeter();
+
+    // Closed-loop rate control, if enabled.  The rest is used on the driver thread only.
+    private volatile BitrateController mRateController;
+    private long mRateSampleStartUsec = -1;
+    private long mRateSampleBytes;
 
 
     /**
@@ -100,25 +120,75 @@ public class VideoEncoderCore {
 
     public VideoEncoderCore(int width, int height, int bitRate, File outputFile)
             throws IOException {
-        mBufferInfo = new MediaCodec.BufferInfo();
+        this(width, height, bitRate, outputFile, Muxer.MEDIA_MUXER);
+    }
+
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.  The encoder
+     * gets a recording session of its own, with just the video track.
+     *
+     * @param muxerFactory Creates the muxer for the output file.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, File outputFile,
+            Muxer.Factory muxerFactory) throws IOException {
+        this(width, height, bitRate, RecordingConfig.DEFAULT, outputFile, muxerFactory, null);
+    }
 
-        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.  The encoder
+     * gets a recording session of its own, with just the video track.
+     *
+     * @param config Codec, profile, and rate control to use, where the device supports them.
+     * @param muxerFactory Creates the muxer for the output file.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, RecordingConfig config,
+            File outputFile, Muxer.Factory muxerFactory) throws IOException {
+        this(width, height, bitRate, config, outputFile, muxerFactory, null);
+    }
 
-        // Set some properties.  Failing to specify some of these can cause the MediaCodec
-        // configure() call to throw an unhelpful exception.
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+    /**
+     * Configures encoder state, and prepares the input Surface.  The video track is added to
+     * an existing recording session, which may have other encoders (e.g. audio) attached.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, MediaMuxerWrapper muxer)
+            throws IOException {
+        this(width, height, bitRate, RecordingConfig.DEFAULT, null, null, muxer);
+    }
+
+    /**
+     * Configures encoder state, and prepares the input Surface.  The video track is added to
+     * an existing recording session, which may have other encoders (e.g. audio) attached.
+     *
+     * @param config Codec, profile, and rate control to use, where the device supports them.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, RecordingConfig config,
+            MediaMuxerWrapper muxer) throws IOException {
+        this(width, height, bitRate, config, null, null, muxer);
+    }
+
+    private VideoEncoderCore(int width, int height, int bitRate, RecordingConfig config,
+            File outputFile, Muxer.Factory muxerFactory, MediaMuxerWrapper muxer)
+            throws IOException {
+        mSelection = config.select(width, height,
+                (muxer != null) ? muxer.getMuxerFactory() : muxerFactory);
+        MediaFormat format = mSelection.createVideoFormat(width, height, bitRate, FRAME_RATE);
         if (VERBOSE) Log.d(TAG, "format: " + format);
+        mConfiguredBitRate = bitRate;
+
+        CodecRegistry.Entry entry =
+                CodecRegistry.getInstance().find(mSelection.getMimeType(), true);
+        if (entry != null && !entry.isSizeSupported(width, height)) {
+            // Try anyway; some codecs under-report.  configure() will throw if it's really bad.
+            Log.w(TAG, entry.getName() + " doesn't claim support for " + width + "x" + height);
+        }
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        mEncoder = CodecPool.getInstance().acquire(
+                new CodecPool.Key(mSelection.getMimeType(), true, width, height, true));
+        mDriver = new CodecDriver(mEncoder, "VideoEncoderCore", mDriverCallback);
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mInputSurface = mEncoder.createInputSurface();
-        mEncoder.start();
 
         // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
         // because our MediaFormat doesn't have the Magic Goodies.  These can only be
@@ -147,10 +217,32 @@ public class VideoEncoderCore {
 
 
         // TODO: 2020/5/7 cmc add
-        mMuxer = MediaMuxerWrapper.getInstance(outputFile.getAbsolutePath());
+        if (muxer == null) {
+            muxer = new MediaMuxerWrapper(outputFile.getAbsolutePath(), muxerFactory);
+            muxer.registerTrack();
+        }
+        mMuxer = muxer;
         mTrackIndex = -1;
         mMuxerStarted = false;
+        mDriver.start();
+    }
+    /**
+     * Has the codec pool create an encoder for this size in the background, so starting a
+     * recording doesn't have to wait for one.
+     */
+    public static void prewarm(int width, int height) {
+        prewarm(RecordingConfig.DEFAULT, width, height);
     }
+
+    /**
+     * Has the codec pool create the encoder the config would pick for this size.
+     */
+    public static void prewarm(RecordingConfig config, int width, int height) {
+        String mimeType = config.select(width, height).getMimeType();
+        CodecPool.getInstance().prewarm(
+                new CodecPool.Key(mimeType, true, width, height, true), 1);
+    }
+
     /**
      * Returns the encoder's input surface.
      */
@@ -158,16 +250,48 @@ public class VideoEncoderCore {
         return mInputSurface;
     }
 
+    /**
+     * Tells the latency meter a frame was just submitted to the input surface.  Call right
+     * after swapBuffers(), with the time stamp given to setPresentationTime().
+     */
+    public void frameSubmitted(long timestampNanos) {
+        mLatencyMeter.frameSubmitted(timestampNanos);
+    }
+
+    /**
+     * Writes the time stamps given to the input surface instead of the time each frame
+     * comes out of the encoder.  Use this when several encoders are fed the same frames and
+     * their outputs have to line up; the time each encoder takes doesn't then leak into the
+     * file.  Surface time stamps from SurfaceTexture use the same clock as
+     * System.nanoTime(), so audio in the same session stays in step.  Call before feeding
+     * frames.
+     */
+    public void setKeepInputTimestamps(boolean keep) {
+        mKeepInputTimestamps = keep;
+    }
+
+    /**
+     * Returns the submit-to-output latency meter.
+     */
+    public EncoderLatencyMeter getLatencyMeter() {
+        return mLatencyMeter;
+    }
+
     /**
      * Releases encoder resources.
      */
     public void release() {
         if (VERBOSE) Log.d(TAG, "releasing encoder objects");
         mIsCapturing = false;
-        if (mEncoder != null) {
-            mEncoder.stop();
-            mEncoder.release();
+        if (mDriver != null) {
+            // Waits for the driver thread, so nothing is still writing to the muxer.
+            mDriver.release();
+            mDriver = null;
             mEncoder = null;
+            logBytesPerMinute();
+            if (mLatencyMeter.getHistogram().getCount() > 0) {
+                Log.d(TAG, mLatencyMeter + " with " + mSelection);
+            }
         }
         if (mMuxer != null) {
             // TODO: stop() throws an exception if you haven't fed it any data.  Keep track
@@ -183,123 +307,156 @@ public class VideoEncoderCore {
     }
 
     /**
-     * Extracts all pending data from the encoder and forwards it to the muxer.
-     * <p>
-     * If endOfStream is not set, this returns when there is no more data to drain.  If it
-     * is set, we send EOS to the encoder, and then iterate until we see EOS on the output.
-     * Calling this with endOfStream set should be done once, right before stopping the muxer.
-     * <p>
-     * We're just using the muxer to get a .mp4 file (instead of a raw H.264 stream).  We're
-     * not recording audio.
+     * Asks the encoder to make the next frame a sync frame.  Used when the muxer wants to
+     * start a new segment.  Needs API 19; on older devices we just wait for the next
+     * scheduled one.
      */
-    public void drainEncoder(boolean endOfStream) {
-        final int TIMEOUT_USEC = 10000;
-        if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
-
-        if (endOfStream) {
-            if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
-//
-            mEncoder.signalEndOfInputStream();
+    public void requestSyncFrame() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return;
         }
+        if (VERBOSE) Log.d(TAG, "requesting sync frame");
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mEncoder.setParameters(params);
+    }
 
-        ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
-        LOOP:  while (true) {
-            int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                // no output available yet
-                if (!endOfStream) {
-                    break;      // out of while
-                } else {
-                    if (VERBOSE) Log.d(TAG, "no output available, spinning to await EOS");
-                }
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                // not expected for an encoder
-                encoderOutputBuffers = mEncoder.getOutputBuffers();
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // should happen before receiving buffers, and should only happen once
-                if (mMuxerStarted) {
-                    throw new RuntimeException("format changed twice");
-                }
-                // TODO: 2020/5/7 origin
-//                MediaFormat newFormat = mEncoder.getOutputFormat();
-//                Log.d(TAG, "encoder output format changed: " + newFormat);
-//
-//                // now that we have the Magic Goodies, start the muxer
-//                mTrackIndex = mMuxer.addTrack(newFormat);
-//                mMuxer.start();
-//                mMuxerStarted = true;
-                // TODO: 2020/5/7 cmc add
-                final MediaFormat format = mEncoder.getOutputFormat(); // API >= 16
-                mTrackIndex = mMuxer.addTrack(format);
-                mMuxerStarted = true;
-                if (!mMuxer.start()) {
-                    // we should wait until muxer is ready`
-                    synchronized (mMuxer) {
-                        while (!mMuxer.isStarted())
-                            try {
-                                mMuxer.wait(100);
-                            } catch (final InterruptedException e) {
-                                break LOOP;
-                            }
-                    }
-                }
-
-            } else if (encoderStatus < 0) {
-                Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
-                        encoderStatus);
-                // let's ignore it
-            } else {
-                ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                if (encodedData == null) {
-                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
-                            " was null");
-                }
-
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // The codec config data was pulled out and fed to the muxer when we got
-                    // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
-                    if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
-                }
+    /**
+     * Lets the bit rate float between the given bounds, following how fast the muxer is
+     * actually getting the data written (see {@link BitrateController}).  Call before
+     * feeding frames.  Needs API 19; ignored on older devices.
+     */
+    public void setBitRateBounds(int minBitRate, int maxBitRate) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            Log.w(TAG, "can't change the bit rate on this device");
+            return;
+        }
+        if (mSelection.isConstantQuality()) {
+            Log.d(TAG, "constant quality; not steering the bit rate");
+            return;
+        }
+        mRateController = new BitrateController(minBitRate, maxBitRate, mConfiguredBitRate);
+    }
 
-                if (mBufferInfo.size != 0) {
-                    if (!mMuxerStarted) {
-                        throw new RuntimeException("muxer hasn't started");
-                    }
+    /**
+     * Returns the bit rate we're currently asking the encoder for.
+     */
+    public int getBitRate() {
+        BitrateController controller = mRateController;
+        return (controller == null) ? mConfiguredBitRate : controller.getBitRate();
+    }
 
-                    // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                    encodedData.position(mBufferInfo.offset);
-                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
+    /**
+     * Logs how much encoded video we produced per minute, so configs can be compared.
+     */
+    private void logBytesPerMinute() {
+        long durationUsec = mLastPtsUsec - mFirstPtsUsec;
+        if (mFirstPtsUsec < 0 || durationUsec <= 0) {
+            return;
+        }
+        Log.d(TAG, "encoded " + mTotalBytes + " bytes in " + durationUsec / 1000 + "ms (" +
+                mTotalBytes * 60000000L / durationUsec / 1024 + " KB/min) with " + mSelection);
+    }
 
-//                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-//                    if (VERBOSE) {
-//                        Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
-//                                mBufferInfo.presentationTimeUs);
-//                    }
+    /**
+     * Counts an encoded packet, and once per sample interval gives the rate controller the
+     * muxer's backlog and write times and applies its decision.  Driver thread.
+     */
+    private void updateBitRate(int size, long ptsUsec) {
+        BitrateController controller = mRateController;
+        if (controller == null) {
+            return;
+        }
+        mRateSampleBytes += size;
+        if (mRateSampleStartUsec >= 0 &&
+                ptsUsec - mRateSampleStartUsec < BitrateController.SAMPLE_INTERVAL_USEC) {
+            return;
+        }
+        int oldRate = controller.getBitRate();
+        int newRate = controller.update(ptsUsec, mRateSampleBytes, mMuxer.getQueuedBytes(),
+                mMuxer.pollPeakWriteUsec());
+        mRateSampleStartUsec = ptsUsec;
+        mRateSampleBytes = 0;
+        if (newRate != oldRate) {
+            Log.d(TAG, "bit rate " + oldRate + " -> " + newRate + ": " + controller);
+            mDriver.setVideoBitRate(newRate);
+        }
+    }
 
-                    mBufferInfo.presentationTimeUs = getPTSUs();
-                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    prevOutputPTSUs = mBufferInfo.presentationTimeUs;
-                }
+    /**
+     * Handles end of stream and sync frame requests.  The encoded data itself goes to the
+     * muxer from the driver thread as it's produced, so there's nothing to drain.
+     * <p>
+     * If endOfStream is set, we send EOS to the encoder and wait until the driver has seen
+     * it on the output.  Calling this with endOfStream set should be done once, right before
+     * stopping the muxer.
+     */
+    public void drainEncoder(boolean endOfStream) {
+        if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
 
-                mEncoder.releaseOutputBuffer(encoderStatus, false);
+        if (endOfStream) {
+            mDriver.signalEndOfInputStream();
+            if (!mDriver.awaitEndOfStream(EOS_TIMEOUT_MSEC)) {
+                Log.w(TAG, "timed out waiting for end of stream");
+            }
+        } else if (mMuxer != null && mMuxer.pollSyncFrameRequest()) {
+            requestSyncFrame();
+        }
+    }
 
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    if (!endOfStream) {
-                        Log.w(TAG, "reached end of stream unexpectedly");
-                    } else {
-                        if (VERBOSE) Log.d(TAG, "end of stream reached");
+    /**
+     * Receives the encoder output on the driver thread.
+     */
+    private final CodecDriver.Callback mDriverCallback = new CodecDriver.Callback() {
+        @Override
+        public void onOutputFormatChanged(CodecDriver driver, MediaFormat format) {
+            // should happen before receiving buffers, and should only happen once
+            if (mMuxerStarted) {
+                throw new RuntimeException("format changed twice");
+            }
+            Log.d(TAG, "encoder output format changed: " + format);
+            mTrackIndex = mMuxer.addTrack(format);
+            mMuxerStarted = true;
+            if (!mMuxer.start()) {
+                // we should wait until muxer is ready
+                synchronized (mMuxer) {
+                    while (!mMuxer.isStarted()) {
+                        try {
+                            mMuxer.wait(100);
+                        } catch (final InterruptedException e) {
+                            return;
+                        }
                     }
-                    break;      // out of while
                 }
             }
         }
-    }
-
-
-
-
 
+        @Override
+        public boolean onOutputBuffer(CodecDriver driver, ByteBuffer encodedData,
+                MediaCodec.BufferInfo info) {
+            if (!mMuxerStarted) {
+                throw new RuntimeException("muxer hasn't started");
+            }
+            // The surface's time stamp, before we (maybe) replace it with our own.
+            mLatencyMeter.frameEncoded(info.presentationTimeUs);
+            if (!mKeepInputTimestamps) {
+                info.presentationTimeUs = getPTSUs();
+            }
+            mMuxer.writeSampleData(mTrackIndex, encodedData, info);
+            prevOutputPTSUs = info.presentationTimeUs;
+            if (VERBOSE) {
+                Log.d(TAG, "sent " + info.size + " bytes to muxer, ts=" +
+                        info.presentationTimeUs);
+            }
+            if (mFirstPtsUsec < 0) {
+                mFirstPtsUsec = info.presentationTimeUs;
+            }
+            mLastPtsUsec = info.presentationTimeUs;
+            mTotalBytes += info.size;
+            updateBitRate(info.size, info.presentationTimeUs);
+            return false;
+        }
+    };
 
     protected void signalEndOfInputStream() {
         if (DEBUG) Log.d(TAG, "sending EOS to encoder");
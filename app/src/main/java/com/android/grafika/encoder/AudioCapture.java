@@ -0,0 +1,301 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.encoder;
+
+import android.annotation.TargetApi;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import com.android.grafika.CodecDriver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads 16-bit mono PCM from the microphone and feeds it to an audio encoder.  Used by
+ * {@link MediaAudioEncoder} and {@link com.android.grafika.AudioEncoderCore}.
+ * <p>
+ * {@link #run} reads on the calling thread into a {@link PcmRing}, and a feed thread copies
+ * the chunks into the encoder's input buffers, so waiting for the codec never delays
+ * AudioRecord.read().  If the encoder falls so far behind that the ring fills, reading
+ * carries on and the chunks are dropped, rather than letting AudioRecord overrun.
+ * <p>
+ * Presentation times count samples from the start of capture, on the System.nanoTime()
+ * clock (the time base of camera timestamps), which avoids the jitter of stamping each read
+ * with the current time.  Dropped chunks still count, so they leave a gap instead of
+ * pulling the audio after them early.
+ */
+public class AudioCapture {
+    private static final String TAG = "AudioCapture";
+    private static final boolean VERBOSE = false;
+
+    /** The only rate guaranteed to be available on all devices. */
+    public static final int SAMPLE_RATE = 44100;
+    private static final int BYTES_PER_SAMPLE = 2;      // 16-bit mono
+
+    // Chunks between the capture thread and the feed thread (a power of two).
+    private static final int RING_CHUNKS = 8;
+    private static final int TIMEOUT_USEC = 10000;
+    // How long the feed thread keeps offering what's left after stop().
+    private static final long STOP_TIMEOUT_MSEC = 1000;
+
+    /**
+     * Receives notifications from the feed thread.
+     */
+    public interface Listener {
+        /**
+         * Called on the feed thread after each input buffer is queued.
+         */
+        void onInputQueued();
+    }
+
+    private final CodecDriver mDriver;
+    private final int[] mAudioSources;
+    private final int mChunkSize;
+    private final Listener mListener;
+
+    private volatile boolean mStopRequested;
+    private volatile long mGiveUpNanos;
+
+    /**
+     * @param driver Driver of the started encoder, configured for 16-bit mono PCM at
+     *     {@link #SAMPLE_RATE}.
+     * @param audioSources MediaRecorder.AudioSource values to try, in order.
+     * @param chunkSize Bytes to read at a time, unless the codec says its input buffers are
+     *     a different size.
+     * @param listener Notified as input is queued; may be null.
+     */
+    public AudioCapture(CodecDriver driver, int[] audioSources, int chunkSize,
+            Listener listener) {
+        mDriver = driver;
+        mAudioSources = audioSources.clone();
+        mChunkSize = chunkSize;
+        mListener = listener;
+    }
+
+    /**
+     * Captures until {@link #stop} is called, then waits until everything read has been
+     * queued to the encoder.  Call on a thread with audio priority.
+     *
+     * @return The number of chunks passed to the encoder; 0 if AudioRecord couldn't be
+     *     opened.
+     */
+    public int run() {
+        int minBufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        int bufferSize = Math.max(minBufferSize, mChunkSize * 4);
+        AudioRecord audioRecord = open(bufferSize);
+        if (audioRecord == null) {
+            Log.e(TAG, "failed to initialize AudioRecord");
+            return 0;
+        }
+
+        int chunkSize = getChunkSize(bufferSize);
+        PcmRing ring = new PcmRing(RING_CHUNKS, chunkSize);
+        FeedThread feedThread = new FeedThread(ring);
+        ByteBuffer overflow = null;     // where reads go while the ring is full
+        int count = 0;
+        int dropped = 0;
+        feedThread.start();
+        try {
+            long startUsec = System.nanoTime() / 1000;
+            long samples = 0;
+            audioRecord.startRecording();
+            while (!mStopRequested) {
+                ByteBuffer buf = ring.obtain();
+                if (buf == null) {
+                    if (overflow == null) {
+                        overflow = ByteBuffer.allocateDirect(chunkSize);
+                    }
+                    buf = overflow;
+                    buf.clear();
+                }
+                int readBytes = audioRecord.read(buf, chunkSize);
+                if (readBytes < 0) {
+                    Log.w(TAG, "AudioRecord.read failed: " + readBytes);
+                    break;
+                }
+                long ptsUsec = startUsec + samples * 1000000 / SAMPLE_RATE;
+                samples += readBytes / BYTES_PER_SAMPLE;
+                if (readBytes == 0) {
+                    continue;
+                }
+                if (buf == overflow) {
+                    dropped++;
+                    continue;
+                }
+                buf.position(readBytes);
+                buf.flip();
+                ring.publish(ptsUsec);
+                count++;
+            }
+        } finally {
+            audioRecord.stop();
+            audioRecord.release();
+            ring.close();
+            try {
+                feedThread.join();
+            } catch (InterruptedException ie) {
+                feedThread.interrupt();
+            }
+        }
+        if (dropped > 0) {
+            Log.w(TAG, "encoder too slow, dropped " + dropped + " chunks");
+        }
+        if (VERBOSE) Log.d(TAG, "capture finished, " + count + " chunks");
+        return count;
+    }
+
+    /**
+     * Asks {@link #run} to stop reading.  What's already been read still goes to the
+     * encoder, unless it stops taking input for a while.
+     */
+    public void stop() {
+        mGiveUpNanos = System.nanoTime() + STOP_TIMEOUT_MSEC * 1000000L;
+        mStopRequested = true;
+    }
+
+    /**
+     * Returns an initialized AudioRecord from the first source that works, or null.
+     */
+    private AudioRecord open(int bufferSize) {
+        for (int source : mAudioSources) {
+            AudioRecord audioRecord;
+            try {
+                audioRecord = new AudioRecord(source, SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+                        AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+            } catch (RuntimeException re) {
+                Log.w(TAG, "can't open audio source " + source, re);
+                continue;
+            }
+            if (audioRecord.getState() == AudioRecord.STATE_INITIALIZED) {
+                return audioRecord;
+            }
+            audioRecord.release();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of bytes to read at a time: the codec's input buffer size if it
+     * tells us (API 21), limited to half the AudioRecord buffer so a read never waits for
+     * the whole buffer to fill.
+     */
+    private int getChunkSize(int recordBufferSize) {
+        int size = mChunkSize;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            int maxInputSize = getMaxInputSize();
+            if (maxInputSize > 0) {
+                size = maxInputSize;
+            }
+        }
+        size = Math.min(size, recordBufferSize / 2);
+        return Math.max(BYTES_PER_SAMPLE, size & ~(BYTES_PER_SAMPLE - 1));
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private int getMaxInputSize() {
+        try {
+            MediaFormat inputFormat = mDriver.getCodec().getInputFormat();
+            if (inputFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                return inputFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+            }
+        } catch (RuntimeException re) {
+            Log.w(TAG, "can't get codec input format", re);
+        }
+        return 0;
+    }
+
+    private static long bytesToUsec(int bytes) {
+        return (bytes / BYTES_PER_SAMPLE) * 1000000L / SAMPLE_RATE;
+    }
+
+    /**
+     * Copies PCM chunks from the ring into the encoder's input buffers.  Each time it wakes
+     * it takes every chunk that's ready, packing as many as fit into each input buffer.  A
+     * chunk bigger than the input buffer is split across several.
+     */
+    private class FeedThread extends Thread {
+        private final PcmRing mRing;
+
+        FeedThread(PcmRing ring) {
+            super("AudioCapture-feed");
+            mRing = ring;
+        }
+
+        @Override
+        public void run() {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_AUDIO);
+            try {
+                while (mRing.await()) {
+                    if (!feed()) {
+                        break;
+                    }
+                }
+            } catch (RuntimeException re) {
+                // Most likely the encoder was released under us.
+                Log.e(TAG, "feed failed", re);
+            }
+            if (VERBOSE) Log.d(TAG, "feed finished");
+        }
+
+        /**
+         * Fills input buffers until the ring is empty.
+         *
+         * @return False if the encoder stopped taking input after stop().
+         */
+        private boolean feed() {
+            ByteBuffer chunk;
+            while ((chunk = mRing.peek()) != null) {
+                int index = mDriver.dequeueInputBuffer(TIMEOUT_USEC);
+                if (index < 0) {
+                    if (mStopRequested && System.nanoTime() > mGiveUpNanos) {
+                        Log.w(TAG, "encoder stopped taking input, dropping the rest");
+                        return false;
+                    }
+                    continue;
+                }
+                ByteBuffer input = mDriver.getInputBuffer(index);
+                input.clear();
+                // The first chunk's time, adjusted for any part already sent.
+                long ptsUsec = mRing.peekPtsUs() + bytesToUsec(chunk.position());
+                while (chunk != null && input.hasRemaining()) {
+                    if (chunk.remaining() <= input.remaining()) {
+                        input.put(chunk);
+                        mRing.release();
+                        chunk = mRing.peek();
+                    } else if (input.position() == 0) {
+                        // Split a chunk that's bigger than the input buffer.
+                        int limit = chunk.limit();
+                        chunk.limit(chunk.position() + input.remaining());
+                        input.put(chunk);
+                        chunk.limit(limit);
+                    } else {
+                        break;
+                    }
+                }
+                mDriver.queueInputBuffer(index, 0, input.position(), ptsUsec, 0);
+                if (mListener != null) {
+                    mListener.onInputQueued();
+                }
+            }
+            return true;
+        }
+    }
+}
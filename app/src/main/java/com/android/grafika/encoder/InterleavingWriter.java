@@ -0,0 +1,399 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.encoder;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import com.android.grafika.muxer.Muxer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Writes samples to a Muxer from a thread of its own.
+ * <p>
+ * The encoders used to call the muxer directly, under the session lock, so a slow write to
+ * flash on behalf of one track stalled the drain loop of the other: dropped video frames,
+ * AudioRecord overruns.  Now each encoder copies its sample into a pooled buffer and queues
+ * it, and the writer thread does the muxer calls.
+ * <p>
+ * Samples are written in PTS order across tracks.  When a track has nothing queued we hold
+ * the others for a short while in case it's about to deliver something earlier, then give
+ * up and write them anyway, so a track that has ended doesn't stall the rest.
+ * <p>
+ * The queue is bounded.  If the writer falls too far behind, queueSample() blocks until
+ * there's room, pushing back on the encoders instead of growing without limit.
+ */
+class InterleavingWriter implements Runnable {
+    private static final String TAG = "InterleavingWriter";
+    private static final boolean VERBOSE = false;
+
+    /** Default limits on the amount of queued data. */
+    static final int DEFAULT_MAX_SAMPLES = 120;
+    static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    // How long the head of one track waits for a sample on an empty track.
+    private static final long INTERLEAVE_WAIT_NANOS = 50 * 1000000L;
+
+    /**
+     * One queued sample.  Recycled through the free list; the data buffer is kept and
+     * reused if it's large enough.
+     */
+    private static class Sample {
+        int mTrack;
+        ByteBuffer mData;
+        final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        long mQueuedNanos;
+    }
+
+    private final Muxer mMuxer;
+    private final int mMaxSamples;
+    private final int mMaxBytes;
+    private Thread mThread;
+
+    // Everything below is guarded by mLock.
+    private final Object mLock = new Object();
+    private final ArrayList<ArrayDeque<Sample>> mQueues = new ArrayList<ArrayDeque<Sample>>();
+    private final ArrayDeque<Sample> mFree = new ArrayDeque<Sample>();
+    private int mQueuedSamples;         // includes samples reserved but still being copied
+    private int mQueuedBytes;
+    private boolean mFinishing;
+    private boolean mAborted;
+
+    // Stats.
+    private int mMaxQueuedSamples;
+    private int mMaxQueuedBytes;
+    private long mWrittenCount;
+    private long mTotalLatencyNanos;
+    private long mMaxLatencyNanos;
+    private long mMaxWriteNanos;
+    private long mPeakWriteNanos;       // since the last pollPeakWriteUsec()
+    private int mBackpressureCount;
+    private long mBackpressureNanos;
+
+    /**
+     * @param muxer Started muxer.  Only the writer thread calls it until finish() returns.
+     * @param trackCount Number of tracks; more are added if samples arrive for them.
+     */
+    InterleavingWriter(Muxer muxer, int trackCount, int maxSamples, int maxBytes) {
+        mMuxer = muxer;
+        mMaxSamples = maxSamples;
+        mMaxBytes = maxBytes;
+        for (int i = 0; i < trackCount; i++) {
+            mQueues.add(new ArrayDeque<Sample>());
+        }
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    void start() {
+        mThread = new Thread(this, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Copies a sample and queues it for writing.  Blocks if the queue is full.  The
+     * buffer's position and limit are unchanged.
+     *
+     * @return false if the sample was dropped because the writer has stopped.
+     */
+    boolean queueSample(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        final int size = bufferInfo.size;
+        Sample sample;
+        synchronized (mLock) {
+            if (isFullLocked(size)) {
+                mBackpressureCount++;
+                long startNanos = System.nanoTime();
+                while (!mFinishing && !mAborted && isFullLocked(size)) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                mBackpressureNanos += System.nanoTime() - startNanos;
+            }
+            if (mFinishing || mAborted) {
+                return false;
+            }
+            // Reserve the space now, so other producers see it while we copy.
+            mQueuedSamples++;
+            mQueuedBytes += size;
+            sample = mFree.poll();
+        }
+
+        if (sample == null) {
+            sample = new Sample();
+        }
+        if (sample.mData == null || sample.mData.capacity() < size) {
+            sample.mData = ByteBuffer.allocateDirect(size);
+        }
+        int oldPosition = byteBuf.position();
+        int oldLimit = byteBuf.limit();
+        byteBuf.limit(bufferInfo.offset + size);
+        byteBuf.position(bufferInfo.offset);
+        sample.mData.clear();
+        sample.mData.put(byteBuf);
+        sample.mData.flip();
+        byteBuf.limit(oldLimit);
+        byteBuf.position(oldPosition);
+        sample.mTrack = trackIndex;
+        sample.mInfo.set(0, size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+
+        synchronized (mLock) {
+            while (mQueues.size() <= trackIndex) {
+                mQueues.add(new ArrayDeque<Sample>());
+            }
+            sample.mQueuedNanos = System.nanoTime();
+            mQueues.get(trackIndex).add(sample);
+            mMaxQueuedSamples = Math.max(mMaxQueuedSamples, mQueuedSamples);
+            mMaxQueuedBytes = Math.max(mMaxQueuedBytes, mQueuedBytes);
+            mLock.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Writes out everything still queued, then stops the writer thread.  Samples queued
+     * after this is called are dropped.  On return the caller may use the muxer again.
+     */
+    void finish() {
+        synchronized (mLock) {
+            mFinishing = true;
+            mLock.notifyAll();
+        }
+        join();
+    }
+
+    /**
+     * Stops the writer thread, discarding anything still queued.
+     */
+    void abort() {
+        synchronized (mLock) {
+            mAborted = true;
+            mLock.notifyAll();
+        }
+        join();
+    }
+
+    private void join() {
+        if (mThread == null || mThread == Thread.currentThread()) {
+            return;
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "interrupted waiting for writer thread");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the number of samples queued right now.
+     */
+    int getQueueDepth() {
+        synchronized (mLock) {
+            return mQueuedSamples;
+        }
+    }
+
+    /**
+     * Returns the largest number of samples that have been queued at once.
+     */
+    int getMaxQueueDepth() {
+        synchronized (mLock) {
+            return mMaxQueuedSamples;
+        }
+    }
+
+    /**
+     * Returns the number of bytes queued right now.
+     */
+    int getQueuedBytes() {
+        synchronized (mLock) {
+            return mQueuedBytes;
+        }
+    }
+
+    /**
+     * Returns the largest number of bytes that have been queued at once.
+     */
+    int getMaxQueuedBytes() {
+        synchronized (mLock) {
+            return mMaxQueuedBytes;
+        }
+    }
+
+    /**
+     * Returns the mean time from queueSample() to the muxer finishing the write, in
+     * microseconds.
+     */
+    long getAverageLatencyUsec() {
+        synchronized (mLock) {
+            return (mWrittenCount == 0) ? 0 : mTotalLatencyNanos / mWrittenCount / 1000;
+        }
+    }
+
+    /**
+     * Returns the longest time from queueSample() to the muxer finishing the write, in
+     * microseconds.
+     */
+    long getMaxLatencyUsec() {
+        synchronized (mLock) {
+            return mMaxLatencyNanos / 1000;
+        }
+    }
+
+    /**
+     * Returns the longest single muxer write, in microseconds.
+     */
+    long getMaxWriteUsec() {
+        synchronized (mLock) {
+            return mMaxWriteNanos / 1000;
+        }
+    }
+
+    /**
+     * Returns the longest single muxer write since the last call, in microseconds, and
+     * starts over.
+     */
+    long pollPeakWriteUsec() {
+        synchronized (mLock) {
+            long peakNanos = mPeakWriteNanos;
+            mPeakWriteNanos = 0;
+            return peakNanos / 1000;
+        }
+    }
+
+    /**
+     * Returns the number of times an encoder had to wait for room in the queue.
+     */
+    int getBackpressureCount() {
+        synchronized (mLock) {
+            return mBackpressureCount;
+        }
+    }
+
+    /**
+     * Returns the total time encoders spent waiting for room in the queue, in milliseconds.
+     */
+    long getBackpressureMsec() {
+        synchronized (mLock) {
+            return mBackpressureNanos / 1000000;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Sample sample;
+            synchronized (mLock) {
+                try {
+                    sample = takeNextLocked();
+                } catch (InterruptedException ie) {
+                    Log.w(TAG, "writer interrupted");
+                    return;
+                }
+            }
+            if (sample == null) {
+                break;
+            }
+
+            long startNanos = System.nanoTime();
+            try {
+                mMuxer.writeSampleData(sample.mTrack, sample.mData, sample.mInfo);
+            } catch (RuntimeException re) {
+                // Nothing sensible to do with the rest of the file.  Let the producers
+                // carry on, dropping their samples.
+                Log.e(TAG, "muxer write failed", re);
+                synchronized (mLock) {
+                    mAborted = true;
+                    mLock.notifyAll();
+                }
+                break;
+            }
+            long endNanos = System.nanoTime();
+
+            synchronized (mLock) {
+                mQueuedSamples--;
+                mQueuedBytes -= sample.mInfo.size;
+                long latency = endNanos - sample.mQueuedNanos;
+                mWrittenCount++;
+                mTotalLatencyNanos += latency;
+                mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latency);
+                mMaxWriteNanos = Math.max(mMaxWriteNanos, endNanos - startNanos);
+                mPeakWriteNanos = Math.max(mPeakWriteNanos, endNanos - startNanos);
+                mFree.add(sample);
+                mLock.notifyAll();
+            }
+        }
+        if (VERBOSE) Log.d(TAG, "writer done, wrote " + mWrittenCount);
+    }
+
+    /**
+     * Waits for and removes the next sample to write.  Returns null when the writer should
+     * stop.
+     */
+    private Sample takeNextLocked() throws InterruptedException {
+        while (true) {
+            if (mAborted) {
+                return null;
+            }
+
+            // Find the earliest head, and whether every track has one.
+            ArrayDeque<Sample> bestQueue = null;
+            Sample best = null;
+            boolean allReady = true;
+            for (int i = 0; i < mQueues.size(); i++) {
+                ArrayDeque<Sample> queue = mQueues.get(i);
+                Sample head = queue.peek();
+                if (head == null) {
+                    allReady = false;
+                } else if (best == null ||
+                        head.mInfo.presentationTimeUs < best.mInfo.presentationTimeUs) {
+                    best = head;
+                    bestQueue = queue;
+                }
+            }
+
+            if (best == null) {
+                if (mFinishing && mQueuedSamples == 0) {
+                    return null;
+                }
+                mLock.wait();
+                continue;
+            }
+
+            long waitNanos = INTERLEAVE_WAIT_NANOS - (System.nanoTime() - best.mQueuedNanos);
+            if (allReady || mFinishing || waitNanos <= 0 || isFullLocked(0)) {
+                bestQueue.poll();
+                return best;
+            }
+            mLock.wait(Math.max(1, waitNanos / 1000000));
+        }
+    }
+
+    private boolean isFullLocked(int size) {
+        // Always let one sample through, however big, so we can't deadlock.
+        return mQueuedSamples >= mMaxSamples ||
+                (mQueuedSamples > 0 && mQueuedBytes + size > mMaxBytes);
+    }
+}
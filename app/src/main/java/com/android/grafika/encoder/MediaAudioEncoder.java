@@ -23,14 +23,14 @@ package com.android.grafika.encoder;
 */
 
 import android.media.AudioFormat;
-import android.media.AudioRecord;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
 import android.util.Log;
 
+import com.android.grafika.CodecRegistry;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
@@ -39,12 +39,18 @@ public class MediaAudioEncoder extends MediaEncoder {
 	private static final String TAG = "MediaAudioEncoder";
 
 	private static final String MIME_TYPE = "audio/mp4a-latm";
-    private static final int SAMPLE_RATE = 44100;	// 44.1[KHz] is only setting guaranteed to be available on all devices.
+    private static final int SAMPLE_RATE = AudioCapture.SAMPLE_RATE;	// 44.1[KHz] is only setting guaranteed to be available on all devices.
     private static final int BIT_RATE = 64000;
 	public static final int SAMPLES_PER_FRAME = 1024;	// AAC, bytes/frame/channel
 	public static final int FRAMES_PER_BUFFER = 25; 	// AAC, frame/buffer/sec
+	/**
+	 * PCM read from AudioRecord at a time, unless the codec says its input buffers are
+	 * a different size: 4 AAC frames of 16bit mono, about 93msec.
+	 */
+	private static final int INPUT_CHUNK_SIZE = SAMPLES_PER_FRAME * 2 * 4;
 
     private AudioThread mAudioThread = null;
+    private volatile AudioCapture mCapture;
 
 	public MediaAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
 		super(muxer, listener);
@@ -56,24 +62,26 @@ public class MediaAudioEncoder extends MediaEncoder {
         mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
         // prepare MediaCodec for AAC encoding of audio data from inernal mic.
-        final MediaCodecInfo audioCodecInfo = selectAudioCodec(MIME_TYPE);
-        if (audioCodecInfo == null) {
+        final CodecRegistry.Entry audioCodec = CodecRegistry.getInstance().find(MIME_TYPE, true);
+        if (audioCodec == null) {
             Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
             return;
         }
-		if (DEBUG) Log.i(TAG, "selected codec: " + audioCodecInfo.getName());
+		if (DEBUG) Log.i(TAG, "selected codec: " + audioCodec.getName());
 
         final MediaFormat audioFormat = MediaFormat.createAudioFormat(MIME_TYPE, SAMPLE_RATE, 1);
 		audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
 		audioFormat.setInteger(MediaFormat.KEY_CHANNEL_MASK, AudioFormat.CHANNEL_IN_MONO);
 		audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
 		audioFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
-//		audioFormat.setLong(MediaFormat.KEY_MAX_INPUT_SIZE, inputFile.length());
+		// ask for input buffers that hold a whole chunk, so each read fills one
+		audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, INPUT_CHUNK_SIZE);
 //      audioFormat.setLong(MediaFormat.KEY_DURATION, (long)durationInMs );
 		if (DEBUG) Log.i(TAG, "format: " + audioFormat);
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+        mMediaCodec = MediaCodec.createByCodecName(audioCodec.getName());
+        createDriver();
         mMediaCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mMediaCodec.start();
+        mDriver.start();
         if (DEBUG) Log.i(TAG, "prepare finishing");
         if (mListener != null) {
         	try {
@@ -89,13 +97,34 @@ public class MediaAudioEncoder extends MediaEncoder {
 		super.startRecording();
 		// create and execute audio capturing thread using internal mic
 		if (mAudioThread == null) {
+			if (mDriver != null)
+				mCapture = new AudioCapture(mDriver, AUDIO_SOURCES, INPUT_CHUNK_SIZE, null);
 	        mAudioThread = new AudioThread();
 			mAudioThread.start();
 		}
 	}
 
+	@Override
+	protected void signalEndOfInputStream() {
+		// let the capture thread hand over everything it has read before the EOS goes in
+		final AudioThread audioThread = mAudioThread;
+		if (audioThread != null) {
+			if (mCapture != null) mCapture.stop();
+			try {
+				audioThread.join();
+			} catch (final InterruptedException e) {
+				// just send EOS
+			}
+		}
+		super.signalEndOfInputStream();
+	}
+
 	@Override
     protected void release() {
+		if (mCapture != null) {
+			// in case we got here without signalEndOfInputStream
+			mCapture.stop();
+		}
 		mAudioThread = null;
 		super.release();
     }
@@ -109,8 +138,9 @@ public class MediaAudioEncoder extends MediaEncoder {
 	};
 
 	/**
-	 * Thread to capture audio data from internal mic as uncompressed 16bit PCM data
-	 * and write them to the MediaCodec encoder
+	 * Thread to capture audio data from internal mic as uncompressed 16bit PCM data.
+	 * {@link AudioCapture} does the reading, and feeds the MediaCodec encoder from a
+	 * thread of its own, so waiting for the codec never delays AudioRecord#read.
 	 */
     private class AudioThread extends Thread {
     	@Override
@@ -118,58 +148,10 @@ public class MediaAudioEncoder extends MediaEncoder {
     		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
     		int cnt = 0;
     		try {
-				final int min_buffer_size = AudioRecord.getMinBufferSize(
-					SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
-					AudioFormat.ENCODING_PCM_16BIT);
-				int buffer_size = SAMPLES_PER_FRAME * FRAMES_PER_BUFFER;
-				if (buffer_size < min_buffer_size)
-					buffer_size = ((min_buffer_size / SAMPLES_PER_FRAME) + 1) * SAMPLES_PER_FRAME * 2;
-
-				AudioRecord audioRecord = null;
-				for (final int source : AUDIO_SOURCES) {
-					try {
-						audioRecord = new AudioRecord(
-							source, SAMPLE_RATE,
-							AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, buffer_size);
-	    	            if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED)
-	    	            	audioRecord = null;
-					} catch (final Exception e) {
-						audioRecord = null;
-					}
-					if (audioRecord != null) break;
-				}
-				if (audioRecord != null) {
-		            try {
-						if (mIsCapturing) {
-		    				if (DEBUG) Log.v(TAG, "AudioThread:start audio recording");
-							final ByteBuffer buf = ByteBuffer.allocateDirect(SAMPLES_PER_FRAME);
-			                int readBytes;
-			                audioRecord.startRecording();
-			                try {
-					    		for (; mIsCapturing && !mRequestStop && !mIsEOS ;) {
-					    			// read audio data from internal mic
-									buf.clear();
-					    			readBytes = audioRecord.read(buf, SAMPLES_PER_FRAME);
-					    			if (readBytes > 0) {
-					    			    // set audio data to encoder
-										buf.position(readBytes);
-										buf.flip();
-					    				encode(buf, readBytes, getPTSUs());
-					    				frameAvailableSoon();
-					    				cnt++;
-					    			}
-					    		}
-			    				frameAvailableSoon();
-			                } finally {
-			                	audioRecord.stop();
-			                }
-		            	}
-		            } finally {
-		            	audioRecord.release();
-		            }
-				} else {
-					Log.e(TAG, "failed to initialize AudioRecord");
-				}
+    			if (mIsCapturing && (mCapture != null)) {
+    				if (DEBUG) Log.v(TAG, "AudioThread:start audio recording");
+    				cnt = mCapture.run();
+    			}
     		} catch (final Exception e) {
     			Log.e(TAG, "AudioThread#run", e);
     		}
@@ -180,7 +162,6 @@ public class MediaAudioEncoder extends MediaEncoder {
 					buf.flip();
 					try {
 						encode(buf, SAMPLES_PER_FRAME, getPTSUs());
-						frameAvailableSoon();
 					} catch (final Exception e) {
 						break;
 					}
@@ -196,34 +177,4 @@ public class MediaAudioEncoder extends MediaEncoder {
     	}
     }
 
-    /**
-     * select the first codec that match a specific MIME type
-     * @param mimeType
-     * @return
-     */
-    private static final MediaCodecInfo selectAudioCodec(final String mimeType) {
-    	if (DEBUG) Log.v(TAG, "selectAudioCodec:");
-
-    	MediaCodecInfo result = null;
-    	// get the list of available codecs
-        final int numCodecs = MediaCodecList.getCodecCount();
-LOOP:	for (int i = 0; i < numCodecs; i++) {
-        	final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-            if (!codecInfo.isEncoder()) {	// skipp decoder
-                continue;
-            }
-            final String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-            	if (DEBUG) Log.i(TAG, "supportedType:" + codecInfo.getName() + ",MIME=" + types[j]);
-                if (types[j].equalsIgnoreCase(mimeType)) {
-                	if (result == null) {
-                		result = codecInfo;
-               			break LOOP;
-                	}
-                }
-            }
-        }
-   		return result;
-    }
-
 }
@@ -26,8 +26,9 @@ import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.util.Log;
 
+import com.android.grafika.CodecDriver;
+
 import java.io.IOException;
-import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 
 public abstract class MediaEncoder implements Runnable {
@@ -35,6 +36,7 @@ public abstract class MediaEncoder implements Runnable {
 	private static final String TAG = "MediaEncoder";
 
 	protected static final int TIMEOUT_USEC = 10000;	// 10[msec]
+	private static final long EOS_TIMEOUT_MSEC = 2000;
 	protected static final int MSG_FRAME_AVAILABLE = 1;
 	protected static final int MSG_STOP_RECORDING = 9;
 
@@ -48,10 +50,6 @@ public abstract class MediaEncoder implements Runnable {
 	 * Flag that indicate this encoder is capturing now.
 	 */
     protected volatile boolean mIsCapturing;
-	/**
-	 * Flag that indicate the frame data will be available soon.
-	 */
-	private int mRequestDrain;
     /**
      * Flag to request stop capturing
      */
@@ -73,25 +71,23 @@ public abstract class MediaEncoder implements Runnable {
      */
     protected MediaCodec mMediaCodec;				// API >= 16(Android4.1.2)
     /**
-     * Weak refarence of MediaMuxerWarapper instance
+     * Delivers the codec output to the muxer; see {@link #createDriver()}
      */
-    protected final WeakReference<MediaMuxerWrapper> mWeakMuxer;
+    protected CodecDriver mDriver;
     /**
-     * BufferInfo instance for dequeuing
+     * Recording session this encoder writes to.  Held strongly: the session must outlive
+     * the caller's reference until this encoder has stopped it.
      */
-    private MediaCodec.BufferInfo mBufferInfo;		// API >= 16(Android4.1.2)
-
+    protected final MediaMuxerWrapper mMuxer;
     protected final MediaEncoderListener mListener;
 
     public MediaEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
     	if (listener == null) throw new NullPointerException("MediaEncoderListener is null");
     	if (muxer == null) throw new NullPointerException("MediaMuxerWrapper is null");
-		mWeakMuxer = new WeakReference<MediaMuxerWrapper>(muxer);
+		mMuxer = muxer;
 		muxer.addEncoder(this);
 		mListener = listener;
         synchronized (mSync) {
-            // create BufferInfo here for effectiveness(to reduce GC)
-            mBufferInfo = new MediaCodec.BufferInfo();
             // wait for starting thread
             new Thread(this, getClass().getSimpleName()).start();
             try {
@@ -102,69 +98,57 @@ public abstract class MediaEncoder implements Runnable {
 	}
 
     public String getOutputPath() {
-    	final MediaMuxerWrapper muxer = mWeakMuxer.get();
-    	return muxer != null ? muxer.getOutputPath() : null;
+    	return mMuxer.getOutputPath();
     }
 
     /**
-     * the method to indicate frame data is soon available or already available
+     * the method to indicate frame data is soon available or already available.
+     * The output is delivered by the driver as it's produced, so this just reports state.
+     * Both flags are volatile, so there's no need to take mSync on every frame.
      * @return return true if encoder is ready to encod.
      */
     public boolean frameAvailableSoon() {
 //    	if (DEBUG) Log.v(TAG, "frameAvailableSoon");
-        synchronized (mSync) {
-            if (!mIsCapturing || mRequestStop) {
-                return false;
-            }
-            mRequestDrain++;
-            mSync.notifyAll();
-        }
-        return true;
+        return mIsCapturing && !mRequestStop;
     }
 
     /**
-     * encoding loop on private thread
+     * waits on private thread for the request to stop, then finishes the stream
      */
 	@Override
 	public void run() {
 //		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
         synchronized (mSync) {
             mRequestStop = false;
-    		mRequestDrain = 0;
             mSync.notify();
         }
-        final boolean isRunning = true;
-        boolean localRequestStop;
-        boolean localRequestDrain;
-        while (isRunning) {
-        	synchronized (mSync) {
-        		localRequestStop = mRequestStop;
-        		localRequestDrain = (mRequestDrain > 0);
-        		if (localRequestDrain)
-        			mRequestDrain--;
-        	}
-	        if (localRequestStop) {
-	           	drain();
+        boolean localRequestStop = false;
+    	synchronized (mSync) {
+    		try {
+    			while (!mRequestStop) {
+    				mSync.wait();
+    			}
+    			localRequestStop = true;
+			} catch (final InterruptedException e) {
+				// exit without finishing
+			}
+    	}
+        if (localRequestStop) {
+        	if (mDriver != null) {
 	           	// request stop recording
 	           	signalEndOfInputStream();
-	           	// process output data again for EOS signale
-	           	drain();
-	           	// release all related objects
-	           	release();
-	           	break;
-	        }
-	        if (localRequestDrain) {
-	        	drain();
-	        } else {
-	        	synchronized (mSync) {
-		        	try {
-						mSync.wait();
-					} catch (final InterruptedException e) {
-						break;
-					}
-	        	}
+	           	// wait for the driver to see the EOS on the output
+	           	try {
+	           		if (!mDriver.awaitEndOfStream(EOS_TIMEOUT_MSEC)) {
+	           			Log.w(TAG, "timed out waiting for EOS");
+	           		}
+	           	} catch (final RuntimeException e) {
+	           		Log.e(TAG, "encoder failed", e);
+	           	}
         	}
-        } // end of while
+           	// release all related objects
+           	release();
+        }
 		if (DEBUG) Log.d(TAG, "Encoder thread exiting");
         synchronized (mSync) {
         	mRequestStop = true;
@@ -217,26 +201,30 @@ public abstract class MediaEncoder implements Runnable {
 			Log.e(TAG, "failed onStopped", e);
 		}
 		mIsCapturing = false;
-        if (mMediaCodec != null) {
+        if (mDriver != null) {
+			try {
+				// waits for the driver thread, so nothing is still writing to the muxer
+	            mDriver.release();
+			} catch (final Exception e) {
+				Log.e(TAG, "failed releasing MediaCodec", e);
+			}
+			mDriver = null;
+			mMediaCodec = null;
+        } else if (mMediaCodec != null) {
 			try {
-	            mMediaCodec.stop();
 	            mMediaCodec.release();
-	            mMediaCodec = null;
 			} catch (final Exception e) {
 				Log.e(TAG, "failed releasing MediaCodec", e);
 			}
+            mMediaCodec = null;
         }
         if (mMuxerStarted) {
-       		final MediaMuxerWrapper muxer = mWeakMuxer != null ? mWeakMuxer.get() : null;
-       		if (muxer != null) {
-       			try {
-           			muxer.stop();
-    			} catch (final Exception e) {
-    				Log.e(TAG, "failed stopping muxer", e);
-    			}
-       		}
+   			try {
+       			mMuxer.stop();
+			} catch (final Exception e) {
+				Log.e(TAG, "failed stopping muxer", e);
+			}
         }
-        mBufferInfo = null;
     }
 
     protected void signalEndOfInputStream() {
@@ -254,12 +242,11 @@ public abstract class MediaEncoder implements Runnable {
      * @param presentationTimeUs
      */
     protected void encode(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
-    	if (!mIsCapturing) return;
-        final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
+    	if (!mIsCapturing || mDriver == null) return;
         while (mIsCapturing) {
-	        final int inputBufferIndex = mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
+	        final int inputBufferIndex = mDriver.dequeueInputBuffer(TIMEOUT_USEC);
 	        if (inputBufferIndex >= 0) {
-	            final ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
+	            final ByteBuffer inputBuffer = mDriver.getInputBuffer(inputBufferIndex);
 	            inputBuffer.clear();
 	            if (buffer != null) {
 	            	inputBuffer.put(buffer);
@@ -269,113 +256,76 @@ public abstract class MediaEncoder implements Runnable {
 	            	// send EOS
 	            	mIsEOS = true;
 	            	if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
-	            	mMediaCodec.queueInputBuffer(inputBufferIndex, 0, 0,
+	            	mDriver.queueInputBuffer(inputBufferIndex, 0, 0,
 	            		presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
 		            break;
 	            } else {
-	            	mMediaCodec.queueInputBuffer(inputBufferIndex, 0, length,
+	            	mDriver.queueInputBuffer(inputBufferIndex, 0, length,
 	            		presentationTimeUs, 0);
 	            }
 	            break;
 	        } else if (inputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
 	        	// wait for MediaCodec encoder is ready to encode
-	        	// nothing to do here because MediaCodec#dequeueInputBuffer(TIMEOUT_USEC)
+	        	// nothing to do here because CodecDriver#dequeueInputBuffer(TIMEOUT_USEC)
 	        	// will wait for maximum TIMEOUT_USEC(10msec) on each call
 	        }
         }
     }
 
     /**
-     * drain encoded data and write them to muxer
+     * creates the driver for mMediaCodec. call from prepare() after creating the codec and
+     * before configuring it, then call mDriver.start() instead of starting the codec.
      */
-    protected void drain() {
-    	if (mMediaCodec == null) return;
-        ByteBuffer[] encoderOutputBuffers = mMediaCodec.getOutputBuffers();
-        int encoderStatus, count = 0;
-        final MediaMuxerWrapper muxer = mWeakMuxer.get();
-        if (muxer == null) {
-//        	throw new NullPointerException("muxer is unexpectedly null");
-        	Log.w(TAG, "muxer is unexpectedly null");
-        	return;
-        }
-LOOP:	while (mIsCapturing) {
-			// get encoded data with maximum timeout duration of TIMEOUT_USEC(=10[msec])
-            encoderStatus = mMediaCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                // wait 5 counts(=TIMEOUT_USEC x 5 = 50msec) until data/EOS come
-                if (!mIsEOS) {
-                	if (++count > 5)
-                		break LOOP;		// out of while
-                }
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-            	if (DEBUG) Log.v(TAG, "INFO_OUTPUT_BUFFERS_CHANGED");
-                // this shoud not come when encoding
-                encoderOutputBuffers = mMediaCodec.getOutputBuffers();
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-            	if (DEBUG) Log.v(TAG, "INFO_OUTPUT_FORMAT_CHANGED");
-            	// this status indicate the output format of codec is changed
-                // this should come only once before actual encoded data
-            	// but this status never come on Android4.3 or less
-            	// and in that case, you should treat when MediaCodec.BUFFER_FLAG_CODEC_CONFIG come.
-                if (mMuxerStarted) {	// second time request is error
-                    throw new RuntimeException("format changed twice");
-                }
-				// get output format from codec and pass them to muxer
-				// getOutputFormat should be called after INFO_OUTPUT_FORMAT_CHANGED otherwise crash.
-                final MediaFormat format = mMediaCodec.getOutputFormat(); // API >= 16
-               	mTrackIndex = muxer.addTrack(format);
-               	mMuxerStarted = true;
-               	if (!muxer.start()) {
-               		// we should wait until muxer is ready
-               		synchronized (muxer) {
-	               		while (!muxer.isStarted())
-						try {
-							muxer.wait(100);
-						} catch (final InterruptedException e) {
-							break LOOP;
-						}
-               		}
-               	}
-            } else if (encoderStatus < 0) {
-            	// unexpected status
-            	if (DEBUG) Log.w(TAG, "drain:unexpected result from encoder#dequeueOutputBuffer: " + encoderStatus);
-            } else {
-                final ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                if (encodedData == null) {
-                	// this never should come...may be a MediaCodec internal error
-                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
-                }
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                	// You shoud set output format to muxer here when you target Android4.3 or less
-                	// but MediaCodec#getOutputFormat can not call here(because INFO_OUTPUT_FORMAT_CHANGED don't come yet)
-                	// therefor we should expand and prepare output format from buffer data.
-                	// This sample is for API>=18(>=Android 4.3), just ignore this flag here
-					if (DEBUG) Log.d(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
-					mBufferInfo.size = 0;
-                }
+    protected void createDriver() {
+    	mDriver = new CodecDriver(mMediaCodec, getClass().getSimpleName(), mDriverCallback);
+    }
+
+    /**
+     * writes encoded data to the muxer as the driver delivers it
+     */
+    private final CodecDriver.Callback mDriverCallback = new CodecDriver.Callback() {
+    	@Override
+    	public void onOutputFormatChanged(final CodecDriver driver, final MediaFormat format) {
+        	if (DEBUG) Log.v(TAG, "INFO_OUTPUT_FORMAT_CHANGED");
+            if (mMuxerStarted) {	// second time request is error
+                throw new RuntimeException("format changed twice");
+            }
+			// the format has the codec specific data, so pass it to the muxer
+           	mTrackIndex = mMuxer.addTrack(format);
+           	mMuxerStarted = true;
+           	if (!mMuxer.start()) {
+           		// we should wait until muxer is ready
+           		synchronized (mMuxer) {
+               		while (!mMuxer.isStarted())
+					try {
+						mMuxer.wait(100);
+					} catch (final InterruptedException e) {
+						return;
+					}
+           		}
+           	}
+    	}
 
-                if (mBufferInfo.size != 0) {
-                	// encoded data is ready, clear waiting counter
-            		count = 0;
-                    if (!mMuxerStarted) {
-                    	// muxer is not ready...this will prrograming failure.
-                        throw new RuntimeException("drain:muxer hasn't started");
-                    }
-                    // write encoded data to muxer(need to adjust presentationTimeUs.
-                   	mBufferInfo.presentationTimeUs = getPTSUs();
-                   	muxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-					prevOutputPTSUs = mBufferInfo.presentationTimeUs;
-                }
-                // return buffer to encoder
-                mMediaCodec.releaseOutputBuffer(encoderStatus, false);
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                	// when EOS come.
-               		mIsCapturing = false;
-                    break;      // out of while
-                }
+    	@Override
+    	public boolean onOutputBuffer(final CodecDriver driver, final ByteBuffer encodedData,
+    			final MediaCodec.BufferInfo info) {
+            if (!mMuxerStarted) {
+            	// muxer is not ready...this will prrograming failure.
+                throw new RuntimeException("drain:muxer hasn't started");
             }
-        }
-    }
+            // write encoded data to muxer(need to adjust presentationTimeUs.
+           	info.presentationTimeUs = getPTSUs();
+           	mMuxer.writeSampleData(mTrackIndex, encodedData, info);
+			prevOutputPTSUs = info.presentationTimeUs;
+			return false;
+    	}
+
+    	@Override
+    	public void onEndOfStream(final CodecDriver driver) {
+        	// when EOS come.
+       		mIsCapturing = false;
+    	}
+    };
 
     /**
      * previous presentationTimeUs for writing
@@ -24,12 +24,12 @@ package com.android.grafika.encoder;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.os.Environment;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.grafika.TextureMovieEncoder;
+import com.android.grafika.muxer.Muxer;
 
 import java.io.File;
 import java.io.IOException;
@@ -37,7 +37,16 @@ import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.GregorianCalendar;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * One recording session: a muxer shared by the encoders that feed it, usually one video and
+ * one audio.  The muxer starts once every registered encoder has added its track, and is
+ * stopped and released when the last of them stops.
+ * <p>
+ * Create a new instance for each recording.  Sessions are independent, so several can run
+ * at once (e.g. a full-resolution archive alongside a low-resolution proxy).
+ */
 public class MediaMuxerWrapper {
 	private static final boolean DEBUG = false;	// TODO set false on release
 	private static final String TAG = "MediaMuxerWrapper";
@@ -46,28 +55,26 @@ public class MediaMuxerWrapper {
     private static final SimpleDateFormat mDateTimeFormat = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US);
 
 	private String mOutputPath;
-	private final MediaMuxer mMediaMuxer;	// API >= 18
+	private final Muxer.Factory mMuxerFactory;
+	private final Muxer mMediaMuxer;
+	private volatile InterleavingWriter mWriter;	// set once the muxer starts
 	private int mEncoderCount, mStatredCount;
+	private int mOtherTrackCount;
 	private boolean mIsStarted;
+	private boolean mIsReleased;
 	private MediaEncoder mAudioEncoder;
 
 	private TextureMovieEncoder mVideoEncoder;
 
 
-	private static  MediaMuxerWrapper mMediaMuxerWrapper;
-	public static MediaMuxerWrapper getInstance(String ext){
-		if(null == mMediaMuxerWrapper){
-			synchronized (MediaMuxerWrapper.class){
-				if(null == mMediaMuxerWrapper){
-					try {
-						mMediaMuxerWrapper = new MediaMuxerWrapper(ext);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-				}
-			}
-		}
-		return mMediaMuxerWrapper;
+	// sessions created and not yet released, for leak checks
+	private static final AtomicInteger sOpenCount = new AtomicInteger();
+
+	/**
+	 * Returns the number of sessions that have been created but not yet released.
+	 */
+	public static int getOpenCount() {
+		return sOpenCount.get();
 	}
 
 	/**
@@ -76,6 +83,16 @@ public class MediaMuxerWrapper {
 	 * @throws IOException
 	 */
 	public MediaMuxerWrapper(String ext) throws IOException {
+		this(ext, Muxer.MEDIA_MUXER);
+	}
+
+	/**
+	 * Constructor
+	 * @param ext path of output file
+	 * @param factory creates the muxer that writes the file
+	 * @throws IOException
+	 */
+	public MediaMuxerWrapper(String ext, Muxer.Factory factory) throws IOException {
 		if (TextUtils.isEmpty(ext)) ext = "abc.mp4";
 //		try {
 //			mOutputPath = getCaptureFile(Environment.DIRECTORY_MOVIES, ext).toString();
@@ -83,15 +100,25 @@ public class MediaMuxerWrapper {
 //			throw new RuntimeException("This app has no permission of writing external storage");
 //		}
 //		mMediaMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-		mMediaMuxer = new MediaMuxer(ext, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+		mOutputPath = ext;
+		mMuxerFactory = factory;
+		mMediaMuxer = factory.create(new File(ext));
 		mEncoderCount = mStatredCount = 0;
 		mIsStarted = false;
+		sOpenCount.incrementAndGet();
 	}
 
 	public String getOutputPath() {
 		return mOutputPath;
 	}
 
+	/**
+	 * @return the factory that created the muxer, so encoders can check what it can hold
+	 */
+	public Muxer.Factory getMuxerFactory() {
+		return mMuxerFactory;
+	}
+
 	public void prepare() throws IOException {
 //		if (mVideoEncoder != null)
 //			mVideoEncoder.prepare();
@@ -125,7 +152,7 @@ public class MediaMuxerWrapper {
 	 * assign encoder to this calss. this is called from encoder.
 	 * @param encoder instance of MediaVideoEncoder or MediaAudioEncoder
 	 */
-	/*package*/ void addEncoder(final MediaEncoder encoder) {
+	/*package*/ synchronized void addEncoder(final MediaEncoder encoder) {
 //		if (encoder instanceof MediaVideoEncoder) {
 //			if (mVideoEncoder != null)
 //				throw new IllegalArgumentException("Video encoder already added.");
@@ -138,10 +165,10 @@ public class MediaMuxerWrapper {
 		}
 //			else
 //			throw new IllegalArgumentException("unsupported encoder");
-		mEncoderCount = (mVideoEncoder != null ? 1 : 0) + (mAudioEncoder != null ? 1 : 0);
+		updateEncoderCount();
 	}
 
-	public void addVideoEncoder(final TextureMovieEncoder encoder) {
+	public synchronized void addVideoEncoder(final TextureMovieEncoder encoder) {
 		if (encoder instanceof TextureMovieEncoder) {
 			if (mVideoEncoder != null)
 				throw new IllegalArgumentException("Video encoder already added.");
@@ -153,7 +180,21 @@ public class MediaMuxerWrapper {
 //			mAudioEncoder = encoder;
 //		} else
 //			throw new IllegalArgumentException("unsupported encoder");
-		mEncoderCount = (mVideoEncoder != null ? 1 : 0) + (mAudioEncoder != null ? 1 : 0);
+		updateEncoderCount();
+	}
+
+	/**
+	 * Reserves a track for an encoder that isn't managed by this class, such as a
+	 * standalone VideoEncoderCore.  It must call start() and stop() like the others.
+	 */
+	public synchronized void registerTrack() {
+		mOtherTrackCount++;
+		updateEncoderCount();
+	}
+
+	private void updateEncoderCount() {
+		mEncoderCount = (mVideoEncoder != null ? 1 : 0) + (mAudioEncoder != null ? 1 : 0)
+				+ mOtherTrackCount;
 	}
 
 	/**
@@ -165,6 +206,9 @@ public class MediaMuxerWrapper {
 		mStatredCount++;
 		if ((mEncoderCount > 0) && (mStatredCount == mEncoderCount)) {
 			mMediaMuxer.start();
+			mWriter = new InterleavingWriter(mMediaMuxer, mEncoderCount,
+					InterleavingWriter.DEFAULT_MAX_SAMPLES, InterleavingWriter.DEFAULT_MAX_BYTES);
+			mWriter.start();
 			mIsStarted = true;
 			notifyAll();
 			if (DEBUG) Log.v(TAG,  "MediaMuxer started:");
@@ -178,14 +222,35 @@ public class MediaMuxerWrapper {
 	/*package*/ public synchronized void stop() {
 		if (DEBUG) Log.v(TAG,  "stop:mStatredCount=" + mStatredCount);
 		mStatredCount--;
-		if ((mEncoderCount > 0) && (mStatredCount <= 0)) {
-			mMediaMuxer.stop();
-			mMediaMuxer.release();
-			mIsStarted = false;
+		if ((mEncoderCount > 0) && (mStatredCount <= 0) && !mIsReleased) {
+			// An encoder that gives up before its format arrives never started the muxer,
+			// and stop() would throw.
+			if (mIsStarted) {
+				mWriter.finish();
+				if (DEBUG) logStats();
+				mMediaMuxer.stop();
+			}
+			release();
 			if (DEBUG) Log.v(TAG,  "MediaMuxer stopped:");
 		}
 	}
 
+	/**
+	 * Releases the muxer without finishing the file.  Used to abandon a session that
+	 * failed during setup; normally the last encoder's stop() releases it.  Safe to call
+	 * more than once.
+	 */
+	public synchronized void release() {
+		if (mIsReleased) return;
+		mIsReleased = true;
+		mIsStarted = false;
+		if (mWriter != null) {
+			mWriter.abort();
+		}
+		mMediaMuxer.release();
+		sOpenCount.decrementAndGet();
+	}
+
 	/**
 	 * assign encoder to muxer
 	 * @param format
@@ -200,14 +265,96 @@ public class MediaMuxerWrapper {
 	}
 
 	/**
-	 * write encoded data to muxer
+	 * write encoded data to muxer.  The data is copied and queued for the writer thread,
+	 * so this doesn't wait for the file system, only (briefly) for room in the queue.
+	 * Not synchronized: one encoder must not hold up another.
 	 * @param trackIndex
 	 * @param byteBuf
 	 * @param bufferInfo
 	 */
-	/*package*/ public synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
-		if (mStatredCount > 0)
-			mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+	/*package*/ public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+		final InterleavingWriter writer = mWriter;
+		if (writer != null)
+			writer.queueSample(trackIndex, byteBuf, bufferInfo);
+	}
+
+	/**
+	 * @return true, once, if the muxer wants a video sync frame soon (e.g. to start a new
+	 * segment)
+	 */
+	public boolean pollSyncFrameRequest() {
+		return mMediaMuxer.pollSyncFrameRequest();
+	}
+
+	/**
+	 * @return number of samples waiting for the writer thread
+	 */
+	public int getQueueDepth() {
+		final InterleavingWriter writer = mWriter;
+		return writer != null ? writer.getQueueDepth() : 0;
+	}
+
+	/**
+	 * @return number of bytes waiting for the writer thread
+	 */
+	public int getQueuedBytes() {
+		final InterleavingWriter writer = mWriter;
+		return writer != null ? writer.getQueuedBytes() : 0;
+	}
+
+	/**
+	 * @return longest single write to the muxer since the last call, in usec
+	 */
+	public long pollPeakWriteUsec() {
+		final InterleavingWriter writer = mWriter;
+		return writer != null ? writer.pollPeakWriteUsec() : 0;
+	}
+
+	/**
+	 * @return largest number of samples that have waited for the writer thread at once
+	 */
+	public int getMaxQueueDepth() {
+		final InterleavingWriter writer = mWriter;
+		return writer != null ? writer.getMaxQueueDepth() : 0;
+	}
+
+	/**
+	 * @return mean time from writeSampleData() until the sample is in the file, in usec
+	 */
+	public long getAverageWriteLatencyUsec() {
+		final InterleavingWriter writer = mWriter;
+		return writer != null ? writer.getAverageLatencyUsec() : 0;
+	}
+
+	/**
+	 * @return longest time from writeSampleData() until the sample is in the file, in usec
+	 */
+	public long getMaxWriteLatencyUsec() {
+		final InterleavingWriter writer = mWriter;
+		return writer != null ? writer.getMaxLatencyUsec() : 0;
+	}
+
+	/**
+	 * @return number of times an encoder had to wait because the queue was full
+	 */
+	public int getBackpressureCount() {
+		final InterleavingWriter writer = mWriter;
+		return writer != null ? writer.getBackpressureCount() : 0;
+	}
+
+	/**
+	 * Logs the writer statistics.
+	 */
+	public void logStats() {
+		final InterleavingWriter writer = mWriter;
+		if (writer == null) return;
+		Log.d(TAG, "writer: maxDepth=" + writer.getMaxQueueDepth()
+				+ " maxBytes=" + writer.getMaxQueuedBytes()
+				+ " latency avg=" + writer.getAverageLatencyUsec()
+				+ "us max=" + writer.getMaxLatencyUsec()
+				+ "us maxWrite=" + writer.getMaxWriteUsec()
+				+ "us backpressure=" + writer.getBackpressureCount()
+				+ "/" + writer.getBackpressureMsec() + "ms");
 	}
 
 //**********************************************************************
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.encoder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free ring of direct buffers that carries PCM chunks from the capture thread to the
+ * thread feeding the encoder, so a slow codec never holds up AudioRecord.read().
+ * <p>
+ * One producer thread and one consumer thread.  The producer fills the buffer from
+ * {@link #obtain()} and {@link #publish}es it; the consumer {@link #await}s, takes chunks
+ * with {@link #peek()}, and {@link #release()}s them.  The consumer drains everything that's
+ * ready before it parks again, and the producer only unparks it when it's actually parked,
+ * so a steady stream costs one wakeup per batch rather than one per chunk.
+ */
+class PcmRing {
+    private final ByteBuffer[] mBuffers;
+    private final long[] mPtsUs;
+    private final int mMask;
+
+    // Chunk counters; they only grow, and head - tail is the number of chunks in the ring.
+    private volatile int mHead;         // written by the producer
+    private volatile int mTail;         // written by the consumer
+    private volatile Thread mWaiter;    // consumer, while parked
+    private volatile boolean mClosed;
+
+    /**
+     * @param count Number of chunks; a power of two.
+     * @param chunkSize Size of each chunk, in bytes.
+     */
+    PcmRing(final int count, final int chunkSize) {
+        if (count <= 0 || (count & (count - 1)) != 0) {
+            throw new IllegalArgumentException("count must be a power of two: " + count);
+        }
+        mBuffers = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            mBuffers[i] = ByteBuffer.allocateDirect(chunkSize);
+        }
+        mPtsUs = new long[count];
+        mMask = count - 1;
+    }
+
+    /**
+     * Producer: returns the next free buffer, cleared, or null if the ring is full.
+     */
+    ByteBuffer obtain() {
+        final int head = mHead;
+        if (head - mTail == mBuffers.length) {
+            return null;
+        }
+        final ByteBuffer buf = mBuffers[head & mMask];
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Producer: hands the buffer from obtain() to the consumer.  The buffer must be flipped.
+     */
+    void publish(final long presentationTimeUs) {
+        final int head = mHead;
+        mPtsUs[head & mMask] = presentationTimeUs;
+        mHead = head + 1;
+        final Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Producer: no more chunks are coming.
+     */
+    void close() {
+        mClosed = true;
+        final Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Consumer: waits until a chunk is ready.
+     * @return False if the ring was closed and everything in it has been consumed
+     */
+    boolean await() {
+        while (mHead == mTail) {
+            if (mClosed) {
+                // the producer may have published right before closing
+                return mHead != mTail;
+            }
+            mWaiter = Thread.currentThread();
+            if (mHead == mTail && !mClosed) {
+                LockSupport.park(this);
+            }
+            mWaiter = null;
+            if (Thread.interrupted()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Consumer: returns the oldest chunk, or null if the ring is empty.  The consumer may
+     * advance its position; it stays in the ring until release().
+     */
+    ByteBuffer peek() {
+        final int tail = mTail;
+        return (mHead == tail) ? null : mBuffers[tail & mMask];
+    }
+
+    /**
+     * Consumer: presentation time of the chunk from peek().
+     */
+    long peekPtsUs() {
+        return mPtsUs[mTail & mMask];
+    }
+
+    /**
+     * Consumer: returns the chunk from peek() to the producer.
+     */
+    void release() {
+        mTail = mTail + 1;
+    }
+}
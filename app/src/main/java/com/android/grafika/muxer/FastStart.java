@@ -0,0 +1,283 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.muxer;
+
+import android.util.Log;
+
+import com.android.grafika.MainActivity;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Moves the index (moov) of an MP4 file in front of the media data, "faststart" style, so
+ * players and uploads can start without reading to the end of the file first.
+ * <p>
+ * MediaMuxer writes moov last.  We read moov into memory (it's small: a few hundred KB
+ * for an hour of video), add its size to every chunk offset in the stco/co64 tables, and
+ * write a new file with moov ahead of mdat.  The media data is copied with
+ * FileChannel.transferTo(), so it never passes through the Java heap.  The new file
+ * replaces the old one by rename.
+ * <p>
+ * Files with moov already in front (e.g. fragmented MP4) are left alone.
+ */
+public class FastStart {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    /** Refuse to load moov boxes bigger than this; something is wrong with the file. */
+    private static final int MAX_MOOV_SIZE = 64 * 1024 * 1024;
+
+    private static final int TYPE_MOOV = fourcc("moov");
+    private static final int TYPE_MDAT = fourcc("mdat");
+    private static final int TYPE_TRAK = fourcc("trak");
+    private static final int TYPE_MDIA = fourcc("mdia");
+    private static final int TYPE_MINF = fourcc("minf");
+    private static final int TYPE_STBL = fourcc("stbl");
+    private static final int TYPE_STCO = fourcc("stco");
+    private static final int TYPE_CO64 = fourcc("co64");
+
+    private static ExecutorService sExecutor;
+
+    private FastStart() {}
+
+    /**
+     * Queues the file for relocation on a background thread.  Files are processed one at a
+     * time, in order; failures are logged.
+     */
+    public static synchronized void schedule(final File file) {
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    relocate(file);
+                } catch (IOException ioe) {
+                    Log.w(TAG, "faststart failed for " + file, ioe);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the task on the background thread once every file scheduled so far has been
+     * processed (or has failed).
+     */
+    public static synchronized void runAfterScheduled(Runnable task) {
+        getExecutor().execute(task);
+    }
+
+    private static ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "FastStart");
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Rewrites the file with moov in front of the media data.  Runs at storage speed;
+     * call it off the main thread.
+     *
+     * @return True if the file was rewritten, false if there was nothing to do.
+     */
+    public static boolean relocate(File file) throws IOException {
+        long startWhen = System.nanoTime();
+        File tmpFile = new File(file.getPath() + ".tmp");
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel src = in.getChannel();
+            long fileSize = src.size();
+
+            // Find moov and the first mdat among the top-level boxes.
+            ByteBuffer header = ByteBuffer.allocate(16);
+            long moovPos = -1;
+            long moovSize = 0;
+            long mdatPos = -1;
+            long pos = 0;
+            while (pos + 8 <= fileSize) {
+                header.clear();
+                header.limit(8);
+                readFully(src, header, pos);
+                long boxSize = header.getInt(0) & 0xffffffffL;
+                int type = header.getInt(4);
+                if (boxSize == 1) {
+                    header.limit(16);
+                    readFully(src, header, pos + 8);
+                    boxSize = header.getLong(8);
+                } else if (boxSize == 0) {
+                    boxSize = fileSize - pos;
+                }
+                if (boxSize < 8 || pos + boxSize > fileSize) {
+                    throw new IOException("bad box at " + pos + " in " + file);
+                }
+                if (type == TYPE_MOOV) {
+                    moovPos = pos;
+                    moovSize = boxSize;
+                } else if (type == TYPE_MDAT && mdatPos < 0) {
+                    mdatPos = pos;
+                }
+                pos += boxSize;
+            }
+            if (moovPos < 0 || mdatPos < 0) {
+                Log.w(TAG, "faststart: no moov or mdat in " + file);
+                return false;
+            }
+            if (moovPos < mdatPos) {
+                if (VERBOSE) Log.d(TAG, "faststart: " + file + " is already faststart");
+                return false;
+            }
+            if (moovSize > MAX_MOOV_SIZE) {
+                throw new IOException("moov too large (" + moovSize + ") in " + file);
+            }
+
+            // Everything from the first mdat up to moov moves down by the size of moov.
+            ByteBuffer moov = ByteBuffer.allocate((int) moovSize);
+            readFully(src, moov, moovPos);
+            patchOffsets(moov, 8, (int) moovSize, mdatPos, moovPos, moovSize);
+
+            FileOutputStream out = new FileOutputStream(tmpFile);
+            try {
+                FileChannel dst = out.getChannel();
+                transfer(src, 0, mdatPos, dst);
+                moov.clear();
+                while (moov.hasRemaining()) {
+                    dst.write(moov);
+                }
+                transfer(src, mdatPos, moovPos - mdatPos, dst);
+                long tailPos = moovPos + moovSize;
+                transfer(src, tailPos, fileSize - tailPos, dst);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            tmpFile.delete();
+            throw ioe;
+        } finally {
+            in.close();
+        }
+
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("unable to rename " + tmpFile + " to " + file);
+        }
+        if (VERBOSE) {
+            Log.d(TAG, "faststart: " + file + " done in " +
+                    (System.nanoTime() - startWhen) / 1000000 + "ms");
+        }
+        return true;
+    }
+
+    /**
+     * Walks the boxes in [start, end) of the moov buffer, descending into the containers
+     * on the path to the chunk offset tables, and shifts offsets that point into the
+     * region being moved.
+     */
+    private static void patchOffsets(ByteBuffer buf, int start, int end, long regionStart,
+            long regionEnd, long delta) throws IOException {
+        int pos = start;
+        while (pos + 8 <= end) {
+            long boxSize = buf.getInt(pos) & 0xffffffffL;
+            int type = buf.getInt(pos + 4);
+            if (boxSize < 8 || pos + boxSize > end) {
+                throw new IOException("bad box in moov at " + pos);
+            }
+            int boxEnd = (int) (pos + boxSize);
+            if (type == TYPE_TRAK || type == TYPE_MDIA || type == TYPE_MINF ||
+                    type == TYPE_STBL) {
+                patchOffsets(buf, pos + 8, boxEnd, regionStart, regionEnd, delta);
+            } else if (type == TYPE_STCO) {
+                // version+flags, entry count, then 32-bit offsets
+                int count = buf.getInt(pos + 12);
+                if (pos + 16 + 4L * count > boxEnd) {
+                    throw new IOException("bad stco");
+                }
+                for (int i = 0; i < count; i++) {
+                    int index = pos + 16 + 4 * i;
+                    long offset = buf.getInt(index) & 0xffffffffL;
+                    if (offset >= regionStart && offset < regionEnd) {
+                        offset += delta;
+                        if (offset > 0xffffffffL) {
+                            // Would need converting to co64, which changes the size of
+                            // moov.  MediaMuxer uses co64 for files this big anyway.
+                            throw new IOException("stco offset overflow");
+                        }
+                        buf.putInt(index, (int) offset);
+                    }
+                }
+            } else if (type == TYPE_CO64) {
+                int count = buf.getInt(pos + 12);
+                if (pos + 16 + 8L * count > boxEnd) {
+                    throw new IOException("bad co64");
+                }
+                for (int i = 0; i < count; i++) {
+                    int index = pos + 16 + 8 * i;
+                    long offset = buf.getLong(index);
+                    if (offset >= regionStart && offset < regionEnd) {
+                        buf.putLong(index, offset + delta);
+                    }
+                }
+            }
+            pos = boxEnd;
+        }
+    }
+
+    /**
+     * Copies a range of the source file to the end of the destination, letting the kernel
+     * move the data.
+     */
+    private static void transfer(FileChannel src, long pos, long count, FileChannel dst)
+            throws IOException {
+        while (count > 0) {
+            long transferred = src.transferTo(pos, count, dst);
+            if (transferred <= 0) {
+                throw new IOException("transferTo stalled at " + pos);
+            }
+            pos += transferred;
+            count -= transferred;
+        }
+    }
+
+    private static void readFully(FileChannel src, ByteBuffer buf, long pos)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            int count = src.read(buf, pos);
+            if (count < 0) {
+                throw new IOException("unexpected EOF at " + pos);
+            }
+            pos += count;
+        }
+    }
+
+    private static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) |
+                type.charAt(3);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * Wraps another muxer, and once the file is finished hands it to {@link FastStart} on
+ * its background thread.  {@link #whenFinished} waits for the rewrite.
+ */
+class FastStartMuxer extends Muxer {
+    private final Muxer mMuxer;
+    private final File mOutputFile;
+    private boolean mStopped;
+    private boolean mScheduled;
+
+    FastStartMuxer(Muxer muxer, File outputFile) {
+        mMuxer = muxer;
+        mOutputFile = outputFile;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mMuxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf,
+            MediaCodec.BufferInfo bufferInfo) {
+        mMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    }
+
+    @Override
+    public boolean pollSyncFrameRequest() {
+        return mMuxer.pollSyncFrameRequest();
+    }
+
+    @Override
+    public void stop() {
+        mMuxer.stop();
+        mStopped = true;
+    }
+
+    @Override
+    public void release() {
+        mMuxer.release();
+        // MediaMuxer may not finish writing the file until release().
+        if (mStopped) {
+            mStopped = false;
+            mScheduled = true;
+            FastStart.schedule(mOutputFile);
+        }
+    }
+
+    @Override
+    public void whenFinished(Runnable task) {
+        if (mScheduled) {
+            FastStart.runAfterScheduled(task);
+        } else {
+            mMuxer.whenFinished(task);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.android.grafika.MainActivity;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Muxer backed by {@link Mp4FragmentWriter}.  Translates MediaFormats from the encoders
+ * into track descriptions, and MediaCodec.BufferInfo into sample calls.
+ * <p>
+ * Output goes through a {@link WriteBehindChannel}, so the caller doesn't wait on storage
+ * for each fragment.
+ */
+class FragmentedMp4Muxer extends Muxer {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final String MIME_AVC = "video/avc";
+    private static final String MIME_AAC = "audio/mp4a-latm";
+
+    private FileOutputStream mOutputStream;
+    private WriteBehindChannel mChannel;
+    private final Mp4FragmentWriter mWriter;
+
+    FragmentedMp4Muxer(File outputFile, long fragmentDurationUsec) throws IOException {
+        mOutputStream = new FileOutputStream(outputFile);
+        mChannel = new WriteBehindChannel(mOutputStream.getChannel());
+        mWriter = new Mp4FragmentWriter(mChannel, fragmentDurationUsec,
+                Mp4FragmentWriter.DEFAULT_MAX_FRAGMENT_BYTES);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        Mp4FragmentWriter.Track track;
+        if (MIME_AVC.equals(mime)) {
+            track = Mp4FragmentWriter.Track.avc(format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT),
+                    getByteArray(format, "csd-0"), getByteArray(format, "csd-1"));
+        } else if (MIME_AAC.equals(mime)) {
+            track = Mp4FragmentWriter.Track.aac(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                    getByteArray(format, "csd-0"));
+        } else {
+            throw new IllegalArgumentException("unsupported format: " + mime);
+        }
+        int index = mWriter.addTrack(track);
+        if (VERBOSE) Log.d(TAG, "added track " + index + ": " + format);
+        return index;
+    }
+
+    @Override
+    public void start() {
+        try {
+            mWriter.start();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf,
+            MediaCodec.BufferInfo bufferInfo) {
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // Already have this from the format.
+            return;
+        }
+        int oldPosition = byteBuf.position();
+        int oldLimit = byteBuf.limit();
+        byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+        byteBuf.position(bufferInfo.offset);
+        try {
+            mWriter.writeSample(trackIndex, byteBuf, bufferInfo.presentationTimeUs,
+                    (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        } finally {
+            byteBuf.limit(oldLimit);
+            byteBuf.position(oldPosition);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mWriter.finish();
+            mChannel.flush();
+            mOutputStream.getFD().sync();
+            mChannel.logStats();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException ioe) {
+                Log.w(TAG, "failed flushing muxer output", ioe);
+            }
+            mChannel = null;
+        }
+        if (mOutputStream != null) {
+            try {
+                mOutputStream.close();
+            } catch (IOException ioe) {
+                Log.w(TAG, "failed closing muxer output", ioe);
+            }
+            mOutputStream = null;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.android.grafika.MainActivity;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Muxer that writes HLS: MPEG-TS segments plus a rolling .m3u8 playlist.
+ * <p>
+ * The output file is the playlist; segments go next to it ("live.m3u8" gets
+ * "live-0001.ts", "live-0002.ts", ...).  A segment is closed at the first video sync frame
+ * after the target duration, and the playlist is rewritten (atomically, by rename) each
+ * time, so a player can follow the recording a segment or two behind.  With a window size,
+ * only that many segments are listed and older ones are deleted; stop() adds
+ * EXT-X-ENDLIST.
+ * <p>
+ * Supports H.264 and AAC, via {@link TsPacketizer}.  Segment data goes through a
+ * {@link WriteBehindChannel}; the playlist update and deletions for a finished segment are
+ * queued behind its data, so a segment is never listed before it has been written.
+ */
+class HlsMuxer extends Muxer {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final String MIME_AVC = "video/avc";
+    private static final String MIME_AAC = "audio/mp4a-latm";
+
+    /**
+     * A finished segment, as listed in the playlist.
+     */
+    private static class Segment {
+        final File mFile;
+        final long mDurationUsec;
+
+        Segment(File file, long durationUsec) {
+            mFile = file;
+            mDurationUsec = durationUsec;
+        }
+    }
+
+    private final File mPlaylistFile;
+    private final File mSegmentBase;
+    private final long mTargetUsec;
+    private final int mWindowSize;
+
+    private final TsPacketizer mPacketizer = new TsPacketizer(null);
+    private int mVideoTrack = -1;
+    private int mAudioTrack = -1;
+    private int mTrackCount;
+
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<Segment>();
+    private int mSegmentIndex;
+    private int mFirstListedIndex = 1;
+    private WriteBehindChannel mChannel;
+    private File mSegmentFile;
+    private long mSegmentStartUsec = -1;
+    private long mLastPtsUsec;
+
+    /**
+     * @param playlistFile The .m3u8 file.
+     * @param targetUsec Target segment duration.
+     * @param windowSize Number of segments to keep in the playlist, or 0 to keep them all.
+     */
+    HlsMuxer(File playlistFile, long targetUsec, int windowSize) {
+        mPlaylistFile = playlistFile;
+        String name = playlistFile.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        mSegmentBase = new File(playlistFile.getParentFile(), name + ".ts");
+        mTargetUsec = targetUsec;
+        mWindowSize = windowSize;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (MIME_AVC.equals(mime) && mVideoTrack < 0) {
+            mPacketizer.setVideo(getByteArray(format, "csd-0"), getByteArray(format, "csd-1"));
+            mVideoTrack = mTrackCount;
+        } else if (MIME_AAC.equals(mime) && mAudioTrack < 0) {
+            mPacketizer.setAudio(getByteArray(format, "csd-0"));
+            mAudioTrack = mTrackCount;
+        } else {
+            throw new IllegalArgumentException("unsupported or duplicate track: " + mime);
+        }
+        return mTrackCount++;
+    }
+
+    @Override
+    public void start() {
+        try {
+            mChannel = new WriteBehindChannel(openSegment());
+            mPacketizer.setChannel(mChannel);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf,
+            MediaCodec.BufferInfo bufferInfo) {
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // Already have this from the format.
+            return;
+        }
+        long ptsUsec = bufferInfo.presentationTimeUs;
+        boolean isSync = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+
+        int oldPosition = byteBuf.position();
+        int oldLimit = byteBuf.limit();
+        byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+        byteBuf.position(bufferInfo.offset);
+        try {
+            if (mSegmentStartUsec < 0) {
+                mSegmentStartUsec = ptsUsec;
+            } else if (ptsUsec - mSegmentStartUsec >= mTargetUsec &&
+                    (mVideoTrack < 0 || (trackIndex == mVideoTrack && isSync))) {
+                finishSegment(ptsUsec, false);
+                mSegmentStartUsec = ptsUsec;
+            }
+            if (trackIndex == mVideoTrack) {
+                mPacketizer.writeVideo(byteBuf, ptsUsec, isSync);
+            } else if (trackIndex == mAudioTrack) {
+                mPacketizer.writeAudio(byteBuf, ptsUsec);
+            } else {
+                throw new IllegalArgumentException("bad track " + trackIndex);
+            }
+            mLastPtsUsec = Math.max(mLastPtsUsec, ptsUsec);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        } finally {
+            byteBuf.limit(oldLimit);
+            byteBuf.position(oldPosition);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            if (mChannel != null) {
+                finishSegment(mLastPtsUsec, true);
+                mChannel.close();
+                mChannel.logStats();
+                mChannel = null;
+            } else {
+                writePlaylist(buildPlaylist(true));
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mChannel != null) {
+            // Stopped early or failed; don't wait for storage.
+            mChannel.abort();
+            mChannel = null;
+        }
+    }
+
+    /**
+     * Creates the next segment file.
+     */
+    private FileChannel openSegment() throws IOException {
+        mSegmentIndex++;
+        mSegmentFile = SegmentedMuxer.segmentFile(mSegmentBase, mSegmentIndex);
+        return new FileOutputStream(mSegmentFile).getChannel();
+    }
+
+    /**
+     * Closes the current segment, adds it to the playlist, and drops segments that have
+     * fallen out of the window.  Unless this is the last one, the next segment is opened.
+     * <p>
+     * The file work happens on the write-behind thread, after the segment's data.
+     *
+     * @param endUsec Start time of whatever comes next.
+     */
+    private void finishSegment(long endUsec, boolean last) throws IOException {
+        File finished = mSegmentFile;
+        mPacketizer.flush();
+        mChannel.setTarget(last ? null : openSegment(), true);
+        if (!last) {
+            // Start the new segment with PAT/PMT.
+            mPacketizer.setChannel(mChannel);
+        }
+
+        long duration = Math.max(0, endUsec - mSegmentStartUsec);
+        mSegments.add(new Segment(finished, duration));
+        if (VERBOSE) Log.d(TAG, "finished " + finished + ", " + duration + "us");
+
+        final List<File> expired = new ArrayList<File>();
+        while (mWindowSize > 0 && mSegments.size() > mWindowSize) {
+            expired.add(mSegments.poll().mFile);
+            mFirstListedIndex++;
+        }
+        final String playlist = buildPlaylist(last);
+        mChannel.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writePlaylist(playlist);
+                } catch (IOException ioe) {
+                    Log.w(TAG, "failed writing playlist", ioe);
+                }
+                for (File file : expired) {
+                    if (!file.delete()) {
+                        Log.w(TAG, "unable to delete " + file);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Generates the playlist text for the current set of segments.
+     */
+    private String buildPlaylist(boolean ended) {
+        long maxUsec = 0;
+        for (Segment seg : mSegments) {
+            maxUsec = Math.max(maxUsec, seg.mDurationUsec);
+        }
+        int targetSec = (int) Math.max(1, (Math.max(maxUsec, mTargetUsec) + 999999) / 1000000);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("#EXTM3U\n");
+        sb.append("#EXT-X-VERSION:3\n");
+        sb.append("#EXT-X-TARGETDURATION:").append(targetSec).append('\n');
+        sb.append("#EXT-X-MEDIA-SEQUENCE:").append(mFirstListedIndex).append('\n');
+        for (Segment seg : mSegments) {
+            sb.append(String.format(Locale.US, "#EXTINF:%.3f,\n", seg.mDurationUsec / 1e6));
+            sb.append(seg.mFile.getName()).append('\n');
+        }
+        if (ended) {
+            sb.append("#EXT-X-ENDLIST\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the playlist to a temporary file, then renames it into place so readers never
+     * see a partial one.
+     */
+    private void writePlaylist(String playlist) throws IOException {
+        File tmp = new File(mPlaylistFile.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            writer.write(playlist);
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(mPlaylistFile)) {
+            throw new IOException("unable to rename " + tmp + " to " + mPlaylistFile);
+        }
+    }
+}
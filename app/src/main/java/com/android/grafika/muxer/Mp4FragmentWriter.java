@@ -0,0 +1,734 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.muxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+
+/**
+ * Streaming fragmented MP4 writer, in plain Java.
+ * <p>
+ * The file is laid out as:
+ * <pre>
+ *   ftyp
+ *   moov (track descriptions, empty sample tables, mvex/trex)
+ *   moof mdat   -- one fragment
+ *   moof mdat   -- another fragment
+ *   ...
+ * </pre>
+ * ftyp and moov go out in start(), and each fragment is written as soon as it's complete,
+ * so a file cut off at any point is playable up to its last complete fragment.  Only the
+ * current fragment is held in memory.
+ * <p>
+ * A fragment is closed at the first video sync frame after the fragment duration has
+ * elapsed (or at any sample if there's no video track), so every fragment starts with
+ * something decodable.  It's also closed early if it grows past the byte limit.
+ * <p>
+ * Supports H.264 video (the Annex-B output of MediaCodec is converted to length-prefixed
+ * NAL units) and AAC audio.  Samples are assumed to arrive in decode order with presentation
+ * times equal to decode times, i.e. no B-frames, which is what our encoders produce.
+ * <p>
+ * Writes through a WritableByteChannel, usually a FileChannel.  Has no Android
+ * dependencies.  Not thread-safe.
+ */
+public class Mp4FragmentWriter {
+    /** Default fragment duration. */
+    public static final long DEFAULT_FRAGMENT_USEC = 1000000;
+    /** Default limit on the amount of sample data held for one fragment. */
+    public static final int DEFAULT_MAX_FRAGMENT_BYTES = 8 * 1024 * 1024;
+
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int AAC_SAMPLES_PER_FRAME = 1024;
+
+    // trun sample_flags.  Sync samples don't depend on anything; everything else depends
+    // on other samples and is flagged as non-sync.
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    // tfhd: default-base-is-moof.  trun: data-offset, sample-duration, sample-size and
+    // sample-flags present.
+    private static final int TFHD_FLAGS = 0x020000;
+    private static final int TRUN_FLAGS = 0x000701;
+
+    private static final int[] UNITY_MATRIX = {
+            0x00010000, 0, 0,
+            0, 0x00010000, 0,
+            0, 0, 0x40000000
+    };
+
+    /**
+     * Describes one track.  Create with {@link #avc} or {@link #aac}.
+     */
+    public static class Track {
+        static final int TYPE_AVC = 1;
+        static final int TYPE_AAC = 2;
+
+        final int mType;
+        final int mTimescale;
+        final int mWidth;
+        final int mHeight;
+        final byte[] mSps;
+        final byte[] mPps;
+        final int mChannelCount;
+        final byte[] mAudioConfig;
+
+        private Track(int type, int timescale, int width, int height, byte[] sps, byte[] pps,
+                int channelCount, byte[] audioConfig) {
+            mType = type;
+            mTimescale = timescale;
+            mWidth = width;
+            mHeight = height;
+            mSps = sps;
+            mPps = pps;
+            mChannelCount = channelCount;
+            mAudioConfig = audioConfig;
+        }
+
+        /**
+         * Describes an H.264 video track.  The SPS and PPS may include Annex-B start codes.
+         */
+        public static Track avc(int width, int height, byte[] sps, byte[] pps) {
+            sps = stripStartCode(sps);
+            if (sps.length < 4) {
+                throw new IllegalArgumentException("SPS too short: " + sps.length);
+            }
+            return new Track(TYPE_AVC, VIDEO_TIMESCALE, width, height, sps,
+                    stripStartCode(pps), 0, null);
+        }
+
+        /**
+         * Describes an AAC audio track.
+         *
+         * @param audioSpecificConfig The AudioSpecificConfig, i.e. csd-0 from the encoder.
+         */
+        public static Track aac(int sampleRate, int channelCount, byte[] audioSpecificConfig) {
+            return new Track(TYPE_AAC, sampleRate, 0, 0, null, null, channelCount,
+                    audioSpecificConfig);
+        }
+    }
+
+    /**
+     * Per-track state for the fragment being built.
+     */
+    private static class TrackState {
+        final Track mTrack;
+        final int mTrackId;
+        final long mDefaultDelta;
+
+        ByteBuffer mPayload = ByteBuffer.allocateDirect(64 * 1024);
+        int[] mSizes = new int[64];
+        long[] mTimes = new long[64];
+        boolean[] mSync = new boolean[64];
+        int mCount;
+
+        long mLastTime = -1;
+        long mLastDelta;
+
+        TrackState(Track track, int trackId) {
+            mTrack = track;
+            mTrackId = trackId;
+            mDefaultDelta = (track.mType == Track.TYPE_AAC) ?
+                    AAC_SAMPLES_PER_FRAME : VIDEO_TIMESCALE / 30;
+            mLastDelta = mDefaultDelta;
+        }
+
+        /**
+         * Makes room for another sample of up to "size" bytes.
+         */
+        void grow(int size) {
+            if (mCount == mSizes.length) {
+                int newLen = mCount * 2;
+                int[] sizes = new int[newLen];
+                long[] times = new long[newLen];
+                boolean[] sync = new boolean[newLen];
+                System.arraycopy(mSizes, 0, sizes, 0, mCount);
+                System.arraycopy(mTimes, 0, times, 0, mCount);
+                System.arraycopy(mSync, 0, sync, 0, mCount);
+                mSizes = sizes;
+                mTimes = times;
+                mSync = sync;
+            }
+            if (mPayload.remaining() < size) {
+                int newCap = Math.max(mPayload.capacity() * 2, mPayload.position() + size);
+                ByteBuffer payload = ByteBuffer.allocateDirect(newCap);
+                mPayload.flip();
+                payload.put(mPayload);
+                mPayload = payload;
+            }
+        }
+    }
+
+    private final WritableByteChannel mChannel;
+    private final long mFragmentUsec;
+    private final int mMaxFragmentBytes;
+    private final ArrayList<TrackState> mTracks = new ArrayList<TrackState>();
+
+    private ByteBuffer mHeader = ByteBuffer.allocate(4096);
+    private boolean mStarted;
+    private boolean mHasVideo;
+    private int mSequence;
+    private long mOriginUsec = Long.MIN_VALUE;
+    private long mFragmentStartUsec = Long.MIN_VALUE;
+    private int mPendingBytes;
+    private int mPendingSamples;
+    private long mBytesWritten;
+
+    /**
+     * Creates a writer with the default fragment duration and size limit.
+     */
+    public Mp4FragmentWriter(WritableByteChannel channel) {
+        this(channel, DEFAULT_FRAGMENT_USEC, DEFAULT_MAX_FRAGMENT_BYTES);
+    }
+
+    /**
+     * Creates a writer.
+     *
+     * @param channel Where the file goes.  Not closed by the writer.
+     * @param fragmentDurationUsec Target fragment duration.
+     * @param maxFragmentBytes A fragment is written early if its samples would exceed this.
+     */
+    public Mp4FragmentWriter(WritableByteChannel channel, long fragmentDurationUsec,
+            int maxFragmentBytes) {
+        mChannel = channel;
+        mFragmentUsec = fragmentDurationUsec;
+        mMaxFragmentBytes = maxFragmentBytes;
+    }
+
+    /**
+     * Adds a track.  Must be called before start().
+     *
+     * @return The track index, for writeSample().
+     */
+    public int addTrack(Track track) {
+        if (mStarted) {
+            throw new IllegalStateException("already started");
+        }
+        mTracks.add(new TrackState(track, mTracks.size() + 1));
+        if (track.mType == Track.TYPE_AVC) {
+            mHasVideo = true;
+        }
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * Writes the file header (ftyp and moov).
+     */
+    public void start() throws IOException {
+        if (mStarted) {
+            throw new IllegalStateException("already started");
+        }
+        if (mTracks.isEmpty()) {
+            throw new IllegalStateException("no tracks");
+        }
+        mStarted = true;
+
+        mHeader.clear();
+        writeFtyp();
+        writeMoov();
+        mHeader.flip();
+        writeFully(mHeader);
+    }
+
+    /**
+     * Adds a sample to the current fragment, first writing out the fragment if it's
+     * complete.
+     *
+     * @param trackIndex Value returned by addTrack().
+     * @param data The sample, from position() to limit().  The position and limit are left
+     *     unchanged.
+     * @param ptsUsec Presentation time, in microseconds.
+     * @param isSync True if this is a sync frame.
+     */
+    public void writeSample(int trackIndex, ByteBuffer data, long ptsUsec, boolean isSync)
+            throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("not started");
+        }
+        TrackState ts = mTracks.get(trackIndex);
+        int size = data.remaining();
+
+        if (mOriginUsec == Long.MIN_VALUE) {
+            mOriginUsec = ptsUsec;
+            mFragmentStartUsec = ptsUsec;
+        }
+        long time = Math.max(0, ptsUsec - mOriginUsec) * ts.mTrack.mTimescale / 1000000;
+        if (ts.mLastTime >= 0 && time <= ts.mLastTime) {
+            // Must be strictly increasing.
+            time = ts.mLastTime + 1;
+        }
+
+        boolean fragmentDue = ptsUsec - mFragmentStartUsec >= mFragmentUsec &&
+                (!mHasVideo || (isSync && ts.mTrack.mType == Track.TYPE_AVC));
+        if (mPendingSamples > 0 && (fragmentDue || mPendingBytes + size > mMaxFragmentBytes)) {
+            writeFragment(ts, time);
+            mFragmentStartUsec = ptsUsec;
+        }
+
+        // Worst case for Annex-B conversion is a 3-byte start code becoming a 4-byte length
+        // for every NAL unit.
+        ts.grow(size + size / 3 + 4);
+        int before = ts.mPayload.position();
+        if (ts.mTrack.mType == Track.TYPE_AVC) {
+            appendAnnexB(data, ts.mPayload);
+        } else {
+            int oldPos = data.position();
+            ts.mPayload.put(data);
+            data.position(oldPos);
+        }
+        int written = ts.mPayload.position() - before;
+
+        ts.mSizes[ts.mCount] = written;
+        ts.mTimes[ts.mCount] = time;
+        ts.mSync[ts.mCount] = isSync || ts.mTrack.mType != Track.TYPE_AVC;
+        ts.mCount++;
+        if (ts.mLastTime >= 0) {
+            ts.mLastDelta = time - ts.mLastTime;
+        }
+        ts.mLastTime = time;
+        mPendingBytes += written;
+        mPendingSamples++;
+    }
+
+    /**
+     * Writes out whatever is left.  The writer can't be used afterward.
+     */
+    public void finish() throws IOException {
+        if (mStarted && mPendingSamples > 0) {
+            writeFragment(null, 0);
+        }
+        mStarted = false;
+    }
+
+    /**
+     * Returns the number of bytes written to the channel so far.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Writes the pending samples as one moof+mdat pair.
+     *
+     * @param nextTrack Track whose next sample triggered the write, or null at the end.
+     * @param nextTime Time of that sample.  Gives us the exact duration of the last sample
+     *     on that track; for the other tracks we repeat the previous duration, and the
+     *     next fragment's tfdt puts things right.
+     */
+    private void writeFragment(TrackState nextTrack, long nextTime) throws IOException {
+        mSequence++;
+
+        // Compute the moof size up front, so we can fill in the data offsets as we go.
+        int moofSize = 8 + 16;
+        for (int i = 0; i < mTracks.size(); i++) {
+            TrackState ts = mTracks.get(i);
+            if (ts.mCount > 0) {
+                moofSize += 8 + 16 + 20 + 20 + 12 * ts.mCount;
+            }
+        }
+        ensureHeader(moofSize + 8);
+        mHeader.clear();
+
+        int moof = beginBox("moof");
+        int mfhd = beginFullBox("mfhd", 0, 0);
+        mHeader.putInt(mSequence);
+        endBox(mfhd);
+
+        int dataOffset = moofSize + 8;
+        for (int i = 0; i < mTracks.size(); i++) {
+            TrackState ts = mTracks.get(i);
+            if (ts.mCount == 0) {
+                continue;
+            }
+            int traf = beginBox("traf");
+            int tfhd = beginFullBox("tfhd", 0, TFHD_FLAGS);
+            mHeader.putInt(ts.mTrackId);
+            endBox(tfhd);
+            int tfdt = beginFullBox("tfdt", 1, 0);
+            mHeader.putLong(ts.mTimes[0]);
+            endBox(tfdt);
+
+            int trun = beginFullBox("trun", 0, TRUN_FLAGS);
+            mHeader.putInt(ts.mCount);
+            mHeader.putInt(dataOffset);
+            for (int j = 0; j < ts.mCount; j++) {
+                long duration;
+                if (j < ts.mCount - 1) {
+                    duration = ts.mTimes[j + 1] - ts.mTimes[j];
+                } else if (ts == nextTrack) {
+                    duration = nextTime - ts.mTimes[j];
+                } else {
+                    duration = ts.mLastDelta;
+                }
+                mHeader.putInt((int) duration);
+                mHeader.putInt(ts.mSizes[j]);
+                mHeader.putInt(ts.mSync[j] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            }
+            endBox(trun);
+            endBox(traf);
+            dataOffset += ts.mPayload.position();
+        }
+        endBox(moof);
+        if (mHeader.position() != moofSize) {
+            throw new RuntimeException("moof size mismatch: " + mHeader.position() + " vs " +
+                    moofSize);
+        }
+
+        mHeader.putInt(8 + mPendingBytes);
+        putFourCC("mdat");
+        mHeader.flip();
+        writeFully(mHeader);
+
+        for (int i = 0; i < mTracks.size(); i++) {
+            TrackState ts = mTracks.get(i);
+            ts.mPayload.flip();
+            writeFully(ts.mPayload);
+            ts.mPayload.clear();
+            ts.mCount = 0;
+        }
+        mPendingBytes = 0;
+        mPendingSamples = 0;
+    }
+
+    private void writeFtyp() {
+        int ftyp = beginBox("ftyp");
+        putFourCC("iso5");          // major brand
+        mHeader.putInt(512);        // minor version
+        putFourCC("iso5");
+        putFourCC("iso6");
+        putFourCC("mp41");
+        endBox(ftyp);
+    }
+
+    private void writeMoov() {
+        int moov = beginBox("moov");
+
+        int mvhd = beginFullBox("mvhd", 0, 0);
+        mHeader.putInt(0);                  // creation time
+        mHeader.putInt(0);                  // modification time
+        mHeader.putInt(MOVIE_TIMESCALE);
+        mHeader.putInt(0);                  // duration: unknown, it's in the fragments
+        mHeader.putInt(0x00010000);         // rate 1.0
+        mHeader.putShort((short) 0x0100);   // volume 1.0
+        putZeros(2 + 8);
+        putMatrix();
+        putZeros(24);                       // pre_defined
+        mHeader.putInt(mTracks.size() + 1); // next track ID
+        endBox(mvhd);
+
+        for (int i = 0; i < mTracks.size(); i++) {
+            writeTrak(mTracks.get(i));
+        }
+
+        int mvex = beginBox("mvex");
+        for (int i = 0; i < mTracks.size(); i++) {
+            int trex = beginFullBox("trex", 0, 0);
+            mHeader.putInt(mTracks.get(i).mTrackId);
+            mHeader.putInt(1);              // sample description index
+            mHeader.putInt(0);              // default duration, size, flags: all in trun
+            mHeader.putInt(0);
+            mHeader.putInt(0);
+            endBox(trex);
+        }
+        endBox(mvex);
+
+        endBox(moov);
+    }
+
+    private void writeTrak(TrackState ts) {
+        final Track track = ts.mTrack;
+        final boolean isVideo = track.mType == Track.TYPE_AVC;
+
+        int trak = beginBox("trak");
+
+        int tkhd = beginFullBox("tkhd", 0, 0x7);   // enabled, in movie, in preview
+        mHeader.putInt(0);                  // creation time
+        mHeader.putInt(0);                  // modification time
+        mHeader.putInt(ts.mTrackId);
+        mHeader.putInt(0);                  // reserved
+        mHeader.putInt(0);                  // duration
+        putZeros(8);
+        mHeader.putShort((short) 0);        // layer
+        mHeader.putShort((short) 0);        // alternate group
+        mHeader.putShort((short) (isVideo ? 0 : 0x0100));  // volume
+        putZeros(2);
+        putMatrix();
+        mHeader.putInt(track.mWidth << 16);
+        mHeader.putInt(track.mHeight << 16);
+        endBox(tkhd);
+
+        int mdia = beginBox("mdia");
+        int mdhd = beginFullBox("mdhd", 0, 0);
+        mHeader.putInt(0);                  // creation time
+        mHeader.putInt(0);                  // modification time
+        mHeader.putInt(track.mTimescale);
+        mHeader.putInt(0);                  // duration
+        mHeader.putShort((short) 0x55c4);   // language "und"
+        mHeader.putShort((short) 0);
+        endBox(mdhd);
+
+        int hdlr = beginFullBox("hdlr", 0, 0);
+        mHeader.putInt(0);
+        putFourCC(isVideo ? "vide" : "soun");
+        putZeros(12);
+        putCString(isVideo ? "VideoHandler" : "SoundHandler");
+        endBox(hdlr);
+
+        int minf = beginBox("minf");
+        if (isVideo) {
+            int vmhd = beginFullBox("vmhd", 0, 1);
+            putZeros(8);                    // graphics mode, opcolor
+            endBox(vmhd);
+        } else {
+            int smhd = beginFullBox("smhd", 0, 0);
+            putZeros(4);                    // balance, reserved
+            endBox(smhd);
+        }
+        int dinf = beginBox("dinf");
+        int dref = beginFullBox("dref", 0, 0);
+        mHeader.putInt(1);
+        int url = beginFullBox("url ", 0, 1);   // data is in this file
+        endBox(url);
+        endBox(dref);
+        endBox(dinf);
+
+        int stbl = beginBox("stbl");
+        int stsd = beginFullBox("stsd", 0, 0);
+        mHeader.putInt(1);
+        if (isVideo) {
+            writeAvc1(track);
+        } else {
+            writeMp4a(track, ts.mTrackId);
+        }
+        endBox(stsd);
+        // The samples are all in the fragments, so the regular tables are empty.
+        int stts = beginFullBox("stts", 0, 0);
+        mHeader.putInt(0);
+        endBox(stts);
+        int stsc = beginFullBox("stsc", 0, 0);
+        mHeader.putInt(0);
+        endBox(stsc);
+        int stsz = beginFullBox("stsz", 0, 0);
+        mHeader.putInt(0);
+        mHeader.putInt(0);
+        endBox(stsz);
+        int stco = beginFullBox("stco", 0, 0);
+        mHeader.putInt(0);
+        endBox(stco);
+        endBox(stbl);
+
+        endBox(minf);
+        endBox(mdia);
+        endBox(trak);
+    }
+
+    private void writeAvc1(Track track) {
+        int avc1 = beginBox("avc1");
+        putZeros(6);
+        mHeader.putShort((short) 1);        // data reference index
+        putZeros(16);                       // pre_defined, reserved
+        mHeader.putShort((short) track.mWidth);
+        mHeader.putShort((short) track.mHeight);
+        mHeader.putInt(0x00480000);         // 72 dpi
+        mHeader.putInt(0x00480000);
+        mHeader.putInt(0);
+        mHeader.putShort((short) 1);        // frame count
+        putZeros(32);                       // compressor name
+        mHeader.putShort((short) 0x0018);   // depth
+        mHeader.putShort((short) -1);
+
+        int avcC = beginBox("avcC");
+        mHeader.put((byte) 1);              // configuration version
+        mHeader.put(track.mSps[1]);         // profile
+        mHeader.put(track.mSps[2]);         // profile compatibility
+        mHeader.put(track.mSps[3]);         // level
+        mHeader.put((byte) 0xff);           // 4-byte NAL lengths
+        mHeader.put((byte) 0xe1);           // one SPS
+        mHeader.putShort((short) track.mSps.length);
+        mHeader.put(track.mSps);
+        mHeader.put((byte) 1);              // one PPS
+        mHeader.putShort((short) track.mPps.length);
+        mHeader.put(track.mPps);
+        endBox(avcC);
+
+        endBox(avc1);
+    }
+
+    private void writeMp4a(Track track, int trackId) {
+        int mp4a = beginBox("mp4a");
+        putZeros(6);
+        mHeader.putShort((short) 1);        // data reference index
+        putZeros(8);
+        mHeader.putShort((short) track.mChannelCount);
+        mHeader.putShort((short) 16);       // sample size
+        putZeros(4);
+        mHeader.putInt(track.mTimescale << 16);
+
+        final byte[] asc = track.mAudioConfig;
+        int esds = beginFullBox("esds", 0, 0);
+        // ES_Descriptor
+        mHeader.put((byte) 0x03);
+        mHeader.put((byte) (3 + 2 + 13 + 2 + asc.length + 3));
+        mHeader.putShort((short) trackId);
+        mHeader.put((byte) 0);
+        // DecoderConfigDescriptor
+        mHeader.put((byte) 0x04);
+        mHeader.put((byte) (13 + 2 + asc.length));
+        mHeader.put((byte) 0x40);           // MPEG-4 audio
+        mHeader.put((byte) 0x15);           // audio stream
+        putZeros(3 + 4 + 4);                // buffer size, max and average bit rate
+        // DecoderSpecificInfo
+        mHeader.put((byte) 0x05);
+        mHeader.put((byte) asc.length);
+        mHeader.put(asc);
+        // SLConfigDescriptor
+        mHeader.put((byte) 0x06);
+        mHeader.put((byte) 1);
+        mHeader.put((byte) 0x02);
+        endBox(esds);
+
+        endBox(mp4a);
+    }
+
+    /**
+     * Copies an Annex-B access unit (start code, NAL, start code, NAL...) to dst as
+     * length-prefixed NAL units.  If src doesn't start with a start code, we assume it's
+     * already length-prefixed and copy it as-is.  src's position and limit are unchanged.
+     */
+    private static void appendAnnexB(ByteBuffer src, ByteBuffer dst) {
+        final int pos = src.position();
+        final int limit = src.limit();
+        if (findStartCode(src, pos, limit) != pos) {
+            dst.put(src);
+            src.position(pos);
+            return;
+        }
+
+        int nalStart = pos + startCodeLength(src, pos);
+        while (true) {
+            int next = findStartCode(src, nalStart, limit);
+            int nalEnd = (next < 0) ? limit : next;
+            dst.putInt(nalEnd - nalStart);
+            src.limit(nalEnd);
+            src.position(nalStart);
+            dst.put(src);
+            src.limit(limit);
+            if (next < 0) {
+                break;
+            }
+            nalStart = next + startCodeLength(src, next);
+        }
+        src.position(pos);
+    }
+
+    /**
+     * Returns the offset of the next 00 00 01 or 00 00 00 01 at or after "from", or -1.
+     */
+    private static int findStartCode(ByteBuffer buf, int from, int limit) {
+        for (int i = from; i + 2 < limit; i++) {
+            if (buf.get(i) != 0 || buf.get(i + 1) != 0) {
+                continue;
+            }
+            byte b2 = buf.get(i + 2);
+            if (b2 == 1) {
+                return i;
+            }
+            if (b2 == 0 && i + 3 < limit && buf.get(i + 3) == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int startCodeLength(ByteBuffer buf, int offset) {
+        return (buf.get(offset + 2) == 1) ? 3 : 4;
+    }
+
+    /**
+     * Returns the NAL unit without its leading Annex-B start code, if it has one.
+     */
+    static byte[] stripStartCode(byte[] nal) {
+        int skip = 0;
+        if (nal.length >= 4 && nal[0] == 0 && nal[1] == 0 && nal[2] == 0 && nal[3] == 1) {
+            skip = 4;
+        } else if (nal.length >= 3 && nal[0] == 0 && nal[1] == 0 && nal[2] == 1) {
+            skip = 3;
+        }
+        if (skip == 0) {
+            return nal;
+        }
+        byte[] result = new byte[nal.length - skip];
+        System.arraycopy(nal, skip, result, 0, result.length);
+        return result;
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            mBytesWritten += mChannel.write(buf);
+        }
+    }
+
+    private void ensureHeader(int size) {
+        if (mHeader.capacity() < size) {
+            mHeader = ByteBuffer.allocate(Math.max(size, mHeader.capacity() * 2));
+        }
+    }
+
+    private int beginBox(String type) {
+        int start = mHeader.position();
+        mHeader.putInt(0);                  // size, filled in by endBox()
+        putFourCC(type);
+        return start;
+    }
+
+    private int beginFullBox(String type, int version, int flags) {
+        int start = beginBox(type);
+        mHeader.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private void endBox(int start) {
+        mHeader.putInt(start, mHeader.position() - start);
+    }
+
+    private void putFourCC(String type) {
+        for (int i = 0; i < 4; i++) {
+            mHeader.put((byte) type.charAt(i));
+        }
+    }
+
+    private void putCString(String str) {
+        for (int i = 0; i < str.length(); i++) {
+            mHeader.put((byte) str.charAt(i));
+        }
+        mHeader.put((byte) 0);
+    }
+
+    private void putZeros(int count) {
+        for (int i = 0; i < count; i++) {
+            mHeader.put((byte) 0);
+        }
+    }
+
+    private void putMatrix() {
+        for (int i = 0; i < UNITY_MATRIX.length; i++) {
+            mHeader.putInt(UNITY_MATRIX[i]);
+        }
+    }
+}
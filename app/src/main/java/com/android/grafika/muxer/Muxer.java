@@ -0,0 +1,253 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes encoded samples to a container file.  Has the same shape as MediaMuxer -- add
+ * tracks, start, write, stop, release -- so the recording code doesn't care which
+ * implementation it's talking to.
+ * <p>
+ * Two implementations are available:
+ * <ul>
+ * <li>{@link #MEDIA_MUXER} -- android.media.MediaMuxer.  Writes a regular .mp4, but the
+ *     index (moov) only goes out in stop(), so if the app dies mid-recording the file is
+ *     unplayable.
+ * <li>{@link #FRAGMENTED_MP4} -- {@link Mp4FragmentWriter}, a pure-Java fragmented MP4
+ *     writer.  The index goes out up front and the samples follow in self-describing
+ *     fragments, so everything up to the last complete fragment survives a crash.
+ * </ul>
+ * Either can be split into a series of files with {@link #segmented}, and {@link #faststart}
+ * moves the MediaMuxer index to the front once the file is done.  {@link #hls} writes
+ * MPEG-TS segments and a playlist instead, for live playback.
+ * Not thread-safe.
+ */
+public abstract class Muxer {
+    /**
+     * Creates a muxer for an output file.
+     */
+    public interface Factory {
+        Muxer create(File outputFile) throws IOException;
+    }
+
+    /**
+     * Implemented by factories whose muxers can only hold some kinds of video.  Factories
+     * that don't implement it are assumed to take anything.  See {@link #canCarryVideo}.
+     */
+    public interface VideoFormats {
+        /**
+         * Returns true if the muxers this factory creates can hold video of the given
+         * MIME type.
+         */
+        boolean canCarryVideo(String mimeType);
+    }
+
+    /**
+     * A factory that only takes some kinds of video.  Anonymous classes can't implement
+     * both interfaces, so the factories below extend this.
+     */
+    private abstract static class LimitedFactory implements Factory, VideoFormats {}
+
+    private static final String MIME_AVC = "video/avc";
+    private static final String MIME_HEVC = "video/hevc";
+
+    /**
+     * Muxer backed by android.media.MediaMuxer.  Takes AVC, and HEVC from API 24.
+     */
+    public static final Factory MEDIA_MUXER = new LimitedFactory() {
+        @Override
+        public Muxer create(File outputFile) throws IOException {
+            return new AndroidMuxer(outputFile);
+        }
+
+        @Override
+        public boolean canCarryVideo(String mimeType) {
+            return MIME_AVC.equals(mimeType) || (MIME_HEVC.equals(mimeType) &&
+                    Build.VERSION.SDK_INT >= Build.VERSION_CODES.N);
+        }
+    };
+
+    /** Fragmented MP4 muxer, with one-second fragments. */
+    public static final Factory FRAGMENTED_MP4 =
+            fragmentedMp4(Mp4FragmentWriter.DEFAULT_FRAGMENT_USEC);
+
+    /**
+     * Returns a factory for fragmented MP4 muxers with the specified fragment duration.
+     * Shorter fragments lose less on a crash and hold less in memory, at the cost of a
+     * little more overhead in the file.  AVC video only.
+     */
+    public static Factory fragmentedMp4(final long fragmentDurationUsec) {
+        return new LimitedFactory() {
+            @Override
+            public Muxer create(File outputFile) throws IOException {
+                return new FragmentedMp4Muxer(outputFile, fragmentDurationUsec);
+            }
+
+            @Override
+            public boolean canCarryVideo(String mimeType) {
+                return MIME_AVC.equals(mimeType);
+            }
+        };
+    }
+
+    /**
+     * Returns a factory for muxers that split the recording into segments, switching to a
+     * new file at the first video sync frame after the duration or size limit is reached.
+     * Optionally deletes the oldest segments to keep the recording within a disk quota.
+     *
+     * @param factory Creates the muxer for each segment.
+     * @param segmentUsec Maximum segment duration, or 0 for no limit.
+     * @param segmentBytes Maximum segment size, or 0 for no limit.
+     * @param quotaBytes Limit on the total size of the segments, or 0 for no limit.
+     */
+    public static Factory segmented(final Factory factory, final long segmentUsec,
+            final long segmentBytes, final long quotaBytes) {
+        return new LimitedFactory() {
+            @Override
+            public Muxer create(File outputFile) {
+                return new SegmentedMuxer(outputFile, factory, segmentUsec, segmentBytes,
+                        quotaBytes);
+            }
+
+            @Override
+            public boolean canCarryVideo(String mimeType) {
+                return Muxer.canCarryVideo(factory, mimeType);
+            }
+        };
+    }
+
+    /**
+     * Returns a factory for muxers that, after release(), rewrite the finished file with
+     * the index in front (see {@link FastStart}), so playback and uploads can start
+     * right away.  The rewrite happens on a background thread; use
+     * {@link Muxer#whenFinished} to find out when the file is ready.
+     */
+    public static Factory faststart(final Factory factory) {
+        return new LimitedFactory() {
+            @Override
+            public Muxer create(File outputFile) throws IOException {
+                return new FastStartMuxer(factory.create(outputFile), outputFile);
+            }
+
+            @Override
+            public boolean canCarryVideo(String mimeType) {
+                return Muxer.canCarryVideo(factory, mimeType);
+            }
+        };
+    }
+
+    /**
+     * Returns a factory for HLS muxers.  The output file is the .m3u8 playlist; the MPEG-TS
+     * segments are written next to it.  AVC video only.
+     *
+     * @param segmentUsec Target segment duration.  Segments are cut at video sync frames.
+     * @param windowSize Number of segments to keep in the playlist, or 0 for all of them.
+     */
+    public static Factory hls(final long segmentUsec, final int windowSize) {
+        return new LimitedFactory() {
+            @Override
+            public Muxer create(File outputFile) {
+                return new HlsMuxer(outputFile, segmentUsec, windowSize);
+            }
+
+            @Override
+            public boolean canCarryVideo(String mimeType) {
+                return MIME_AVC.equals(mimeType);
+            }
+        };
+    }
+
+    /**
+     * Returns true if muxers from the factory can hold video of the given MIME type, or if
+     * the factory doesn't say (doesn't implement {@link VideoFormats}).  A null factory
+     * takes anything.
+     */
+    public static boolean canCarryVideo(Factory factory, String mimeType) {
+        if (factory instanceof VideoFormats) {
+            return ((VideoFormats) factory).canCarryVideo(mimeType);
+        }
+        return true;
+    }
+
+    /**
+     * Adds a track.  The format must include the codec-specific data, so this is normally
+     * the format from the encoder's INFO_OUTPUT_FORMAT_CHANGED.
+     *
+     * @return The track index, for writeSampleData().
+     */
+    public abstract int addTrack(MediaFormat format);
+
+    /**
+     * Starts the muxer.  Call after all tracks have been added.
+     */
+    public abstract void start();
+
+    /**
+     * Writes one encoded sample.  The buffer's position and limit are left unchanged.
+     */
+    public abstract void writeSampleData(int trackIndex, ByteBuffer byteBuf,
+            MediaCodec.BufferInfo bufferInfo);
+
+    /**
+     * Returns true, once, if the muxer would like the video encoder to produce a sync frame
+     * soon.  Safe to call from any thread.  Encoders that can't oblige may ignore it.
+     */
+    public boolean pollSyncFrameRequest() {
+        return false;
+    }
+
+    /**
+     * Stops the muxer, finishing the file.
+     */
+    public abstract void stop();
+
+    /**
+     * Releases resources.  Call after stop().
+     */
+    public abstract void release();
+
+    /**
+     * Runs the task once the output file is complete.  Most muxers are done when release()
+     * returns and run it right away; {@link #faststart} runs it on its background thread
+     * after the rewrite.  Call after release().
+     */
+    public void whenFinished(Runnable task) {
+        task.run();
+    }
+
+    /**
+     * Returns a copy of a ByteBuffer entry, such as codec-specific data, from a format.
+     */
+    static byte[] getByteArray(MediaFormat format, String key) {
+        ByteBuffer buf = format.getByteBuffer(key);
+        if (buf == null) {
+            throw new IllegalArgumentException("format has no " + key);
+        }
+        buf = buf.duplicate();
+        buf.rewind();
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.android.grafika.MainActivity;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Muxer that splits the recording into a series of files, dashcam-style.
+ * <p>
+ * A new segment is started when the current one reaches the duration or size limit.  The
+ * switch happens at a video sync frame, so every segment plays on its own; the encoder
+ * isn't restarted and nothing is dropped.  When a segment is due, {@link
+ * #pollSyncFrameRequest()} returns true once, so an encoder that checks it can ask for a
+ * sync frame instead of waiting for the next scheduled one.
+ * <p>
+ * Finished segments are stopped and released on a background thread, so the caller never
+ * waits for a file to close.  With a disk quota, the same thread deletes the oldest
+ * segments from this recording to keep the total under the limit.
+ * <p>
+ * Segments are named after the output file: "foo.mp4" becomes "foo-0001.mp4",
+ * "foo-0002.mp4", and so on.
+ */
+class SegmentedMuxer extends Muxer {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private final File mBaseFile;
+    private final Muxer.Factory mFactory;
+    private final long mSegmentUsec;
+    private final long mSegmentBytes;
+    private final long mQuotaBytes;
+
+    private final ArrayList<MediaFormat> mFormats = new ArrayList<MediaFormat>();
+    private int mVideoTrack = -1;
+
+    private Muxer mCurrent;
+    private File mCurrentFile;
+    private int mSegmentIndex;
+    private long mSegmentStartUsec = -1;
+    private volatile long mSegmentBytesWritten;     // read by the closer for the quota
+    private volatile boolean mSyncFrameRequested;
+    private boolean mSyncFrameRequestSent;
+
+    private Executor mCloser;
+    private ExecutorService mOwnCloser;             // if we created mCloser
+
+    // Closer thread only.
+    private final ArrayDeque<File> mClosedFiles = new ArrayDeque<File>();
+    private long mClosedBytes;
+
+    /**
+     * @param baseFile Names the segments.
+     * @param factory Creates the muxer for each segment.
+     * @param segmentUsec Maximum segment duration, or 0 for no limit.
+     * @param segmentBytes Maximum segment size, or 0 for no limit.
+     * @param quotaBytes Limit on the total size of this recording's segments, or 0 to keep
+     *     everything.
+     */
+    SegmentedMuxer(File baseFile, Muxer.Factory factory, long segmentUsec, long segmentBytes,
+            long quotaBytes) {
+        this(baseFile, factory, segmentUsec, segmentBytes, quotaBytes, null);
+    }
+
+    /**
+     * @param closer Runs the work of closing segments, or null to start a thread for it.
+     */
+    SegmentedMuxer(File baseFile, Muxer.Factory factory, long segmentUsec, long segmentBytes,
+            long quotaBytes, Executor closer) {
+        mBaseFile = baseFile;
+        mFactory = factory;
+        mSegmentUsec = segmentUsec;
+        mSegmentBytes = segmentBytes;
+        mQuotaBytes = quotaBytes;
+        mCloser = closer;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (mCurrent != null) {
+            throw new IllegalStateException("already started");
+        }
+        if (mVideoTrack < 0 && isVideo(format)) {
+            mVideoTrack = mFormats.size();
+        }
+        mFormats.add(format);
+        return mFormats.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        if (mCloser == null) {
+            mOwnCloser = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "SegmentCloser");
+                }
+            });
+            mCloser = mOwnCloser;
+        }
+        mCurrent = openSegment();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf,
+            MediaCodec.BufferInfo bufferInfo) {
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            if (mSegmentStartUsec < 0) {
+                mSegmentStartUsec = bufferInfo.presentationTimeUs;
+            } else if (isSegmentDue(bufferInfo.presentationTimeUs)) {
+                // Only switch where the new file can start decoding.  Without video, every
+                // sample qualifies.
+                boolean canSwitch = mVideoTrack < 0 || (trackIndex == mVideoTrack &&
+                        (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+                if (canSwitch) {
+                    rollover(bufferInfo.presentationTimeUs);
+                } else if (!mSyncFrameRequestSent) {
+                    mSyncFrameRequestSent = true;
+                    mSyncFrameRequested = true;
+                }
+            }
+        }
+        mCurrent.writeSampleData(trackIndex, byteBuf, bufferInfo);
+        mSegmentBytesWritten += bufferInfo.size;
+    }
+
+    @Override
+    public boolean pollSyncFrameRequest() {
+        if (mSyncFrameRequested) {
+            mSyncFrameRequested = false;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void stop() {
+        if (mCurrent != null) {
+            // Nothing is being written any more, so the quota only counts closed files.
+            mSegmentBytesWritten = 0;
+            closeSegment(mCurrent, mCurrentFile, true);
+            mCurrent = null;
+        }
+        if (mOwnCloser != null) {
+            mOwnCloser.shutdown();
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mCurrent != null) {
+            // Never stopped; abandon the current segment.
+            mSegmentBytesWritten = 0;
+            closeSegment(mCurrent, mCurrentFile, false);
+            mCurrent = null;
+            if (mOwnCloser != null) {
+                mOwnCloser.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the track carries video, and so decides where segments can start.
+     */
+    boolean isVideo(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        return mime != null && mime.startsWith("video/");
+    }
+
+    private boolean isSegmentDue(long ptsUsec) {
+        return (mSegmentUsec > 0 && ptsUsec - mSegmentStartUsec >= mSegmentUsec) ||
+                (mSegmentBytes > 0 && mSegmentBytesWritten >= mSegmentBytes);
+    }
+
+    /**
+     * Starts a new segment, handing the old one to the closer thread.
+     */
+    private void rollover(long ptsUsec) {
+        if (VERBOSE) {
+            Log.d(TAG, "rollover at " + ptsUsec + " after " +
+                    (ptsUsec - mSegmentStartUsec) + "us, " + mSegmentBytesWritten + " bytes");
+        }
+        Muxer prev = mCurrent;
+        File prevFile = mCurrentFile;
+        Muxer next = openSegment();
+        closeSegment(prev, prevFile, true);
+        mCurrent = next;
+        mSegmentStartUsec = ptsUsec;
+        mSyncFrameRequestSent = false;
+        mSyncFrameRequested = false;
+    }
+
+    /**
+     * Creates the muxer for the next segment, with all tracks added, and starts it.
+     */
+    private Muxer openSegment() {
+        mSegmentIndex++;
+        File file = segmentFile(mBaseFile, mSegmentIndex);
+        Muxer muxer;
+        try {
+            muxer = mFactory.create(file);
+        } catch (IOException ioe) {
+            throw new RuntimeException("unable to create segment " + file, ioe);
+        }
+        for (int i = 0; i < mFormats.size(); i++) {
+            muxer.addTrack(mFormats.get(i));
+        }
+        muxer.start();
+        mCurrentFile = file;
+        mSegmentBytesWritten = 0;
+        return muxer;
+    }
+
+    /**
+     * Stops (if requested) and releases a segment on the closer thread, then enforces the
+     * quota.
+     */
+    private void closeSegment(final Muxer muxer, final File file, final boolean finish) {
+        mCloser.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (finish) {
+                        muxer.stop();
+                    }
+                } catch (RuntimeException re) {
+                    // Typically a segment with no samples in it.
+                    Log.w(TAG, "failed finishing segment " + file, re);
+                } finally {
+                    muxer.release();
+                }
+                mClosedFiles.add(file);
+                mClosedBytes += file.length();
+                enforceQuota();
+            }
+        });
+    }
+
+    /**
+     * Deletes the oldest finished segments until this recording fits in the quota.
+     * Closer thread only.
+     */
+    private void enforceQuota() {
+        if (mQuotaBytes <= 0) {
+            return;
+        }
+        while (!mClosedFiles.isEmpty() &&
+                mClosedBytes + mSegmentBytesWritten > mQuotaBytes) {
+            File oldest = mClosedFiles.poll();
+            long length = oldest.length();
+            if (oldest.delete()) {
+                if (VERBOSE) Log.d(TAG, "quota: deleted " + oldest);
+            } else {
+                Log.w(TAG, "quota: unable to delete " + oldest);
+            }
+            mClosedBytes -= length;
+        }
+    }
+
+    /**
+     * Returns the name of segment "index" for a base file name.
+     */
+    static File segmentFile(File baseFile, int index) {
+        String name = baseFile.getName();
+        String ext = "";
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            ext = name.substring(dot);
+            name = name.substring(0, dot);
+        }
+        return new File(baseFile.getParentFile(),
+                String.format(Locale.US, "%s-%04d%s", name, index, ext));
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.muxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * MPEG-2 transport stream packetizer, in plain Java.
+ * <p>
+ * Produces a single-program stream with up to one H.264 track and one AAC track:
+ * <ul>
+ * <li>PAT and PMT at the start of the output and before every video sync frame, so a
+ *     player can join at any segment boundary.
+ * <li>One PES packet per video access unit.  Each gets an access unit delimiter, and sync
+ *     frames also get the SPS and PPS, since MediaCodec only emits those once.
+ * <li>One PES packet per AAC frame, with an ADTS header built from the AudioSpecificConfig.
+ * <li>PCR on the video PID (the audio PID if there's no video), a little ahead of the PTS.
+ * </ul>
+ * Presentation times are used as decode times, i.e. no B-frames.
+ * <p>
+ * Packets are collected in a buffer and written to the channel in batches; call flush()
+ * before switching channels.  Has no Android dependencies.  Not thread-safe.
+ */
+public class TsPacketizer {
+    public static final int PACKET_SIZE = 188;
+
+    private static final int PID_PAT = 0x0000;
+    private static final int PID_PMT = 0x1000;
+    private static final int PID_VIDEO = 0x0100;
+    private static final int PID_AUDIO = 0x0101;
+
+    private static final int STREAM_TYPE_H264 = 0x1b;
+    private static final int STREAM_TYPE_ADTS = 0x0f;
+    private static final int STREAM_ID_VIDEO = 0xe0;
+    private static final int STREAM_ID_AUDIO = 0xc0;
+
+    // PCR runs this far (in 90kHz ticks) ahead of the PTS, giving the decoder a little
+    // buffering time.
+    private static final long PCR_LEAD_TICKS = 9000;
+
+    private static final byte[] ACCESS_UNIT_DELIMITER = { 0, 0, 0, 1, 0x09, (byte) 0xf0 };
+    private static final byte[] START_CODE = { 0, 0, 0, 1 };
+
+    private static final int[] CRC_TABLE = new int[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private WritableByteChannel mChannel;
+    private final ByteBuffer mOut = ByteBuffer.allocateDirect(PACKET_SIZE * 64);
+    private final byte[] mPacket = new byte[PACKET_SIZE];
+    private byte[] mPes = new byte[64 * 1024];
+    private int mPesLength;
+
+    private boolean mHasVideo;
+    private boolean mHasAudio;
+    private byte[] mSps;
+    private byte[] mPps;
+    private int mAudioObjectType;
+    private int mAudioFreqIndex;
+    private int mAudioChannelConfig;
+
+    private int mPatCounter;
+    private int mPmtCounter;
+    private int mVideoCounter;
+    private int mAudioCounter;
+    private boolean mTablesPending = true;
+
+    /**
+     * @param channel Where the packets go.  May be changed later with setChannel().
+     */
+    public TsPacketizer(WritableByteChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * Adds the H.264 track.  The SPS and PPS may include Annex-B start codes.
+     */
+    public void setVideo(byte[] sps, byte[] pps) {
+        mHasVideo = true;
+        mSps = Mp4FragmentWriter.stripStartCode(sps);
+        mPps = Mp4FragmentWriter.stripStartCode(pps);
+        mTablesPending = true;
+    }
+
+    /**
+     * Adds the AAC track.
+     *
+     * @param audioSpecificConfig The AudioSpecificConfig, i.e. csd-0 from the encoder.
+     */
+    public void setAudio(byte[] audioSpecificConfig) {
+        if (audioSpecificConfig.length < 2) {
+            throw new IllegalArgumentException("AudioSpecificConfig too short");
+        }
+        mHasAudio = true;
+        mAudioObjectType = (audioSpecificConfig[0] & 0xff) >> 3;
+        mAudioFreqIndex = ((audioSpecificConfig[0] & 0x07) << 1) |
+                ((audioSpecificConfig[1] & 0xff) >> 7);
+        mAudioChannelConfig = ((audioSpecificConfig[1] & 0xff) >> 3) & 0x0f;
+        mTablesPending = true;
+    }
+
+    /**
+     * Writes any buffered packets, then switches to a new channel.  The next packet written
+     * will be preceded by a PAT and PMT.  Continuity counters carry on, which players expect
+     * across HLS segments.
+     */
+    public void setChannel(WritableByteChannel channel) throws IOException {
+        flush();
+        mChannel = channel;
+        mTablesPending = true;
+    }
+
+    /**
+     * Writes a video access unit.
+     *
+     * @param data Annex-B data, from position() to limit().  Position and limit are unchanged.
+     */
+    public void writeVideo(ByteBuffer data, long ptsUsec, boolean isSync) throws IOException {
+        if (!mHasVideo) {
+            throw new IllegalStateException("no video track");
+        }
+        if (isSync) {
+            mTablesPending = true;
+        }
+        writeTablesIfPending();
+
+        long pts = toTicks(ptsUsec);
+        int extra = ACCESS_UNIT_DELIMITER.length;
+        if (isSync) {
+            extra += START_CODE.length * 2 + mSps.length + mPps.length;
+        }
+        startPes(STREAM_ID_VIDEO, pts, extra + data.remaining(), false);
+        appendPes(ACCESS_UNIT_DELIMITER);
+        if (isSync) {
+            appendPes(START_CODE);
+            appendPes(mSps);
+            appendPes(START_CODE);
+            appendPes(mPps);
+        }
+        appendPes(data);
+        writePes(PID_VIDEO, pts, true, isSync);
+    }
+
+    /**
+     * Writes one raw AAC frame (no ADTS header).
+     *
+     * @param data The frame, from position() to limit().  Position and limit are unchanged.
+     */
+    public void writeAudio(ByteBuffer data, long ptsUsec) throws IOException {
+        if (!mHasAudio) {
+            throw new IllegalStateException("no audio track");
+        }
+        writeTablesIfPending();
+
+        long pts = toTicks(ptsUsec);
+        int frameLength = 7 + data.remaining();
+        startPes(STREAM_ID_AUDIO, pts, frameLength, true);
+        ensurePes(7);
+        mPes[mPesLength++] = (byte) 0xff;
+        mPes[mPesLength++] = (byte) 0xf1;       // MPEG-4, no CRC
+        mPes[mPesLength++] = (byte) (((mAudioObjectType - 1) << 6) | (mAudioFreqIndex << 2) |
+                (mAudioChannelConfig >> 2));
+        mPes[mPesLength++] = (byte) (((mAudioChannelConfig & 0x03) << 6) | (frameLength >> 11));
+        mPes[mPesLength++] = (byte) (frameLength >> 3);
+        mPes[mPesLength++] = (byte) (((frameLength & 0x07) << 5) | 0x1f);
+        mPes[mPesLength++] = (byte) 0xfc;
+        appendPes(data);
+        writePes(PID_AUDIO, pts, !mHasVideo, false);
+    }
+
+    /**
+     * Writes buffered packets to the channel.
+     */
+    public void flush() throws IOException {
+        mOut.flip();
+        while (mOut.hasRemaining()) {
+            mChannel.write(mOut);
+        }
+        mOut.clear();
+    }
+
+    private static long toTicks(long usec) {
+        return (usec * 9 / 100) & 0x1ffffffffL;
+    }
+
+    private void writeTablesIfPending() throws IOException {
+        if (!mTablesPending) {
+            return;
+        }
+        mTablesPending = false;
+
+        // PAT: program 1 is at PID_PMT.
+        byte[] pat = new byte[] {
+                0x00,                               // table_id
+                (byte) 0xb0, 0x0d,                  // section length 13
+                0x00, 0x01,                         // transport_stream_id
+                (byte) 0xc1, 0x00, 0x00,            // version 0, current; section 0 of 0
+                0x00, 0x01,                         // program_number
+                (byte) (0xe0 | (PID_PMT >> 8)), (byte) PID_PMT,
+                0, 0, 0, 0                          // CRC
+        };
+        putCrc(pat);
+        mPatCounter = writeSection(PID_PAT, pat, mPatCounter);
+
+        int streamCount = (mHasVideo ? 1 : 0) + (mHasAudio ? 1 : 0);
+        int sectionLength = 9 + 5 * streamCount + 4;
+        int pcrPid = mHasVideo ? PID_VIDEO : PID_AUDIO;
+        byte[] pmt = new byte[3 + sectionLength];
+        int i = 0;
+        pmt[i++] = 0x02;                            // table_id
+        pmt[i++] = (byte) (0xb0 | (sectionLength >> 8));
+        pmt[i++] = (byte) sectionLength;
+        pmt[i++] = 0x00;                            // program_number
+        pmt[i++] = 0x01;
+        pmt[i++] = (byte) 0xc1;                     // version 0, current
+        pmt[i++] = 0x00;                            // section_number
+        pmt[i++] = 0x00;                            // last_section_number
+        pmt[i++] = (byte) (0xe0 | (pcrPid >> 8));
+        pmt[i++] = (byte) pcrPid;
+        pmt[i++] = (byte) 0xf0;                     // program_info_length 0
+        pmt[i++] = 0x00;
+        if (mHasVideo) {
+            i = putStream(pmt, i, STREAM_TYPE_H264, PID_VIDEO);
+        }
+        if (mHasAudio) {
+            i = putStream(pmt, i, STREAM_TYPE_ADTS, PID_AUDIO);
+        }
+        putCrc(pmt);
+        mPmtCounter = writeSection(PID_PMT, pmt, mPmtCounter);
+    }
+
+    private static int putStream(byte[] pmt, int i, int streamType, int pid) {
+        pmt[i++] = (byte) streamType;
+        pmt[i++] = (byte) (0xe0 | (pid >> 8));
+        pmt[i++] = (byte) pid;
+        pmt[i++] = (byte) 0xf0;                     // ES_info_length 0
+        pmt[i++] = 0x00;
+        return i;
+    }
+
+    /**
+     * Fills in the last four bytes of a PSI section with its CRC.
+     */
+    private static void putCrc(byte[] section) {
+        int crc = crc32(section, 0, section.length - 4);
+        int end = section.length;
+        section[end - 4] = (byte) (crc >>> 24);
+        section[end - 3] = (byte) (crc >>> 16);
+        section[end - 2] = (byte) (crc >>> 8);
+        section[end - 1] = (byte) crc;
+    }
+
+    /**
+     * Computes the MPEG-2 CRC-32 (polynomial 0x04c11db7, no reflection, no final XOR) used
+     * by PSI sections.
+     */
+    static int crc32(byte[] data, int offset, int length) {
+        int crc = 0xffffffff;
+        for (int i = offset; i < offset + length; i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xff];
+        }
+        return crc;
+    }
+
+    /**
+     * Writes a PSI section that fits in one packet.  Returns the new continuity counter.
+     */
+    private int writeSection(int pid, byte[] section, int counter) throws IOException {
+        byte[] pkt = mPacket;
+        pkt[0] = 0x47;
+        pkt[1] = (byte) (0x40 | (pid >> 8));        // payload_unit_start
+        pkt[2] = (byte) pid;
+        pkt[3] = (byte) (0x10 | counter);           // payload only
+        pkt[4] = 0x00;                              // pointer_field
+        System.arraycopy(section, 0, pkt, 5, section.length);
+        for (int i = 5 + section.length; i < PACKET_SIZE; i++) {
+            pkt[i] = (byte) 0xff;
+        }
+        emit(pkt);
+        return (counter + 1) & 0x0f;
+    }
+
+    /**
+     * Starts a PES packet in mPes: header with PTS only.
+     *
+     * @param payloadLength Size of the payload that will follow.
+     * @param bounded If set, fill in PES_packet_length; otherwise leave it 0 (allowed for
+     *     video only).
+     */
+    private void startPes(int streamId, long pts, int payloadLength, boolean bounded) {
+        mPesLength = 0;
+        ensurePes(14 + payloadLength);
+        int pesPacketLength = 3 + 5 + payloadLength;
+        if (!bounded || pesPacketLength > 0xffff) {
+            pesPacketLength = 0;
+        }
+        byte[] pes = mPes;
+        pes[0] = 0;
+        pes[1] = 0;
+        pes[2] = 1;
+        pes[3] = (byte) streamId;
+        pes[4] = (byte) (pesPacketLength >> 8);
+        pes[5] = (byte) pesPacketLength;
+        pes[6] = (byte) 0x80;                       // marker bits
+        pes[7] = (byte) 0x80;                       // PTS only
+        pes[8] = 5;                                 // header data length
+        pes[9] = (byte) (0x21 | ((pts >> 29) & 0x0e));
+        pes[10] = (byte) (pts >> 22);
+        pes[11] = (byte) (((pts >> 14) & 0xfe) | 0x01);
+        pes[12] = (byte) (pts >> 7);
+        pes[13] = (byte) (((pts << 1) & 0xfe) | 0x01);
+        mPesLength = 14;
+    }
+
+    private void ensurePes(int more) {
+        if (mPesLength + more > mPes.length) {
+            byte[] pes = new byte[Math.max(mPes.length * 2, mPesLength + more)];
+            System.arraycopy(mPes, 0, pes, 0, mPesLength);
+            mPes = pes;
+        }
+    }
+
+    private void appendPes(byte[] data) {
+        ensurePes(data.length);
+        System.arraycopy(data, 0, mPes, mPesLength, data.length);
+        mPesLength += data.length;
+    }
+
+    private void appendPes(ByteBuffer data) {
+        int length = data.remaining();
+        ensurePes(length);
+        int oldPosition = data.position();
+        data.get(mPes, mPesLength, length);
+        data.position(oldPosition);
+        mPesLength += length;
+    }
+
+    /**
+     * Splits the PES packet in mPes into transport packets.
+     *
+     * @param withPcr Put a PCR in the first packet.
+     * @param randomAccess Set random_access_indicator in the first packet.
+     */
+    private void writePes(int pid, long pts, boolean withPcr, boolean randomAccess)
+            throws IOException {
+        byte[] pkt = mPacket;
+        int offset = 0;
+        boolean first = true;
+        while (offset < mPesLength) {
+            int remaining = mPesLength - offset;
+            int counter = nextCounter(pid);
+
+            // Work out the adaptation field: PCR and flags on the first packet, stuffing on
+            // the last.
+            int adaptationLength = -1;              // -1: no adaptation field at all
+            boolean needFlags = first && (withPcr || randomAccess);
+            if (needFlags) {
+                adaptationLength = 1 + (withPcr ? 6 : 0);
+            }
+            int headerSize = 4 + (adaptationLength >= 0 ? 1 + adaptationLength : 0);
+            int payloadSize = Math.min(remaining, PACKET_SIZE - headerSize);
+            int stuffing = PACKET_SIZE - headerSize - payloadSize;
+            if (stuffing > 0) {
+                if (adaptationLength < 0) {
+                    // Need an adaptation field just for stuffing.  Its length byte takes
+                    // one byte; a flags byte another, if there's room for it.
+                    adaptationLength = stuffing - 1;
+                } else {
+                    adaptationLength += stuffing;
+                }
+            }
+
+            pkt[0] = 0x47;
+            pkt[1] = (byte) ((first ? 0x40 : 0) | (pid >> 8));
+            pkt[2] = (byte) pid;
+            pkt[3] = (byte) ((adaptationLength >= 0 ? 0x30 : 0x10) | counter);
+            int i = 4;
+            if (adaptationLength >= 0) {
+                pkt[i++] = (byte) adaptationLength;
+                int end = i + adaptationLength;
+                if (adaptationLength > 0) {
+                    int flags = 0;
+                    if (needFlags && randomAccess) {
+                        flags |= 0x40;
+                    }
+                    if (needFlags && withPcr) {
+                        flags |= 0x10;
+                    }
+                    pkt[i++] = (byte) flags;
+                    if (needFlags && withPcr) {
+                        long pcr = Math.max(0, pts - PCR_LEAD_TICKS);
+                        pkt[i++] = (byte) (pcr >> 25);
+                        pkt[i++] = (byte) (pcr >> 17);
+                        pkt[i++] = (byte) (pcr >> 9);
+                        pkt[i++] = (byte) (pcr >> 1);
+                        pkt[i++] = (byte) (((pcr & 0x01) << 7) | 0x7e);   // ext 0
+                        pkt[i++] = 0x00;
+                    }
+                    while (i < end) {
+                        pkt[i++] = (byte) 0xff;
+                    }
+                }
+            }
+            System.arraycopy(mPes, offset, pkt, i, payloadSize);
+            emit(pkt);
+
+            offset += payloadSize;
+            first = false;
+        }
+    }
+
+    private int nextCounter(int pid) {
+        int counter;
+        if (pid == PID_VIDEO) {
+            counter = mVideoCounter;
+            mVideoCounter = (counter + 1) & 0x0f;
+        } else {
+            counter = mAudioCounter;
+            mAudioCounter = (counter + 1) & 0x0f;
+        }
+        return counter;
+    }
+
+    private void emit(byte[] pkt) throws IOException {
+        if (mOut.remaining() < PACKET_SIZE) {
+            flush();
+        }
+        mOut.put(pkt, 0, PACKET_SIZE);
+    }
+}
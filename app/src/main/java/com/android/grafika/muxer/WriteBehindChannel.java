@@ -0,0 +1,410 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.muxer;
+
+import android.util.Log;
+
+import com.android.grafika.LatencyHistogram;
+import com.android.grafika.MainActivity;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Write-behind buffering for our own file sinks.
+ * <p>
+ * Small writes (a box header, a 188-byte TS packet, one encoded frame) are copied into
+ * large blocks from a fixed pool of direct buffers.  Full blocks are handed to an I/O
+ * thread, which writes them to the FileChannel whole, so the file is written in big
+ * block-aligned chunks and the producer only waits for storage when every block in the
+ * pool is in flight.
+ * <p>
+ * Two histograms tell whether storage is keeping up: how long each block write took, and
+ * how long producers stalled waiting for a free block.  Stalls mean the device can't
+ * sustain the bit rate (or needs more buffering).
+ * <p>
+ * The target can be switched to another file without waiting (see {@link #setTarget}),
+ * and tasks can be queued to run on the I/O thread once everything written before them
+ * is on disk (see {@link #post}).
+ * <p>
+ * Only MediaMuxer writes its own file, so this applies to the pure-Java muxers.
+ * <p>
+ * One producer thread.
+ */
+public class WriteBehindChannel implements WritableByteChannel {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    /** Default block size; a multiple of the usual flash page and erase sizes. */
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+    /** Default number of blocks in the pool. */
+    public static final int DEFAULT_BLOCK_COUNT = 8;
+
+    /**
+     * An entry in the I/O queue: a block to write, or a task, or both (a final partial
+     * block followed by a close).
+     */
+    private static class Entry {
+        ByteBuffer mBlock;              // null for a task only
+        FileChannel mTarget;
+        boolean mCloseTarget;
+        Runnable mTask;
+    }
+
+    private final Thread mThread;
+
+    // Producer only.
+    private FileChannel mTarget;
+    private ByteBuffer mCurrent;
+    private boolean mClosed;
+
+    // Guarded by mLock.
+    private final Object mLock = new Object();
+    private final ArrayDeque<ByteBuffer> mFree = new ArrayDeque<ByteBuffer>();
+    private final ArrayDeque<Entry> mQueue = new ArrayDeque<Entry>();
+    private boolean mBusy;              // I/O thread is working on an entry
+    private boolean mQuit;
+    private IOException mError;
+
+    private final LatencyHistogram mWriteTimes = new LatencyHistogram();
+    private final LatencyHistogram mStallTimes = new LatencyHistogram();
+    private volatile long mBytesWritten;
+
+    /**
+     * Creates a channel with the default block size and count.
+     */
+    public WriteBehindChannel(FileChannel target) {
+        this(target, DEFAULT_BLOCK_SIZE, DEFAULT_BLOCK_COUNT);
+    }
+
+    /**
+     * @param target File to write to.  Closed by close().
+     * @param blockSize Size of each block; should be a multiple of 4096.
+     * @param blockCount Number of blocks.  At least two, so one can fill while another is
+     *     written.
+     */
+    public WriteBehindChannel(FileChannel target, int blockSize, int blockCount) {
+        if (blockCount < 2) {
+            throw new IllegalArgumentException("need at least two blocks");
+        }
+        mTarget = target;
+        for (int i = 0; i < blockCount; i++) {
+            mFree.add(ByteBuffer.allocateDirect(blockSize));
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ioLoop();
+            }
+        }, "WriteBehind");
+        mThread.start();
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (mClosed) {
+            throw new ClosedChannelException();
+        }
+        checkError();
+        int total = src.remaining();
+        while (src.hasRemaining()) {
+            if (mCurrent == null) {
+                mCurrent = obtainBlock();
+            }
+            int count = Math.min(src.remaining(), mCurrent.remaining());
+            int oldLimit = src.limit();
+            src.limit(src.position() + count);
+            mCurrent.put(src);
+            src.limit(oldLimit);
+            if (!mCurrent.hasRemaining()) {
+                submitCurrent(false, null);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Queues the partly-filled block, if any, and waits until everything written so far is
+     * on its way to storage (written to the FileChannel, not necessarily synced).
+     */
+    public void flush() throws IOException {
+        submitCurrent(false, null);
+        synchronized (mLock) {
+            while ((!mQueue.isEmpty() || mBusy) && mError == null) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException ie) {
+                    throw new IOException("interrupted");
+                }
+            }
+        }
+        checkError();
+    }
+
+    /**
+     * Sends subsequent writes to a different file.  Doesn't wait: the partly-filled block
+     * for the old file is queued, and the old file is closed on the I/O thread after it's
+     * written, if requested.  The new target may be null if nothing more will be written.
+     */
+    public void setTarget(FileChannel target, boolean closePrevious) throws IOException {
+        checkError();
+        submitCurrent(closePrevious, null);
+        mTarget = target;
+    }
+
+    /**
+     * Runs a task on the I/O thread once everything written so far has been written to
+     * the file.  Used e.g. to publish a playlist only after the segment it lists is
+     * complete.
+     */
+    public void post(Runnable task) throws IOException {
+        checkError();
+        submitCurrent(false, task);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !mClosed;
+    }
+
+    /**
+     * Writes everything out, closes the target, and stops the I/O thread.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        try {
+            submitCurrent(true, null);
+            flush();
+        } finally {
+            mClosed = true;
+            shutdown();
+        }
+        if (VERBOSE) logStats();
+    }
+
+    /**
+     * Stops the I/O thread without writing what's pending, and closes the target, along
+     * with any earlier targets still waiting to be closed by {@link #setTarget}.  For
+     * abandoning a file.
+     */
+    public void abort() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        ArrayList<FileChannel> toClose = new ArrayList<FileChannel>();
+        synchronized (mLock) {
+            for (Entry entry : mQueue) {
+                if (entry.mCloseTarget && entry.mTarget != null) {
+                    toClose.add(entry.mTarget);
+                }
+            }
+            mQueue.clear();
+        }
+        shutdown();
+        if (mTarget != null) {
+            toClose.add(mTarget);
+        }
+        for (FileChannel target : toClose) {
+            try {
+                target.close();
+            } catch (IOException ioe) {
+                Log.w(TAG, "failed closing target", ioe);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes written to storage so far.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Returns the histogram of block write times.
+     */
+    public LatencyHistogram getWriteTimes() {
+        return mWriteTimes;
+    }
+
+    /**
+     * Returns the histogram of producer stalls, i.e. time spent waiting for a free block.
+     */
+    public LatencyHistogram getStallTimes() {
+        return mStallTimes;
+    }
+
+    /**
+     * Logs the write and stall histograms.
+     */
+    public void logStats() {
+        Log.d(TAG, "write-behind: " + mBytesWritten + " bytes; writes " + mWriteTimes +
+                "; stalls " + mStallTimes);
+    }
+
+    /**
+     * Takes a free block, waiting for the I/O thread if there isn't one.
+     */
+    private ByteBuffer obtainBlock() throws IOException {
+        synchronized (mLock) {
+            if (mFree.isEmpty()) {
+                long startNanos = System.nanoTime();
+                while (mFree.isEmpty() && mError == null) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ie) {
+                        throw new IOException("interrupted");
+                    }
+                }
+                mStallTimes.record(System.nanoTime() - startNanos);
+            }
+            if (mError != null) {
+                throw new IOException("write-behind failed", mError);
+            }
+            ByteBuffer block = mFree.poll();
+            block.clear();
+            return block;
+        }
+    }
+
+    /**
+     * Queues the current block (if it has anything in it) for the current target, along
+     * with an optional close and task.
+     */
+    private void submitCurrent(boolean closeTarget, Runnable task) {
+        ByteBuffer block = mCurrent;
+        mCurrent = null;
+        if (block != null) {
+            if (block.position() == 0) {
+                synchronized (mLock) {
+                    mFree.add(block);
+                }
+                block = null;
+            } else {
+                block.flip();
+            }
+        }
+        if (block == null && !closeTarget && task == null) {
+            return;
+        }
+        Entry entry = new Entry();
+        entry.mBlock = block;
+        entry.mTarget = mTarget;
+        entry.mCloseTarget = closeTarget;
+        entry.mTask = task;
+        synchronized (mLock) {
+            mQueue.add(entry);
+            mLock.notifyAll();
+        }
+    }
+
+    private void checkError() throws IOException {
+        synchronized (mLock) {
+            if (mError != null) {
+                throw new IOException("write-behind failed", mError);
+            }
+        }
+    }
+
+    private void shutdown() {
+        synchronized (mLock) {
+            mQuit = true;
+            mLock.notifyAll();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "interrupted waiting for I/O thread");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * I/O thread main loop.
+     */
+    private void ioLoop() {
+        while (true) {
+            Entry entry;
+            synchronized (mLock) {
+                while (mQueue.isEmpty() && !mQuit) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+                if (mQueue.isEmpty()) {
+                    return;
+                }
+                entry = mQueue.poll();
+                mBusy = true;
+            }
+
+            IOException error = null;
+            if (entry.mBlock != null) {
+                long startNanos = System.nanoTime();
+                try {
+                    int length = entry.mBlock.remaining();
+                    while (entry.mBlock.hasRemaining()) {
+                        entry.mTarget.write(entry.mBlock);
+                    }
+                    mBytesWritten += length;
+                } catch (IOException ioe) {
+                    error = ioe;
+                }
+                mWriteTimes.record(System.nanoTime() - startNanos);
+            }
+            if (entry.mCloseTarget && entry.mTarget != null) {
+                try {
+                    entry.mTarget.close();
+                } catch (IOException ioe) {
+                    if (error == null) {
+                        error = ioe;
+                    }
+                }
+            }
+            if (entry.mTask != null && error == null) {
+                try {
+                    entry.mTask.run();
+                } catch (RuntimeException re) {
+                    Log.w(TAG, "write-behind task failed", re);
+                }
+            }
+
+            synchronized (mLock) {
+                if (entry.mBlock != null) {
+                    mFree.add(entry.mBlock);
+                }
+                if (error != null && mError == null) {
+                    Log.e(TAG, "write-behind I/O failed", error);
+                    mError = error;
+                }
+                mBusy = false;
+                mLock.notifyAll();
+            }
+        }
+    }
+}
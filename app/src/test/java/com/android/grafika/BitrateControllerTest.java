@@ -0,0 +1,221 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays congestion and calm traces through BitrateController, one sample every
+ * SAMPLE_INTERVAL_USEC, the way CircularEncoder drives it.
+ */
+public class BitrateControllerTest {
+    private static final int MIN = 1000000;
+    private static final int MAX = 8000000;
+    private static final long INTERVAL = BitrateController.SAMPLE_INTERVAL_USEC;
+
+    private BitrateController mController;
+    private long mNowUsec;
+
+    /**
+     * Creates a controller and gives it its first (baseline) sample.
+     */
+    private void start(int initialBitRate) {
+        mController = new BitrateController(MIN, MAX, initialBitRate);
+        mNowUsec = 0;
+        assertEquals(Math.max(MIN, Math.min(MAX, initialBitRate)),
+                mController.update(mNowUsec, 0, 0, 0));
+    }
+
+    /**
+     * Feeds one interval's worth of samples, with the encoder producing exactly the current
+     * rate.
+     */
+    private int step(long backlogBytes, long maxWriteUsec) {
+        return stepEncoding(mController.getBitRate(), backlogBytes, maxWriteUsec);
+    }
+
+    private int stepEncoding(long encodedBitRate, long backlogBytes, long maxWriteUsec) {
+        mNowUsec += INTERVAL;
+        long bytes = encodedBitRate / 8 * INTERVAL / 1000000;
+        return mController.update(mNowUsec, bytes, backlogBytes, maxWriteUsec);
+    }
+
+    /**
+     * Replays calm samples until the given time, returning the number of rate changes.
+     */
+    private int calmUntil(long endUsec) {
+        int changes = 0;
+        while (mNowUsec + INTERVAL <= endUsec) {
+            int before = mController.getBitRate();
+            if (step(0, 0) != before) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBadBounds() {
+        new BitrateController(MAX, MIN, MAX);
+    }
+
+    @Test
+    public void initialRateIsClamped() {
+        assertEquals(MAX, new BitrateController(MIN, MAX, MAX * 2).getBitRate());
+        assertEquals(MIN, new BitrateController(MIN, MAX, 1).getBitRate());
+    }
+
+    @Test
+    public void backlogCutsByQuarter() {
+        start(4000000);
+        // One second of data at 4Mbps is 500000 bytes; anything past that is congestion.
+        assertEquals(4000000, step(500000, 0));
+        assertEquals(3000000, step(500001, 0));
+        assertEquals(1, mController.getDecreaseCount());
+        assertEquals(2250000, step(1000000, 0));
+        assertEquals(2, mController.getDecreaseCount());
+    }
+
+    @Test
+    public void slowWriteCutsByQuarter() {
+        start(4000000);
+        assertEquals(4000000, step(0, 500000));
+        assertEquals(3000000, step(0, 500001));
+    }
+
+    @Test
+    public void cutStartsFromEncodedRateWhenLower() {
+        start(4000000);
+        // The encoder is only managing 2Mbps, so cutting 4Mbps wouldn't relieve anything.
+        assertEquals(1500000, stepEncoding(2000000, 10000000, 0));
+    }
+
+    @Test
+    public void cutIsClampedToMinimum() {
+        start(MIN + 100000);
+        assertEquals(MIN, step(10000000, 0));
+        assertEquals(MIN, step(10000000, 0));
+        assertEquals("no change, so not counted", 1, mController.getDecreaseCount());
+    }
+
+    @Test
+    public void holdsForTwoSecondsAfterStart() {
+        start(4000000);
+        assertEquals(0, calmUntil(2000000 - INTERVAL));
+        assertEquals(4400000, step(0, 0));      // 5% of the maximum
+        assertEquals(1, mController.getIncreaseCount());
+    }
+
+    @Test
+    public void holdsForTwoSecondsAfterEachChange() {
+        start(4000000);
+        calmUntil(2000000);
+        assertEquals(4400000, mController.getBitRate());
+        assertEquals(0, calmUntil(4000000 - INTERVAL));
+        assertEquals(4800000, step(0, 0));
+    }
+
+    @Test
+    public void holdsForTwoSecondsAfterCongestion() {
+        start(4000000);
+        calmUntil(5000000);
+        int rate = step(10000000, 0);
+        assertEquals(1, mController.getDecreaseCount());
+        assertEquals(0, calmUntil(mNowUsec + 2000000 - INTERVAL));
+        assertEquals(rate + MAX / 20, step(0, 0));
+    }
+
+    @Test
+    public void congestionAtMinimumStillHolds() {
+        start(MIN);
+        calmUntil(1500000);
+        assertEquals(MIN, step(10000000, 0));
+        assertEquals(0, mController.getDecreaseCount());
+        // The hold restarts even though the rate couldn't go any lower.
+        assertEquals(0, calmUntil(mNowUsec + 2000000 - INTERVAL));
+        assertEquals(MIN + MAX / 20, step(0, 0));
+    }
+
+    @Test
+    public void modestBacklogBlocksStepUp() {
+        start(4000000);
+        calmUntil(1500000);
+        // 0.125s at 4Mbps is 62500 bytes: above that we neither cut nor step up.
+        assertEquals(4000000, step(62501, 0));
+        assertEquals(4000000, step(62501, 0));
+        assertEquals(4400000, step(62500, 0));
+    }
+
+    @Test
+    public void undershootBlocksStepUp() {
+        start(4000000);
+        // A static scene: the encoder produces well under the requested rate.
+        for (int i = 0; i < 20; i++) {
+            assertEquals(4000000, stepEncoding(2000000, 0, 0));
+        }
+        assertEquals(0, mController.getIncreaseCount());
+
+        // Once the smoothed rate comes back above 70% of the request, stepping up resumes.
+        int changes = 0;
+        for (int i = 0; i < 20 && changes == 0; i++) {
+            if (stepEncoding(4000000, 0, 0) != 4000000) {
+                changes++;
+            }
+        }
+        assertEquals(1, changes);
+        assertTrue(mController.getEncodedBitRate() * 100 >= 4000000L * 70);
+    }
+
+    @Test
+    public void stepUpIsClampedToMaximum() {
+        start(MAX - 100000);
+        calmUntil(2000000);
+        assertEquals(MAX, mController.getBitRate());
+        assertEquals(1, mController.getIncreaseCount());
+        calmUntil(20000000);
+        assertEquals(MAX, mController.getBitRate());
+        assertEquals("no step-ups at the maximum", 1, mController.getIncreaseCount());
+    }
+
+    @Test
+    public void recoversAfterCongestionClears() {
+        start(MAX);
+        // Five seconds of a storage stall, then calm.
+        while (mNowUsec < 5000000) {
+            step(10000000, 0);
+        }
+        assertEquals(MIN, mController.getBitRate());
+        int decreases = mController.getDecreaseCount();
+
+        calmUntil(mNowUsec + 60000000);
+        assertEquals(MAX, mController.getBitRate());
+        assertEquals(decreases, mController.getDecreaseCount());
+        // Additive increase: each step is 5% of the maximum, at most one per hold period.
+        assertEquals((MAX - MIN + MAX / 20 - 1) / (MAX / 20), mController.getIncreaseCount());
+    }
+
+    @Test
+    public void ignoresRepeatedTimestamp() {
+        start(4000000);
+        step(0, 0);
+        assertEquals(4000000, mController.update(mNowUsec, 0, 10000000, 0));
+        assertEquals(0, mController.getDecreaseCount());
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exercises CircularEncoderBuffer over heap storage.
+ */
+public class CircularEncoderBufferTest {
+    private static final int FRAME_RATE = 30;
+    private static final int SPAN_SEC = 2;
+
+    // 2000 bytes of storage, so packets of a few hundred bytes wrap every few frames.
+    private static final int SMALL_BIT_RATE = 8000;
+
+    private long mNextPtsUsec;
+
+    /**
+     * Adds "sec" seconds of video at the given bit rate, with a sync frame every second.
+     */
+    private void addVideo(CircularEncoderBuffer buffer, int bitRate, int sec) {
+        byte[] frame = new byte[bitRate / 8 / FRAME_RATE];
+        for (int i = 0; i < sec * FRAME_RATE; i++) {
+            int flags = (i % FRAME_RATE == 0) ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            assertTrue(buffer.add(ByteBuffer.wrap(frame), flags, mNextPtsUsec));
+            mNextPtsUsec += 1000000 / FRAME_RATE;
+        }
+    }
+
+    @Test
+    public void setBitRateScalesObservedRate() {
+        CircularEncoderBuffer buffer =
+                new CircularEncoderBuffer(800000, FRAME_RATE, SPAN_SEC);
+        addVideo(buffer, 800000, 5);
+        long observed = buffer.getObservedBitRate();
+        assertEquals(800000, observed, 800000 / 20);
+        assertEquals(0, buffer.getShortfallBytes());
+
+        // Until the new rate is measured, the old measurement is scaled to match, so the
+        // shortfall shows up straight away.
+        buffer.setBitRate(1600000);
+        assertEquals(observed * 2, buffer.getObservedBitRate(), 16);
+        long expected = observed * 2 / 8 * SPAN_SEC - buffer.getCapacity();
+        assertEquals(expected, buffer.getShortfallBytes(), 2 * SPAN_SEC);
+        assertTrue(buffer.getShortfallBytes() > 150000);
+
+        buffer.setBitRate(800000);
+        assertEquals(observed, buffer.getObservedBitRate(), 16);
+    }
+
+    /**
+     * Adds a packet whose contents are derived from its PTS, so it can be checked later.
+     */
+    private static void addPacket(CircularEncoderBuffer buffer, int size, long ptsUsec) {
+        assertTrue(buffer.add(ByteBuffer.wrap(packet(size, ptsUsec)), 0, ptsUsec));
+    }
+
+    private static byte[] packet(int size, long ptsUsec) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (ptsUsec / 1000 * 31 + i);
+        }
+        return data;
+    }
+
+    private static void assertPacket(ByteBuffer buf, MediaCodec.BufferInfo info, int size,
+            long ptsUsec) {
+        assertEquals(ptsUsec, info.presentationTimeUs);
+        assertEquals(size, info.size);
+        byte[] actual = new byte[info.size];
+        ByteBuffer view = buf.duplicate();
+        view.limit(info.offset + info.size);
+        view.position(info.offset);
+        view.get(actual);
+        assertTrue("bad data at pts=" + ptsUsec,
+                Arrays.equals(packet(size, ptsUsec), actual));
+    }
+
+    @Test
+    public void getChunkReassemblesWrappedPackets() {
+        CircularEncoderBuffer buffer =
+                new CircularEncoderBuffer(SMALL_BIT_RATE, FRAME_RATE, SPAN_SEC);
+        int capacity = buffer.getCapacity();
+        assertEquals(2000, capacity);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+        ByteBuffer scratch = null;
+        int wrapped = 0;
+        for (int i = 0; i < 40; i++) {
+            // A few smaller packets at the end, which must fit in the scratch buffer that's
+            // already there.
+            int size = (i < 30) ? 300 : 150 + i;
+            long ptsUsec = i * 1000L;
+            addPacket(buffer, size, ptsUsec);
+
+            ByteBuffer chunk = buffer.getChunk(buffer.getLastIndex(), info);
+            assertPacket(chunk, info, size, ptsUsec);
+            if (chunk.capacity() == capacity) {
+                continue;       // in one piece, returned in place
+            }
+            wrapped++;
+            assertEquals(0, info.offset);
+            if (scratch == null) {
+                scratch = chunk;
+            } else {
+                assertSame("scratch buffer reused", scratch, chunk);
+            }
+        }
+        assertTrue("only " + wrapped + " packets wrapped", wrapped >= 4);
+
+        // A bigger packet grows the scratch buffer; the ones in between are untouched.
+        for (int i = 40; ; i++) {
+            long ptsUsec = i * 1000L;
+            addPacket(buffer, 700, ptsUsec);
+            ByteBuffer chunk = buffer.getChunk(buffer.getLastIndex(), info);
+            assertPacket(chunk, info, 700, ptsUsec);
+            if (chunk.capacity() != capacity) {
+                assertNotSame(scratch, chunk);
+                assertTrue(chunk.capacity() >= 700);
+                break;
+            }
+        }
+    }
+
+    @Test
+    public void readerCopiesWrappedPackets() {
+        CircularEncoderBuffer buffer =
+                new CircularEncoderBuffer(SMALL_BIT_RATE, FRAME_RATE, SPAN_SEC);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        buffer.add(ByteBuffer.wrap(new byte[100]), MediaCodec.BUFFER_FLAG_SYNC_FRAME, 0);
+
+        for (boolean pinning : new boolean[] { false, true }) {
+            CircularEncoderBuffer.Reader reader = buffer.openReaderAtNextSync(pinning);
+            long firstPts = (mNextPtsUsec += 1000);
+            buffer.add(ByteBuffer.wrap(packet(300, firstPts)),
+                    MediaCodec.BUFFER_FLAG_SYNC_FRAME, firstPts);
+            assertPacket(reader.next(info), info, 300, firstPts);
+
+            ByteBuffer scratch = null;
+            int copies = 0;
+            for (int i = 0; i < 20; i++) {
+                long ptsUsec = (mNextPtsUsec += 1000);
+                addPacket(buffer, 300, ptsUsec);
+                ByteBuffer chunk = reader.next(info);
+                assertPacket(chunk, info, 300, ptsUsec);
+                if (info.offset == 0 && chunk.capacity() < buffer.getCapacity()) {
+                    copies++;
+                    if (scratch == null) {
+                        scratch = chunk;
+                    } else {
+                        assertSame("reader scratch buffer reused", scratch, chunk);
+                    }
+                }
+            }
+            // Non-pinning readers always copy; pinning ones only when the packet wraps.
+            assertTrue(pinning ? copies >= 2 && copies < 20 : copies == 20);
+            reader.close();
+        }
+    }
+
+    /**
+     * Returns a buffer holding three seconds of video from 1s, with a sync frame every
+     * second.  The audio that arrives alongside it runs 400ms behind or 200ms ahead, so
+     * neither the buffer nor its audio is in PTS order.
+     */
+    private static CircularEncoderBuffer createSkewedBuffer() {
+        CircularEncoderBuffer buffer =
+                new CircularEncoderBuffer(800000, FRAME_RATE * 2, SPAN_SEC * 2);
+        ByteBuffer data = ByteBuffer.allocate(100);
+        for (int i = 0; i < 3 * FRAME_RATE; i++) {
+            long videoPts = 1000000 + i * (1000000 / FRAME_RATE);
+            int flags = (i % FRAME_RATE == 0) ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            data.clear();
+            buffer.add(CircularEncoderBuffer.TRACK_VIDEO, data, flags, videoPts);
+            long audioPts = videoPts + ((i & 1) == 0 ? -400000 : 200000);
+            data.clear();
+            buffer.add(CircularEncoderBuffer.TRACK_AUDIO, data, 0, audioPts);
+        }
+        return buffer;
+    }
+
+    @Test
+    public void findIndexIgnoresSkewedAudio() {
+        CircularEncoderBuffer buffer = createSkewedBuffer();
+        long frameUsec = 1000000 / FRAME_RATE;
+
+        assertEquals(-1, buffer.findIndex(999999));
+        for (long t = 1000000; t < 5000000; t += 7919) {
+            int index = buffer.findIndex(t);
+            long expected = Math.min(1000000 + (t - 1000000) / frameUsec * frameUsec,
+                    1000000 + (3 * FRAME_RATE - 1) * frameUsec);
+            assertEquals(CircularEncoderBuffer.TRACK_VIDEO, buffer.getTrack(index));
+            assertEquals("t=" + t, expected, buffer.getPtsUsec(index));
+        }
+    }
+
+    @Test
+    public void pinSnapshotEndsAtEndTime() {
+        CircularEncoderBuffer buffer = createSkewedBuffer();
+        long frameUsec = 1000000 / FRAME_RATE;
+        long startUsec = 1000000 + FRAME_RATE * frameUsec;      // the second sync frame
+        long endUsec = 2500000;
+        CircularEncoderBuffer.Reader reader = buffer.pinSnapshot(startUsec, endUsec);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+        int video = 0;
+        int audio = 0;
+        while (reader.next(info) != null) {
+            long pts = info.presentationTimeUs;
+            assertTrue("pts=" + pts, pts >= startUsec && pts <= endUsec);
+            if (reader.getTrack() == CircularEncoderBuffer.TRACK_VIDEO) {
+                video++;
+            } else {
+                audio++;
+            }
+        }
+        assertTrue(reader.isFinished());
+        reader.close();
+
+        // Every video frame from the sync frame through 2.5s, and every audio packet in
+        // the same range.  That audio was added alongside video from 1.8s (running ahead)
+        // to 2.9s (running behind).
+        int expectedVideo = 0;
+        int expectedAudio = 0;
+        for (int i = 0; i < 3 * FRAME_RATE; i++) {
+            long videoPts = 1000000 + i * frameUsec;
+            if (videoPts >= startUsec && videoPts <= endUsec) {
+                expectedVideo++;
+            }
+            long audioPts = videoPts + ((i & 1) == 0 ? -400000 : 200000);
+            if (audioPts >= startUsec && audioPts <= endUsec) {
+                expectedAudio++;
+            }
+        }
+        assertEquals(16, expectedVideo);
+        assertEquals(15, expectedAudio);
+        assertEquals(expectedVideo, video);
+        assertEquals(expectedAudio, audio);
+    }
+
+    @Test
+    public void refusedEvictionDoesNotOverrunReaders() throws Exception {
+        final CircularEncoderBuffer buffer =
+                new CircularEncoderBuffer(SMALL_BIT_RATE, FRAME_RATE, SPAN_SEC);
+        ByteBuffer data = ByteBuffer.allocate(300);
+        buffer.add(data, MediaCodec.BUFFER_FLAG_SYNC_FRAME, 0);
+        CircularEncoderBuffer.Reader pin = buffer.openReader(true);
+
+        // Fill the buffer.  The pin holds the tail, so from here on every add() tries to
+        // evict it and backs off.
+        long ptsUsec = 0;
+        do {
+            data.clear();
+            ptsUsec += 1000;
+        } while (buffer.add(CircularEncoderBuffer.TRACK_AUDIO, data, 0, ptsUsec));
+
+        // Meanwhile, non-pinning readers keep reading the tail packet.  It's never evicted,
+        // so they must never be told they were overrun.
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger overruns = new AtomicInteger();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                while (!done.get()) {
+                    CircularEncoderBuffer.Reader reader = buffer.openReader(false);
+                    if (reader.next(info) == null || reader.isOverrun()) {
+                        overruns.incrementAndGet();
+                    }
+                    reader.close();
+                }
+            }
+        });
+        reader.start();
+        int dropped = buffer.getDroppedCount();
+        long deadline = System.nanoTime() + 200000000L;
+        while (System.nanoTime() < deadline) {
+            data.clear();
+            assertFalse(buffer.add(CircularEncoderBuffer.TRACK_AUDIO, data, 0, ptsUsec));
+        }
+        done.set(true);
+        reader.join();
+
+        assertEquals(0, overruns.get());
+        assertTrue(buffer.getDroppedCount() > dropped);
+        assertEquals(0, buffer.getEvictedCount());
+        pin.close();
+    }
+}
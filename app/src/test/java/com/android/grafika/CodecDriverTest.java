@@ -0,0 +1,264 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs CodecDriver's synchronous-mode paths (the JVM has no API level, so it never uses
+ * the asynchronous callbacks) against a scripted stand-in for the codec, and checks the
+ * order events reach the callback.
+ */
+public class CodecDriverTest {
+    private final List<String> mEvents = new ArrayList<String>();
+
+    /**
+     * Plays back a script of dequeueOutputBuffer() results, and hands out input buffer
+     * indices in order.
+     */
+    private class ScriptedDriver extends CodecDriver {
+        private final ArrayDeque<Object[]> mOutput = new ArrayDeque<Object[]>();
+        private final ByteBuffer[] mBuffers = new ByteBuffer[8];
+        private int mNextInput;
+        private int mInputCount;
+
+        ScriptedDriver(boolean pullInput, Callback callback) {
+            super(null, "test", null, pullInput, callback);
+            for (int i = 0; i < mBuffers.length; i++) {
+                mBuffers[i] = ByteBuffer.allocate(64);
+            }
+        }
+
+        void addFormatChange() {
+            mOutput.add(new Object[] { MediaCodec.INFO_OUTPUT_FORMAT_CHANGED });
+        }
+
+        void addOutput(int index, int offset, int size, int flags) {
+            mOutput.add(new Object[] { index, offset, size, flags });
+        }
+
+        void setInputCount(int count) {
+            mInputCount = count;
+        }
+
+        @Override
+        void startCodec() {}
+
+        @Override
+        int dequeueCodecInput(long timeoutUsec) {
+            if (mNextInput >= mInputCount) {
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+            mEvents.add("dequeue input " + mNextInput);
+            return mNextInput++;
+        }
+
+        @Override
+        int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUsec) {
+            Object[] next = mOutput.poll();
+            if (next == null) {
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+            if (next.length == 1) {
+                return (Integer) next[0];
+            }
+            info.offset = (Integer) next[1];
+            info.size = (Integer) next[2];
+            info.flags = (Integer) next[3];
+            info.presentationTimeUs = 0;
+            return (Integer) next[0];
+        }
+
+        @Override
+        MediaFormat getOutputFormat() {
+            return null;
+        }
+
+        @Override
+        ByteBuffer getOutputBuffer(int index) {
+            return mBuffers[index];
+        }
+
+        @Override
+        void releaseOutputBuffer(int index, boolean render) {
+            mEvents.add("release " + index + (render ? " render" : ""));
+        }
+    }
+
+    /**
+     * Logs every event.  Renders data buffers if asked to, and takes the input buffers it's
+     * told to take.
+     */
+    private class LoggingCallback extends CodecDriver.Callback {
+        boolean mRender;
+        final List<Integer> mRefuse = new ArrayList<Integer>();
+
+        @Override
+        public boolean onInputBufferAvailable(CodecDriver driver, int index) {
+            if (mRefuse.remove((Integer) index)) {
+                mEvents.add("refuse input " + index);
+                return false;
+            }
+            mEvents.add("take input " + index);
+            return true;
+        }
+
+        @Override
+        public void onOutputFormatChanged(CodecDriver driver, MediaFormat format) {
+            mEvents.add("format");
+        }
+
+        @Override
+        public void onCodecConfig(CodecDriver driver, ByteBuffer buf,
+                MediaCodec.BufferInfo info) {
+            mEvents.add("config " + buf.position() + "+" + buf.remaining());
+        }
+
+        @Override
+        public boolean onOutputBuffer(CodecDriver driver, ByteBuffer buf,
+                MediaCodec.BufferInfo info) {
+            mEvents.add("buffer " + buf.position() + "+" + buf.remaining());
+            return mRender;
+        }
+
+        @Override
+        public void onOutputReleased(CodecDriver driver, boolean rendered) {
+            mEvents.add("released" + (rendered ? " rendered" : ""));
+        }
+
+        @Override
+        public void onEndOfStream(CodecDriver driver) {
+            mEvents.add("eos");
+        }
+
+        @Override
+        public void onError(CodecDriver driver, Exception ex) {
+            mEvents.add("error " + ex.getMessage());
+        }
+    }
+
+    @Test
+    public void outputOrdering() {
+        ScriptedDriver driver = new ScriptedDriver(false, new LoggingCallback());
+        driver.addFormatChange();
+        driver.addOutput(0, 0, 20, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        driver.addOutput(1, 4, 30, MediaCodec.BUFFER_FLAG_SYNC_FRAME);
+        driver.addOutput(2, 0, 10, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        driver.start();
+        assertFalse(driver.awaitEndOfStream(0));
+        driver.drainSync(0);
+
+        assertEvents(
+                "format",
+                "config 0+20", "release 0",
+                "buffer 4+30", "release 1", "released",
+                "buffer 0+10", "release 2", "released", "eos");
+        assertTrue(driver.awaitEndOfStream(0));
+    }
+
+    @Test
+    public void emptyEndOfStreamSkipsOutputBuffer() {
+        LoggingCallback callback = new LoggingCallback();
+        callback.mRender = true;
+        ScriptedDriver driver = new ScriptedDriver(false, callback);
+        driver.addOutput(3, 0, 16, 0);
+        driver.addOutput(4, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        driver.start();
+        driver.drainSync(0);
+
+        assertEvents(
+                "buffer 0+16", "release 3 render", "released rendered",
+                "release 4", "eos");
+    }
+
+    @Test
+    public void refusedInputIsOfferedAgainFirst() {
+        LoggingCallback callback = new LoggingCallback();
+        callback.mRefuse.add(1);
+        ScriptedDriver driver = new ScriptedDriver(true, callback);
+        driver.setInputCount(3);
+        driver.start();
+
+        // Buffer 1 is turned down, which ends the round.
+        driver.drainSync(0);
+        assertEvents("dequeue input 0", "take input 0", "dequeue input 1", "refuse input 1");
+
+        // Next time it's offered before the codec is asked for another.
+        mEvents.clear();
+        driver.drainSync(0);
+        assertEvents("take input 1", "dequeue input 2", "take input 2");
+    }
+
+    @Test
+    public void refusedInputGoesToPushFirst() {
+        LoggingCallback callback = new LoggingCallback();
+        callback.mRefuse.add(0);
+        ScriptedDriver driver = new ScriptedDriver(true, callback);
+        driver.setInputCount(2);
+        driver.start();
+        driver.drainSync(0);
+        assertEvents("dequeue input 0", "refuse input 0");
+
+        // A pushing thread gets the parked buffer without a trip to the codec, then new ones.
+        mEvents.clear();
+        assertEquals(0, driver.dequeueInputBuffer(0));
+        assertEquals(1, driver.dequeueInputBuffer(0));
+        assertEquals(-1, driver.dequeueInputBuffer(0));
+        assertEvents("dequeue input 1");
+    }
+
+    @Test
+    public void callbackFailureStopsDelivery() {
+        LoggingCallback callback = new LoggingCallback() {
+            @Override
+            public boolean onOutputBuffer(CodecDriver driver, ByteBuffer buf,
+                    MediaCodec.BufferInfo info) {
+                throw new IllegalStateException("boom");
+            }
+        };
+        ScriptedDriver driver = new ScriptedDriver(false, callback);
+        driver.addOutput(0, 0, 8, 0);
+        driver.addOutput(1, 0, 8, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        driver.start();
+        driver.drainSync(0);
+
+        assertEvents("error boom");
+        try {
+            driver.awaitEndOfStream(0);
+            fail("awaitEndOfStream() ignored the failure");
+        } catch (RuntimeException expected) {
+        }
+    }
+
+    private void assertEvents(String... expected) {
+        assertEquals(Arrays.asList(expected), mEvents);
+    }
+}
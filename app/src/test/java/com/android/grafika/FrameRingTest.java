@@ -0,0 +1,202 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs FrameRing through its single-producer, single-consumer protocol.
+ */
+public class FrameRingTest {
+    private static final int WARMUP_FRAMES = 200000;
+    private static final int MEASURED_FRAMES = 100000;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePowerOfTwo() {
+        new FrameRing(6);
+    }
+
+    @Test
+    public void framesComeOutInOrder() {
+        FrameRing ring = new FrameRing(4);
+        for (int i = 0; i < 3; i++) {
+            FrameRing.Frame frame = ring.beginWrite();
+            frame.timestampNanos = 1000 + i;
+            frame.textureId = 7;
+            frame.transform[0] = i;
+            ring.endWrite();
+        }
+        for (int i = 0; i < 3; i++) {
+            FrameRing.Frame frame = ring.peek();
+            assertNotNull(frame);
+            assertEquals(1000 + i, frame.timestampNanos);
+            assertEquals(7, frame.textureId);
+            assertEquals(i, frame.sequence);
+            assertEquals(i, frame.transform[0], 0f);
+            ring.release();
+        }
+        assertNull(ring.peek());
+    }
+
+    @Test
+    public void dropsWhenFull() {
+        FrameRing ring = new FrameRing(4);
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(ring.beginWrite());
+            ring.endWrite();
+        }
+        assertNull("ring is full", ring.beginWrite());
+        assertEquals(1, ring.getDroppedCount());
+
+        // The queued frames are untouched, and once there's room the next frame's sequence
+        // number shows the gap.
+        assertEquals(0, ring.peek().sequence);
+        ring.release();
+        FrameRing.Frame frame = ring.beginWrite();
+        assertNotNull(frame);
+        assertEquals(5, frame.sequence);
+        ring.endWrite();
+        for (int expected : new int[] { 1, 2, 3, 5 }) {
+            assertEquals(expected, ring.peek().sequence);
+            ring.release();
+        }
+        assertNull(ring.peek());
+        assertEquals(1, ring.getDroppedCount());
+    }
+
+    @Test
+    public void wakeUpsAreCoalesced() {
+        FrameRing ring = new FrameRing(8);
+        ring.beginWrite();
+        assertTrue("first frame wakes the consumer", ring.endWrite());
+        ring.beginWrite();
+        assertFalse("wake-up already pending", ring.endWrite());
+
+        ring.wakeReceived();
+        ring.beginWrite();
+        assertTrue("consumer is draining; frames after this need a new wake-up",
+                ring.endWrite());
+        ring.beginWrite();
+        assertFalse(ring.endWrite());
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long tid = Thread.currentThread().getId();
+
+        FrameRing ring = new FrameRing(8);
+        float[] transform = new float[16];
+        long checksum = runFrames(ring, transform, WARMUP_FRAMES);
+
+        long before = threads.getThreadAllocatedBytes(tid);
+        checksum += runFrames(ring, transform, MEASURED_FRAMES);
+        long allocated = threads.getThreadAllocatedBytes(tid) - before;
+
+        // Even one small object per frame would come to well over a byte per frame.
+        assertTrue("allocated " + allocated + " bytes over " + MEASURED_FRAMES + " frames",
+                allocated < MEASURED_FRAMES);
+        assertTrue(checksum != 0);
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    /**
+     * Passes frames through the ring the way TextureMovieEncoder does, a few at a time.
+     * Returns something computed from the frames so none of the work can be optimized away.
+     */
+    private static long runFrames(FrameRing ring, float[] transform, int count) {
+        long checksum = 0;
+        for (int i = 0; i < count; i++) {
+            FrameRing.Frame frame = ring.beginWrite();
+            transform[12] = i;
+            System.arraycopy(transform, 0, frame.transform, 0, transform.length);
+            frame.timestampNanos = i * 33333333L;
+            frame.textureId = 1;
+            ring.endWrite();
+
+            if ((i & 3) == 3) {
+                ring.wakeReceived();
+                FrameRing.Frame out;
+                while ((out = ring.peek()) != null) {
+                    checksum += out.timestampNanos + (long) out.transform[12] + out.sequence;
+                    ring.release();
+                }
+            }
+        }
+        return checksum;
+    }
+
+    @Test
+    public void handsOffBetweenThreads() throws Exception {
+        final FrameRing ring = new FrameRing(4);
+        final int count = 100000;
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    FrameRing.Frame frame;
+                    while ((frame = ring.beginWrite()) == null) {
+                        Thread.yield();
+                    }
+                    for (int j = 0; j < 16; j++) {
+                        frame.transform[j] = i;
+                    }
+                    frame.timestampNanos = i;
+                    ring.endWrite();
+                }
+            }
+        });
+        producer.start();
+
+        int expected = 0;
+        long deadline = System.nanoTime() + 10000000000L;
+        while (expected < count) {
+            FrameRing.Frame frame = ring.peek();
+            if (frame == null) {
+                if (System.nanoTime() > deadline) {
+                    fail("stuck after " + expected + " frames");
+                }
+                Thread.yield();
+                continue;
+            }
+            // Every field must be the one the producer wrote for this frame.
+            assertEquals(expected, frame.timestampNanos);
+            for (int j = 0; j < 16; j++) {
+                assertEquals(expected, frame.transform[j], 0f);
+            }
+            ring.release();
+            expected++;
+        }
+        producer.join();
+    }
+}
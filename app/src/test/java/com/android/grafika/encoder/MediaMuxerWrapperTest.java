@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.android.grafika.muxer.Muxer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Opens and closes many MediaMuxerWrapper sessions, some concurrently, over a fake muxer,
+ * and checks that none of them leak.
+ */
+public class MediaMuxerWrapperTest {
+    private static final int THREADS = 8;
+    private static final int SESSIONS_PER_THREAD = 100;
+
+    private final AtomicInteger mCreated = new AtomicInteger();
+    private final AtomicInteger mReleased = new AtomicInteger();
+    private final AtomicInteger mSamples = new AtomicInteger();
+    private final AtomicInteger mMisuse = new AtomicInteger();
+
+    private final Muxer.Factory mFactory = new Muxer.Factory() {
+        @Override
+        public Muxer create(File outputFile) {
+            mCreated.incrementAndGet();
+            return new FakeMuxer();
+        }
+    };
+
+    /**
+     * Counts calls, and flags any made out of order the way MediaMuxer would reject them.
+     */
+    private class FakeMuxer extends Muxer {
+        private int mTracks;
+        private boolean mStarted;
+        private boolean mStopped;
+        private boolean mReleased;
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            check(!mStarted && !mReleased);
+            return mTracks++;
+        }
+
+        @Override
+        public void start() {
+            check(!mStarted && !mReleased);
+            mStarted = true;
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer byteBuf,
+                MediaCodec.BufferInfo bufferInfo) {
+            check(mStarted && !mStopped && trackIndex < mTracks);
+            mSamples.incrementAndGet();
+        }
+
+        @Override
+        public void stop() {
+            check(mStarted && !mStopped && !mReleased);
+            mStopped = true;
+        }
+
+        @Override
+        public void release() {
+            check(!mReleased);
+            mReleased = true;
+            MediaMuxerWrapperTest.this.mReleased.incrementAndGet();
+        }
+
+        private void check(boolean ok) {
+            if (!ok) {
+                mMisuse.incrementAndGet();
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        assertEquals("sessions leaked by an earlier test", 0, MediaMuxerWrapper.getOpenCount());
+    }
+
+    @After
+    public void tearDown() {
+        assertEquals(0, mMisuse.get());
+        assertEquals(mCreated.get(), mReleased.get());
+        assertEquals(0, MediaMuxerWrapper.getOpenCount());
+    }
+
+    /**
+     * A complete session: two tracks start the muxer, write a few samples, and stop it.
+     */
+    private void recordSession(int samples) throws Exception {
+        MediaMuxerWrapper session = new MediaMuxerWrapper("test.mp4", mFactory);
+        session.registerTrack();
+        session.registerTrack();
+        int video = session.addTrack(null);
+        int audio = session.addTrack(null);
+        assertEquals(false, session.start());
+        assertEquals(true, session.start());
+
+        ByteBuffer data = ByteBuffer.allocate(64);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.size = data.capacity();
+        for (int i = 0; i < samples; i++) {
+            info.presentationTimeUs = i * 10000L;
+            session.writeSampleData((i & 1) == 0 ? video : audio, data, info);
+        }
+        session.stop();
+        session.stop();
+        assertEquals(false, session.isStarted());
+    }
+
+    @Test
+    public void completeSessionsAreReleased() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            recordSession(10);
+        }
+        assertEquals(200, mCreated.get());
+        assertEquals(2000, mSamples.get());
+    }
+
+    @Test
+    public void abandonedSessionsAreReleased() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            MediaMuxerWrapper session = new MediaMuxerWrapper("test.mp4", mFactory);
+            session.registerTrack();
+            session.registerTrack();
+            switch (i % 4) {
+                case 0:
+                    // Setup failed before any encoder started.
+                    session.release();
+                    break;
+                case 1:
+                    // One encoder gave up before its format arrived; the muxer never started.
+                    session.addTrack(null);
+                    session.start();
+                    session.stop();
+                    session.stop();
+                    break;
+                case 2:
+                    // Started, then abandoned mid-recording.
+                    session.addTrack(null);
+                    session.addTrack(null);
+                    session.start();
+                    session.start();
+                    session.release();
+                    break;
+                default:
+                    // Released twice, then the encoders stop late.
+                    session.release();
+                    session.release();
+                    session.stop();
+                    break;
+            }
+        }
+        assertEquals(200, mCreated.get());
+    }
+
+    @Test
+    public void concurrentSessionsAreReleased() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int t = 0; t < THREADS; t++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < SESSIONS_PER_THREAD; i++) {
+                            recordSession(i % 5);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get(30, TimeUnit.SECONDS);     // rethrows any failure
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(THREADS * SESSIONS_PER_THREAD, mCreated.get());
+        assertTrue(mSamples.get() > 0);
+    }
+}
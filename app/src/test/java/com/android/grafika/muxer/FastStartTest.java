@@ -0,0 +1,239 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.muxer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs FastStart.relocate() on small MP4 files built box by box.  Only the boxes it looks
+ * at are present: ftyp, mdat, and moov with a single track's chunk offset table.
+ */
+public class FastStartTest {
+    private static final byte[] FTYP = box("ftyp", bytes("isom", 0, 0, 2, 0, "isom"));
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("faststart", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void moovAtEnd() throws Exception {
+        byte[] media = mediaData(300);
+        int mdatPos = FTYP.length;
+        long[] offsets = { mdatPos + 8, mdatPos + 108, mdatPos + 208 };
+        byte[] moov = moov(stco(offsets));
+        write(FTYP, box("mdat", media), moov);
+
+        assertTrue(FastStart.relocate(mFile));
+
+        byte[] expected = concat(FTYP, moov(stco(shift(offsets, moov.length))),
+                box("mdat", media));
+        byte[] actual = read();
+        assertArrayEquals(expected, actual);
+        // The patched offsets still point at the same media bytes.
+        for (int i = 0; i < offsets.length; i++) {
+            int pos = (int) offsets[i] + moov.length;
+            assertEquals(media[i * 100], actual[pos]);
+        }
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void moovFirstIsLeftAlone() throws Exception {
+        byte[] moov = moov(stco(new long[] { 100 }));
+        write(FTYP, moov, box("mdat", mediaData(100)));
+        byte[] before = read();
+
+        assertFalse(FastStart.relocate(mFile));
+        assertArrayEquals(before, read());
+    }
+
+    @Test
+    public void co64() throws Exception {
+        byte[] media = mediaData(200);
+        int mdatPos = FTYP.length;
+        long[] offsets = { mdatPos + 8, mdatPos + 108 };
+        byte[] moov = moov(co64(offsets));
+        write(FTYP, box("mdat", media), moov);
+
+        assertTrue(FastStart.relocate(mFile));
+
+        byte[] expected = concat(FTYP, moov(co64(shift(offsets, moov.length))),
+                box("mdat", media));
+        assertArrayEquals(expected, read());
+    }
+
+    @Test
+    public void stcoOverflowFails() throws Exception {
+        // A sparse file just over 4GB: mdat (with a 64-bit size) runs up to moov, and the
+        // last chunk sits close enough to 4GB that moving it down by moov's size would
+        // take its stco offset past 32 bits.
+        long moovPos = 0x100000000L;
+        long[] offsets = { FTYP.length + 16, 0xfffffff0L };
+        byte[] moov = moov(stco(offsets));
+        ByteBuffer mdatHeader = ByteBuffer.allocate(16);
+        mdatHeader.putInt(1).put(bytes("mdat")).putLong(moovPos - FTYP.length);
+
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.write(FTYP);
+            raf.write(mdatHeader.array());
+            raf.seek(moovPos);
+            raf.write(moov);
+        } finally {
+            raf.close();
+        }
+        long length = mFile.length();
+
+        try {
+            FastStart.relocate(mFile);
+            fail("relocated a file whose offsets don't fit in stco");
+        } catch (IOException expected) {
+        }
+
+        assertEquals(length, mFile.length());
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+        byte[] tail = new byte[moov.length];
+        raf = new RandomAccessFile(mFile, "r");
+        try {
+            raf.seek(moovPos);
+            raf.readFully(tail);
+        } finally {
+            raf.close();
+        }
+        assertArrayEquals(moov, tail);
+    }
+
+    private void write(byte[]... boxes) throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(concat(boxes));
+        } finally {
+            out.close();
+        }
+    }
+
+    private byte[] read() throws IOException {
+        byte[] data = new byte[(int) mFile.length()];
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            raf.readFully(data);
+        } finally {
+            raf.close();
+        }
+        return data;
+    }
+
+    private static byte[] moov(byte[] chunkOffsets) {
+        byte[] mvhd = box("mvhd", new byte[100]);
+        byte[] stbl = box("stbl", box("stsz", new byte[12]), chunkOffsets);
+        byte[] trak = box("trak", box("tkhd", new byte[84]),
+                box("mdia", box("minf", stbl)));
+        return box("moov", mvhd, trak);
+    }
+
+    private static byte[] stco(long[] offsets) {
+        ByteBuffer buf = ByteBuffer.allocate(8 + 4 * offsets.length);
+        buf.putInt(0).putInt(offsets.length);
+        for (long offset : offsets) {
+            buf.putInt((int) offset);
+        }
+        return box("stco", buf.array());
+    }
+
+    private static byte[] co64(long[] offsets) {
+        ByteBuffer buf = ByteBuffer.allocate(8 + 8 * offsets.length);
+        buf.putInt(0).putInt(offsets.length);
+        for (long offset : offsets) {
+            buf.putLong(offset);
+        }
+        return box("co64", buf.array());
+    }
+
+    private static long[] shift(long[] offsets, long delta) {
+        long[] shifted = Arrays.copyOf(offsets, offsets.length);
+        for (int i = 0; i < shifted.length; i++) {
+            shifted[i] += delta;
+        }
+        return shifted;
+    }
+
+    private static byte[] box(String type, byte[]... payload) {
+        byte[] body = concat(payload);
+        ByteBuffer buf = ByteBuffer.allocate(8 + body.length);
+        buf.putInt(8 + body.length).put(bytes(type)).put(body);
+        return buf.array();
+    }
+
+    private static byte[] mediaData(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 7 + 1);
+        }
+        return data;
+    }
+
+    /**
+     * Strings become their ASCII bytes, Integers single bytes.
+     */
+    private static byte[] bytes(Object... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Object part : parts) {
+            if (part instanceof String) {
+                String s = (String) part;
+                for (int i = 0; i < s.length(); i++) {
+                    out.write(s.charAt(i));
+                }
+            } else {
+                out.write((Integer) part);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
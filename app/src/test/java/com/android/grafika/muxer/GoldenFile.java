@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.muxer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares muxer output with the golden files in the test resources.
+ * <p>
+ * To regenerate them after an intentional format change, run the tests with
+ * -Dgolden.dir=app/src/test/resources/com/android/grafika/muxer, then check the new files
+ * by hand (e.g. with ffprobe or mp4dump) before committing them.
+ */
+class GoldenFile {
+    private GoldenFile() {}
+
+    /**
+     * Fails unless "actual" matches the named golden file byte for byte.
+     */
+    static void assertMatches(String name, byte[] actual) throws IOException {
+        String dir = System.getProperty("golden.dir");
+        if (dir != null) {
+            FileOutputStream out = new FileOutputStream(new File(dir, name));
+            try {
+                out.write(actual);
+            } finally {
+                out.close();
+            }
+            return;
+        }
+
+        byte[] expected = read(name);
+        for (int i = 0; i < Math.min(expected.length, actual.length); i++) {
+            if (expected[i] != actual[i]) {
+                fail(name + ": first difference at byte " + i + ": expected " +
+                        (expected[i] & 0xff) + ", got " + (actual[i] & 0xff));
+            }
+        }
+        assertEquals(name + ": length", expected.length, actual.length);
+    }
+
+    private static byte[] read(String name) throws IOException {
+        InputStream in = GoldenFile.class.getResourceAsStream(name);
+        assertNotNull("missing golden file " + name, in);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int count;
+            while ((count = in.read(buf)) > 0) {
+                bytes.write(buf, 0, count);
+            }
+            return bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.muxer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Checks Mp4FragmentWriter output against a golden file, and parses the boxes to check the
+ * parts players depend on (ISO/IEC 14496-12 and -15).
+ */
+public class Mp4FragmentWriterTest {
+    private static final byte[] SPS = {
+            0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1e, (byte) 0xda, 0x02, (byte) 0x80,
+            (byte) 0xbf, (byte) 0xe5, (byte) 0x84
+    };
+    private static final byte[] PPS = { 0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80 };
+    private static final byte[] AUDIO_CONFIG = { 0x12, 0x10 };
+
+    private ByteArrayOutputStream mOutput;
+    private Mp4FragmentWriter mWriter;
+    private int mVideo;
+    private int mAudio;
+
+    @Before
+    public void setUp() {
+        mOutput = new ByteArrayOutputStream();
+    }
+
+    private void start(int maxFragmentBytes) throws Exception {
+        mWriter = new Mp4FragmentWriter(Channels.newChannel(mOutput),
+                Mp4FragmentWriter.DEFAULT_FRAGMENT_USEC, maxFragmentBytes);
+        mVideo = mWriter.addTrack(Mp4FragmentWriter.Track.avc(320, 240, SPS, PPS));
+        mAudio = mWriter.addTrack(Mp4FragmentWriter.Track.aac(44100, 2, AUDIO_CONFIG));
+        mWriter.start();
+    }
+
+    /**
+     * Writes 1.5 seconds of 30fps video with a sync frame every second, plus audio.
+     */
+    private void writeSamples() throws Exception {
+        for (int i = 0; i < 45; i++) {
+            long ptsUsec = i * 1000000L / 30;
+            boolean sync = (i % 30) == 0;
+            mWriter.writeSample(mVideo, videoFrame(sync, 40 + i), ptsUsec, sync);
+            mWriter.writeSample(mAudio, audioFrame(20 + i), ptsUsec + 5000, true);
+        }
+        mWriter.finish();
+    }
+
+    @Test
+    public void topLevelLayout() throws Exception {
+        start(Mp4FragmentWriter.DEFAULT_MAX_FRAGMENT_BYTES);
+        writeSamples();
+        byte[] out = mOutput.toByteArray();
+
+        List<Box> boxes = boxes(out, 0, out.length);
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat"),
+                types(boxes));
+        assertEquals(out.length, mWriter.getBytesWritten());
+    }
+
+    @Test
+    public void fragmentsStartAtSyncFrames() throws Exception {
+        start(Mp4FragmentWriter.DEFAULT_MAX_FRAGMENT_BYTES);
+        writeSamples();
+        byte[] out = mOutput.toByteArray();
+        List<Box> top = boxes(out, 0, out.length);
+
+        Box moof1 = top.get(2);
+        Box moof2 = top.get(4);
+        assertEquals(1, getInt(out, find(out, moof1, "mfhd").mOffset + 12));
+        assertEquals(2, getInt(out, find(out, moof2, "mfhd").mOffset + 12));
+
+        // Video is the first traf.  The second fragment starts at the 1s sync frame.
+        Box traf2 = find(out, moof2, "traf");
+        Box tfdt = find(out, traf2, "tfdt");
+        assertEquals(1, out[tfdt.mOffset + 8]);     // version 1: 64-bit time
+        assertEquals(90000, getLong(out, tfdt.mOffset + 12));
+
+        Box trun1 = find(out, find(out, moof1, "traf"), "trun");
+        int count = getInt(out, trun1.mOffset + 12);
+        assertEquals(30, count);
+        int first = trun1.mOffset + 20;
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += getInt(out, first + 12 * i);
+        }
+        assertEquals(90000, total);     // runs right up to the next fragment's tfdt
+        assertEquals(0x02000000, getInt(out, first + 8));       // sync
+        assertEquals(0x01010000, getInt(out, first + 12 + 8));  // non-sync
+    }
+
+    @Test
+    public void dataOffsetPointsAtSampleData() throws Exception {
+        start(Mp4FragmentWriter.DEFAULT_MAX_FRAGMENT_BYTES);
+        ByteBuffer frame = ByteBuffer.wrap(new byte[] {
+                0, 0, 0, 1, 0x65, 1, 2, 3,              // 4-byte start code
+                0, 0, 1, 0x06, 4, 5                     // 3-byte start code
+        });
+        mWriter.writeSample(mVideo, frame, 0, true);
+        mWriter.finish();
+        byte[] out = mOutput.toByteArray();
+        assertEquals(0, frame.position());
+
+        List<Box> top = boxes(out, 0, out.length);
+        Box moof = top.get(2);
+        Box trun = find(out, find(out, moof, "traf"), "trun");
+        int dataOffset = getInt(out, trun.mOffset + 16);
+        int sampleSize = getInt(out, trun.mOffset + 20 + 4);
+
+        // Annex-B becomes 4-byte NAL lengths.
+        byte[] expected = {
+                0, 0, 0, 4, 0x65, 1, 2, 3,
+                0, 0, 0, 3, 0x06, 4, 5
+        };
+        assertEquals(expected.length, sampleSize);
+        int start = moof.mOffset + dataOffset;
+        assertEquals(top.get(3).mOffset + 8, start);
+        assertArrayEquals(expected, Arrays.copyOfRange(out, start, start + sampleSize));
+    }
+
+    @Test
+    public void sampleEntriesCarryCodecConfig() throws Exception {
+        start(Mp4FragmentWriter.DEFAULT_MAX_FRAGMENT_BYTES);
+        mWriter.finish();
+        byte[] out = mOutput.toByteArray();
+        Box moov = boxes(out, 0, out.length).get(1);
+        List<Box> traks = new ArrayList<Box>();
+        for (Box box : boxes(out, moov.mOffset + 8, moov.end())) {
+            if (box.mType.equals("trak")) {
+                traks.add(box);
+            }
+        }
+        assertEquals(2, traks.size());
+
+        // avc1 follows the stsd header and entry count; avcC follows avc1's 78 bytes.
+        Box avc1 = sampleEntry(out, traks.get(0));
+        assertEquals("avc1", avc1.mType);
+        Box avcC = boxes(out, avc1.mOffset + 8 + 78, avc1.end()).get(0);
+        assertEquals("avcC", avcC.mType);
+        int p = avcC.mOffset + 8;
+        assertEquals(1, out[p]);
+        assertEquals(0x42, out[p + 1]);             // profile, from the SPS
+        assertEquals((byte) 0xc0, out[p + 2]);
+        assertEquals(0x1e, out[p + 3]);             // level
+        assertEquals((byte) 0xff, out[p + 4]);      // 4-byte lengths
+        assertEquals(SPS.length - 4, getShort(out, p + 6));
+        assertArrayEquals(Arrays.copyOfRange(SPS, 4, SPS.length),
+                Arrays.copyOfRange(out, p + 8, p + 8 + SPS.length - 4));
+
+        Box mp4a = sampleEntry(out, traks.get(1));
+        assertEquals("mp4a", mp4a.mType);
+        Box esds = boxes(out, mp4a.mOffset + 8 + 28, mp4a.end()).get(0);
+        assertEquals("esds", esds.mType);
+        byte[] body = Arrays.copyOfRange(out, esds.mOffset + 12, esds.end());
+        assertEquals(0x05, body[body.length - 3 - 4]);          // DecoderSpecificInfo
+        assertEquals(AUDIO_CONFIG.length, body[body.length - 3 - 3]);
+        assertArrayEquals(AUDIO_CONFIG,
+                Arrays.copyOfRange(body, body.length - 3 - 2, body.length - 3));
+    }
+
+    @Test
+    public void sizeLimitCutsFragmentEarly() throws Exception {
+        start(500);
+        writeSamples();
+        byte[] out = mOutput.toByteArray();
+        int fragments = 0;
+        for (Box box : boxes(out, 0, out.length)) {
+            if (box.mType.equals("mdat")) {
+                fragments++;
+                assertEquals(true, box.mSize - 8 <= 500);
+            }
+        }
+        assertEquals(true, fragments > 2);
+    }
+
+    @Test
+    public void golden() throws Exception {
+        start(Mp4FragmentWriter.DEFAULT_MAX_FRAGMENT_BYTES);
+        writeSamples();
+        GoldenFile.assertMatches("fragmented.mp4", mOutput.toByteArray());
+    }
+
+    private static ByteBuffer videoFrame(boolean sync, int size) {
+        byte[] data = new byte[size];
+        data[3] = 1;
+        data[4] = (byte) (sync ? 0x65 : 0x41);
+        for (int i = 5; i < size; i++) {
+            data[i] = (byte) (i * 7 + 3);       // never 0, so no false start codes
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    private static ByteBuffer audioFrame(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 5 + 1);
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    /**
+     * One box: type, offset of its size field, and total size.
+     */
+    private static class Box {
+        final String mType;
+        final int mOffset;
+        final int mSize;
+
+        Box(String type, int offset, int size) {
+            mType = type;
+            mOffset = offset;
+            mSize = size;
+        }
+
+        int end() {
+            return mOffset + mSize;
+        }
+    }
+
+    private static List<Box> boxes(byte[] data, int start, int end) {
+        List<Box> result = new ArrayList<Box>();
+        int pos = start;
+        while (pos < end) {
+            int size = getInt(data, pos);
+            String type = new String(data, pos + 4, 4);
+            if (size < 8 || pos + size > end) {
+                throw new AssertionError("bad " + type + " box at " + pos + ", size " + size);
+            }
+            result.add(new Box(type, pos, size));
+            pos += size;
+        }
+        return result;
+    }
+
+    private static List<String> types(List<Box> boxes) {
+        List<String> result = new ArrayList<String>();
+        for (Box box : boxes) {
+            result.add(box.mType);
+        }
+        return result;
+    }
+
+    /**
+     * Finds the first child of a plain (not full) box, or of a full box whose version and
+     * flags are skipped by the caller.
+     */
+    private static Box find(byte[] data, Box parent, String type) {
+        for (Box box : boxes(data, parent.mOffset + 8, parent.end())) {
+            if (box.mType.equals(type)) {
+                return box;
+            }
+        }
+        throw new AssertionError("no " + type + " in " + parent.mType);
+    }
+
+    private static Box sampleEntry(byte[] data, Box trak) {
+        Box stbl = find(data, find(data, find(data, trak, "mdia"), "minf"), "stbl");
+        Box stsd = find(data, stbl, "stsd");
+        assertEquals(1, getInt(data, stsd.mOffset + 12));
+        Box entry = boxes(data, stsd.mOffset + 16, stsd.end()).get(0);
+        assertNotNull(entry);
+        return entry;
+    }
+
+    private static int getShort(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return ByteBuffer.wrap(data, offset, 4).getInt();
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        return ByteBuffer.wrap(data, offset, 8).getLong();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.muxer;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which video formats the muxer factories say they can hold.
+ */
+public class MuxerTest {
+    private static final String AVC = "video/avc";
+    private static final String HEVC = "video/hevc";
+
+    @Test
+    public void ownMuxersTakeOnlyAvc() {
+        Muxer.Factory[] factories = {
+                Muxer.FRAGMENTED_MP4, Muxer.hls(6000000, 0)
+        };
+        for (Muxer.Factory factory : factories) {
+            assertTrue(Muxer.canCarryVideo(factory, AVC));
+            assertFalse(Muxer.canCarryVideo(factory, HEVC));
+        }
+        assertTrue(Muxer.canCarryVideo(Muxer.MEDIA_MUXER, AVC));
+    }
+
+    @Test
+    public void wrappersAskWhatTheyWrap() {
+        Muxer.Factory segmented = Muxer.segmented(Muxer.FRAGMENTED_MP4, 1000000, 0, 0);
+        assertTrue(Muxer.canCarryVideo(segmented, AVC));
+        assertFalse(Muxer.canCarryVideo(segmented, HEVC));
+        assertFalse(Muxer.canCarryVideo(Muxer.faststart(segmented), HEVC));
+
+        Muxer.Factory anything = new Muxer.Factory() {
+            @Override
+            public Muxer create(File outputFile) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        assertTrue(Muxer.canCarryVideo(Muxer.faststart(anything), HEVC));
+        assertTrue(Muxer.canCarryVideo(null, HEVC));
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives SegmentedMuxer with a fake per-segment muxer that writes placeholder bytes to real
+ * files, and checks where segments start and which ones the quota deletes.  Segments are
+ * closed on the calling thread, so everything has happened by the time a call returns.
+ */
+public class SegmentedMuxerTest {
+    private static final int SAMPLE_SIZE = 1000;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final MediaFormat mVideoFormat = new MediaFormat();
+    private final MediaFormat mAudioFormat = new MediaFormat();
+    private final List<FakeMuxer> mSegments = new ArrayList<FakeMuxer>();
+    private File mDir;
+
+    private final Muxer.Factory mFactory = new Muxer.Factory() {
+        @Override
+        public Muxer create(File outputFile) {
+            FakeMuxer muxer = new FakeMuxer(outputFile);
+            mSegments.add(muxer);
+            return muxer;
+        }
+    };
+
+    /**
+     * Writes each sample's size in zero bytes, and remembers the first sample.
+     */
+    private static class FakeMuxer extends Muxer {
+        final File mFile;
+        private FileOutputStream mOut;
+        private int mTracks;
+        int mFirstTrack = -1;
+        long mFirstPtsUsec;
+        boolean mFirstIsSync;
+        int mSamples;
+        boolean mStopped;
+        boolean mReleased;
+
+        FakeMuxer(File file) {
+            mFile = file;
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return mTracks++;
+        }
+
+        @Override
+        public void start() {
+            try {
+                mOut = new FileOutputStream(mFile);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer byteBuf,
+                MediaCodec.BufferInfo bufferInfo) {
+            assertFalse(mStopped);
+            if (mSamples++ == 0) {
+                mFirstTrack = trackIndex;
+                mFirstPtsUsec = bufferInfo.presentationTimeUs;
+                mFirstIsSync = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+            }
+            try {
+                mOut.write(new byte[bufferInfo.size]);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        }
+
+        @Override
+        public void stop() {
+            mStopped = true;
+        }
+
+        @Override
+        public void release() {
+            try {
+                mOut.close();
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+            mReleased = true;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("segmented", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for (FakeMuxer segment : mSegments) {
+            segment.mFile.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void rolloverWaitsForSyncFrame() {
+        // One-second segments, but a sync frame only every 1.5s.
+        SegmentedMuxer muxer = newMuxer(1000000, 0, 0);
+        int video = muxer.addTrack(mVideoFormat);
+        int audio = muxer.addTrack(mAudioFormat);
+        muxer.start();
+        for (int i = 0; i < 100; i++) {
+            long ptsUsec = framePts(i);
+            muxer.writeSampleData(audio, ByteBuffer.allocate(0), info(ptsUsec, false));
+            muxer.writeSampleData(video, ByteBuffer.allocate(0), info(ptsUsec, i % 45 == 0));
+        }
+        muxer.stop();
+        muxer.release();
+
+        assertEquals(3, mSegments.size());
+        for (int i = 0; i < mSegments.size(); i++) {
+            FakeMuxer segment = mSegments.get(i);
+            assertEquals(SegmentedMuxer.segmentFile(new File(mDir, "clip.mp4"), i + 1),
+                    segment.mFile);
+            assertTrue(segment.mStopped);
+            assertTrue(segment.mReleased);
+            if (i > 0) {
+                // Audio from the late part of the previous second stays behind; the new
+                // segment opens with the sync frame.
+                assertEquals(video, segment.mFirstTrack);
+                assertTrue(segment.mFirstIsSync);
+                assertEquals(framePts(45 * i), segment.mFirstPtsUsec);
+            }
+        }
+    }
+
+    @Test
+    public void oneSyncFrameRequestPerRollover() {
+        SegmentedMuxer muxer = newMuxer(1000000, 0, 0);
+        int video = muxer.addTrack(mVideoFormat);
+        muxer.start();
+        // An encoder that makes a sync frame when asked, and otherwise only at the start.
+        boolean syncNext = true;
+        int requests = 0;
+        for (int i = 0; i < 100; i++) {
+            long ptsUsec = framePts(i);
+            muxer.writeSampleData(video, ByteBuffer.allocate(0), info(ptsUsec, syncNext));
+            syncNext = false;
+            if (muxer.pollSyncFrameRequest()) {
+                requests++;
+                syncNext = true;
+                assertFalse(muxer.pollSyncFrameRequest());
+            }
+        }
+        muxer.stop();
+
+        // Each segment is due a second after it started, and switches one frame later, at
+        // the requested sync frame.
+        assertEquals(4, mSegments.size());
+        assertEquals(mSegments.size() - 1, requests);
+        for (int i = 1; i < mSegments.size(); i++) {
+            assertEquals(framePts(i * 31), mSegments.get(i).mFirstPtsUsec);
+            assertTrue(mSegments.get(i).mFirstIsSync);
+        }
+    }
+
+    @Test
+    public void noRequestWhenSyncFrameArrivesOnTime() {
+        SegmentedMuxer muxer = newMuxer(1000000, 0, 0);
+        int video = muxer.addTrack(mVideoFormat);
+        muxer.start();
+        for (int i = 0; i < 100; i++) {
+            muxer.writeSampleData(video, ByteBuffer.allocate(0),
+                    info(framePts(i), i % 30 == 0));
+            assertFalse(muxer.pollSyncFrameRequest());
+        }
+        muxer.stop();
+        assertEquals(4, mSegments.size());
+    }
+
+    @Test
+    public void quotaDeletesOldestSegments() {
+        // Audio only, so every sample can start a segment: ten samples per segment, room
+        // for two and a half segments.
+        SegmentedMuxer muxer = newMuxer(0, 10 * SAMPLE_SIZE, 25 * SAMPLE_SIZE);
+        int audio = muxer.addTrack(mAudioFormat);
+        muxer.start();
+        for (int i = 0; i < 100; i++) {
+            MediaCodec.BufferInfo info = info(i * 23220L, true);
+            info.size = SAMPLE_SIZE;
+            muxer.writeSampleData(audio, ByteBuffer.allocate(SAMPLE_SIZE), info);
+
+            // While recording, the open segment counts against the quota too.
+            long total = 0;
+            for (FakeMuxer segment : mSegments) {
+                total += segment.mFile.length();
+            }
+            assertTrue("total " + total + " at sample " + i,
+                    total <= 25 * SAMPLE_SIZE + 10 * SAMPLE_SIZE);
+        }
+        muxer.stop();
+        muxer.release();
+
+        assertEquals(10, mSegments.size());
+        boolean[] exists = new boolean[mSegments.size()];
+        for (int i = 0; i < exists.length; i++) {
+            FakeMuxer segment = mSegments.get(i);
+            exists[i] = segment.mFile.exists();
+            assertTrue(segment.mReleased);
+            assertEquals(10, segment.mSamples);
+        }
+        boolean[] expected = new boolean[exists.length];
+        expected[8] = true;
+        expected[9] = true;
+        assertEquals(Arrays.toString(expected), Arrays.toString(exists));
+    }
+
+    private SegmentedMuxer newMuxer(long segmentUsec, long segmentBytes, long quotaBytes) {
+        return new SegmentedMuxer(new File(mDir, "clip.mp4"), mFactory, segmentUsec,
+                segmentBytes, quotaBytes, DIRECT) {
+            @Override
+            boolean isVideo(MediaFormat format) {
+                // MediaFormat is a stub in JVM tests.
+                return format == mVideoFormat;
+            }
+        };
+    }
+
+    /**
+     * Returns the time of a frame at 30fps.
+     */
+    private static long framePts(int frame) {
+        return frame * 1000000L / 30;
+    }
+
+    private static MediaCodec.BufferInfo info(long ptsUsec, boolean sync) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.presentationTimeUs = ptsUsec;
+        info.flags = sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+        return info;
+    }
+}
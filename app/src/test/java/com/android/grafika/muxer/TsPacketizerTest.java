@@ -0,0 +1,321 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.muxer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks TsPacketizer output against golden files and against the MPEG-2 systems spec
+ * (ISO/IEC 13818-1) field by field.
+ */
+public class TsPacketizerTest {
+    private static final int PID_PAT = 0x0000;
+    private static final int PID_PMT = 0x1000;
+    private static final int PID_VIDEO = 0x0100;
+    private static final int PID_AUDIO = 0x0101;
+
+    // Baseline 3.0 SPS and a PPS, as MediaCodec hands them over in csd-0 / csd-1.
+    private static final byte[] SPS = {
+            0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1e, (byte) 0xda, 0x02, (byte) 0x80,
+            (byte) 0xbf, (byte) 0xe5, (byte) 0x84
+    };
+    private static final byte[] PPS = { 0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80 };
+    // AAC LC, 44.1kHz, stereo.
+    private static final byte[] AUDIO_CONFIG = { 0x12, 0x10 };
+
+    private ByteArrayOutputStream mOutput;
+    private TsPacketizer mPacketizer;
+
+    @Before
+    public void setUp() {
+        mOutput = new ByteArrayOutputStream();
+        mPacketizer = new TsPacketizer(Channels.newChannel(mOutput));
+    }
+
+    @Test
+    public void crcMatchesMpeg2CheckValue() throws Exception {
+        byte[] check = "123456789".getBytes("US-ASCII");
+        assertEquals(0x0376e6e7, TsPacketizer.crc32(check, 0, check.length));
+    }
+
+    @Test
+    public void patMatchesReference() throws Exception {
+        mPacketizer.setVideo(SPS, PPS);
+        mPacketizer.writeVideo(frame(0x65, 100), 0, true);
+        byte[] out = finish();
+
+        // Program 1 on PID 0x1000, transport_stream_id 1: the PAT ffmpeg writes, CRC
+        // included.
+        byte[] expected = new byte[TsPacketizer.PACKET_SIZE];
+        Arrays.fill(expected, (byte) 0xff);
+        byte[] head = {
+                0x47, 0x40, 0x00, 0x10, 0x00,
+                0x00, (byte) 0xb0, 0x0d, 0x00, 0x01, (byte) 0xc1, 0x00, 0x00,
+                0x00, 0x01, (byte) 0xf0, 0x00,
+                0x2a, (byte) 0xb1, 0x04, (byte) 0xb2
+        };
+        System.arraycopy(head, 0, expected, 0, head.length);
+        assertArrayEquals(expected, Arrays.copyOf(out, TsPacketizer.PACKET_SIZE));
+    }
+
+    @Test
+    public void pmtListsBothStreams() throws Exception {
+        mPacketizer.setVideo(SPS, PPS);
+        mPacketizer.setAudio(AUDIO_CONFIG);
+        mPacketizer.writeVideo(frame(0x65, 100), 0, true);
+        List<byte[]> packets = packets(finish());
+
+        byte[] pkt = packets.get(1);
+        assertEquals(PID_PMT, pid(pkt));
+        int s = 5;                                  // after the pointer field
+        int sectionLength = ((pkt[s + 1] & 0x0f) << 8) | (pkt[s + 2] & 0xff);
+        assertEquals(0x02, pkt[s] & 0xff);          // table_id
+        assertEquals(9 + 5 * 2 + 4, sectionLength);
+        assertEquals(PID_VIDEO, ((pkt[s + 8] & 0x1f) << 8) | (pkt[s + 9] & 0xff));  // PCR
+        assertEquals(0x1b, pkt[s + 12] & 0xff);     // H.264
+        assertEquals(PID_VIDEO, ((pkt[s + 13] & 0x1f) << 8) | (pkt[s + 14] & 0xff));
+        assertEquals(0x0f, pkt[s + 17] & 0xff);     // ADTS AAC
+        assertEquals(PID_AUDIO, ((pkt[s + 18] & 0x1f) << 8) | (pkt[s + 19] & 0xff));
+        // Running the CRC over a section including its CRC gives zero.
+        assertEquals(0, TsPacketizer.crc32(pkt, s, 3 + sectionLength));
+    }
+
+    @Test
+    public void videoPesHasPtsPcrAndParameterSets() throws Exception {
+        mPacketizer.setVideo(SPS, PPS);
+        ByteBuffer data = frame(0x65, 500);
+        mPacketizer.writeVideo(data, 1000000, true);
+        byte[] out = finish();
+        assertEquals(0, data.position());
+
+        List<byte[]> video = packetsFor(packets(out), PID_VIDEO);
+        byte[] first = video.get(0);
+        assertTrue("payload_unit_start", (first[1] & 0x40) != 0);
+        assertEquals(0x30, first[3] & 0x30);        // adaptation field + payload
+        assertEquals(0x50, first[5] & 0xff);        // random access, PCR
+        assertEquals(90000 - 9000, pcrBase(first));
+
+        byte[] pes = pes(video);
+        assertEquals(0xe0, pes[3] & 0xff);
+        assertEquals(0, ((pes[4] & 0xff) << 8) | (pes[5] & 0xff));   // unbounded
+        assertEquals(0x80, pes[7] & 0xff);          // PTS only
+        assertEquals(90000, pts(pes, 9));
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(new byte[] { 0, 0, 0, 1, 0x09, (byte) 0xf0 });
+        payload.write(SPS);
+        payload.write(PPS);
+        payload.write(bytes(data));
+        assertArrayEquals(payload.toByteArray(), Arrays.copyOfRange(pes, 14, pes.length));
+    }
+
+    @Test
+    public void deltaFrameHasNoTablesOrParameterSets() throws Exception {
+        mPacketizer.setVideo(SPS, PPS);
+        mPacketizer.writeVideo(frame(0x65, 50), 0, true);
+        int before = finish().length;
+        ByteBuffer data = frame(0x41, 50);
+        mPacketizer.writeVideo(data, 33334, false);
+        List<byte[]> packets = packets(Arrays.copyOfRange(finish(), before, mOutput.size()));
+
+        assertEquals(1, packets.size());
+        byte[] pes = pes(packets);
+        assertEquals(3000, pts(pes, 9));            // 33334us, in 90kHz ticks
+        byte[] payload = Arrays.copyOfRange(pes, 14, pes.length);
+        assertEquals(6 + 50, payload.length);       // AUD and the frame, nothing else
+        assertEquals(0x41, payload[10]);
+    }
+
+    @Test
+    public void audioPesHasAdtsHeader() throws Exception {
+        mPacketizer.setAudio(AUDIO_CONFIG);
+        ByteBuffer data = frame(0x21, 300);
+        mPacketizer.writeAudio(data, 500000);
+        List<byte[]> audio = packetsFor(packets(finish()), PID_AUDIO);
+
+        // Without video, the PCR goes on the audio PID.
+        assertEquals(45000 - 9000, pcrBase(audio.get(0)));
+        byte[] pes = pes(audio);
+        assertEquals(0xc0, pes[3] & 0xff);
+        int frameLength = 7 + 300;
+        assertEquals(3 + 5 + frameLength, ((pes[4] & 0xff) << 8) | (pes[5] & 0xff));
+        assertEquals(45000, pts(pes, 9));
+
+        // AAC LC, 44.1kHz, stereo: FF F1 50 80, then the 13-bit frame length.
+        byte[] adts = Arrays.copyOfRange(pes, 14, 21);
+        assertEquals(0xff, adts[0] & 0xff);
+        assertEquals(0xf1, adts[1] & 0xff);
+        assertEquals(0x50, adts[2] & 0xff);
+        assertEquals(0x80, adts[3] & 0xc0);
+        int length = ((adts[3] & 0x03) << 11) | ((adts[4] & 0xff) << 3) |
+                ((adts[5] & 0xe0) >> 5);
+        assertEquals(frameLength, length);
+        assertEquals(0xfc, adts[6] & 0xff);
+        assertArrayEquals(bytes(data), Arrays.copyOfRange(pes, 21, pes.length));
+    }
+
+    @Test
+    public void continuityCountersCarryAcrossChannels() throws Exception {
+        mPacketizer.setVideo(SPS, PPS);
+        mPacketizer.writeVideo(frame(0x65, 1000), 0, true);
+        mPacketizer.setChannel(Channels.newChannel(new ByteArrayOutputStream()));
+        mPacketizer.setChannel(Channels.newChannel(mOutput));
+        mPacketizer.writeVideo(frame(0x65, 1000), 1000000, true);
+        List<byte[]> packets = packets(finish());
+
+        int expectedVideo = 0;
+        int expectedPat = 0;
+        int patCount = 0;
+        for (byte[] pkt : packets) {
+            int counter = pkt[3] & 0x0f;
+            if (pid(pkt) == PID_VIDEO) {
+                assertEquals(expectedVideo, counter);
+                expectedVideo = (expectedVideo + 1) & 0x0f;
+            } else if (pid(pkt) == PID_PAT) {
+                assertEquals(expectedPat, counter);
+                expectedPat = (expectedPat + 1) & 0x0f;
+                patCount++;
+            }
+        }
+        assertEquals(2, patCount);
+    }
+
+    @Test
+    public void goldenVideoOnly() throws Exception {
+        mPacketizer.setVideo(SPS, PPS);
+        mPacketizer.writeVideo(frame(0x65, 400), 0, true);
+        mPacketizer.writeVideo(frame(0x41, 120), 33333, false);
+        mPacketizer.writeVideo(frame(0x41, 183), 66667, false);
+        mPacketizer.writeVideo(frame(0x65, 400), 100000, true);
+        GoldenFile.assertMatches("video_only.ts", finish());
+    }
+
+    @Test
+    public void goldenAudioVideo() throws Exception {
+        mPacketizer.setVideo(SPS, PPS);
+        mPacketizer.setAudio(AUDIO_CONFIG);
+        mPacketizer.writeVideo(frame(0x65, 400), 0, true);
+        mPacketizer.writeAudio(frame(0x21, 200), 10000);
+        mPacketizer.writeVideo(frame(0x41, 120), 33333, false);
+        mPacketizer.writeAudio(frame(0x21, 170), 33220);
+        mPacketizer.writeVideo(frame(0x41, 150), 66667, false);
+        GoldenFile.assertMatches("audio_video.ts", finish());
+    }
+
+    /**
+     * Returns a frame: a 4-byte start code and NAL header for video (or just the header
+     * byte for audio), then a counting pattern.
+     */
+    private static ByteBuffer frame(int header, int size) {
+        byte[] data = new byte[size];
+        int i = 0;
+        if (header != 0x21) {
+            data[i++] = 0;
+            data[i++] = 0;
+            data[i++] = 0;
+            data[i++] = 1;
+        }
+        data[i++] = (byte) header;
+        for (; i < size; i++) {
+            data[i] = (byte) (i * 7 + 3);
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    private static byte[] bytes(ByteBuffer buf) {
+        byte[] result = new byte[buf.remaining()];
+        buf.duplicate().get(result);
+        return result;
+    }
+
+    private byte[] finish() throws IOException {
+        mPacketizer.flush();
+        byte[] out = mOutput.toByteArray();
+        assertEquals(0, out.length % TsPacketizer.PACKET_SIZE);
+        return out;
+    }
+
+    private static List<byte[]> packets(byte[] stream) {
+        List<byte[]> result = new ArrayList<byte[]>();
+        for (int i = 0; i < stream.length; i += TsPacketizer.PACKET_SIZE) {
+            byte[] pkt = Arrays.copyOfRange(stream, i, i + TsPacketizer.PACKET_SIZE);
+            assertEquals(0x47, pkt[0]);
+            result.add(pkt);
+        }
+        return result;
+    }
+
+    private static List<byte[]> packetsFor(List<byte[]> packets, int pid) {
+        List<byte[]> result = new ArrayList<byte[]>();
+        for (byte[] pkt : packets) {
+            if (pid(pkt) == pid) {
+                result.add(pkt);
+            }
+        }
+        return result;
+    }
+
+    private static int pid(byte[] pkt) {
+        return ((pkt[1] & 0x1f) << 8) | (pkt[2] & 0xff);
+    }
+
+    /**
+     * Reassembles one PES packet from the payloads of its transport packets.
+     */
+    private static byte[] pes(List<byte[]> packets) {
+        ByteArrayOutputStream pes = new ByteArrayOutputStream();
+        for (byte[] pkt : packets) {
+            int start = 4;
+            if ((pkt[3] & 0x20) != 0) {
+                start += 1 + (pkt[4] & 0xff);
+            }
+            pes.write(pkt, start, TsPacketizer.PACKET_SIZE - start);
+        }
+        byte[] result = pes.toByteArray();
+        assertEquals(0, result[0]);
+        assertEquals(0, result[1]);
+        assertEquals(1, result[2]);
+        return result;
+    }
+
+    private static long pts(byte[] pes, int offset) {
+        return (((long) pes[offset] & 0x0e) << 29) |
+                ((pes[offset + 1] & 0xff) << 22) |
+                ((pes[offset + 2] & 0xfe) << 14) |
+                ((pes[offset + 3] & 0xff) << 7) |
+                ((pes[offset + 4] & 0xfe) >> 1);
+    }
+
+    private static long pcrBase(byte[] pkt) {
+        assertTrue("has PCR", (pkt[5] & 0x10) != 0);
+        return (((long) pkt[6] & 0xff) << 25) | ((pkt[7] & 0xff) << 17) |
+                ((pkt[8] & 0xff) << 9) | ((pkt[9] & 0xff) << 1) | ((pkt[10] & 0x80) >> 7);
+    }
+}
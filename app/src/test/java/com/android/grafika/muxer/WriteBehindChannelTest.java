@@ -0,0 +1,228 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.muxer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs WriteBehindChannel against FileChannels on temp files.
+ */
+public class WriteBehindChannelTest {
+    private static final int BLOCK_SIZE = 4096;
+    private static final int PACKET_SIZE = 188;
+
+    private final List<File> mFiles = new ArrayList<File>();
+
+    @Before
+    public void setUp() {
+        mFiles.clear();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mFiles) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void smallWritesAreCoalescedIntoBlocks() throws Exception {
+        File file = newFile();
+        FileChannel target = open(file);
+        WriteBehindChannel channel = new WriteBehindChannel(target, BLOCK_SIZE, 2);
+
+        // Less than a block stays in memory.
+        byte[] expected = packets(0, 10);
+        channel.write(ByteBuffer.wrap(expected));
+        Thread.sleep(50);
+        assertEquals(0, file.length());
+        assertEquals(0, channel.getWriteTimes().getCount());
+
+        // 100 TS packets fill four blocks; flush() sends the rest as a fifth.
+        expected = packets(0, 100);
+        channel.write(ByteBuffer.wrap(expected, 10 * PACKET_SIZE,
+                expected.length - 10 * PACKET_SIZE));
+        channel.flush();
+        int blocks = (expected.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        assertEquals(blocks, channel.getWriteTimes().getCount());
+        assertEquals(expected.length, channel.getBytesWritten());
+        assertArrayEquals(expected, read(file));
+        assertTrue(target.isOpen());
+
+        channel.close();
+        assertFalse(target.isOpen());
+        assertEquals(blocks, channel.getWriteTimes().getCount());
+    }
+
+    @Test
+    public void writeBiggerThanPool() throws Exception {
+        File file = newFile();
+        WriteBehindChannel channel = new WriteBehindChannel(open(file), BLOCK_SIZE, 2);
+        byte[] expected = packets(3, 200);      // ~9 blocks through a pool of 2
+        channel.write(ByteBuffer.wrap(expected));
+        channel.close();
+        assertArrayEquals(expected, read(file));
+    }
+
+    @Test
+    public void postRunsAfterEarlierWrites() throws Exception {
+        final File first = newFile();
+        File second = newFile();
+        final FileChannel firstTarget = open(first);
+        final FileChannel secondTarget = open(second);
+        WriteBehindChannel channel = new WriteBehindChannel(firstTarget, BLOCK_SIZE, 4);
+        final List<String> events = new ArrayList<String>();
+
+        byte[] firstData = packets(0, 30);
+        channel.write(ByteBuffer.wrap(firstData));
+        channel.post(new Runnable() {
+            @Override
+            public void run() {
+                events.add("posted size=" + first.length() + " open=" + firstTarget.isOpen());
+            }
+        });
+        channel.setTarget(secondTarget, true);
+        channel.post(new Runnable() {
+            @Override
+            public void run() {
+                events.add("switched open=" + firstTarget.isOpen());
+            }
+        });
+        byte[] secondData = packets(1, 5);
+        channel.write(ByteBuffer.wrap(secondData));
+        channel.flush();
+        assertTrue(secondTarget.isOpen());
+        channel.close();
+
+        assertEquals(2, events.size());
+        assertEquals("posted size=" + firstData.length + " open=true", events.get(0));
+        assertEquals("switched open=false", events.get(1));
+        assertFalse(secondTarget.isOpen());
+        assertArrayEquals(firstData, read(first));
+        assertArrayEquals(secondData, read(second));
+
+        try {
+            channel.write(ByteBuffer.wrap(secondData));
+            fail("wrote after close");
+        } catch (ClosedChannelException expected) {
+        }
+    }
+
+    @Test
+    public void abortClosesQueuedTargets() throws Exception {
+        File first = newFile();
+        File second = newFile();
+        FileChannel firstTarget = open(first);
+        FileChannel secondTarget = open(second);
+        final WriteBehindChannel channel =
+                new WriteBehindChannel(firstTarget, BLOCK_SIZE, 4);
+
+        // Hold up the I/O thread, so the switch to the second file is still queued when
+        // abort() is called.
+        final CountDownLatch release = new CountDownLatch(1);
+        byte[] written = packets(0, 3);
+        channel.write(ByteBuffer.wrap(written));
+        channel.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        channel.write(ByteBuffer.wrap(packets(1, 3)));
+        channel.setTarget(secondTarget, true);
+        channel.write(ByteBuffer.wrap(packets(2, 3)));
+
+        Thread aborter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                channel.abort();
+            }
+        });
+        aborter.start();
+        // abort() has cleared the queue once it's waiting for the I/O thread to exit.
+        long deadline = System.nanoTime() + 5000000000L;
+        while (aborter.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        aborter.join(5000);
+        assertFalse(aborter.isAlive());
+
+        assertFalse(firstTarget.isOpen());
+        assertFalse(secondTarget.isOpen());
+        assertArrayEquals(written, read(first));
+        assertEquals(0, second.length());
+        assertFalse(channel.isOpen());
+    }
+
+    private File newFile() throws IOException {
+        File file = File.createTempFile("writebehind", ".ts");
+        mFiles.add(file);
+        return file;
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return new RandomAccessFile(file, "rw").getChannel();
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.readFully(data);
+        } finally {
+            raf.close();
+        }
+        return data;
+    }
+
+    /**
+     * Returns count TS-sized packets, numbered so misplaced data shows up.
+     */
+    private static byte[] packets(int seed, int count) {
+        byte[] data = new byte[count * PACKET_SIZE];
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < PACKET_SIZE; j++) {
+                data[i * PACKET_SIZE + j] = (byte) (seed * 31 + i * 7 + j);
+            }
+        }
+        return data;
+    }
+}